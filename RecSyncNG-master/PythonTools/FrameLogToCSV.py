@@ -0,0 +1,125 @@
+import argparse
+import struct
+import zlib
+from pathlib import Path
+from typing import List, Tuple
+
+import pandas as pd
+
+#
+# Binary frame log written by FrameTimestampLog.java on the phones. All values are little-endian.
+#   Header: int magic "RSFL", int version, int record size, int reserved.
+#   Records: long leader timestamp ns, long local timestamp ns, long frame number,
+#            long exposure time ns, long frame duration ns, long flags (version 2 only).
+#   Footer (missing if the app died while recording): int magic "RSFE", long record count, int CRC32.
+#
+FRAME_LOG_EXTENSION = ".frames"
+
+HEADER_FORMAT = "<4siii"
+HEADER_SIZE = struct.calcsize(HEADER_FORMAT)
+HEADER_MAGIC = b"RSFL"
+
+# Record layout by log version.
+RECORD_FORMATS = {1: "<qqqqq", 2: "<qqqqqq"}
+RECORD_COLUMNS = ["timestamp", "local_timestamp", "frame_number", "exposure_time", "frame_duration", "flags"]
+
+# Flags: the first frame after a phase correction, whose interval to the previous frame is longer than the period.
+FLAG_AFTER_PHASE_CORRECTION = 1
+# Flags: a frame whose leader time went backwards after a sync correction, logged and written to the video
+# 1 us after the previous frame since video timestamps must increase.
+FLAG_PTS_ADJUSTED = 2
+
+FOOTER_FORMAT = "<4sqI"
+FOOTER_SIZE = struct.calcsize(FOOTER_FORMAT)
+FOOTER_MAGIC = b"RSFE"
+
+
+def read_frame_log(log_path: Path) -> Tuple[pd.DataFrame, bool]:
+    """Reads a binary frame log.
+
+    Returns the records as a DataFrame with the RECORD_COLUMNS, and whether the log was closed cleanly.
+    For a log without a valid footer, e.g. because the app crashed, every complete record is returned.
+    Version 1 logs have no flags, they read as 0.
+    """
+    data = log_path.read_bytes()
+    if len(data) < HEADER_SIZE:
+        raise Exception(f"Frame log {log_path} is too short to hold a header.")
+
+    magic, version, record_size, _ = struct.unpack_from(HEADER_FORMAT, data, 0)
+    if magic != HEADER_MAGIC:
+        raise Exception(f"File {log_path} is not a frame log.")
+    record_format = RECORD_FORMATS.get(version)
+    if record_format is None or record_size != struct.calcsize(record_format):
+        raise Exception(f"Unsupported frame log version {version} (record size {record_size}) in {log_path}.")
+
+    body_size = len(data) - HEADER_SIZE
+    complete = False
+    if body_size >= FOOTER_SIZE:
+        footer_magic, count, crc = struct.unpack_from(FOOTER_FORMAT, data, len(data) - FOOTER_SIZE)
+        records_size = body_size - FOOTER_SIZE
+        if footer_magic == FOOTER_MAGIC and count * record_size == records_size:
+            records = data[HEADER_SIZE:HEADER_SIZE + records_size]
+            if zlib.crc32(records) & 0xFFFFFFFF != crc:
+                raise Exception(f"Frame log {log_path} fails its checksum.")
+            complete = True
+
+    if not complete:
+        # No footer: keep every complete record, a partly written trailing record is dropped.
+        records_size = body_size - body_size % record_size
+        print(f"Warning: frame log {log_path} has no footer, recovered {records_size // record_size} frames.")
+
+    rows: List[tuple] = list(struct.iter_unpack(record_format, data[HEADER_SIZE:HEADER_SIZE + records_size]))
+    columns = RECORD_COLUMNS[:len(record_format) - 1]
+    df = pd.DataFrame(rows, columns=columns, dtype="int64")
+    if "flags" not in df.columns:
+        df["flags"] = 0
+
+    return df, complete
+
+
+def frame_log_to_csv(log_path: Path, csv_path: Path, all_columns: bool = False) -> int:
+    """Converts a binary frame log into the frame timestamps CSV.
+
+    By default the CSV matches the one the app used to write: no header and one leader timestamp per line.
+    With all_columns, every record field is written with a header line.
+    Returns the number of frames written.
+    """
+    df, _ = read_frame_log(log_path)
+    if all_columns:
+        df.to_csv(path_or_buf=csv_path, header=True, index=False)
+    else:
+        df[["timestamp"]].to_csv(path_or_buf=csv_path, header=False, index=False)
+
+    return len(df)
+
+
+#
+# MAIN
+#
+if __name__ == "__main__":
+
+    parser = argparse.ArgumentParser(
+        description="Converts the binary frame logs (.frames) recorded by RecSyncNG into frame timestamp CSVs."
+    )
+    parser.add_argument(
+        "logs", type=str, nargs="+",
+        help="Frame log files, or directories that are searched recursively for them."
+    )
+    parser.add_argument(
+        "--all-columns", action="store_true",
+        help="Write all the record fields with a header, instead of the leader timestamps only."
+    )
+
+    args = parser.parse_args()
+
+    log_paths: List[Path] = []
+    for p in [Path(s) for s in args.logs]:
+        if p.is_dir():
+            log_paths.extend(sorted(p.rglob("*" + FRAME_LOG_EXTENSION)))
+        else:
+            log_paths.append(p)
+
+    for log_path in log_paths:
+        csv_path = log_path.with_suffix(".csv")
+        n_frames = frame_log_to_csv(log_path, csv_path, args.all_columns)
+        print(f"{log_path} -> {csv_path} ({n_frames} frames)")
@@ -224,6 +224,14 @@ class RemoteController(object):
             self.save_user_prefs()
             sys.exit()
 
+    def captureBurst(self):
+        try:
+            # Consecutive frames at the sensor rate, the phones pick the interval from their frame period.
+            count: int = int(self.burst_count_line.text())
+            self.ws.send(f"CAPTURE_BURST@@{count}")
+        except Exception as e:
+            self.show_error_popup(f"Can't ask for a burst: {e}")
+
 #     def asyncTask(self, f_stop):
 #         self.ws.send("PING")
 #         self.ws.recv()
@@ -305,6 +313,13 @@ class RemoteController(object):
         self.phase_align_btn.setObjectName("pushButton_phase")
         self.phase_align_btn.clicked.connect(self.phaseAlign)
 
+        self.burst_btn = QtWidgets.QPushButton(text="Burst")
+        self.burst_btn.setFont(font)
+        self.burst_btn.clicked.connect(self.captureBurst)
+        self.burst_count_line = QtWidgets.QLineEdit("10")
+        self.burst_count_line.setFont(font)
+        self.burst_count_line.setMaximumWidth(60)
+
         self.prefix_list_btn = QtWidgets.QPushButton()
         self.prefix_list_btn.setFont(font)
         self.prefix_list_btn.setObjectName("prefix_list_button")
@@ -320,6 +335,8 @@ class RemoteController(object):
         download_control_layout = QHBoxLayout()
         download_control_layout.addStretch(1)
         download_control_layout.addWidget(self.phase_align_btn)
+        download_control_layout.addWidget(self.burst_btn)
+        download_control_layout.addWidget(self.burst_count_line)
         # TODO -- download_control_layout.addWidget(self.prefix_list_btn)
         download_control_layout.addWidget(self.download_btn)
         download_control_layout.addStretch(1)
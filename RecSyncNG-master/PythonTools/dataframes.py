@@ -6,6 +6,8 @@ import numpy as np
 
 from typing import Tuple, List
 
+from FrameLogToCSV import FRAME_LOG_EXTENSION, frame_log_to_csv
+
 
 def compute_time_step(video_timestamps: pd.DataFrame) -> float:
     """
@@ -160,6 +162,12 @@ def scan_session_dir(input_dir: Path) -> Tuple[List[str], List[pd.DataFrame], Li
     for cID in clientIDs:
         client_dir = input_dir / cID
         CSVs = list(client_dir.glob("*.csv"))
+        # Clients record a binary frame log, convert it once to the CSV read below.
+        if len(CSVs) == 0:
+            for log_file in client_dir.glob("*" + FRAME_LOG_EXTENSION):
+                csv_from_log = log_file.with_suffix(".csv")
+                frame_log_to_csv(log_file, csv_from_log)
+                CSVs.append(csv_from_log)
         MP4s = list(client_dir.glob("*.mp4"))
         #
         # Consistency check. Each clientID folder must have exactly 1 CSV and 1 mp4.
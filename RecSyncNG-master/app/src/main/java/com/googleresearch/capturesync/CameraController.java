@@ -29,20 +29,26 @@ import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
 import com.googleresearch.capturesync.ImageMetadataSynchronizer.CaptureRequestTag;
+import com.googleresearch.capturesync.softwaresync.FrameTimestampLog;
 import com.googleresearch.capturesync.softwaresync.TimeDomainConverter;
 import com.googleresearch.capturesync.softwaresync.TimeUtils;
-import com.googleresearch.capturesync.softwaresync.phasealign.PeriodCalculator;
 
-import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.TimeZone;
 
 /** High level camera controls. */
 public class CameraController {
   private static final String TAG = "CameraController";
 
+  /** Frames between capture and result, for devices not reporting REQUEST_PIPELINE_MAX_DEPTH. */
+  private static final int DEFAULT_PIPELINE_DEPTH = 8;
+
+  /** Spare Images per ImageReader so a late result never starves the synchronizer. */
+  private static final int IMAGE_BUFFER_MARGIN = 2;
+
   // Thread on which to receive ImageReader callbacks.
   private HandlerThread imageThread;
   private Handler imageHandler;
@@ -59,20 +65,29 @@ public class CameraController {
 
   private final ResultProcessor resultProcessor;
 
+  private final TimeDomainConverter timeDomainConverter;
+
   public CaptureCallback getSynchronizerCaptureCallback() {
     return imageMetadataSynchronizer.getCaptureCallback();
   }
 
   /**
-   * Camera frames come in continuously and are thrown away. When a desired timestamp {@code
-   * goalSynchronizedTimestampNs} is set, the first frame with synchronized timestamp at or after
-   * the desired timestamp is saved to disk.
+   * Camera frames come in continuously and the most recent ones are kept in {@code recentFrames}.
+   * For each desired timestamp in {@code pendingGoals}, the frame nearest it is saved to disk as
+   * soon as a frame at or after it arrives. Goals that already passed are served straight from the
+   * recent frames. Goals are only accessed on the sync thread.
    */
-  private long goalSynchronizedTimestampNs;
+  private final PriorityQueue<StillGoal> pendingGoals =
+      new PriorityQueue<>((a, b) -> Long.compare(a.timestampNs, b.timestampNs));
 
-  private String goalOutputDirName;
+  private final FrameRingBuffer recentFrames =
+      new FrameRingBuffer(Constants.PRE_TRIGGER_BUFFER_SIZE);
 
-  private PeriodCalculator periodCalculator;
+  /** Duration of the latest frame, only used on the sync thread. */
+  private long lastFrameDurationNs;
+
+  /** Set by a phase alignment frame until the next regular frame, only used on the sync thread. */
+  private boolean afterInjectedFrame;
 
   private CaptureRequestFactory requestFactory;
 
@@ -93,6 +108,7 @@ public class CameraController {
           MainActivity context,
           TimeDomainConverter timeDomainConverter
           ) {
+    this.timeDomainConverter = timeDomainConverter;
     imageThread = new HandlerThread("ImageThread");
     imageThread.start();
     imageHandler = new Handler(imageThread.getLooper());
@@ -103,10 +119,23 @@ public class CameraController {
 
     resultProcessor =
             new ResultProcessor(
-                    timeDomainConverter, context, Constants.SAVE_JPG_FROM_YUV, Constants.JPG_QUALITY);
+                    timeDomainConverter,
+                    context,
+                    cameraCharacteristics,
+                    Constants.SAVE_POSTVIEW ? Constants.POSTVIEW_MODE : null,
+                    Constants.POSTVIEW_QUALITY);
 
     imageReaders = new ArrayList<>();
-    final int imageBuffer = 1;
+    // Worst case of Images held at once: the recent frames, the ones waiting to be copied, the
+    // ones the synchronizer holds until their results arrive, up to the pipeline depth late, and
+    // a margin for the frame being handed over while the ring evicts its oldest.
+    Byte pipelineDepth =
+        cameraCharacteristics.get(CameraCharacteristics.REQUEST_PIPELINE_MAX_DEPTH);
+    final int imageBuffer =
+        Constants.PRE_TRIGGER_BUFFER_SIZE
+            + Constants.MAX_PENDING_STILL_FRAMES
+            + (pipelineDepth != null ? pipelineDepth : DEFAULT_PIPELINE_DEPTH)
+            + IMAGE_BUFFER_MARGIN;
     if (rawImageResolution != null) {
       imageReaders.add(
               ImageReader.newInstance(
@@ -145,10 +174,21 @@ public class CameraController {
                               unSyncTimestampNs);
 
               double timestampMs = TimeUtils.nanosToMillis((double) synchronizedTimestampNs);
-              double frameDurationMs =
-                      TimeUtils.nanosToMillis((double) result.get(CaptureResult.SENSOR_FRAME_DURATION));
-
-              long phaseNs = phaseAlignController.updateCaptureTimestamp(synchronizedTimestampNs);
+              long frameDurationNs = result.get(CaptureResult.SENSOR_FRAME_DURATION);
+              lastFrameDurationNs = frameDurationNs;
+              double frameDurationMs = TimeUtils.nanosToMillis((double) frameDurationNs);
+
+              boolean injectedFrame = PhaseAlignController.INJECT_FRAME.equals(userTag);
+              long phaseNs =
+                      phaseAlignController.updateCaptureTimestamp(synchronizedTimestampNs, injectedFrame);
+              // Injected frames are not recorded, flag the recorded frame following them instead.
+              long frameFlags = 0;
+              if (injectedFrame) {
+                afterInjectedFrame = true;
+              } else if (afterInjectedFrame) {
+                afterInjectedFrame = false;
+                frameFlags = FrameTimestampLog.FLAG_AFTER_PHASE_CORRECTION;
+              }
               double phaseMs = TimeUtils.nanosToMillis((double) phaseNs);
 //          Log.v(
 //              TAG,
@@ -156,37 +196,64 @@ public class CameraController {
 //                  "onCaptureCompleted: timestampMs = %,.3f, frameDurationMs = %,.6f, phase ="
 //                      + " %,.3f, sequence id = %d",
 //                  timestampMs, frameDurationMs, phaseMs, sequenceId));
-              // TODO: log this to csv
-              try {
-                synchronized(this) {
-                  if (context.getLogger() != null && !context.getLogger().isClosed() &&  context.getLastVideoSeqId() != null && context.getLastVideoSeqId() == sequenceId) {
-                    context.getLogger().logLine(String.format("%d",
-                            synchronizedTimestampNs));
-                  }
-                }
-              } catch (IOException e) {
-                e.printStackTrace();
-              }
-              if (shouldSaveFrame(synchronizedTimestampNs)) {
-                Log.d(TAG, "Sync frame found! Committing and processing");
-                Frame frame = new Frame(result, output);
-                resultProcessor.submitProcessRequest(frame, goalOutputDirName);
-                resetGoal();
-              } else {
-                output.close();
+              // The encoder logs the frame once it is in the video, in leader time.
+              VideoEncoder videoEncoder = context.getVideoEncoder();
+              if (videoEncoder != null && context.getLastVideoSeqId() != null && context.getLastVideoSeqId() == sequenceId) {
+                videoEncoder.onFrameCaptured(
+                        unSyncTimestampNs,
+                        result.getFrameNumber(),
+                        result.get(CaptureResult.SENSOR_EXPOSURE_TIME),
+                        frameDurationNs,
+                        frameFlags);
               }
+              recentFrames.add(synchronizedTimestampNs, new Frame(result, output));
+              serveDueGoals(synchronizedTimestampNs);
             },
             syncHandler);
   }
 
-  /* Check if given timestamp is or passed goal timestamp in the synchronized leader time domain. */
-  private boolean shouldSaveFrame(long synchronizedTimestampNs) {
-    return goalSynchronizedTimestampNs != 0
-            && synchronizedTimestampNs >= goalSynchronizedTimestampNs;
+  /**
+   * Saves the frames of the goals at or before newestTimestampNs, in order, as long as the result
+   * processor has capacity. Goals it has no room for stay pending and are retried with the next
+   * frame, their frames waiting in the recent frames meanwhile.
+   */
+  private void serveDueGoals(long newestTimestampNs) {
+    while (!pendingGoals.isEmpty() && pendingGoals.peek().timestampNs <= newestTimestampNs) {
+      if (!resultProcessor.hasCapacity()) {
+        resultProcessor.onStillHeldBack();
+        return;
+      }
+      saveNearestFrame(pendingGoals.poll());
+    }
   }
 
-  private void resetGoal() {
-    goalSynchronizedTimestampNs = 0;
+  /** Takes the recent frame nearest the goal out of the ring and submits it for processing. */
+  private void saveNearestFrame(StillGoal goal) {
+    Burst burst = goal.burst;
+    Frame frame = recentFrames.takeNearest(goal.timestampNs);
+    if (frame == null) {
+      burst.missed++;
+    } else {
+      long frameTimestampNs =
+          timeDomainConverter.leaderTimeForLocalTimeNs(
+              frame.result.get(CaptureResult.SENSOR_TIMESTAMP));
+      long errorNs = frameTimestampNs - goal.timestampNs;
+      if (Math.abs(errorNs) > lastFrameDurationNs / 2) {
+        // The nearest frame was evicted before the processor caught up, or already taken.
+        burst.late++;
+      }
+      Log.d(TAG, String.format("Saving frame %,d us from the requested time.", errorNs / 1_000));
+      resultProcessor.submitProcessRequest(frame, burst.outputDirName);
+    }
+    burst.resolved++;
+    if (burst.resolved == burst.count && burst.count > 1) {
+      Log.i(
+          TAG,
+          String.format(
+              "Burst %s: %d frames requested, %d more than half a frame off, %d missing.",
+              burst.outputDirName, burst.count, burst.late, burst.missed));
+      resultProcessor.logStats("Burst " + burst.outputDirName + " so far");
+    }
   }
 
   public List<Surface> getOutputSurfaces() {
@@ -202,6 +269,7 @@ public class CameraController {
   }
 
   public void close() {
+    recentFrames.clear();
     imageMetadataSynchronizer.close();
 
     imageThread.quitSafely();
@@ -227,14 +295,41 @@ public class CameraController {
     return requestFactory;
   }
 
-  // Input desired capture time in leader time domain (first frame that >= that timestamp).
+  // Input desired capture time in leader time domain (frame nearest that timestamp). The time may
+  // be in the recent past, up to the duration of PRE_TRIGGER_BUFFER_SIZE frames.
   public void setUpcomingCaptureStill(long desiredSynchronizedCaptureTimeNs) {
-    goalOutputDirName = getTimeStr(desiredSynchronizedCaptureTimeNs);
-    goalSynchronizedTimestampNs = desiredSynchronizedCaptureTimeNs;
-    Log.i(
-            TAG,
-            String.format(
-                    "Request sync still at %d to %s", goalSynchronizedTimestampNs, goalOutputDirName));
+    setUpcomingBurst(desiredSynchronizedCaptureTimeNs, 0, 1);
+  }
+
+  /**
+   * Saves the count frames nearest the leader times startTimeNs + i * intervalNs to one directory.
+   * As for a single still, the first times may be in the recent past. An interval of one frame
+   * period saves consecutive frames at full sensor rate. Several bursts may be pending at once.
+   */
+  public void setUpcomingBurst(long startTimeNs, long intervalNs, int count) {
+    if (count < 1 || count > Constants.MAX_BURST_COUNT || (count > 1 && intervalNs <= 0)) {
+      Log.e(
+          TAG,
+          String.format("Ignoring burst of %d frames at an interval of %d ns.", count, intervalNs));
+      return;
+    }
+    syncHandler.post(
+        () -> {
+          Burst burst = new Burst(getTimeStr(startTimeNs), count);
+          Log.i(
+              TAG,
+              String.format(
+                  "Request sync still at %d, %d frames %d ns apart, to %s",
+                  startTimeNs, count, intervalNs, burst.outputDirName));
+          if (pendingGoals.isEmpty()) {
+            resultProcessor.resetStats();
+          }
+          for (int i = 0; i < count; i++) {
+            pendingGoals.add(new StillGoal(startTimeNs + i * intervalNs, burst));
+          }
+          // Goals that already passed are picked from the recent frames instead of waiting.
+          serveDueGoals(recentFrames.newestTimestampNs());
+        });
   }
 
   private String getTimeStr(long timestampNs) {
@@ -242,4 +337,31 @@ public class CameraController {
     simpleDateFormat.setTimeZone(TimeZone.getDefault());
     return simpleDateFormat.format(timestampNs / 1_000_000L);
   }
+
+  /** A set of stills saved to the same directory, and how well their frames matched. */
+  private static final class Burst {
+    final String outputDirName;
+    final int count;
+    int resolved;
+    /** Frames saved more than half a frame from their goal. */
+    int late;
+    /** Goals without any frame to save. */
+    int missed;
+
+    Burst(String outputDirName, int count) {
+      this.outputDirName = outputDirName;
+      this.count = count;
+    }
+  }
+
+  /** The leader time of one still to save. */
+  private static final class StillGoal {
+    final long timestampNs;
+    final Burst burst;
+
+    StillGoal(long timestampNs, Burst burst) {
+      this.timestampNs = timestampNs;
+      this.burst = burst;
+    }
+  }
 }
@@ -24,23 +24,73 @@ public final class Constants {
   public static final int DEFAULT_CAMERA_FACING = CameraCharacteristics.LENS_FACING_BACK;
 
   /**
-   * Delay from capture button press to capture, giving network time to send messages to clients.
+   * Number of most recent frames kept for stills, so a trigger can pick a frame from the recent
+   * past instead of waiting for a future one. Each frame holds its Images, so this also sizes the
+   * ImageReader buffers.
    */
-  public static final long FUTURE_TRIGGER_DELAY_NS = TimeUtils.millisToNanos(500);
+  public static final int PRE_TRIGGER_BUFFER_SIZE = 5;
+
+  /**
+   * Frames taken from the recent frames and waiting for ResultProcessor to copy them. While that
+   * many are pending, further stills wait in the recent frames, so this is added to the ImageReader
+   * buffers too.
+   */
+  public static final int MAX_PENDING_STILL_FRAMES = 2;
+
+  /**
+   * Copied stills waiting to be written to disk. When the writer falls this far behind, copying
+   * waits for it, bounding the memory held by copies to about this many stills.
+   */
+  public static final int MAX_QUEUED_STILLS = 4;
+
+  /** Largest number of frames a synchronized burst may capture. */
+  public static final int MAX_BURST_COUNT = 300;
+
+  /**
+   * Delay from record button press to the synchronized start or stop of recording on all devices,
+   * long enough to cover delivery including a few retransmits.
+   */
+  public static final long RECORDING_COMMAND_DELAY_NS = TimeUtils.millisToNanos(300);
 
   /* Set at least one of {SAVE_YUV, SAVE_RAW} to true to save any data. */
   public static final boolean SAVE_YUV = true;
 
-  // TODO: Implement saving ImageFormat.RAW10 to DNG.
-  // DngCreator works with ImageFormat.RAW_SENSOR but it is slow and power-hungry.
+  /*
+   * Set true to also save stills as packed ImageFormat.RAW10, written as is next to a sidecar with
+   * the metadata needed to build a DNG offline. DngCreator works with ImageFormat.RAW_SENSOR but
+   * it is slow and power-hungry. Ignored on cameras without RAW10 output.
+   */
   public static final boolean SAVE_RAW = false;
 
-  // TODO(samansari): Turn SAVE_JPG_FROM_YUV into a checkbox instead.
-  /* Set true to save a JPG to the gallery for preview. This is slow but gives you a "postview". */
-  public static final boolean SAVE_JPG_FROM_YUV = true;
-  public static final int JPG_QUALITY = 95;
+  // TODO(samansari): Turn SAVE_POSTVIEW into a checkbox instead.
+  /*
+   * Set true to also save a compressed "postview" of each YUV still to the gallery. It is encoded
+   * to HEIC by the hardware encoder, or to JPEG in software on devices without one.
+   */
+  public static final boolean SAVE_POSTVIEW = true;
+
+  /* Postview resolution: full with QUALITY, half the width and height with THROUGHPUT. */
+  public static final PostviewEncoder.Mode POSTVIEW_MODE = PostviewEncoder.Mode.QUALITY;
+
+  public static final int POSTVIEW_QUALITY = 95;
 
   public static final boolean USE_FULL_SCREEN_IMMERSIVE = false;
 
+  /**
+   * Set true to send leader commands as one subnet broadcast instead of one message per client,
+   * reducing the spread in arrival times on large rigs. Requires a network that passes broadcasts.
+   */
+  public static final boolean USE_BROADCAST_RPC = false;
+
+  /**
+   * Set true to keep correcting phase drift of the clients while recording, see {@link
+   * PhaseAlignController#startPhaseLock}. Each correction injects frames that are missing from the
+   * video, the recorded frame after them is flagged in the frame log.
+   */
+  public static final boolean PHASE_LOCK_DURING_RECORDING = false;
+
+  /** Phase drift from the goal that triggers a correction while recording with phase lock. */
+  public static final long PHASE_LOCK_DRIFT_THRESHOLD_NS = 300_000;
+
   private Constants() {}
 }
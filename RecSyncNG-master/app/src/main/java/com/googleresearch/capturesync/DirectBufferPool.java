@@ -0,0 +1,78 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Pool of direct buffers holding copies of image planes on their way to disk.
+ *
+ * <p>Stills of one stream all have the same plane sizes, so after the first few captures every
+ * acquire is served from the pool and steady state capturing does not allocate. Direct buffers are
+ * written by a FileChannel without another copy into native memory. Thread safe, buffers are
+ * typically acquired on the processing thread and released on the I/O thread.
+ */
+final class DirectBufferPool {
+  private final int maxPooledBuffers;
+  private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+  private long allocatedBytes;
+
+  /** @param maxPooledBuffers number of free buffers kept, further released buffers are dropped. */
+  DirectBufferPool(int maxPooledBuffers) {
+    this.maxPooledBuffers = maxPooledBuffers;
+  }
+
+  /**
+   * Returns a cleared direct buffer with a limit of exactly capacity bytes. The smallest free buffer
+   * that fits is reused, so planes of different sizes, ex. RAW10 next to YUV, keep their own
+   * buffers instead of the small planes taking the large buffers.
+   */
+  synchronized ByteBuffer acquire(int capacity) {
+    ByteBuffer bestFit = null;
+    for (ByteBuffer buffer : freeBuffers) {
+      if (buffer.capacity() >= capacity
+          && (bestFit == null || buffer.capacity() < bestFit.capacity())) {
+        bestFit = buffer;
+      }
+    }
+    if (bestFit != null) {
+      // By identity, ByteBuffer.equals() compares contents.
+      Iterator<ByteBuffer> it = freeBuffers.iterator();
+      while (it.next() != bestFit) {}
+      it.remove();
+      bestFit.clear().limit(capacity);
+      return bestFit;
+    }
+    allocatedBytes += capacity;
+    return ByteBuffer.allocateDirect(capacity);
+  }
+
+  /** Hands a buffer from {@link #acquire} back to the pool, buffers from elsewhere are ignored. */
+  synchronized void release(ByteBuffer buffer) {
+    if (!buffer.isDirect() || freeBuffers.size() >= maxPooledBuffers) {
+      return;
+    }
+    freeBuffers.addFirst(buffer);
+  }
+
+  /** Total bytes allocated by the pool so far, flat once the pool is warm. */
+  synchronized long allocatedBytes() {
+    return allocatedBytes;
+  }
+}
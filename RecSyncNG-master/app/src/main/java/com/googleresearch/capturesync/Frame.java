@@ -17,7 +17,6 @@
 package com.googleresearch.capturesync;
 
 import android.hardware.camera2.CaptureResult;
-import android.media.Image;
 import com.googleresearch.capturesync.ImageMetadataSynchronizer.Output;
 import java.io.Closeable;
 
@@ -37,9 +36,7 @@ public class Frame implements Closeable {
     if (closed) {
       throw new IllegalStateException("This Frame is already closed");
     }
-    for (Image image : output.images) {
-      image.close();
-    }
+    // Closes the images and hands the Output back to the synchronizer.
     output.close();
     closed = true;
   }
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync;
+
+/**
+ * Bounded ring of the most recent frames, keyed by their synchronized leader timestamp, so a
+ * trigger can pick the frame nearest a leader time that already passed.
+ *
+ * <p>Frames are owned by the ring until taken out. When the ring is full, adding a frame closes the
+ * oldest one, so the number of Images held stays bounded by the capacity.
+ */
+public class FrameRingBuffer {
+  private final long[] timestampsNs;
+  private final Frame[] frames;
+  /** Index of the oldest frame. */
+  private int head;
+  private int size;
+
+  public FrameRingBuffer(int capacity) {
+    timestampsNs = new long[capacity];
+    frames = new Frame[capacity];
+  }
+
+  /** Adds a frame with its leader timestamp, closing the oldest frame if the ring is full. */
+  public synchronized void add(long synchronizedTimestampNs, Frame frame) {
+    if (size == frames.length) {
+      frames[head].close();
+      frames[head] = null;
+      head = (head + 1) % frames.length;
+      size--;
+    }
+    int tail = (head + size) % frames.length;
+    timestampsNs[tail] = synchronizedTimestampNs;
+    frames[tail] = frame;
+    size++;
+  }
+
+  /** Returns the leader timestamp of the newest frame, or Long.MIN_VALUE if the ring is empty. */
+  public synchronized long newestTimestampNs() {
+    if (size == 0) {
+      return Long.MIN_VALUE;
+    }
+    return timestampsNs[(head + size - 1) % frames.length];
+  }
+
+  /**
+   * Removes and returns the frame whose leader timestamp is nearest the given time, or null if the
+   * ring is empty. The caller owns the returned frame and must close it.
+   */
+  public synchronized Frame takeNearest(long synchronizedTimestampNs) {
+    if (size == 0) {
+      return null;
+    }
+    int best = head;
+    long bestDistanceNs = Long.MAX_VALUE;
+    for (int i = 0; i < size; i++) {
+      int index = (head + i) % frames.length;
+      long distanceNs = Math.abs(timestampsNs[index] - synchronizedTimestampNs);
+      if (distanceNs < bestDistanceNs) {
+        bestDistanceNs = distanceNs;
+        best = index;
+      }
+    }
+    Frame frame = frames[best];
+    // Close the gap by shifting the newer frames back one slot.
+    int offset = (best - head + frames.length) % frames.length;
+    for (int i = offset; i < size - 1; i++) {
+      int to = (head + i) % frames.length;
+      int from = (to + 1) % frames.length;
+      timestampsNs[to] = timestampsNs[from];
+      frames[to] = frames[from];
+    }
+    frames[(head + size - 1) % frames.length] = null;
+    size--;
+    return frame;
+  }
+
+  /** Closes and removes all frames. */
+  public synchronized void clear() {
+    for (int i = 0; i < size; i++) {
+      int index = (head + i) % frames.length;
+      frames[index].close();
+      frames[index] = null;
+    }
+    head = 0;
+    size = 0;
+  }
+}
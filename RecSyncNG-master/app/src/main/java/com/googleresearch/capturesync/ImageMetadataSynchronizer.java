@@ -31,8 +31,8 @@ import android.os.Handler;
 import android.util.Log;
 import android.util.Pair;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -124,6 +124,9 @@ import java.util.List;
  *     Drop (close()) the Image on the corresponding queue.
  *     *Replace* the Image with the next Image on that queue and try again.
  * </pre>
+ *
+ * <p>The queues are primitive ring buffers in a {@link TimestampMatcher} and Output instances are
+ * recycled once closed, so steady state matching does not allocate on the image thread.
  */
 public class ImageMetadataSynchronizer {
   // TODO(jiawen): Change the constructor interface to a builder so that this class instantiates
@@ -140,12 +143,15 @@ public class ImageMetadataSynchronizer {
    */
   public static class CaptureRequestTag {
 
-    final ArrayList<Integer> targets;
+    final int[] targets;
     final Object userTag;
 
     /** Construct an empty CaptureRequestTag with targets and an explicit user tag. */
     public CaptureRequestTag(List<Integer> targetIndices, Object userTag) {
-      targets = new ArrayList<>(targetIndices);
+      targets = new int[targetIndices.size()];
+      for (int i = 0; i < targets.length; ++i) {
+        targets[i] = targetIndices.get(i);
+      }
       this.userTag = userTag;
     }
 
@@ -183,6 +189,9 @@ public class ImageMetadataSynchronizer {
   /**
    * Simple container for a synchronized collection of a TotalCaptureResult and a set of Image's. It
    * is explicitly <b>not</b> AutoCloseable. close() is provided to conveniently close() everything.
+   *
+   * <p>Instances are recycled by the synchronizer once closed, do not use an Output after calling
+   * close().
    */
   public static class Output {
 
@@ -202,34 +211,54 @@ public class ImageMetadataSynchronizer {
 
     /**
      * Indices of ImageReader's that were dropped by the HAL because they were not acquired() fast
-     * enough.
+     * enough. Only the first droppedImageReaderCount entries are valid.
      */
-    ArrayList<Integer> droppedImageReaderIndices;
+    final int[] droppedImageReaderIndices;
+
+    int droppedImageReaderCount;
 
     private final ImageMetadataSynchronizer metadataSynchronizer;
 
+    /** Callback this output is delivered to when there is a single registered callback. */
+    private Callback pendingCallback;
+
+    /** Delivers this output to pendingCallback, reused so posting does not allocate. */
+    private final Runnable deliverToPendingCallback =
+        () -> {
+          Callback callback = pendingCallback;
+          pendingCallback = null;
+          callback.onDataAvailable(this);
+        };
+
     /** Create an empty SynchronizedOutput with no result and all Image's to null. */
     Output(int nImages, ImageMetadataSynchronizer synchronizer) {
-      images = new ArrayList<>();
+      images = new ArrayList<>(nImages);
       for (int i = 0; i < nImages; ++i) {
         images.add(null);
       }
-      droppedImageReaderIndices = new ArrayList<>();
+      droppedImageReaderIndices = new int[nImages];
       metadataSynchronizer = synchronizer;
     }
 
-    /** Convenience method to {@code close()} all underyling {@code Image} instances. */
+    /**
+     * Convenience method to {@code close()} all underyling {@code Image} instances. The Output is
+     * then recycled, do not use or close it again after calling close().
+     */
     public void close() {
-      droppedImageReaderIndices = null;
+      if (result == null) {
+        return;
+      }
       for (int i = 0; i < images.size(); ++i) {
         Image img = images.get(i);
         if (img != null) {
           img.close();
+          images.set(i, null);
           metadataSynchronizer.notifyImageClosed(i);
         }
       }
-      images.clear();
+      droppedImageReaderCount = 0;
       result = null;
+      metadataSynchronizer.recycleOutput(this);
     }
   }
 
@@ -246,25 +275,20 @@ public class ImageMetadataSynchronizer {
   /** Input CaptureCallback: camera2 calls this to deliver metadata. */
   private CaptureCallback captureCallback;
 
-  /**
-   * Queue of pending TotalCaptureResult instances to be delivered once the corresponding Image
-   * instances arrive.
-   */
-  @SuppressWarnings("JdkObsolete")
-  private final LinkedList<TotalCaptureResult> pendingCaptureResultQueue = new LinkedList<>();
-
   /** A copy of the {@code List<ImageReader>} that was passed in. */
   private final List<ImageReader> imageReaders = new ArrayList<>();
 
   /**
-   * ArrayList of queues. One per image reader. Each queue contains pending Image instances to be
-   * delivered once everything arrives. This list corresponds 1-to-1 with imageReaders: there is one
-   * queue per ImageReader.
+   * Pending TotalCaptureResult instances and, one queue per image reader, pending Image instances
+   * to be delivered once everything arrives.
    */
-  private final List<LinkedList<Image>> pendingImageQueues = new ArrayList<>();
+  private final TimestampMatcher<TotalCaptureResult, Image> matcher;
 
   /** The number of images acquired for each ImageReader. */
-  private final List<Integer> imagesAcquired = new ArrayList<>();
+  private final int[] imagesAcquired;
+
+  /** Closed Output instances ready for reuse. */
+  private final ArrayDeque<Output> outputPool = new ArrayDeque<>();
 
   /**
    * If registered, then when we finally synchronize a result, Post a call to mOutputCallback on
@@ -273,12 +297,17 @@ public class ImageMetadataSynchronizer {
   private final List<Pair<Callback, Handler>> callbacks = new ArrayList<>();
 
   private synchronized void notifyImageClosed(int readerIndex) {
-    int nCurrentlyAcquired = imagesAcquired.get(readerIndex);
-    if (nCurrentlyAcquired < 1) {
+    if (imagesAcquired[readerIndex] < 1) {
       throw new IllegalStateException(
           "Output.close() called when synchronizer thinks there are none acquired.");
     }
-    imagesAcquired.set(readerIndex, nCurrentlyAcquired - 1);
+    imagesAcquired[readerIndex]--;
+  }
+
+  private synchronized void recycleOutput(Output output) {
+    if (!closed) {
+      outputPool.addLast(output);
+    }
   }
 
   /**
@@ -293,20 +322,45 @@ public class ImageMetadataSynchronizer {
    *
    * <p>Callback.onDataAvailable() is called with Image's in the same order as imageReaders.
    */
-  @SuppressWarnings("JdkObsolete")
   public ImageMetadataSynchronizer(List<ImageReader> imageReaders, Handler imageHandler, MainActivity context) {
     closed = false;
     this.context = context;
     createCaptureCallback();
 
     this.imageReaders.addAll(imageReaders);
-    // Create a queue and a listener per ImageReader.
     int nReaders = imageReaders.size();
+    imagesAcquired = new int[nReaders];
+    int[] maxImages = new int[nReaders];
+    for (int i = 0; i < nReaders; ++i) {
+      maxImages[i] = imageReaders.get(i).getMaxImages();
+    }
+    matcher =
+        new TimestampMatcher<>(
+            Image.class,
+            maxImages,
+            new TimestampMatcher.Listener<TotalCaptureResult, Image>() {
+              @Override
+              public void onImageDropped(int readerIndex, Image image) {
+                // The image of a dropped TotalCaptureResult, or pending when closing.
+                image.close();
+                imagesAcquired[readerIndex]--;
+              }
+
+              @Override
+              public void onMatched(
+                  TotalCaptureResult result,
+                  Image[] images,
+                  int[] droppedReaderIndices,
+                  int droppedCount) {
+                postCallbackWithSynchronizedOutputLocked(
+                    obtainOutputLocked(result, images, droppedReaderIndices, droppedCount));
+              }
+            });
+
+    // Create a listener per ImageReader.
     for (int i = 0; i < nReaders; ++i) {
       final int readerIndex = i;
       ImageReader reader = imageReaders.get(readerIndex);
-      pendingImageQueues.add(new LinkedList<>());
-      imagesAcquired.add(0);
 
       ImageReader.OnImageAvailableListener listener =
           reader1 -> {
@@ -314,10 +368,9 @@ public class ImageMetadataSynchronizer {
               if (closed) {
                 return;
               }
-              int nImagesAcquired = imagesAcquired.get(readerIndex);
-              if (nImagesAcquired < reader1.getMaxImages()) {
+              if (imagesAcquired[readerIndex] < maxImages[readerIndex]) {
                 Image image = reader1.acquireNextImage();
-                imagesAcquired.set(readerIndex, nImagesAcquired + 1);
+                imagesAcquired[readerIndex]++;
                 handleImageLocked(readerIndex, image);
               }
             }
@@ -334,18 +387,9 @@ public class ImageMetadataSynchronizer {
     }
     closed = true;
 
-    // Close every image in every queue, then clear the queue.
-    for (LinkedList<Image> q : pendingImageQueues) {
-      for (Image img : q) {
-        img.close();
-      }
-      q.clear();
-    }
-    // Clear the collection of queues.
-    pendingImageQueues.clear();
-
-    // Clear the TotalCaptureResult queue.
-    pendingCaptureResultQueue.clear();
+    // Close every image in every queue and clear the TotalCaptureResult queue.
+    matcher.clear();
+    outputPool.clear();
 
     for (ImageReader ir : imageReaders) {
       ir.close();
@@ -431,12 +475,11 @@ public class ImageMetadataSynchronizer {
     }
 
     // It has no targets, doesn't affect the queue.
-    if (crt.targets.isEmpty()) {
+    if (crt.targets.length == 0) {
       return;
     }
 
-    pendingCaptureResultQueue.addLast(result);
-    sweepQueuesLocked();
+    matcher.addResult(result, result.get(CaptureResult.SENSOR_TIMESTAMP), crt.targets);
   }
 
   /**
@@ -444,128 +487,23 @@ public class ImageMetadataSynchronizer {
    * null.
    */
   private void handleImageLocked(int readerIndex, Image image) {
-    pendingImageQueues.get(readerIndex).addLast(image);
-    sweepQueuesLocked();
-  }
-
-  /**
-   * Sweeps over all queues. The outer (master) loop sweeps over the pending TotalCaptureResult's
-   * until it runs out of matches. The inner loop sweeps over all pending Image queues corresponding
-   * to the declared output indices in the TotalCaptureResult.getRequest().getTag(). If there is a
-   * match, notifies all callbacks. Otherwise, exits the outer loop.
-   */
-  private void sweepQueuesLocked() {
-    int nImageQueues = pendingImageQueues.size();
-
-    // Outer loop: iterate over the TotalCaptureResult queue.
-    while (!pendingCaptureResultQueue.isEmpty()) {
-      TotalCaptureResult result = pendingCaptureResultQueue.peekFirst();
-
-      // Create a potential SynchronizedOutput.
-      Output potentialOutput = new Output(nImageQueues, this);
-      potentialOutput.result = result;
-
-      boolean matchFound = sweepImageQueues(potentialOutput);
-      if (matchFound) {
-        pendingCaptureResultQueue.removeFirst();
-        postCallbackWithSynchronizedOutputLocked(potentialOutput);
-      } else {
-        return;
-      }
-    }
+    matcher.addImage(readerIndex, image, image.getTimestamp());
   }
 
-  /**
-   * Sweeps over all Image queues for a given potential output with its TotalCaptureResult
-   * populated. The loop iterates over each of the Image queues corresponding to
-   * potentialOutput.result.getRequest().getTag().targets.
-   *
-   * <p>If the head of each queue matches the TotalCaptureResult's timestamp, it is pulled off the
-   * queue and returned as an Output. If {@code TotalCaptureResult.timestamp < an image.timestamp},
-   * then an Image was dropped on that queue, return it. If {@codeTotalCaptureResult.timestamp > any
-   * image.timestamp}, then a TotalCaptureResult was dropped and we drop the corresponding Image's.
-   *
-   * @return Whether a match was found. If a match is found, the corresponding Image's are dequeued.
-   */
-  private boolean sweepImageQueues(Output potentialOutput) {
-    TotalCaptureResult result = potentialOutput.result;
-    CaptureRequestTag crt = (CaptureRequestTag) result.getRequest().getTag();
-    long resultTimestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
-
-    // Before entering the loop, populate potentialOutput's images array
-    // with the heads of the corresponding ImageQueues.
-    for (int readerIndex : crt.targets) {
-      Image img = pendingImageQueues.get(readerIndex).peekFirst();
-      potentialOutput.images.set(readerIndex, img);
+  /** Fills a pooled Output, or a new one if none is free, with a match from the matcher. */
+  private Output obtainOutputLocked(
+      TotalCaptureResult result, Image[] images, int[] droppedReaderIndices, int droppedCount) {
+    Output output = outputPool.pollFirst();
+    if (output == null) {
+      output = new Output(imageReaders.size(), this);
     }
-    potentialOutput.droppedImageReaderIndices.clear();
-
-    // If all corresponding image queues heads are null: no match is found:
-    // fall through and return null.
-    while (allIndexedImagesNotNull(potentialOutput, crt.targets)) {
-      // Check if resultTimestamp > any image timestamps. If so, a TotalCaptureResult was skipped.
-      // Drop the corresponding Images by:
-      //   close()-ing the Image, taking it off its relevant queue, and replacing it in
-      //   potentialOutput with the next Image at the head of the corresponding queue.
-      // This loop drops one item per queue and returns to the outer loop.
-      // The next time in the outer loop, the invariant is again enforced:
-      //   If any queue is empty, then items were dropped but the corresponding
-      //     item in one of the image queues has yet to arrive.
-      //   Else, if we get here again (resultTimestamp > imageTimestamp):
-      //     then drop the image again and repeat.
-      //   Else (resultTimestamp <= imageTimestamp)
-      //     we'll break out of this loop and it will be handled below.
-      boolean captureResultSkipped = false;
-      for (int readerIndex : crt.targets) {
-        if (resultTimestamp > potentialOutput.images.get(readerIndex).getTimestamp()) {
-          // Close the image corresponding to the dropped TotalCaptureResult.
-          Log.v(TAG, "Dropping Image due to dropped TotalCaptureResult.");
-          captureResultSkipped = true;
-          potentialOutput.images.get(readerIndex).close();
-          // Take it off its queue.
-          pendingImageQueues.get(readerIndex).removeFirst();
-          // Replace it with the new head of the corresponding pending Image queue.
-          potentialOutput.images.set(readerIndex, pendingImageQueues.get(readerIndex).peekFirst());
-        }
-      }
-      // TODO(jiawen): Can potentially report this in the Callback.
-      // If any images were dropped, skip the rest of the loop and go again.
-      if (captureResultSkipped) {
-        continue;
-      }
-
-      // At this point, all Image's are non-null, and resultTimestamp <= imageTimestamp.
-      // Check if resultTimestamp < imageTimestamp, then an image was dropped.
-      // Otherwise, it's a match.
-      for (int readerIndex : crt.targets) {
-        if (resultTimestamp < potentialOutput.images.get(readerIndex).getTimestamp()) {
-          // Add the index to the dropped list.
-          potentialOutput.droppedImageReaderIndices.add(readerIndex);
-          // Set its corresponding mImage to null. The image is still on the queue.
-          potentialOutput.images.set(readerIndex, null);
-        } else {
-          // We have timestamps are equal and we have a match.
-          // Pull the Image off its queue.
-          pendingImageQueues.get(readerIndex).removeFirst();
-        }
-      }
-      return true;
+    output.result = result;
+    for (int i = 0; i < images.length; ++i) {
+      output.images.set(i, images[i]);
     }
-    return false;
-  }
-
-  /**
-   * Returns true if for every index idx in targetIndices, potentialOutput.images.get(idx) is not
-   * null.
-   */
-  private static boolean allIndexedImagesNotNull(
-      Output potentialOutput, ArrayList<Integer> targetIndices) {
-    for (int idx : targetIndices) {
-      if (potentialOutput.images.get(idx) == null) {
-        return false;
-      }
-    }
-    return true;
+    System.arraycopy(droppedReaderIndices, 0, output.droppedImageReaderIndices, 0, droppedCount);
+    output.droppedImageReaderCount = droppedCount;
+    return output;
   }
 
   /** Calls every registered callback with output, on their corresponding threads. */
@@ -576,6 +514,18 @@ public class ImageMetadataSynchronizer {
       return;
     }
 
+    if (callbacks.size() == 1 && callbacks.get(0).first != null) {
+      // Common case, deliver without allocating a Runnable.
+      Pair<Callback, Handler> p = callbacks.get(0);
+      output.pendingCallback = p.first;
+      if (p.second != null) {
+        p.second.post(output.deliverToPendingCallback);
+      } else {
+        output.deliverToPendingCallback.run();
+      }
+      return;
+    }
+
     for (Pair<Callback, Handler> p : callbacks) {
       final Callback callback = p.first;
       if (callback != null) {
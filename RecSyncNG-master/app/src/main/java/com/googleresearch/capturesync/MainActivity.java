@@ -44,7 +44,6 @@ import android.hardware.camera2.params.MeteringRectangle;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.CamcorderProfile;
 import android.media.MediaCodec;
-import android.media.MediaRecorder;
 import android.net.wifi.WifiManager;
 import android.os.Bundle;
 import android.os.Environment;
@@ -53,6 +52,7 @@ import android.os.HandlerThread;
 import android.provider.Settings;
 import android.util.Log;
 import android.util.Size;
+import android.view.Choreographer;
 import android.view.Gravity;
 import android.view.Surface;
 import android.view.SurfaceHolder;
@@ -66,11 +66,13 @@ import android.widget.SeekBar.OnSeekBarChangeListener;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.googleresearch.capturesync.softwaresync.CSVLogger;
+import com.googleresearch.capturesync.softwaresync.FrameTimestampLog;
+import com.googleresearch.capturesync.softwaresync.RpcDelivery;
 import com.googleresearch.capturesync.softwaresync.SoftwareSyncLeader;
 import com.googleresearch.capturesync.softwaresync.TimeUtils;
-import com.googleresearch.capturesync.softwaresync.phasealign.PeriodCalculator;
+import com.googleresearch.capturesync.softwaresync.phasealign.FramePeriodEstimator;
 import com.googleresearch.capturesync.softwaresync.phasealign.PhaseConfig;
+import com.googleresearch.capturesync.softwaresync.phasealign.PhaseTelemetry;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -90,7 +92,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 import org.apache.hc.client5.http.classic.methods.HttpPost;
@@ -130,22 +132,13 @@ public class MainActivity extends Activity {
 
 
     private String lastTimeStamp;
-    private PeriodCalculator periodCalculator;
+    private FramePeriodEstimator periodEstimator;
 
 
     public String getLastVideoPath() {
         return lastVideoPath;
     }
 
-    public void deleteUnusedVideo() {
-        String videoPath = getLastVideoPath();
-        File videoFile = new File(videoPath);
-        boolean result = videoFile.delete();
-        if (!result) {
-            Log.d(TAG, "Video file could not be deleted");
-        }
-    }
-
     private String lastVideoPath;
 
     public Integer getLastVideoSeqId() {
@@ -154,18 +147,18 @@ public class MainActivity extends Activity {
 
     private Integer lastVideoSeqId;
 
-    public CSVLogger getLogger() {
-        return mLogger;
+    /** The encoder of the recorder surface, null until the capture session is configured. */
+    public VideoEncoder getVideoEncoder() {
+        return videoEncoder;
     }
 
-    private CSVLogger mLogger;
+    private VideoEncoder videoEncoder;
 
     private boolean permissionsGranted = false;
     private boolean isAutofocusStarted = false;
     // Phase config file to use for phase alignment, configs are located in the raw folder.
     private final int phaseConfigFile = R.raw.default_phaseconfig;
 
-    private MediaRecorder mediaRecorder = new MediaRecorder();
     private boolean isVideoRecording = false;
 
     // Camera controls.
@@ -239,6 +232,18 @@ public class MainActivity extends Activity {
             };
     private Surface viewfinderSurface;
     private PhaseAlignController phaseAlignController;
+
+    // Shows the phase of the latest frame once per display frame while resumed.
+    private final PhaseTelemetry.Sample phaseSample = new PhaseTelemetry.Sample();
+    private long shownPhasePublishCount = -1;
+    private final Choreographer.FrameCallback phaseTextUpdater =
+            new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    updatePhaseTextView();
+                    Choreographer.getInstance().postFrameCallback(this);
+                }
+            };
     private int numCaptures;
     private Toast latestToast;
     private Surface surface;
@@ -250,7 +255,21 @@ public class MainActivity extends Activity {
         Log.v(TAG, "onCreate");
         Toast.makeText(this, "RecSyncNG: creating ...", Toast.LENGTH_SHORT).show();
 
-        periodCalculator = new PeriodCalculator();
+        // Keeps the phase aligner on the measured frame period, updated from the frame thread.
+        // The estimate is reset whenever a new repeating request may change the frame rate.
+        periodEstimator =
+                new FramePeriodEstimator(
+                        (periodNs, jitterNs, confidence) -> {
+                            Log.d(
+                                    TAG,
+                                    String.format(
+                                            "Frame period %,d ns, jitter %,d ns, confidence %.2f",
+                                            periodNs, jitterNs, confidence));
+                            PhaseAlignController controller = phaseAlignController;
+                            if (controller != null) {
+                                controller.setPeriodNs(periodNs);
+                            }
+                        });
         //checkPermissions();
         permissionsGranted = true;
         if (permissionsGranted) {
@@ -407,7 +426,7 @@ public class MainActivity extends Activity {
         surfaceView.setVisibility(View.VISIBLE);
 
         startCameraThread();
-
+        Choreographer.getInstance().postFrameCallback(phaseTextUpdater);
 
 
     }
@@ -476,8 +495,21 @@ public class MainActivity extends Activity {
             case "PHASE_ALIGN" :
                 Log.i(TAG,"handling websocket message PHASE_ALIGN" );
 
-                ((SoftwareSyncLeader) softwareSyncController.softwareSync)
-                        .broadcastRpc(SoftwareSyncController.METHOD_DO_PHASE_ALIGN, "");
+                softwareSyncController.broadcastPhaseAlign();
+                break;
+
+            case "CAPTURE_BURST":
+                // Payload "count" or "count,intervalNs", the interval defaulting to every frame.
+                Log.i(TAG,"handling websocket message CAPTURE_BURST:" + infoParts[1]);
+                try {
+                    String[] burstParts = infoParts[1].split(",");
+                    int count = Integer.parseInt(burstParts[0]);
+                    long intervalNs = burstParts.length > 1 ? Long.parseLong(burstParts[1]) : 0;
+                    warnIfUnconfirmed(
+                            softwareSyncController.broadcastBurst(intervalNs, count), "burst");
+                } catch (NumberFormatException e) {
+                    Log.e(TAG, "Invalid burst request: " + infoParts[1]);
+                }
                 break;
 
             case "CAMERA_SETTINGS":
@@ -524,6 +556,7 @@ public class MainActivity extends Activity {
     @Override
     public void onPause() {
         Log.d(TAG, "onPause");
+        Choreographer.getInstance().removeFrameCallback(phaseTextUpdater);
         closeCamera();
         stopCameraThread();
         // Make the SurfaceView GONE so that on resume, surfaceCreated() is called,
@@ -583,38 +616,33 @@ public class MainActivity extends Activity {
     }
 
     public void onTimestampNs(long timestampNs) {
-        periodCalculator.onFrameTimestamp(timestampNs);
+        periodEstimator.onFrameTimestamp(timestampNs);
     }
 
     /* Set up UI controls and listeners based on if device is currently a leader of client. */
     private void setLeaderClientControls(boolean isLeader) {
         getPeriodButton.setOnClickListener(
                 view -> {
-                    Log.d(TAG, "Calculating frames period.");
-
-                    FutureTask<Integer> periodTask = new FutureTask<Integer>(
-                            () -> {
-                                try {
-                                    long periodNs = periodCalculator.getPeriodNs();
-                                    Log.d(TAG, "Calculated period: " + periodNs);
-                                    if (latestToast != null) {
-                                        latestToast.cancel();
-                                    }
-                                    latestToast =
-                                            Toast.makeText(
-                                                    this,
-                                                    "Calculated period: " + periodNs,
-                                                    Toast.LENGTH_LONG);
-                                    latestToast.show();
-                                    phaseAlignController.setPeriodNs(periodNs);
-                                } catch (InterruptedException e) {
-                                    Log.d(TAG, "Failed calculating period");
-                                    e.printStackTrace();
-                                }
-                                return 0;
-                            }
-                    );
-                    periodTask.run();
+                    // The period is estimated continuously, show the current estimate and apply it
+                    // even if it is not confident enough to have been applied automatically yet.
+                    long periodNs = periodEstimator.getPeriodNs();
+                    if (periodNs == 0) {
+                        Log.d(TAG, "No frames yet to estimate the period from.");
+                        return;
+                    }
+                    String message =
+                            String.format(
+                                    "Period: %,d ns, jitter %,d ns, confidence %.2f",
+                                    periodNs,
+                                    periodEstimator.getJitterNs(),
+                                    periodEstimator.getConfidence());
+                    Log.d(TAG, message);
+                    if (latestToast != null) {
+                        latestToast.cancel();
+                    }
+                    latestToast = Toast.makeText(this, message, Toast.LENGTH_LONG);
+                    latestToast.show();
+                    phaseAlignController.setPeriodNs(periodNs);
                 }
         );
 
@@ -631,24 +659,30 @@ public class MainActivity extends Activity {
             captureStillButton.setOnClickListener(
                     view -> {
                         Log.i(TAG, "Record button clicked. isVideoRecording=" + isVideoRecording);
+                        SoftwareSyncLeader leader =
+                                (SoftwareSyncLeader) softwareSyncController.softwareSync;
+                        // All devices, including this one, start and stop at the same leader time
+                        // shortly in the future, giving the command time to reach every client.
+                        long commandTimeNs =
+                                leader.getLeaderTimeNs() + Constants.RECORDING_COMMAND_DELAY_NS;
                         if (isVideoRecording) {
                             Log.i(TAG, "Stopping recording.");
                             runOnUiThread(() -> {Toast.makeText(this, "Stopping video recording.", Toast.LENGTH_SHORT).show();});
-                            stopVideo();
-                            ((SoftwareSyncLeader) softwareSyncController.softwareSync)
-                                    .broadcastRpc(
-                                            SoftwareSyncController.METHOD_STOP_RECORDING,
-                                            "0");
-                            startPreview();
+                            warnIfUnconfirmed(
+                                    leader.broadcastRpc(
+                                            leader.obtainRpcFrame(SoftwareSyncController.METHOD_STOP_RECORDING)
+                                                    .putLong(commandTimeNs)),
+                                    "stop recording");
 
                         } else {
                             Log.i(TAG, "Starting recording " + this.sessionPrefixText);
                             runOnUiThread(() -> {Toast.makeText(this, "Starting video recording.", Toast.LENGTH_SHORT).show();});
-                            startVideo(false, this.sessionPrefixText);
-                            ((SoftwareSyncLeader) softwareSyncController.softwareSync)
-                                    .broadcastRpc(
-                                            SoftwareSyncController.METHOD_START_RECORDING,
-                                            this.sessionPrefixText);
+                            warnIfUnconfirmed(
+                                    leader.broadcastRpc(
+                                            leader.obtainRpcFrame(SoftwareSyncController.METHOD_START_RECORDING)
+                                                    .putLong(commandTimeNs)
+                                                    .putString(this.sessionPrefixText)),
+                                    "start recording");
                         }
 
 /*            if (cameraController.getOutputSurfaces().isEmpty()) {
@@ -658,31 +692,26 @@ public class MainActivity extends Activity {
             }
 
             long currentTimestamp = softwareSyncController.softwareSync.getLeaderTimeNs();
-            // Trigger request some time in the future (~500ms for example) so all devices have time
-            // to receive the request (delayed due to network latency) and prepare for triggering.
-            // Note: If the user keeps a running circular buffer of images, they can select frames
-            // in the near past as well, allowing for 'instantaneous' captures on all devices.
-            long futureTimestamp = currentTimestamp + Constants.FUTURE_TRIGGER_DELAY_NS;
-
-            Log.d(
-                TAG,
-                String.format(
-                    "Trigger button, sending timestamp %,d at %,d",
-                    futureTimestamp, currentTimestamp));
+            // Every device keeps a ring of its most recent frames, so the current time can be sent
+            // as is: devices receiving it a little later pick the frame nearest it from the ring,
+            // giving 'instantaneous' captures on all devices.
+            Log.d(TAG, String.format("Trigger button, sending timestamp %,d", currentTimestamp));
 
             // Broadcast desired synchronized capture time to all devices.
             ((SoftwareSyncLeader) softwareSyncController.softwareSync)
                 .broadcastRpc(
                     SoftwareSyncController.METHOD_SET_TRIGGER_TIME,
-                    String.valueOf(futureTimestamp));*/
+                    String.valueOf(currentTimestamp));*/
                     });
 
             phaseAlignButton.setOnClickListener(
                     view -> {
                         Log.d(TAG, "Broadcasting phase alignment request.");
-                        // Request phase alignment on all devices.
-                        ((SoftwareSyncLeader) softwareSyncController.softwareSync)
-                                .broadcastRpc(SoftwareSyncController.METHOD_DO_PHASE_ALIGN, "");
+                        // Request phase alignment to this device on all clients.
+                        if (!softwareSyncController.broadcastPhaseAlign()) {
+                            Toast.makeText(this, "No frames to align to yet.", Toast.LENGTH_SHORT)
+                                    .show();
+                        }
                     });
 
             toggleFocusButton.setOnClickListener(
@@ -849,7 +878,14 @@ public class MainActivity extends Activity {
 
     private void closeCamera() {
 //        stopPreview();
+        if (isVideoRecording) {
+            stopVideo();
+        }
         captureSession = null;
+        if (videoEncoder != null) {
+            videoEncoder.close();
+            videoEncoder = null;
+        }
         surface.release();
         if (cameraController != null) {
             cameraController.close();
@@ -903,15 +939,17 @@ public class MainActivity extends Activity {
                 Collections.max(viewfinderOutputSizes, new CompareSizesByArea());
 
         Size[] rawOutputSizes = scm.getOutputSizes(ImageFormat.RAW10);
-//    if (rawOutputSizes != null) {
-//      Log.i(TAG, "Available Bayer RAW resolutions:");
-//      for (Size s : rawOutputSizes) {
-//        Log.i(TAG, s.toString());
-//      }
-//    } else {
-//      Log.i(TAG, "Bayer RAW unavailable!");
-//    }
-//    rawImageResolution = Collections.max(Arrays.asList(rawOutputSizes), new CompareSizesByArea());
+        if (rawOutputSizes != null && rawOutputSizes.length != 0) {
+            Log.i(TAG, "Available Bayer RAW resolutions:");
+            for (Size s : rawOutputSizes) {
+                Log.i(TAG, s.toString());
+            }
+            rawImageResolution =
+                    Collections.max(Arrays.asList(rawOutputSizes), new CompareSizesByArea());
+        } else {
+            Log.i(TAG, "Bayer RAW unavailable!");
+            rawImageResolution = null;
+        }
 
         CamcorderProfile profile = CamcorderProfile.get(REC_QUALITY);
         List<Size> yuvOutputSizes = Arrays.stream(scm.getOutputSizes(ImageFormat.YUV_420_888)).filter(
@@ -927,7 +965,7 @@ public class MainActivity extends Activity {
         }
         yuvImageResolution = Collections.max(yuvOutputSizes, new CompareSizesByArea());
         Log.i(TAG, "Chosen viewfinder resolution: " + viewfinderResolution);
-//    Log.i(TAG, "Chosen raw resolution: " + rawImageResolution);
+        Log.i(TAG, "Chosen raw resolution: " + rawImageResolution);
         Log.i(TAG, "Chosen yuv resolution: " + yuvImageResolution);
     }
 
@@ -951,6 +989,10 @@ public class MainActivity extends Activity {
                 });
     }
 
+    public void setUpcomingBurst(long startTimeNs, long intervalNs, int count) {
+        cameraController.setUpcomingBurst(startTimeNs, intervalNs, count);
+    }
+
     public void notifyCapturing(String name) {
         runOnUiThread(
                 () -> {
@@ -988,17 +1030,28 @@ public class MainActivity extends Activity {
         }
     }
 
-    public void injectFrame(long desiredExposureTimeNs) {
+    /**
+     * Injects frameCount frames with the given exposure into the repeating request, back to back as
+     * a burst when there are several.
+     */
+    public void injectFrames(long desiredExposureTimeNs, int frameCount) {
         try {
-            CaptureRequest.Builder builder =
+            CaptureRequest request =
                     cameraController
                             .getRequestFactory()
                             .makeFrameInjectionRequest(
-                                    desiredExposureTimeNs, cameraController.getOutputSurfaces());
-
-            Toast.makeText(this, "Align Phase Started", Toast.LENGTH_SHORT).show();
-            captureSession.capture(
-                    builder.build(), cameraController.getSynchronizerCaptureCallback(), cameraHandler);
+                                    desiredExposureTimeNs, cameraController.getOutputSurfaces())
+                            .build();
+
+            if (frameCount == 1) {
+                captureSession.capture(
+                        request, cameraController.getSynchronizerCaptureCallback(), cameraHandler);
+            } else {
+                captureSession.captureBurst(
+                        Collections.nCopies(frameCount, request),
+                        cameraController.getSynchronizerCaptureCallback(),
+                        cameraHandler);
+            }
         } catch (CameraAccessException e) {
             throw new IllegalStateException("Camera capture failure during frame injection.", e);
         }
@@ -1034,6 +1087,26 @@ public class MainActivity extends Activity {
         sensorSensitivityTextView.setText("Sensitivity: " + currentSensorSensitivity);
     }
 
+    /** Shows a warning if some clients never confirmed receiving a broadcast command. */
+    private void warnIfUnconfirmed(CompletableFuture<RpcDelivery> delivery, String command) {
+        delivery.thenAccept(
+                result -> {
+                    if (result.allAcknowledged()) {
+                        return;
+                    }
+                    Log.e(TAG, "Clients missed " + command + ": " + result.unacknowledged());
+                    runOnUiThread(
+                            () ->
+                                    Toast.makeText(
+                                                    this,
+                                                    String.format(
+                                                            "%d client(s) did not confirm %s.",
+                                                            result.unacknowledged().size(), command),
+                                                    Toast.LENGTH_LONG)
+                                            .show());
+                });
+    }
+
     private void scheduleBroadcast2a() {
         send2aHandler.removeCallbacks(null); // Replace delayed callback with latest 2a values.
         send2aHandler.postDelayed(
@@ -1042,8 +1115,10 @@ public class MainActivity extends Activity {
                     String payload =
                             String.format("%d,%d", currentSensorExposureTimeNs, currentSensorSensitivity);
                     // Send 2A values to all devices
-                    ((SoftwareSyncLeader) softwareSyncController.softwareSync)
-                            .broadcastRpc(SoftwareSyncController.METHOD_SET_2A, payload);
+                    warnIfUnconfirmed(
+                            ((SoftwareSyncLeader) softwareSyncController.softwareSync)
+                                    .broadcastRpc(SoftwareSyncController.METHOD_SET_2A, payload),
+                            "2A update");
                 },
                 500);
     }
@@ -1063,9 +1138,18 @@ public class MainActivity extends Activity {
         startPreview();
     }
 
-    void updatePhaseTextView(long phaseErrorNs) {
+    /** Shows the latest phase telemetry, if there was a frame since the last update. */
+    private void updatePhaseTextView() {
+        if (!phaseAlignController.getTelemetry().read(phaseSample)
+                || phaseSample.publishCount() == shownPhasePublishCount) {
+            return;
+        }
+        shownPhasePublishCount = phaseSample.publishCount();
         phaseTextView.setText(
-                String.format("Phase Error: %.2f ms", TimeUtils.nanosToMillis((double) phaseErrorNs)));
+                String.format(
+                        "Phase Error: %.2f ms%s",
+                        TimeUtils.nanosToMillis((double) phaseSample.diffFromGoalNs()),
+                        phaseSample.isAligned() ? " (aligned)" : ""));
     }
 
     private long seekBarValueToExposureNs(int value) {
@@ -1124,7 +1208,7 @@ public class MainActivity extends Activity {
         Log.d(TAG, "viewfinderSurface valid? " + viewfinderSurface.isValid());
         outputSurfaces.add(viewfinderSurface);
 
-        // MROB. Added MediaRecorder surface
+        // MROB. Added recorder surface
         try {
             createRecorderSurface();
             outputSurfaces.add(surface);
@@ -1188,6 +1272,7 @@ public class MainActivity extends Activity {
 
     private void startPreview(boolean wantAutoExp) {
         Log.d(TAG, "Starting preview.");
+        periodEstimator.requestReset();
 
         try {
             CaptureRequest.Builder previewRequestBuilder =
@@ -1244,45 +1329,21 @@ public class MainActivity extends Activity {
     }
 
     private void createRecorderSurface() throws IOException {
+        if (videoEncoder != null) {
+            videoEncoder.close();
+        }
         surface = MediaCodec.createPersistentInputSurface();
 
-        MediaRecorder recorder = setUpMediaRecorder(surface, false, "");
-        recorder.prepare();
-        recorder.release();
-        deleteUnusedVideo();
-    }
-
-    private MediaRecorder setUpMediaRecorder(Surface surface, String prefixText) throws IOException {
-        return setUpMediaRecorder(surface, true, prefixText);
-    }
-
-    private MediaRecorder setUpMediaRecorder(Surface surface, boolean specifyOutput, String prefixText) throws IOException {
-        MediaRecorder recorder = new MediaRecorder();
-        recorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
-        recorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
-        /*
-         * create video output file
-         * set output file in media recorder
-         */
-
-        lastVideoPath = getOutputMediaFilePath(prefixText);
-        recorder.setOutputFile(lastVideoPath);
-
         CamcorderProfile profile = CamcorderProfile.get(REC_QUALITY);
-        recorder.setVideoSize(profile.videoFrameWidth, profile.videoFrameHeight);
-        recorder.setVideoEncodingBitRate(REC_BITRATE);
-        recorder.setVideoFrameRate(REC_FPS);
         Log.d(TAG, profile.videoBitRate + " Bitrate");
-
-        recorder.setVideoEncoder(MediaRecorder.VideoEncoder.H264);
-//    int rotation = getWindowManager().getDefaultDisplay().getRotation();
-/*    switch (mSensorOrientation) {
-      case SENSOR_ORIENTATION_INVERSE_DEGREES:
-        mMediaRecorder.setOrientationHint(INVERSE_ORIENTATIONS.get(rotation));
-        break;
-    }*/
-        recorder.setInputSurface(surface);
-        return recorder;
+        videoEncoder =
+                new VideoEncoder(
+                        surface,
+                        profile.videoFrameWidth,
+                        profile.videoFrameHeight,
+                        REC_BITRATE,
+                        REC_FPS);
+        videoEncoder.prepareSurface();
     }
 
 //    public void setVideoRecording(boolean videoRecording) {
@@ -1305,7 +1366,7 @@ public class MainActivity extends Activity {
             try{
                 File vFile = new File(videoFilePath + filename);
                 vFile.delete();
-                File csvFile = new File(csvFilePath + filename.split("\\.")[0] + ".csv");
+                File csvFile = new File(csvFilePath + filename.split("\\.")[0] + FrameTimestampLog.FILE_EXTENSION);
                 csvFile.delete();
             }catch (Exception e){
                 e.printStackTrace();
@@ -1402,7 +1463,7 @@ public class MainActivity extends Activity {
                 filename = list[i].getName();
                 if(filename.startsWith(session_prefix)){
                     postRequestDataMap.put("VIDEO_FILE_PATH", videoFilePath + filename);
-                    postRequestDataMap.put("CSV_FILE_PATH", csvFilePath + filename.split("\\.")[0] + ".csv" );
+                    postRequestDataMap.put("CSV_FILE_PATH", csvFilePath + filename.split("\\.")[0] + FrameTimestampLog.FILE_EXTENSION);
                     postRequestDataMap.put("CLIENT_ID", clientID);
                     postRequestDataMap.put("API_ENDPOINT", payloadParams[0]);
                     postRequestDataMap.put("SESSION_PREFIX", payloadParams[1]);
@@ -1438,22 +1499,18 @@ public class MainActivity extends Activity {
     }
 
     public void startVideo(boolean wantAutoExp, String prefixText) {
+        if (isVideoRecording) {
+            Log.w(TAG, "Already recording, ignoring start.");
+            return;
+        }
         Log.d(TAG, "Starting video.");
 
         isVideoRecording = true;
+        periodEstimator.requestReset();
         try {
 
             Log.d(TAG, "Starting video after toast.");
-            mediaRecorder = setUpMediaRecorder(surface, prefixText);
-            String filename = prefixText+"_"+lastTimeStamp + ".csv";
-            // Creates frame timestamps logger
-            try {
-                mLogger = new CSVLogger(REC_SUBDIR_NAME, filename, this);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            mediaRecorder.prepare();
-            Log.d(TAG, "MediaRecorder surface " + surface);
+            Log.d(TAG, "Recorder surface " + surface);
             CaptureRequest.Builder previewRequestBuilder =
                     cameraController
                             .getRequestFactory()
@@ -1468,24 +1525,45 @@ public class MainActivity extends Activity {
 
             captureSession.stopRepeating();
             previewRequestBuilder.set(CaptureRequest.LENS_FOCUS_DISTANCE, getCurrentFocusDistance());
-            mediaRecorder.start();
+            lastVideoPath = getOutputMediaFilePath(prefixText);
+            String filename = prefixText+"_"+lastTimeStamp + FrameTimestampLog.FILE_EXTENSION;
+            // Creates frame timestamps logger, filled by the encoder with the frames of the video.
+            FrameTimestampLog frameLog = new FrameTimestampLog(REC_SUBDIR_NAME, filename);
+            try {
+                videoEncoder.start(lastVideoPath, frameLog, softwareSyncController.softwareSync);
+            } catch (IOException e) {
+                frameLog.close();
+                throw e;
+            }
             lastVideoSeqId = captureSession.setRepeatingRequest(
                     previewRequestBuilder.build(),
                     cameraController.getSynchronizerCaptureCallback(),
                     cameraHandler);
+            // The leader's phase is the goal of the clients, it has nothing to lock to.
+            if (Constants.PHASE_LOCK_DURING_RECORDING && !softwareSyncController.isLeader()) {
+                phaseAlignController.startPhaseLock(Constants.PHASE_LOCK_DRIFT_THRESHOLD_NS);
+            }
         } catch (CameraAccessException e) {
             Log.w(TAG, "Unable to create video request.");
+            videoEncoder.stop();
+            isVideoRecording = false;
         } catch (IOException e) {
             e.printStackTrace();
+            isVideoRecording = false;
         }
     }
 
     public void stopVideo() {
+        if (!isVideoRecording) {
+            Log.w(TAG, "Not recording, ignoring stop.");
+            return;
+        }
         // Switch to preview again
         isVideoRecording = false;
-        mediaRecorder.stop();
-        mLogger.close();
-        mLogger = null;
+        if (Constants.PHASE_LOCK_DURING_RECORDING) {
+            phaseAlignController.stopPhaseLock();
+        }
+        videoEncoder.stop();
     }
 
     private void stopPreview() {
@@ -18,17 +18,26 @@ package com.googleresearch.capturesync;
 
 import android.os.Handler;
 import android.util.Log;
+import android.widget.Toast;
 
 import com.googleresearch.capturesync.softwaresync.phasealign.PhaseAligner;
 import com.googleresearch.capturesync.softwaresync.phasealign.PhaseConfig;
-import com.googleresearch.capturesync.softwaresync.phasealign.PhaseResponse;
+import com.googleresearch.capturesync.softwaresync.phasealign.PhaseShiftModel;
+import com.googleresearch.capturesync.softwaresync.phasealign.PhaseTelemetry;
 
 /**
  * Calculates and adjusts camera phase by inserting frames of varying exposure lengths.
  *
- * <p>Phase alignment is an iterative process. Running for more iterations results in higher
- * accuracy up to the stability of the camera and the accuracy of the phase alignment configuration
- * values.
+ * <p>Phase alignment is a closed loop driven by the frame stream. Each step measures the phase
+ * over a few frames, plans a correction with a {@link PhaseShiftModel}, injects it and waits for
+ * the injected frames to come back tagged with {@link #INJECT_FRAME}. The frames after them carry
+ * the new phase, which both starts the next step and teaches the model the actual shift of the
+ * correction, so a step takes a handful of frames rather than a fixed settle delay and the model
+ * adapts to the device. The model is kept between alignments.
+ *
+ * <p>The goal is either the static goal phase of the {@link PhaseConfig} or, with {@link
+ * #startAlignTo}, the phase of a reference frame of the leader, so every device converges to the
+ * leader's phase rather than each to its own configured goal.
  */
 public class PhaseAlignController {
     public static final String INJECT_FRAME = "injection_frame";
@@ -38,105 +47,367 @@ public class PhaseAlignController {
     // TODO(samansari): Make this a parameter that you pass in to this class. Then make the class that
     // constructs this pass the constant in.
     private static final int MAX_ITERATIONS = 50;
-    // Delay after an alignment step to wait for phase to settle before starting the next iteration.
-    private static final int PHASE_SETTLE_DELAY_MS = 400;
+    // Frames averaged to measure the phase before planning a step.
+    private static final int MEASURE_FRAMES = 2;
+    // Frames skipped after the injected ones while the repeating request takes over again.
+    private static final int SETTLE_FRAMES = 1;
+    // Regular frames to wait for injected frames before assuming they were lost.
+    private static final int LANDING_TIMEOUT_FRAMES = 30;
+    // Consecutive frames beyond the drift threshold before the phase lock corrects, ignoring jitter.
+    private static final int PHASE_LOCK_DRIFT_FRAMES = 8;
+    // Maximum number of steps of a phase lock correction, drift is small so few are needed.
+    private static final int PHASE_LOCK_MAX_ITERATIONS = 5;
+
+    /** Notified on the frame thread when an alignment finishes. */
+    public interface AlignmentListener {
+        /**
+         * @param aligned whether the phase reached the goal within the align threshold.
+         * @param residualNs goal minus measured phase when the alignment finished.
+         * @param steps number of corrections injected.
+         */
+        void onAlignmentFinished(boolean aligned, long residualNs, int steps);
+    }
+
+    private enum State {
+        IDLE,
+        MEASURING,
+        AWAITING_INJECTED,
+        SETTLING
+    }
+
     private final MainActivity context;
 
     private final Handler handler;
     private final Object lock = new Object();
-    private boolean inAlignState = false;
 
-    private PhaseAligner phaseAligner;
+    // Aligner over a copy of phaseConfig, replaced under lock when the period or goal changes so
+    // the frame thread reads it without locking.
+    private volatile PhaseAligner phaseAligner;
+    // Guarded by lock.
     private final PhaseConfig phaseConfig;
-    private PhaseResponse latestResponse;
+    // Phase of the latest frame, for the UI and as a reference for other devices to align to.
+    private final PhaseTelemetry telemetry = new PhaseTelemetry();
+
+    // Alignment state, guarded by lock and advanced by the frames in updateCaptureTimestamp().
+    private final PhaseShiftModel shiftModel;
+    private State state = State.IDLE;
+    private AlignmentListener listener;
+    private int iterationsLeft;
+    private int steps;
+    private int stateFrames;
+    private int framesWaited;
+    private long firstPhaseNs;
+    private long phaseOffsetSumNs;
+    private PhaseShiftModel.Correction pendingCorrection;
+    private long phaseBeforeCorrectionNs;
+    private long periodAtCorrectionNs;
+    // Period estimate received during an alignment, applied when it finishes, 0 if none.
+    private long pendingPeriodNs;
+
+    // Phase lock, also guarded by lock.
+    private boolean phaseLockEnabled;
+    private long phaseLockThresholdNs;
+    private int driftFrames;
 
     public PhaseAlignController(PhaseConfig config, MainActivity context) {
         handler = new Handler();
         phaseConfig = config;
-        phaseAligner = new PhaseAligner(config);
+        phaseAligner = new PhaseAligner(config.copy());
+        shiftModel = new PhaseShiftModel(config);
         Log.v(TAG, "Loaded phase align config.");
         this.context = context;
     }
 
+    /**
+     * Switches to a new frame period, from any thread. An alignment in progress keeps measuring
+     * and planning with the period it started with, the new one applies once it finishes.
+     */
     protected void setPeriodNs(long periodNs) {
+        synchronized (lock) {
+            if (state != State.IDLE) {
+                pendingPeriodNs = periodNs;
+                return;
+            }
+            applyPeriodLocked(periodNs);
+        }
+    }
+
+    private void applyPeriodLocked(long periodNs) {
         phaseConfig.setPeriodNs(periodNs);
-        this.phaseAligner = new PhaseAligner(phaseConfig);
+        phaseAligner = new PhaseAligner(phaseConfig.copy());
     }
 
     /**
-     * Update the latest phase response from the latest frame timestamp to keep track of phase.
+     * Update the latest phase from the latest frame timestamp to keep track of phase, and advance
+     * the alignment if one is running.
      *
-     * <p>The timestamp is nanoseconds in the synchronized leader clock domain.
+     * <p>The timestamp is nanoseconds in the synchronized leader clock domain. Called for every
+     * frame, so it does not allocate or post to other threads, the phase is published to {@link
+     * #getTelemetry()} for readers to sample instead.
      *
+     * @param injectedFrame whether the frame was requested by a phase alignment step, ie. its
+     *     request was tagged with {@link #INJECT_FRAME}.
      * @return phase of timestamp in nanoseconds in the same domain as given.
      */
-    public long updateCaptureTimestamp(long timestampNs) {
-        // TODO(samansaari) : Rename passTimestamp -> updateCaptureTimestamp or similar in softwaresync.
-        latestResponse = phaseAligner.passTimestamp(timestampNs);
-        // TODO (samansari) : Pull this into an interface/callback.
-        context.runOnUiThread(() -> context.updatePhaseTextView(latestResponse.diffFromGoalNs()));
-        return latestResponse.phaseNs();
+    public long updateCaptureTimestamp(long timestampNs, boolean injectedFrame) {
+        PhaseAligner aligner = phaseAligner;
+        long phaseNs = aligner.phaseNs(timestampNs);
+        long diffFromGoalNs = aligner.diffFromGoalNs(phaseNs);
+        telemetry.publish(timestampNs, phaseNs, diffFromGoalNs, aligner.isAligned(diffFromGoalNs));
+        synchronized (lock) {
+            if (state != State.IDLE) {
+                onFrame(phaseNs, aligner.getConfig().periodNs(), injectedFrame);
+            } else if (phaseLockEnabled && !injectedFrame) {
+                checkDrift(diffFromGoalNs);
+            }
+        }
+        return phaseNs;
     }
 
-    /** Submit an frame with a specific exposure to offset future frames and align phase. */
-    private void doPhaseAlignStep() {
+    /** Timestamp of the latest frame in the synchronized leader clock domain, 0 before any. */
+    public long getLatestTimestampNs() {
+        return telemetry.timestampNs();
+    }
+
+    /** Latest phase state, published for every frame. */
+    public PhaseTelemetry getTelemetry() {
+        return telemetry;
+    }
+
+    public long getPeriodNs() {
+        return phaseAligner.getConfig().periodNs();
+    }
+
+    /**
+     * Aligns to the goal phase of the phase configuration.
+     *
+     * @param listener notified when the alignment finishes, may be null.
+     */
+    public void startAlign(AlignmentListener listener) {
+        synchronized (lock) {
+            phaseConfig.clearGoalReference();
+            startAlignLocked(listener);
+        }
+    }
+
+    /**
+     * Aligns to the phase of a frame of another device, so that frames of both devices are taken at
+     * the same time.
+     *
+     * @param referenceTimestampNs timestamp of the reference frame in the synchronized leader clock
+     *     domain.
+     * @param listener notified when the alignment finishes, may be null.
+     */
+    public void startAlignTo(long referenceTimestampNs, AlignmentListener listener) {
+        synchronized (lock) {
+            phaseConfig.setGoalReferenceTimestampNs(referenceTimestampNs);
+            startAlignLocked(listener);
+        }
+    }
+
+    private void startAlignLocked(AlignmentListener listener) {
+        // Publish the goal to the frame thread.
+        phaseAligner = new PhaseAligner(phaseConfig.copy());
+        this.listener = listener;
+        if (state != State.IDLE) {
+            Log.i(TAG, "startAlign() called while already aligning, continuing with the new goal.");
+            return;
+        }
+        // Measure the phase from the next frames, then correct it step by step until aligned to
+        // threshold or after {@code MAX_ITERATIONS}.
+        iterationsLeft = MAX_ITERATIONS;
+        steps = 0;
+        startMeasuring();
+        context.runOnUiThread(
+                () -> Toast.makeText(context, "Align Phase Started", Toast.LENGTH_SHORT).show());
+    }
+
+    /**
+     * Keeps the phase locked to the current goal: whenever the phase drifts further than
+     * driftThresholdNs from it for several frames in a row, a short alignment brings it back within
+     * the align threshold of the phase configuration. Meant for long recordings, during which the
+     * phase slowly drifts with the temperature and clock of the device.
+     *
+     * <p>The goal is the one of the latest alignment, ex. the leader's phase after {@link
+     * #startAlignTo}. Only for clients, the leader never aligns and its goal is just the static
+     * one of the phase configuration.
+     */
+    public void startPhaseLock(long driftThresholdNs) {
+        synchronized (lock) {
+            phaseLockEnabled = true;
+            phaseLockThresholdNs = driftThresholdNs;
+            driftFrames = 0;
+        }
+        Log.i(TAG, String.format("Phase lock on, threshold %.3f ms.", driftThresholdNs * 1e-6f));
+    }
+
+    /** Stops correcting drift. A correction in progress still finishes. */
+    public void stopPhaseLock() {
+        synchronized (lock) {
+            phaseLockEnabled = false;
+        }
+        Log.i(TAG, "Phase lock off.");
+    }
+
+    private void checkDrift(long diffFromGoalNs) {
+        if (Math.abs(diffFromGoalNs) <= phaseLockThresholdNs) {
+            driftFrames = 0;
+            return;
+        }
+        if (++driftFrames < PHASE_LOCK_DRIFT_FRAMES) {
+            return;
+        }
+        driftFrames = 0;
         Log.i(
                 TAG,
                 String.format(
-                        "Current Phase: %.3f ms, Diff: %.3f ms, inserting frame exposure %.6f ms, lower bound"
-                                + " %.6f ms.",
-                        latestResponse.phaseNs() * 1e-6f,
-                        latestResponse.diffFromGoalNs() * 1e-6f,
-                        latestResponse.exposureTimeToShiftNs() * 1e-6f,
-                        phaseAligner.getConfig().minExposureNs() * 1e-6f));
-
-        // TODO(samansari): Make this an interface.
-        context.injectFrame(latestResponse.exposureTimeToShiftNs());
+                        "Phase drifted %.3f ms from the goal, correcting.", diffFromGoalNs * 1e-6f));
+        iterationsLeft = PHASE_LOCK_MAX_ITERATIONS;
+        steps = 0;
+        startMeasuring();
     }
 
-    public void startAlign() {
-        synchronized (lock) {
-            if (inAlignState) {
-                Log.i(TAG, "startAlign() called while already aligning.");
+    private void onFrame(long phaseNs, long periodNs, boolean injectedFrame) {
+        switch (state) {
+            case MEASURING:
+                if (injectedFrame) {
+                    // A late injection landed and moved the phase, measure again.
+                    startMeasuring();
+                    return;
+                }
+                addPhaseSample(phaseNs, periodNs);
+                if (stateFrames == MEASURE_FRAMES) {
+                    onPhaseMeasured(
+                            Math.floorMod(firstPhaseNs + phaseOffsetSumNs / stateFrames, periodNs));
+                }
+                return;
+            case AWAITING_INJECTED:
+                if (injectedFrame) {
+                    if (++stateFrames == pendingCorrection.frameCount()) {
+                        state = State.SETTLING;
+                        stateFrames = 0;
+                    }
+                } else if (++framesWaited > LANDING_TIMEOUT_FRAMES) {
+                    Log.w(TAG, "Injected frames did not arrive, measuring phase again.");
+                    pendingCorrection = null;
+                    startMeasuring();
+                }
+                return;
+            case SETTLING:
+                if (++stateFrames > SETTLE_FRAMES) {
+                    startMeasuring();
+                    addPhaseSample(phaseNs, periodNs);
+                }
+                return;
+            default:
                 return;
-            }
-            inAlignState = true;
-            // Start inserting frames every {@code PHASE_SETTLE_DELAY_MS} ms to try and push the phase to
-            // the goal phase. Stop after aligned to threshold or after {@code MAX_ITERATIONS}.
-            handler.post(() -> work(MAX_ITERATIONS));
         }
     }
 
-    private void work(int iterationsLeft) {
-        // Check if Aligned / Not Aligned but able to iterate / Ran out of iterations.
-        if (latestResponse.isAligned()) { // Aligned.
-            Log.i(
+    private void startMeasuring() {
+        state = State.MEASURING;
+        stateFrames = 0;
+        phaseOffsetSumNs = 0;
+    }
+
+    /** Accumulates phases relative to the first sample, so a measurement can straddle zero. */
+    private void addPhaseSample(long phaseNs, long periodNs) {
+        if (stateFrames == 0) {
+            firstPhaseNs = phaseNs;
+        } else {
+            phaseOffsetSumNs += PhaseAligner.phaseDifferenceNs(phaseNs, firstPhaseNs, periodNs);
+        }
+        stateFrames++;
+    }
+
+    private void onPhaseMeasured(long phaseNs) {
+        PhaseConfig config = phaseAligner.getConfig();
+        long periodNs = config.periodNs();
+        if (pendingCorrection != null) {
+            long shiftNs =
+                    PhaseShiftModel.unwrapShiftNs(
+                            periodNs,
+                            phaseNs - phaseBeforeCorrectionNs,
+                            pendingCorrection.predictedShiftNs());
+            shiftModel.addObservation(
+                    periodAtCorrectionNs,
+                    pendingCorrection.exposureNs(),
+                    pendingCorrection.frameCount(),
+                    shiftNs);
+            Log.v(
                     TAG,
                     String.format(
-                            "Reached: Current Phase: %.3f ms, Diff: %.3f ms",
-                            latestResponse.phaseNs() * 1e-6f, latestResponse.diffFromGoalNs() * 1e-6f));
-            synchronized (lock) {
-                inAlignState = false;
-            }
+                            "Shifted %.3f ms, predicted %.3f ms. Model gain %.3f, overhead %.3f"
+                                    + " ms.",
+                            shiftNs * 1e-6f,
+                            pendingCorrection.predictedShiftNs() * 1e-6f,
+                            shiftModel.gain(),
+                            shiftModel.overheadNs() * 1e-6f));
+            pendingCorrection = null;
+        }
 
+        long diffFromGoalNs =
+                PhaseAligner.phaseDifferenceNs(config.goalPhaseNs(), phaseNs, periodNs);
+        if (Math.abs(diffFromGoalNs) < config.alignThresholdNs()) { // Aligned.
+            Log.i(
+                    TAG,
+                    String.format(
+                            "Reached: Current Phase: %.3f ms, Diff: %.3f ms, %d steps",
+                            phaseNs * 1e-6f, diffFromGoalNs * 1e-6f, steps));
+            finish(true, diffFromGoalNs);
             Log.d(TAG, "Aligned.");
-        } else if (!latestResponse.isAligned() && iterationsLeft > 0) {
+        } else if (iterationsLeft > 0) {
             // Not aligned but able to run another alignment iteration.
-            doPhaseAlignStep();
-            Log.v(TAG, "Queued another phase align step.");
-            // TODO (samansari) : Replace this brittle delay-based solution to a response-based one.
-            handler.postDelayed(
-                    () -> work(iterationsLeft - 1), PHASE_SETTLE_DELAY_MS); // Try again after it settles.
+            iterationsLeft--;
+            steps++;
+            doPhaseAlignStep(phaseNs, diffFromGoalNs, periodNs);
         } else { // Reached max iterations before aligned.
             Log.i(
                     TAG,
                     String.format(
                             "Failed to Align, Stopping at: Current Phase: %.3f ms, Diff: %.3f ms",
-                            latestResponse.phaseNs() * 1e-6f, latestResponse.diffFromGoalNs() * 1e-6f));
-            synchronized (lock) {
-                inAlignState = false;
-            }
+                            phaseNs * 1e-6f, diffFromGoalNs * 1e-6f));
+            finish(false, diffFromGoalNs);
             Log.d(TAG, "Finishing alignment, reached max iterations.");
         }
     }
+
+    private void finish(boolean aligned, long residualNs) {
+        state = State.IDLE;
+        if (pendingPeriodNs != 0) {
+            applyPeriodLocked(pendingPeriodNs);
+            pendingPeriodNs = 0;
+        }
+        AlignmentListener finishedListener = listener;
+        listener = null;
+        if (finishedListener != null) {
+            finishedListener.onAlignmentFinished(aligned, residualNs, steps);
+        }
+    }
+
+    /** Submit frames with a planned exposure to offset future frames and align phase. */
+    private void doPhaseAlignStep(long phaseNs, long diffFromGoalNs, long periodNs) {
+        // Since we can only shift phase into the future, shift negative offsets over by one period.
+        PhaseShiftModel.Correction correction =
+                shiftModel.plan(periodNs, Math.floorMod(diffFromGoalNs, periodNs));
+        Log.i(
+                TAG,
+                String.format(
+                        "Current Phase: %.3f ms, Diff: %.3f ms, inserting %d frame(s) with"
+                                + " exposure %.6f ms, lower bound %.6f ms.",
+                        phaseNs * 1e-6f,
+                        diffFromGoalNs * 1e-6f,
+                        correction.frameCount(),
+                        correction.exposureNs() * 1e-6f,
+                        phaseConfig.minExposureNs() * 1e-6f));
+
+        pendingCorrection = correction;
+        phaseBeforeCorrectionNs = phaseNs;
+        periodAtCorrectionNs = periodNs;
+        state = State.AWAITING_INJECTED;
+        stateFrames = 0;
+        framesWaited = 0;
+        // TODO(samansari): Make this an interface.
+        handler.post(() -> context.injectFrames(correction.exposureNs(), correction.frameCount()));
+    }
 }
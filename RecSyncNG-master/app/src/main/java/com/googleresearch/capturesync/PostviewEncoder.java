@@ -0,0 +1,409 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecInfo.CodecCapabilities;
+import android.media.MediaCodecInfo.EncoderCapabilities;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes the postview of a still, a compressed picture for the gallery next to the raw NV21, on
+ * its own thread.
+ *
+ * <p>The picture is encoded to HEIC by the hardware image encoder through MediaCodec and written
+ * by MediaMuxer, reading straight from the NV21 copies of the still, so the CPU only fills the
+ * encoder's input image. The encoder is created once per resolution and reused. Devices without a
+ * hardware HEIC encoder fall back to software JPEG through YuvImage, with a reused input array.
+ */
+final class PostviewEncoder {
+  private static final String TAG = "PostviewEncoder";
+
+  /** Trade-off between postview quality and the time it takes. */
+  public enum Mode {
+    /** Full resolution. */
+    QUALITY(1),
+    /** Half the width and height, a quarter of the pixels to fill and encode. */
+    THROUGHPUT(2);
+
+    private final int scale;
+
+    Mode(int scale) {
+      this.scale = scale;
+    }
+  }
+
+  /** Called on the encoder thread once a postview is written, or failed to. */
+  interface Listener {
+    void onPostviewEncoded(File file, String mimeType, boolean success);
+  }
+
+  private static final String HEIC_MIME_TYPE = MediaFormat.MIMETYPE_IMAGE_ANDROID_HEIC;
+  private static final String JPEG_MIME_TYPE = "image/jpeg";
+
+  /** Tile size of HEIC images, the grid the encoder splits larger images into. */
+  private static final int HEIC_TILE_SIZE = 512;
+
+  private static final long CODEC_TIMEOUT_US = 100_000;
+
+  private final Mode mode;
+  private final int quality;
+  private final Listener listener;
+  private final Handler handler;
+
+  // Only used on the encoder thread.
+  private MediaCodec codec;
+  private MediaFormat codecFormat;
+  private boolean heicUnavailable;
+  private byte[] jpegInput;
+  private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+
+  /** @param quality 0 to 100, the HEIC or JPEG quality. */
+  PostviewEncoder(Mode mode, int quality, Listener listener) {
+    this.mode = mode;
+    this.quality = quality;
+    this.listener = listener;
+
+    HandlerThread thread = new HandlerThread(TAG);
+    thread.start();
+    // getLooper() blocks until the thread started and its Looper is prepared.
+    handler = new Handler(thread.getLooper());
+  }
+
+  /**
+   * Queues the postview of a tightly packed NV21 image, written to basename plus the extension of
+   * the format used. Only the contents of luma and chroma between 0 and their limits are read, so
+   * others may write them out meanwhile. onDone runs on the encoder thread once they are no longer
+   * read.
+   */
+  void submit(
+      ByteBuffer luma,
+      ByteBuffer chroma,
+      int width,
+      int height,
+      File dir,
+      String basename,
+      Runnable onDone) {
+    final long submittedNs = System.nanoTime();
+    // Views of our own, the position of the originals may move while this is queued.
+    final ByteBuffer lumaView = luma.duplicate();
+    final ByteBuffer chromaView = chroma.duplicate();
+    handler.post(
+        () -> {
+          try {
+            lumaView.position(0);
+            chromaView.position(0);
+            encode(lumaView, chromaView, width, height, dir, basename, submittedNs);
+          } finally {
+            onDone.run();
+          }
+        });
+  }
+
+  private void encode(
+      ByteBuffer luma,
+      ByteBuffer chroma,
+      int width,
+      int height,
+      File dir,
+      String basename,
+      long submittedNs) {
+    final long t0 = System.nanoTime();
+    // Encoders want even dimensions.
+    final int outWidth = (width / mode.scale) & ~1;
+    final int outHeight = (height / mode.scale) & ~1;
+    if (!heicUnavailable && prepareHeicCodec(outWidth, outHeight)) {
+      File file = new File(dir, basename + ".heic");
+      boolean success = encodeHeic(luma, chroma, width, file);
+      logTiming("HEIC", file, submittedNs, t0);
+      if (success) {
+        listener.onPostviewEncoded(file, HEIC_MIME_TYPE, true);
+        return;
+      }
+      // Drop the encoder, the next postview creates a fresh one.
+      releaseCodec();
+    }
+    File file = new File(dir, basename + ".jpg");
+    boolean success = encodeJpeg(luma, chroma, width, outWidth, outHeight, file);
+    logTiming("JPEG", file, submittedNs, t0);
+    listener.onPostviewEncoded(file, JPEG_MIME_TYPE, success);
+  }
+
+  private static void logTiming(String format, File file, long submittedNs, long startNs) {
+    long t1 = System.nanoTime();
+    Log.i(
+        TAG,
+        String.format(
+            "%s postview %s: queued %.3f ms, encode %.3f ms.",
+            format, file.getName(), (startNs - submittedNs) * 1e-6f, (t1 - startNs) * 1e-6f));
+  }
+
+  /**
+   * Makes {@link #codec} a configured and started HEIC encoder for the given size, reusing the
+   * current one if possible.
+   *
+   * @return false if the device has no hardware HEIC encoder for the size.
+   */
+  private boolean prepareHeicCodec(int width, int height) {
+    if (codec != null
+        && codecFormat.getInteger(MediaFormat.KEY_WIDTH) == width
+        && codecFormat.getInteger(MediaFormat.KEY_HEIGHT) == height) {
+      try {
+        codec.configure(codecFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        codec.start();
+        return true;
+      } catch (IllegalArgumentException | IllegalStateException e) {
+        Log.w(TAG, "Failed to restart HEIC encoder, creating a new one: " + e);
+      }
+    }
+    releaseCodec();
+
+    MediaFormat format = MediaFormat.createVideoFormat(HEIC_MIME_TYPE, width, height);
+    int gridColumns = (width + HEIC_TILE_SIZE - 1) / HEIC_TILE_SIZE;
+    int gridRows = (height + HEIC_TILE_SIZE - 1) / HEIC_TILE_SIZE;
+    format.setInteger(MediaFormat.KEY_TILE_WIDTH, HEIC_TILE_SIZE);
+    format.setInteger(MediaFormat.KEY_TILE_HEIGHT, HEIC_TILE_SIZE);
+    format.setInteger(MediaFormat.KEY_GRID_COLUMNS, gridColumns);
+    format.setInteger(MediaFormat.KEY_GRID_ROWS, gridRows);
+    format.setInteger(
+        MediaFormat.KEY_COLOR_FORMAT, CodecCapabilities.COLOR_FormatYUV420Flexible);
+    format.setInteger(MediaFormat.KEY_FRAME_RATE, gridColumns * gridRows);
+    format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 0);
+    format.setInteger(MediaFormat.KEY_BITRATE_MODE, EncoderCapabilities.BITRATE_MODE_CQ);
+    format.setInteger(MediaFormat.KEY_QUALITY, quality);
+
+    String codecName = findHardwareEncoder(format);
+    if (codecName == null) {
+      Log.w(TAG, String.format("No hardware HEIC encoder for %dx%d, using JPEG.", width, height));
+      heicUnavailable = true;
+      return false;
+    }
+    try {
+      codec = MediaCodec.createByCodecName(codecName);
+      codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+      codec.start();
+    } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+      Log.w(TAG, "Failed to start HEIC encoder " + codecName + ", using JPEG: " + e);
+      releaseCodec();
+      heicUnavailable = true;
+      return false;
+    }
+    codecFormat = format;
+    Log.i(TAG, String.format("Encoding postviews with %s at %dx%d.", codecName, width, height));
+    return true;
+  }
+
+  private static String findHardwareEncoder(MediaFormat format) {
+    for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+      if (!info.isEncoder() || !isHardwareAccelerated(info)) {
+        continue;
+      }
+      for (String type : info.getSupportedTypes()) {
+        if (type.equalsIgnoreCase(HEIC_MIME_TYPE)
+            && info.getCapabilitiesForType(type).isFormatSupported(format)) {
+          return info.getName();
+        }
+      }
+    }
+    return null;
+  }
+
+  private static boolean isHardwareAccelerated(MediaCodecInfo info) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+      return info.isHardwareAccelerated();
+    }
+    // Before Q, the platform software codecs are recognizable by name.
+    String name = info.getName();
+    return !name.startsWith("OMX.google.") && !name.startsWith("c2.android.");
+  }
+
+  /** Encodes one image with the started {@link #codec} and stops it again. */
+  private boolean encodeHeic(ByteBuffer luma, ByteBuffer chroma, int srcWidth, File file) {
+    MediaMuxer muxer = null;
+    boolean muxerStarted = false;
+    try {
+      int inputIndex = codec.dequeueInputBuffer(CODEC_TIMEOUT_US);
+      if (inputIndex < 0) {
+        Log.w(TAG, "HEIC encoder has no input buffer.");
+        return false;
+      }
+      Image input = codec.getInputImage(inputIndex);
+      fillImage(input, luma, chroma, srcWidth, mode.scale);
+      int inputBytes = input.getWidth() * input.getHeight() * 3 / 2;
+      codec.queueInputBuffer(
+          inputIndex, 0, inputBytes, /*presentationTimeUs=*/ 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+
+      muxer = new MediaMuxer(file.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_HEIF);
+      int track = -1;
+      while (true) {
+        int outputIndex = codec.dequeueOutputBuffer(bufferInfo, CODEC_TIMEOUT_US);
+        if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+          track = muxer.addTrack(codec.getOutputFormat());
+          muxer.start();
+          muxerStarted = true;
+        } else if (outputIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+          Log.w(TAG, "Timed out waiting for the HEIC encoder.");
+          return false;
+        } else if (outputIndex >= 0) {
+          boolean endOfStream = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+          if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0
+              && bufferInfo.size > 0
+              && muxerStarted) {
+            ByteBuffer output = codec.getOutputBuffer(outputIndex);
+            muxer.writeSampleData(track, output, bufferInfo);
+          }
+          codec.releaseOutputBuffer(outputIndex, false);
+          if (endOfStream) {
+            return muxerStarted;
+          }
+        }
+      }
+    } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+      Log.w(TAG, "Error encoding HEIC postview " + file.getAbsolutePath() + ": " + e);
+      return false;
+    } finally {
+      if (muxer != null) {
+        try {
+          if (muxerStarted) {
+            muxer.stop();
+          }
+        } catch (IllegalStateException e) {
+          Log.w(TAG, "Error finishing HEIC postview " + file.getAbsolutePath() + ": " + e);
+        }
+        muxer.release();
+      }
+      if (codec != null) {
+        try {
+          // Back to the configured state, ready for the next image.
+          codec.stop();
+        } catch (IllegalStateException e) {
+          releaseCodec();
+        }
+      }
+    }
+  }
+
+  /**
+   * Copies a tightly packed NV21 image, downscaled by an integer factor, into a YUV_420_888 image
+   * of whatever plane layout the encoder asked for.
+   */
+  private static void fillImage(
+      Image dst, ByteBuffer luma, ByteBuffer chroma, int srcWidth, int scale) {
+    Image.Plane[] planes = dst.getPlanes();
+    ByteBuffer y = planes[0].getBuffer();
+    ByteBuffer u = planes[1].getBuffer();
+    ByteBuffer v = planes[2].getBuffer();
+    final int width = dst.getWidth();
+    final int height = dst.getHeight();
+    final int yRowStride = planes[0].getRowStride();
+    final int yPixelStride = planes[0].getPixelStride();
+
+    ByteBuffer src = luma.duplicate();
+    ByteBuffer dstRow = y.duplicate();
+    for (int row = 0; row < height; row++) {
+      int srcRowStart = row * scale * srcWidth;
+      int dstRowStart = row * yRowStride;
+      if (scale == 1 && yPixelStride == 1) {
+        src.limit(srcRowStart + width).position(srcRowStart);
+        dstRow.position(dstRowStart);
+        dstRow.put(src);
+      } else {
+        for (int col = 0; col < width; col++) {
+          y.put(dstRowStart + col * yPixelStride, luma.get(srcRowStart + col * scale));
+        }
+      }
+    }
+
+    // NV21 chroma rows are VUVU..., one pair per 2x2 block of pixels.
+    final int uRowStride = planes[1].getRowStride();
+    final int uPixelStride = planes[1].getPixelStride();
+    final int vRowStride = planes[2].getRowStride();
+    final int vPixelStride = planes[2].getPixelStride();
+    for (int row = 0; row < height / 2; row++) {
+      int srcRowStart = row * scale * srcWidth;
+      for (int col = 0; col < width / 2; col++) {
+        int srcIndex = srcRowStart + col * scale * 2;
+        v.put(row * vRowStride + col * vPixelStride, chroma.get(srcIndex));
+        u.put(row * uRowStride + col * uPixelStride, chroma.get(srcIndex + 1));
+      }
+    }
+  }
+
+  private boolean encodeJpeg(
+      ByteBuffer luma, ByteBuffer chroma, int srcWidth, int width, int height, File file) {
+    int lumaBytes = width * height;
+    int size = lumaBytes + width * (height / 2);
+    if (jpegInput == null || jpegInput.length != size) {
+      jpegInput = new byte[size];
+    }
+    if (mode.scale == 1) {
+      luma.get(jpegInput, 0, lumaBytes);
+      chroma.get(jpegInput, lumaBytes, size - lumaBytes);
+    } else {
+      for (int row = 0; row < height; row++) {
+        int srcRowStart = row * mode.scale * srcWidth;
+        for (int col = 0; col < width; col++) {
+          jpegInput[row * width + col] = luma.get(srcRowStart + col * mode.scale);
+        }
+      }
+      for (int row = 0; row < height / 2; row++) {
+        int srcRowStart = row * mode.scale * srcWidth;
+        for (int col = 0; col < width; col += 2) {
+          int src = srcRowStart + col * mode.scale;
+          jpegInput[lumaBytes + row * width + col] = chroma.get(src);
+          jpegInput[lumaBytes + row * width + col + 1] = chroma.get(src + 1);
+        }
+      }
+    }
+    YuvImage yuvImage = new YuvImage(jpegInput, ImageFormat.NV21, width, height, null);
+    try (FileOutputStream outputStream = new FileOutputStream(file)) {
+      boolean ok = yuvImage.compressToJpeg(new Rect(0, 0, width, height), quality, outputStream);
+      if (!ok) {
+        // TODO(jiawen,samansari): Toast.
+        Log.w(TAG, "Error saving JPEG to: " + file.getAbsolutePath());
+      }
+      return ok;
+    } catch (IOException e) {
+      // TODO(jiawen,samansari): Toast.
+      Log.w(TAG, "Error saving JPEG image to: " + file.getAbsolutePath());
+      return false;
+    }
+  }
+
+  private void releaseCodec() {
+    if (codec != null) {
+      codec.release();
+      codec = null;
+      codecFormat = null;
+    }
+  }
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync;
+
+import android.graphics.Rect;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.params.BlackLevelPattern;
+import android.hardware.camera2.params.ColorSpaceTransform;
+import android.hardware.camera2.params.LensShadingMap;
+import android.hardware.camera2.params.RggbChannelVector;
+import android.os.Build;
+import android.util.Pair;
+import android.util.Rational;
+import android.util.Size;
+
+/**
+ * Text metadata written next to each .raw10 still, holding what a DNG writer needs that is not in
+ * the pixels: the CFA layout, black and white levels, color calibration of the sensor and the
+ * per-frame white balance, noise model and exposure.
+ *
+ * <p>One "key: value" per line like the other metadata files, where matrices are 9 rationals in
+ * row-major order and lists are separated by spaces. Keys the camera does not report are left
+ * out. The per-camera part never changes, so it is formatted once by {@link #describeCamera} and
+ * only {@link #describeResult} runs per still.
+ */
+final class RawSidecar {
+  private static final String[] CFA_ARRANGEMENTS = {"RGGB", "GRBG", "GBRG", "BGGR", "RGB"};
+
+  private RawSidecar() {}
+
+  /** Describes a tightly packed RAW10 buffer, 4 pixels in 5 bytes, of width by height pixels. */
+  static String describeLayout(int width, int height, int rowBytes, int bufferBytes) {
+    StringBuilder sb = new StringBuilder();
+    appendLine(sb, "width", width);
+    appendLine(sb, "height", height);
+    appendLine(sb, "pixel_format", "RAW10 (tightly packed)");
+    appendLine(sb, "row_bytes", rowBytes);
+    appendLine(sb, "buffer_bytes", bufferBytes);
+    return sb.toString();
+  }
+
+  /** Describes the sensor, the part of the metadata shared by all stills of a camera. */
+  static String describeCamera(CameraCharacteristics characteristics) {
+    StringBuilder sb = new StringBuilder();
+    appendLine(sb, "unique_camera_model", Build.MANUFACTURER + " " + Build.MODEL);
+    Integer cfa = characteristics.get(CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT);
+    if (cfa != null) {
+      appendLine(sb, "cfa_pattern", cfa < CFA_ARRANGEMENTS.length ? CFA_ARRANGEMENTS[cfa] : cfa);
+    }
+    appendLine(
+        sb, "white_level", characteristics.get(CameraCharacteristics.SENSOR_INFO_WHITE_LEVEL));
+    BlackLevelPattern blackLevel =
+        characteristics.get(CameraCharacteristics.SENSOR_BLACK_LEVEL_PATTERN);
+    if (blackLevel != null) {
+      // In the order of the CFA pattern: top left, top right, bottom left, bottom right.
+      appendLine(
+          sb,
+          "black_level_pattern",
+          String.format(
+              "%d %d %d %d",
+              blackLevel.getOffsetForIndex(0, 0),
+              blackLevel.getOffsetForIndex(1, 0),
+              blackLevel.getOffsetForIndex(0, 1),
+              blackLevel.getOffsetForIndex(1, 1)));
+    }
+    Size pixelArray = characteristics.get(CameraCharacteristics.SENSOR_INFO_PIXEL_ARRAY_SIZE);
+    if (pixelArray != null) {
+      appendLine(sb, "pixel_array_size", pixelArray.getWidth() + " " + pixelArray.getHeight());
+    }
+    appendRect(
+        sb,
+        "pre_correction_active_array",
+        characteristics.get(CameraCharacteristics.SENSOR_INFO_PRE_CORRECTION_ACTIVE_ARRAY_SIZE));
+    appendRect(
+        sb,
+        "active_array",
+        characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE));
+    appendLine(
+        sb, "sensor_orientation", characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION));
+
+    appendLine(
+        sb,
+        "calibration_illuminant1",
+        characteristics.get(CameraCharacteristics.SENSOR_REFERENCE_ILLUMINANT1));
+    appendLine(
+        sb,
+        "calibration_illuminant2",
+        characteristics.get(CameraCharacteristics.SENSOR_REFERENCE_ILLUMINANT2));
+    appendTransform(
+        sb, "color_matrix1", characteristics.get(CameraCharacteristics.SENSOR_COLOR_TRANSFORM1));
+    appendTransform(
+        sb, "color_matrix2", characteristics.get(CameraCharacteristics.SENSOR_COLOR_TRANSFORM2));
+    appendTransform(
+        sb, "forward_matrix1", characteristics.get(CameraCharacteristics.SENSOR_FORWARD_MATRIX1));
+    appendTransform(
+        sb, "forward_matrix2", characteristics.get(CameraCharacteristics.SENSOR_FORWARD_MATRIX2));
+    appendTransform(
+        sb,
+        "camera_calibration1",
+        characteristics.get(CameraCharacteristics.SENSOR_CALIBRATION_TRANSFORM1));
+    appendTransform(
+        sb,
+        "camera_calibration2",
+        characteristics.get(CameraCharacteristics.SENSOR_CALIBRATION_TRANSFORM2));
+    return sb.toString();
+  }
+
+  /** Describes the capture of one still. */
+  static String describeResult(CaptureResult result) {
+    StringBuilder sb = new StringBuilder();
+    appendLine(sb, "exposure_time_ns", result.get(CaptureResult.SENSOR_EXPOSURE_TIME));
+    appendLine(sb, "frame_duration_ns", result.get(CaptureResult.SENSOR_FRAME_DURATION));
+    appendLine(sb, "iso", result.get(CaptureResult.SENSOR_SENSITIVITY));
+    appendLine(sb, "aperture", result.get(CaptureResult.LENS_APERTURE));
+    appendLine(sb, "focal_length_mm", result.get(CaptureResult.LENS_FOCAL_LENGTH));
+    appendLine(sb, "focus_distance_diopters", result.get(CaptureResult.LENS_FOCUS_DISTANCE));
+
+    appendList(sb, "as_shot_neutral", result.get(CaptureResult.SENSOR_NEUTRAL_COLOR_POINT));
+    appendFloats(sb, "dynamic_black_level", result.get(CaptureResult.SENSOR_DYNAMIC_BLACK_LEVEL));
+    appendLine(sb, "dynamic_white_level", result.get(CaptureResult.SENSOR_DYNAMIC_WHITE_LEVEL));
+    appendLine(sb, "green_split", result.get(CaptureResult.SENSOR_GREEN_SPLIT));
+    Pair<Double, Double>[] noiseProfile = result.get(CaptureResult.SENSOR_NOISE_PROFILE);
+    if (noiseProfile != null) {
+      // Scale and offset of the noise variance for each CFA channel.
+      StringBuilder values = new StringBuilder();
+      for (Pair<Double, Double> channel : noiseProfile) {
+        values.append(values.length() == 0 ? "" : " ").append(channel.first);
+        values.append(' ').append(channel.second);
+      }
+      appendLine(sb, "noise_profile", values);
+    }
+
+    RggbChannelVector gains = result.get(CaptureResult.COLOR_CORRECTION_GAINS);
+    if (gains != null) {
+      appendLine(
+          sb,
+          "color_correction_gains",
+          String.format(
+              "%s %s %s %s",
+              gains.getRed(), gains.getGreenEven(), gains.getGreenOdd(), gains.getBlue()));
+    }
+    appendTransform(
+        sb, "color_correction_transform", result.get(CaptureResult.COLOR_CORRECTION_TRANSFORM));
+
+    // Only reported while the lens shading map mode of the request is on.
+    LensShadingMap shadingMap = result.get(CaptureResult.STATISTICS_LENS_SHADING_CORRECTION_MAP);
+    if (shadingMap != null) {
+      float[] gainFactors = new float[shadingMap.getGainFactorCount()];
+      shadingMap.copyGainFactors(gainFactors, 0);
+      appendLine(
+          sb,
+          "lens_shading_map_size",
+          shadingMap.getColumnCount() + " " + shadingMap.getRowCount());
+      // RGGB gains per map cell, row by row.
+      appendFloats(sb, "lens_shading_map", gainFactors);
+    }
+    return sb.toString();
+  }
+
+  private static void appendLine(StringBuilder sb, String key, Object value) {
+    if (value != null) {
+      sb.append(key).append(": ").append(value).append('\n');
+    }
+  }
+
+  private static void appendList(StringBuilder sb, String key, Object[] values) {
+    if (values == null) {
+      return;
+    }
+    StringBuilder joined = new StringBuilder();
+    for (Object value : values) {
+      joined.append(joined.length() == 0 ? "" : " ").append(value);
+    }
+    appendLine(sb, key, joined);
+  }
+
+  private static void appendFloats(StringBuilder sb, String key, float[] values) {
+    if (values == null) {
+      return;
+    }
+    StringBuilder joined = new StringBuilder();
+    for (float value : values) {
+      joined.append(joined.length() == 0 ? "" : " ").append(value);
+    }
+    appendLine(sb, key, joined);
+  }
+
+  private static void appendRect(StringBuilder sb, String key, Rect rect) {
+    if (rect != null) {
+      appendLine(
+          sb, key, String.format("%d %d %d %d", rect.left, rect.top, rect.right, rect.bottom));
+    }
+  }
+
+  /** Appends the 9 rationals of a 3x3 transform, row by row. */
+  private static void appendTransform(StringBuilder sb, String key, ColorSpaceTransform transform) {
+    if (transform == null) {
+      return;
+    }
+    Rational[] elements = new Rational[9];
+    for (int row = 0; row < 3; row++) {
+      for (int column = 0; column < 3; column++) {
+        elements[row * 3 + column] = transform.getElement(column, row);
+      }
+    }
+    appendList(sb, key, elements);
+  }
+}
@@ -16,13 +16,13 @@
 
 package com.googleresearch.capturesync;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
-
+import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.graphics.ImageFormat;
-import android.graphics.Rect;
-import android.graphics.YuvImage;
+import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CaptureResult;
 import android.media.Image;
+import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.provider.MediaStore;
@@ -30,305 +30,380 @@ import android.util.Log;
 import com.googleresearch.capturesync.softwaresync.TimeDomainConverter;
 import com.googleresearch.capturesync.softwaresync.TimeUtils;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.text.SimpleDateFormat;
 import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
 
-/** A class that processes frames on its own thread. */
+/**
+ * A class that processes frames on its own thread.
+ *
+ * <p>Stills flow through two bounded queues: at most {@link Constants#MAX_PENDING_STILL_FRAMES}
+ * frames wait to be copied, and at most {@link Constants#MAX_QUEUED_STILLS} copies wait to be
+ * written. A full write queue stalls copying, which fills the frame queue, and callers check
+ * {@link #hasCapacity()} before taking a frame, so a burst faster than the disk backs up into the
+ * recent frames rather than into ImageReader buffers or memory. The back-pressure along the way
+ * is counted and summarized by {@link #logStats}.
+ */
 public class ResultProcessor {
   private static final String TAG = "ResultProcessor";
 
+  /** Plane copies kept for reuse, the luma, chroma and RAW10 planes of every queued still. */
+  private static final int MAX_POOLED_BUFFERS = 3 * Constants.MAX_QUEUED_STILLS;
+
   private final Handler handler;
+  private final StillWriter stillWriter;
+
+  /** Frames submitted and not yet copied. */
+  private final AtomicInteger pendingFrames = new AtomicInteger();
+
+  // Back-pressure metrics since the last resetStats().
+  private volatile int maxPendingFramesSeen;
+  private final AtomicInteger heldBackCount = new AtomicInteger();
+  private final AtomicInteger copiedCount = new AtomicInteger();
   private final MainActivity context;
   private final TimeDomainConverter timeDomainConverter;
 
-  // Copy from constants... make it a user parameter.
-  private final boolean saveJpgFromNv21;
-  private final int jpgQuality;
+  /** Null if no postviews are saved. */
+  private final PostviewEncoder postviewEncoder;
 
+  /** The per-camera part of the RAW10 sidecars, see {@link RawSidecar}. */
+  private final String rawCameraMetadata;
+
+  /**
+   * @param cameraCharacteristics of the camera the stills come from, described in RAW sidecars.
+   * @param postviewMode how to encode the postview of each still for the gallery, or null to save
+   *     only the raw image.
+   * @param postviewQuality 0 to 100, the quality of the postviews.
+   */
   public ResultProcessor(
       TimeDomainConverter timeDomainConverter,
       MainActivity context,
-      boolean saveJpgFromYuv,
-      int jpgQuality) {
+      CameraCharacteristics cameraCharacteristics,
+      PostviewEncoder.Mode postviewMode,
+      int postviewQuality) {
     this.timeDomainConverter = timeDomainConverter;
     this.context = context;
-    this.saveJpgFromNv21 = saveJpgFromYuv;
-    this.jpgQuality = jpgQuality;
+    this.rawCameraMetadata = RawSidecar.describeCamera(cameraCharacteristics);
+    this.postviewEncoder =
+        postviewMode == null
+            ? null
+            : new PostviewEncoder(postviewMode, postviewQuality, this::onPostviewEncoded);
 
     HandlerThread thread = new HandlerThread(TAG);
     thread.start();
     // getLooper() blocks until the thread started and its Looper is prepared.
     handler = new Handler(thread.getLooper());
+    stillWriter =
+        new StillWriter(Constants.MAX_QUEUED_STILLS, MAX_POOLED_BUFFERS, this::onStillWritten);
   }
 
-  /** Submit a request to process a Frame on the processor's thread. */
-    public void submitProcessRequest(Frame capture, String filename) {
-    handler.post(() -> processStill(capture, filename));
+  /**
+   * Returns whether fewer than {@link Constants#MAX_PENDING_STILL_FRAMES} frames are waiting. If
+   * not, the caller should keep its frame and try again later, see {@link #onStillHeldBack()}.
+   */
+  public boolean hasCapacity() {
+    return pendingFrames.get() < Constants.MAX_PENDING_STILL_FRAMES;
   }
 
-  private void processStill(final Frame frame, String basename) {
-    File captureDir = new File(context.getExternalFilesDir(null), basename);
-    if (!captureDir.exists() && !captureDir.mkdirs()) {
-      throw new IllegalStateException("Could not create dir " + captureDir);
-    }
-    // Timestamp in local domain ie. time since boot in nanoseconds.
-    long localSensorTimestampNs = frame.result.get(CaptureResult.SENSOR_TIMESTAMP);
-    // Timestamp in leader domain ie. synchronized time on leader device in nanoseconds.
-    long syncedSensorTimestampNs =
-        timeDomainConverter.leaderTimeForLocalTimeNs(localSensorTimestampNs);
-    // Use syncedSensorTimestamp in milliseconds for filenames.
-    long syncedSensorTimestampMs = (long) TimeUtils.nanosToMillis(syncedSensorTimestampNs);
-    String filenameTimeString = getTimeStr(syncedSensorTimestampMs);
-
-    // Save timing metadata.
-    {
-      String metaFilename = "sync_metadata_" + filenameTimeString + ".txt";
-      File metaFile = new File(captureDir, metaFilename);
-      saveTimingMetadata(syncedSensorTimestampNs, localSensorTimestampNs, metaFile);
-    }
-
-    for (int i = 0; i < frame.output.images.size(); ++i) {
-      Image image = frame.output.images.get(i);
-      int format = image.getFormat();
-      if (format == ImageFormat.RAW_SENSOR) {
-        // Note: while using DngCreator works, streaming RAW_SENSOR is too slow.
-        Log.e(TAG, "RAW_SENSOR saving not implemented!");
-      } else if (format == ImageFormat.JPEG) {
-        Log.e(TAG, "JPEG saving not implemented!");
-      } else if (format == ImageFormat.RAW10) {
-        Log.e(TAG, "RAW10 saving not implemented!");
-      } else if (format == ImageFormat.YUV_420_888) {
-        // TODO(jiawen): We know that on Pixel devices, the YUV format is NV21, consisting of a luma
-        // plane and separate interleaved chroma planes.
-        //     <--w-->
-        // ^   YYYYYYYZZZ
-        // |   YYYYYYYZZZ
-        // h   ...
-        // |   ...
-        // v   YYYYYYYZZZ
-        //
-        //     <--w-->
-        // ^   VUVUVUVZZZZZ
-        // |   VUVUVUVZZZZZ
-        // h/2 ...
-        // |   ...
-        // v   VUVUVUVZZZZZ
-        //
-        // where Z is padding bytes.
-        //
-        // TODO(jiawen): To determine if it's NV12 vs NV21, we need JNI to compare the buffer start
-        // addresses.
-
-        context.notifyCapturing("img_" + filenameTimeString);
-
-        // Save NV21 raw + metadata.
-        {
-          File nv21File = new File(captureDir, "img_" + filenameTimeString + ".nv21");
-          File nv21MetadataFile =
-              new File(captureDir, "nv21_metadata_" + filenameTimeString + ".txt");
-          saveNv21(image, nv21File, nv21MetadataFile);
-          context.notifyCaptured(nv21File.getName());
-        }
-
-        // TODO(samansari): Make save JPEG a checkbox in the UI.
-        if (saveJpgFromNv21) {
-          YuvImage yuvImage = yuvImageFromNv21Image(image);
-          File jpgFile = new File(captureDir, "img_" + filenameTimeString + ".jpg");
+  /** Counts a still whose frame could not be submitted because there was no capacity. */
+  public void onStillHeldBack() {
+    heldBackCount.incrementAndGet();
+  }
 
-          // Push saving JPEG onto queue to let the frame close faster, necessary for some devices.
-          handler.post(() -> saveJpg(yuvImage, jpgFile));
-        }
-      } else {
-        Log.e(TAG, String.format("Cannot save unsupported image format: %d", image.getFormat()));
-      }
+  /** Submit a request to process a Frame on the processor's thread. */
+  public void submitProcessRequest(Frame capture, String filename) {
+    int pending = pendingFrames.incrementAndGet();
+    if (pending > maxPendingFramesSeen) {
+      maxPendingFramesSeen = pending;
     }
-
-    frame.close();
+    handler.post(() -> processStill(capture, filename));
   }
 
-  private static boolean saveNv21(Image yuvImage, File nv21File, File nv21metadataFile) {
-    long t0 = System.nanoTime();
+  /** Clears the back-pressure metrics, ex. at the start of a burst. */
+  public void resetStats() {
+    maxPendingFramesSeen = pendingFrames.get();
+    heldBackCount.set(0);
+    copiedCount.set(0);
+    stillWriter.resetStats();
+  }
 
-    Image.Plane[] planes = yuvImage.getPlanes();
-    Image.Plane luma = planes[0];
-    Image.Plane chromaU = planes[1];
-    Image.Plane chromaV = planes[2];
+  /** Logs the back-pressure metrics since the last {@link #resetStats()}. */
+  public void logStats(String label) {
+    Log.i(
+        TAG,
+        String.format(
+            "%s: %d copied, %d written, %d failed. Pending frames max %d/%d, held back %d times."
+                + " Write queue max %d/%d, copy blocked %d times for %.3f ms.",
+            label,
+            copiedCount.get(),
+            stillWriter.writtenCount(),
+            stillWriter.failedCount(),
+            maxPendingFramesSeen,
+            Constants.MAX_PENDING_STILL_FRAMES,
+            heldBackCount.get(),
+            stillWriter.maxQueuedStills(),
+            Constants.MAX_QUEUED_STILLS,
+            stillWriter.blockedCount(),
+            stillWriter.blockedNs() * 1e-6f));
+  }
 
-    int width = yuvImage.getWidth();
-    int height = yuvImage.getHeight();
+  private void processStill(final Frame frame, String basename) {
+    File captureDir;
+    String filenameTimeString;
+    StillWriter.Still still = null;
+    ByteBuffer[] postviewPlanes = null;
+    int postviewWidth = 0;
+    int postviewHeight = 0;
+    // Hand the images back to their readers once copied, before writing any file. A failed copy
+    // also gives back the still's slot in the write queue and its buffers.
+    try {
+      captureDir = new File(context.getExternalFilesDir(null), basename);
+      if (!captureDir.exists() && !captureDir.mkdirs()) {
+        throw new IllegalStateException("Could not create dir " + captureDir);
+      }
+      // Timestamp in local domain ie. time since boot in nanoseconds.
+      long localSensorTimestampNs = frame.result.get(CaptureResult.SENSOR_TIMESTAMP);
+      // Timestamp in leader domain ie. synchronized time on leader device in nanoseconds.
+      long syncedSensorTimestampNs =
+          timeDomainConverter.leaderTimeForLocalTimeNs(localSensorTimestampNs);
+      // Use syncedSensorTimestamp in milliseconds for filenames.
+      long syncedSensorTimestampMs = (long) TimeUtils.nanosToMillis(syncedSensorTimestampNs);
+      filenameTimeString = getTimeStr(syncedSensorTimestampMs);
 
-    // Luma should be tightly packed.
-    assert (luma.getPixelStride() == 1);
-    // TODO(jiawen): Consider relaxing this restriction and write row by row, skipping the row
-    // padding. This requires looping over the luma plane one row at a time.
-    assert (luma.getRowStride() == width);
+      try {
+        still = stillWriter.begin("img_" + filenameTimeString);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt(); // Restore the interrupted status.
+        return;
+      }
 
-    assert (chromaU.getPixelStride() == 2);
-    assert (chromaU.getRowStride() == width);
-    assert (chromaV.getPixelStride() == 2);
-    assert (chromaV.getRowStride() == width);
-
-    ByteBuffer lumaBuffer = luma.getBuffer().duplicate();
-    ByteBuffer chromaUBuffer = chromaU.getBuffer().duplicate();
-    ByteBuffer chromaVBuffer = chromaV.getBuffer().duplicate();
-
-    assert (lumaBuffer.capacity() == width * height);
-    assert (chromaUBuffer.capacity() + 1 == width * height / 2);
-    assert (chromaVBuffer.capacity() + 1 == width * height / 2);
-
-    {
-      // Set chromaUBuffer's position to the last byte. slice() will make a new buffer that's a
-      // view
-      // of the last byte. Send that last byte to FileChannel.
-      ByteBuffer chromaUBufferCopy = chromaUBuffer.duplicate();
-      chromaUBufferCopy.position(chromaUBufferCopy.capacity() - 1);
-      ByteBuffer lastChromaUByte = chromaUBufferCopy.slice();
-
-      try (FileOutputStream outputStream = new FileOutputStream(nv21File)) {
-        FileChannel outputChannel = outputStream.getChannel();
-
-        outputChannel.write(lumaBuffer);
-        // The V buffer contains the U data since it's arranged VUVUVUVU...
-        // It contains all but the last U byte.
-        outputChannel.write(chromaVBuffer);
-        outputChannel.write(lastChromaUByte);
-      } catch (IOException e) {
-        // TODO(jiawen,samansari): Toast.
-        Log.w(TAG, "Error saving YUV image to: " + nv21File.getAbsolutePath());
-        return false;
+      // Save timing metadata.
+      {
+        String metaFilename = "sync_metadata_" + filenameTimeString + ".txt";
+        File metaFile = new File(captureDir, metaFilename);
+        still.addTextFile(
+            metaFile, timingMetadata(syncedSensorTimestampNs, localSensorTimestampNs));
       }
-    }
 
-    // Save NV21 metadata.
-    {
-      try (PrintWriter writer = new PrintWriter(nv21metadataFile, UTF_8.name())) {
-        writer.printf("width: %d\n", width);
-        writer.printf("height: %d\n", height);
-        writer.printf("pixel_format: NV21 (tightly packed)\n");
-        writer.printf("luma_buffer_bytes: %d\n", lumaBuffer.capacity());
-        writer.printf("interleaved_chroma_buffers_bytes: %d\n", chromaVBuffer.capacity() + 1);
-      } catch (IOException e) {
-        // TODO(jiawen,samansari): Toast.
-        Log.w(TAG, "Error saving metadata to: " + nv21metadataFile.getAbsolutePath());
-        return false;
+      context.notifyCapturing("img_" + filenameTimeString);
+
+      for (int i = 0; i < frame.output.images.size(); ++i) {
+        Image image = frame.output.images.get(i);
+        if (image == null) {
+          continue; // Not a target of this request, or dropped by the HAL.
+        }
+        int format = image.getFormat();
+        if (format == ImageFormat.RAW_SENSOR) {
+          // Note: while using DngCreator works, streaming RAW_SENSOR is too slow.
+          Log.e(TAG, "RAW_SENSOR saving not implemented!");
+        } else if (format == ImageFormat.JPEG) {
+          Log.e(TAG, "JPEG saving not implemented!");
+        } else if (format == ImageFormat.RAW10) {
+          // Saved as the packed sensor data plus a sidecar, DNGs are built offline. Unlike
+          // DngCreator this costs one plane copy, no unpacking or encoding.
+          File raw10File = new File(captureDir, "raw_" + filenameTimeString + ".raw10");
+          File raw10MetadataFile =
+              new File(captureDir, "raw10_metadata_" + filenameTimeString + ".txt");
+          addRaw10(image, frame.result, still, raw10File, raw10MetadataFile);
+        } else if (format == ImageFormat.YUV_420_888) {
+          // TODO(jiawen): We know that on Pixel devices, the YUV format is NV21, consisting of a
+          // luma plane and separate interleaved chroma planes.
+          //     <--w-->
+          // ^   YYYYYYYZZZ
+          // |   YYYYYYYZZZ
+          // h   ...
+          // |   ...
+          // v   YYYYYYYZZZ
+          //
+          //     <--w-->
+          // ^   VUVUVUVZZZZZ
+          // |   VUVUVUVZZZZZ
+          // h/2 ...
+          // |   ...
+          // v   VUVUVUVZZZZZ
+          //
+          // where Z is padding bytes.
+          //
+          // TODO(jiawen): To determine if it's NV12 vs NV21, we need JNI to compare the buffer
+          // start addresses.
+
+          // Save NV21 raw + metadata.
+          {
+            File nv21File = new File(captureDir, "img_" + filenameTimeString + ".nv21");
+            File nv21MetadataFile =
+                new File(captureDir, "nv21_metadata_" + filenameTimeString + ".txt");
+            ByteBuffer[] nv21Planes = addNv21(image, still, nv21File, nv21MetadataFile);
+
+            // TODO(samansari): Make saving the postview a checkbox in the UI.
+            if (postviewEncoder != null) {
+              // Encoded from the same copies, no need to hold on to the image.
+              postviewPlanes = nv21Planes;
+              postviewWidth = image.getWidth();
+              postviewHeight = image.getHeight();
+            }
+          }
+        } else {
+          Log.e(TAG, String.format("Cannot save unsupported image format: %d", image.getFormat()));
+        }
       }
+    } catch (RuntimeException e) {
+      Log.e(TAG, "Unable to save still from " + basename + ": " + e);
+      if (still != null) {
+        stillWriter.abort(still);
+      }
+      return;
+    } finally {
+      frame.close();
+      pendingFrames.decrementAndGet();
     }
+    copiedCount.incrementAndGet();
+    still.setCopied();
+    if (postviewPlanes != null) {
+      final StillWriter.Still postviewSource = still;
+      postviewSource.retain();
+      postviewEncoder.submit(
+          postviewPlanes[0],
+          postviewPlanes[1],
+          postviewWidth,
+          postviewHeight,
+          captureDir,
+          "img_" + filenameTimeString,
+          () -> stillWriter.release(postviewSource));
+    }
+    stillWriter.submit(still);
+  }
 
-    long t1 = System.nanoTime();
-    Log.i(TAG, String.format("saveNv21 took %f ms.", (t1 - t0) * 1e-6f));
-
-    return true;
+  private void onStillWritten(StillWriter.Still still, boolean success) {
+    if (success) {
+      context.notifyCaptured(still.name());
+    }
   }
 
-  private boolean saveJpg(YuvImage yuvImage, File jpgFile) {
-    // Save JPEG and also add to the photos gallery by inserting into MediaStore.
-    long t0 = System.nanoTime();
-    if (saveJpg(yuvImage, jpgQuality, jpgFile)) {
-      try {
-        MediaStore.Images.Media.insertImage(
-            context.getContentResolver(),
-            jpgFile.getAbsolutePath(),
-            jpgFile.getName(),
-            "Full path: " + jpgFile.getAbsolutePath());
-      } catch (FileNotFoundException e) {
-        Log.e(TAG, "Unable to find file to link in media store.");
-      }
-      long t1 = System.nanoTime();
-      Log.i(TAG, String.format("Saving JPG to disk took %f ms.", (t1 - t0) * 1e-6f));
-      context.notifyCaptured(jpgFile.getName());
-      return true;
+  private void onPostviewEncoded(File file, String mimeType, boolean success) {
+    if (success) {
+      addToGallery(file, mimeType);
+      context.notifyCaptured(file.getName());
     }
-    return false;
   }
 
-  private static boolean saveJpg(YuvImage src, int quality, File file) {
-    long t0 = System.nanoTime();
-    try (FileOutputStream outputStream = new FileOutputStream(file)) {
-      Rect rect = new Rect(0, 0, src.getWidth(), src.getHeight());
-      boolean ok = src.compressToJpeg(rect, quality, outputStream);
-      if (!ok) {
-        // TODO(jiawen,samansari): Toast.
-        Log.w(TAG, "Error saving JPEG to: " + file.getAbsolutePath());
-      }
-      long t1 = System.nanoTime();
-      Log.i(TAG, String.format("saveJpg took %f ms.", (t1 - t0) * 1e-6f));
-      return ok;
+  /** Adds a copy of an image file to the photos gallery by inserting it into MediaStore. */
+  private void addToGallery(File file, String mimeType) {
+    ContentResolver resolver = context.getContentResolver();
+    ContentValues values = new ContentValues();
+    values.put(MediaStore.Images.Media.DISPLAY_NAME, file.getName());
+    values.put(MediaStore.Images.Media.MIME_TYPE, mimeType);
+    values.put(MediaStore.Images.Media.DESCRIPTION, "Full path: " + file.getAbsolutePath());
+    Uri uri = resolver.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
+    if (uri == null) {
+      Log.e(TAG, "Unable to add " + file.getName() + " to the media store.");
+      return;
+    }
+    try (OutputStream outputStream = resolver.openOutputStream(uri)) {
+      Files.copy(file.toPath(), outputStream);
     } catch (IOException e) {
-      // TODO(jiawen,samansari): Toast.
-      Log.w(TAG, "Error saving JPEG image to: " + file.getAbsolutePath());
-      return false;
+      Log.e(TAG, "Unable to copy " + file.getName() + " to the media store: " + e);
+      resolver.delete(uri, null, null);
     }
   }
 
-  // Utility method to convert an NV21 android.media.Image to an android.graphics.YuvImage. The
-  // latter is just a wrapper around a byte[] but can compress to JPEG.
-  private static YuvImage yuvImageFromNv21Image(Image src) {
-    long t0 = System.nanoTime();
-
-    Image.Plane[] planes = src.getPlanes();
+  /**
+   * Copies an NV21 image into two pooled buffers, the luma plane and the interleaved chroma plane,
+   * and adds them to still as one tightly packed .nv21 file plus its metadata file.
+   *
+   * @return the luma and chroma copies.
+   */
+  private ByteBuffer[] addNv21(
+      Image yuvImage, StillWriter.Still still, File nv21File, File nv21metadataFile) {
+    Image.Plane[] planes = yuvImage.getPlanes();
     Image.Plane luma = planes[0];
     Image.Plane chromaU = planes[1];
     Image.Plane chromaV = planes[2];
 
-    int width = src.getWidth();
-    int height = src.getHeight();
+    int width = yuvImage.getWidth();
+    int height = yuvImage.getHeight();
+    int chromaHeight = height / 2;
 
-    // Luma should be tightly packed and chroma should be tightly interleaved.
+    // Luma should be tightly packed and chroma should be tightly interleaved. Row padding, if any,
+    // is dropped by the copy.
     assert (luma.getPixelStride() == 1);
     assert (chromaU.getPixelStride() == 2);
     assert (chromaV.getPixelStride() == 2);
 
-    // Duplicate (shallow copy) each buffer so as to not disturb the underlying position/limit/etc.
-    ByteBuffer lumaBuffer = luma.getBuffer().duplicate();
-    ByteBuffer chromaUBuffer = chromaU.getBuffer().duplicate();
-    ByteBuffer chromaVBuffer = chromaV.getBuffer().duplicate();
-
-    // Yes, y, v, then u since it's NV21.
-    int[] yvuRowStrides =
-        new int[] {luma.getRowStride(), chromaV.getRowStride(), chromaU.getRowStride()};
-
-    // Compute bytes needed to concatenate all the (potentially padded) YUV data in one buffer.
-    int lumaBytes = height * luma.getRowStride();
-    int interleavedChromaBytes = (height / 2) * chromaV.getRowStride();
-    assert (lumaBuffer.capacity() == lumaBytes);
-    int packedYVUBytes = lumaBytes + interleavedChromaBytes;
-    byte[] packedYVU = new byte[packedYVUBytes];
-
-    int packedYVUOffset = 0;
-    lumaBuffer.get(
-        packedYVU,
-        packedYVUOffset,
-        lumaBuffer.capacity()); // packedYVU[0..lumaBytes) <-- lumaBuffer.
-    packedYVUOffset += lumaBuffer.capacity();
-
-    // Write the V buffer. Since the V buffer contains U data, write all of V and then check how
-    // much U data is left over. There be at most 1 byte plus padding.
-    chromaVBuffer.get(packedYVU, packedYVUOffset, /*length=*/ chromaVBuffer.capacity());
-    packedYVUOffset += chromaVBuffer.capacity();
-
-    // Write the remaining portion of the U buffer (if any).
-    int chromaUPosition = chromaVBuffer.capacity() - 1;
-    if (chromaUPosition < chromaUBuffer.capacity()) {
-      chromaUBuffer.position(chromaUPosition);
-
-      int remainingBytes = Math.min(chromaUBuffer.remaining(), lumaBytes - packedYVUOffset);
-
-      if (remainingBytes > 0) {
-        chromaUBuffer.get(packedYVU, packedYVUOffset, remainingBytes);
-      }
+    ByteBuffer lumaCopy = stillWriter.acquireBuffer(width * height);
+    copyRows(luma.getBuffer(), luma.getRowStride(), width, height, lumaCopy);
+    lumaCopy.flip();
+
+    // The V buffer contains the U data since it's arranged VUVUVUVU...
+    // It contains all but the last U byte.
+    ByteBuffer chromaCopy = stillWriter.acquireBuffer(width * chromaHeight);
+    copyRows(chromaV.getBuffer(), chromaV.getRowStride(), width, chromaHeight, chromaCopy);
+    if (chromaCopy.hasRemaining()) {
+      int lastChromaUIndex =
+          (chromaHeight - 1) * chromaU.getRowStride() + (width / 2 - 1) * chromaU.getPixelStride();
+      chromaCopy.put(chromaU.getBuffer().get(lastChromaUIndex));
     }
-    YuvImage yuvImage = new YuvImage(packedYVU, ImageFormat.NV21, width, height, yvuRowStrides);
+    chromaCopy.flip();
+
+    String metadata =
+        String.format("width: %d\n", width)
+            + String.format("height: %d\n", height)
+            + "pixel_format: NV21 (tightly packed)\n"
+            + String.format("luma_buffer_bytes: %d\n", lumaCopy.remaining())
+            + String.format("interleaved_chroma_buffers_bytes: %d\n", chromaCopy.remaining());
+
+    still.addFile(nv21File, lumaCopy, chromaCopy).addTextFile(nv21metadataFile, metadata);
+    return new ByteBuffer[] {lumaCopy, chromaCopy};
+  }
 
-    long t1 = System.nanoTime();
-    Log.i(TAG, String.format("yuvImageFromNv212Image took %f ms.", (t1 - t0) * 1e-6f));
+  /**
+   * Copies a RAW10 image into a pooled buffer and adds it to still as one tightly packed .raw10
+   * file, 4 pixels in 5 bytes, plus its {@link RawSidecar} metadata file.
+   */
+  private void addRaw10(
+      Image rawImage,
+      CaptureResult result,
+      StillWriter.Still still,
+      File raw10File,
+      File raw10MetadataFile) {
+    Image.Plane plane = rawImage.getPlanes()[0];
+    int width = rawImage.getWidth();
+    int height = rawImage.getHeight();
+    int rowBytes = width * 10 / 8;
+
+    // A single bulk copy unless the rows are padded, the Image goes back to its reader right after.
+    ByteBuffer rawCopy = stillWriter.acquireBuffer(rowBytes * height);
+    copyRows(plane.getBuffer(), plane.getRowStride(), rowBytes, height, rawCopy);
+    rawCopy.flip();
+
+    String metadata =
+        RawSidecar.describeLayout(width, height, rowBytes, rawCopy.remaining())
+            + rawCameraMetadata
+            + RawSidecar.describeResult(result);
+    still.addFile(raw10File, rawCopy).addTextFile(raw10MetadataFile, metadata);
+  }
 
-    return yuvImage;
+  /**
+   * Appends rows of rowBytes bytes each, rowStride bytes apart in plane, to dest. The last row may
+   * be cut short by the end of the plane.
+   */
+  private static void copyRows(
+      ByteBuffer plane, int rowStride, int rowBytes, int rows, ByteBuffer dest) {
+    // Duplicate (shallow copy) the buffer so as to not disturb the underlying position/limit/etc.
+    ByteBuffer src = plane.duplicate();
+    if (rowStride == rowBytes) {
+      src.limit(Math.min(src.capacity(), rows * rowBytes)).position(0);
+      dest.put(src);
+      return;
+    }
+    for (int row = 0; row < rows; row++) {
+      int rowStart = row * rowStride;
+      src.limit(Math.min(src.capacity(), rowStart + rowBytes)).position(rowStart);
+      dest.put(src);
+    }
   }
 
   private static String getTimeStr(long timestampMs) {
@@ -337,16 +412,8 @@ public class ResultProcessor {
     return simpleDateFormat.format(timestampMs);
   }
 
-  // Save metadata.
-  private static void saveTimingMetadata(
-      long leaderSensorTimestamp, long localSensorTimestamp, File metaFile) {
-    try (PrintWriter writer = new PrintWriter(metaFile, UTF_8.name())) {
-      writer.printf("leader_sensor_timestamp_ns: %d\n", leaderSensorTimestamp);
-      writer.printf("local_sensor_timestamp_ns: %d\n", localSensorTimestamp);
-    } catch (IOException e) {
-      Log.e(TAG, "Error saving timing metadata to: " + metaFile.getAbsolutePath());
-      return;
-    }
-    Log.v(TAG, "Saved timing metadata to: " + metaFile.getAbsolutePath());
+  private static String timingMetadata(long leaderSensorTimestamp, long localSensorTimestamp) {
+    return String.format("leader_sensor_timestamp_ns: %d\n", leaderSensorTimestamp)
+        + String.format("local_sensor_timestamp_ns: %d\n", localSensorTimestamp);
   }
 }
@@ -19,13 +19,19 @@ package com.googleresearch.capturesync;
 import android.content.Context;
 import android.graphics.Color;
 import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.Settings.Secure;
 import android.util.Log;
 import android.widget.TextView;
 
+import com.googleresearch.capturesync.softwaresync.BinaryRpcCallback;
 import com.googleresearch.capturesync.softwaresync.ClientInfo;
+import com.googleresearch.capturesync.softwaresync.LeaderTimeScheduler;
 import com.googleresearch.capturesync.softwaresync.NetworkHelpers;
 import com.googleresearch.capturesync.softwaresync.RpcCallback;
+import com.googleresearch.capturesync.softwaresync.RpcDelivery;
+import com.googleresearch.capturesync.softwaresync.RpcFrame;
 import com.googleresearch.capturesync.softwaresync.SoftwareSyncBase;
 import com.googleresearch.capturesync.softwaresync.SoftwareSyncClient;
 import com.googleresearch.capturesync.softwaresync.SoftwareSyncLeader;
@@ -37,9 +43,12 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 // Note : Needs Network permissions.
 
@@ -56,22 +65,47 @@ public class SoftwareSyncController implements Closeable {
     /* Tell devices to save the frame at the requested trigger time. */
     public static final int METHOD_SET_TRIGGER_TIME = 200_000;
 
-    /* Tell devices to phase align. */
+    /*
+     * Tell devices to phase align to the leader, payload (long referenceTimestampNs, long periodNs)
+     * of a recent leader frame. An empty payload aligns to the configured goal phase instead.
+     */
     public static final int METHOD_DO_PHASE_ALIGN = 200_001;
     /* Tell devices to set manual exposure and white balance to the requested values. */
     public static final int METHOD_SET_2A = 200_002;
+    /* Tell devices to start recording at a leader time, payload (long startTimeNs, String prefix). */
     public static final int METHOD_START_RECORDING = 200_003;
+    /* Tell devices to stop recording at a leader time, payload (long stopTimeNs). */
     public static final int METHOD_STOP_RECORDING = 200_004;
     public static final int METHOD_UPLOAD_RECORDED_FILES = 200_005;
     public static final int METHOD_EMPTY_DEVICE = 200_006;
     public static final int METHOD_PREFIX_LIST = 200_007;
     public static final int METHOD_STOP_FOCUS = 200_009;
     public static final int METHOD_START_FOCUS = 200_010;
+    /*
+     * Client to leader report of a finished phase alignment, payload (String name, int aligned,
+     * long residualNs, int steps).
+     */
+    public static final int METHOD_PHASE_ALIGN_REPORT = 200_011;
+    /*
+     * Tell devices to save a burst of frames, payload (long startTimeNs, long intervalNs, int count)
+     * in leader time.
+     */
+    public static final int METHOD_CAPTURE_BURST = 200_012;
 
 
 
+    /* Difference between the leader's and a client's frame period worth a warning when aligning. */
+    private static final long PERIOD_MISMATCH_WARNING_NS = 1_000;
+
     private long upcomingTriggerTimeNs;
 
+    /** Latest phase alignment result of each client by name, collected by the leader. */
+    private final Map<String, PhaseAlignReport> phaseAlignReports = new ConcurrentHashMap<>();
+
+    /** Executes commands at the leader time they were scheduled for. */
+    private volatile LeaderTimeScheduler commandScheduler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
     /**
      * Constructor passed in with: - context - For setting UI elements and triggering captures. -
      * captureButton - The button used to send at trigger request by the leader. - statusView - The
@@ -148,16 +182,6 @@ public class SoftwareSyncController implements Closeable {
                 });
 
 
-        sharedRpcs.put(
-                METHOD_DO_PHASE_ALIGN,
-                payload -> {
-                    // Note: One could pass the current phase of the leader and have all clients sync to
-                    // that, reducing potential error, though special attention should be placed to phases
-                    // close to the zero or period boundary.
-                    Log.v(TAG, "Starting phase alignment.");
-                    phaseAlignController.startAlign();
-                });
-
 
         sharedRpcs.put(
                 METHOD_SET_2A,
@@ -173,6 +197,70 @@ public class SoftwareSyncController implements Closeable {
                     context.set2aAndUpdatePreview(sensorExposureNs, sensorSensitivity);
                 });
 
+        // Recording start and stop carry the leader time to execute at, as binary fields. The
+        // leader runs them through the same path via its local dispatch of the broadcast.
+        Map<Integer, BinaryRpcCallback> sharedBinaryRpcs = new HashMap<>();
+        sharedBinaryRpcs.put(
+                METHOD_START_RECORDING,
+                payload -> {
+                    long startTimeNs = RpcFrame.getLong(payload);
+                    String prefixText = RpcFrame.getString(payload);
+                    Log.v(TAG, "Starting video at leader time " + startTimeNs);
+                    runOnUiThreadAt(
+                            startTimeNs, "Start recording", () -> context.startVideo(false, prefixText));
+                });
+        sharedBinaryRpcs.put(
+                METHOD_STOP_RECORDING,
+                payload -> {
+                    long stopTimeNs = RpcFrame.getLong(payload);
+                    Log.v(TAG, "Stopping video at leader time " + stopTimeNs);
+                    runOnUiThreadAt(
+                            stopTimeNs,
+                            "Stop recording",
+                            () -> {
+                                context.stopVideo();
+                                context.startPreview();
+                            });
+                });
+
+        sharedBinaryRpcs.put(
+                METHOD_CAPTURE_BURST,
+                payload -> {
+                    long startTimeNs = RpcFrame.getLong(payload);
+                    long intervalNs = RpcFrame.getLong(payload);
+                    int count = RpcFrame.getInt(payload);
+                    Log.v(TAG, String.format("Burst of %d frames at leader time %d", count, startTimeNs));
+                    context.setUpcomingBurst(startTimeNs, intervalNs, count);
+                });
+
+        sharedBinaryRpcs.put(
+                METHOD_DO_PHASE_ALIGN,
+                payload -> {
+                    if (isLeader) {
+                        // The leader's own frames are the reference, nothing to align.
+                        return;
+                    }
+                    if (RpcFrame.isEmpty(payload)) {
+                        Log.v(TAG, "Starting phase alignment to the configured goal.");
+                        phaseAlignController.startAlign(this::sendPhaseAlignReport);
+                        return;
+                    }
+                    long referenceTimestampNs = RpcFrame.getLong(payload);
+                    long leaderPeriodNs = RpcFrame.getLong(payload);
+                    long periodNs = phaseAlignController.getPeriodNs();
+                    if (Math.abs(leaderPeriodNs - periodNs) > PERIOD_MISMATCH_WARNING_NS) {
+                        // Phases then drift apart again after aligning.
+                        Log.w(
+                                TAG,
+                                String.format(
+                                        "Frame period %,d ns differs from the leader's %,d ns.",
+                                        periodNs, leaderPeriodNs));
+                    }
+                    Log.v(TAG, "Starting phase alignment to leader frame " + referenceTimestampNs);
+                    phaseAlignController.startAlignTo(
+                            referenceTimestampNs, this::sendPhaseAlignReport);
+                });
+
         if (isLeader) {
             // Leader.
             long initTimeNs = TimeUtils.millisToNanos(System.currentTimeMillis());
@@ -182,7 +270,15 @@ public class SoftwareSyncController implements Closeable {
             leaderRpcs.put(SyncConstants.METHOD_MSG_REMOVED_CLIENT, payload -> updateClientsUI());
             leaderRpcs.put(SyncConstants.METHOD_MSG_SYNCING, payload -> updateClientsUI());
             leaderRpcs.put(SyncConstants.METHOD_MSG_OFFSET_UPDATED, payload -> updateClientsUI());
-            softwareSync = new SoftwareSyncLeader(name, initTimeNs, localAddress, leaderRpcs);
+            Map<Integer, BinaryRpcCallback> leaderBinaryRpcs = new HashMap<>(sharedBinaryRpcs);
+            leaderBinaryRpcs.put(METHOD_PHASE_ALIGN_REPORT, this::onPhaseAlignReport);
+            SoftwareSyncLeader leader =
+                    new SoftwareSyncLeader(
+                            name, initTimeNs, localAddress, leaderRpcs, leaderBinaryRpcs);
+            if (Constants.USE_BROADCAST_RPC) {
+                enableBroadcastRpc(leader, localAddress);
+            }
+            softwareSync = leader;
         } else {
             // Client.
             Map<Integer, RpcCallback> clientRpcs = new HashMap<>(sharedRpcs);
@@ -213,26 +309,6 @@ public class SoftwareSyncController implements Closeable {
                         );
                     });
 
-            clientRpcs.put(
-                    METHOD_START_RECORDING,
-                    payload -> {
-                        Log.v(TAG, "Starting video client");
-                        context.runOnUiThread(
-                                () -> context.startVideo(false, payload)
-                        );
-                    });
-
-            clientRpcs.put(
-                    METHOD_STOP_RECORDING,
-                    payload -> {
-                        Log.v(TAG, "Stopping video client");
-                        context.runOnUiThread(
-                                ()->{
-                                    context.stopVideo();
-                                    context.startPreview();
-                                }
-                        );
-                    });
             clientRpcs.put(
                     METHOD_UPLOAD_RECORDED_FILES,
                     payload -> {
@@ -277,8 +353,11 @@ public class SoftwareSyncController implements Closeable {
                                                     String.format(
                                                             "Client %s\n-Synced to Leader %s",
                                                             softwareSync.getName(), softwareSync.getLeaderAddress()))));
-            softwareSync = new SoftwareSyncClient(name, localAddress, leaderAddress, clientRpcs);
+            softwareSync =
+                    new SoftwareSyncClient(
+                            name, localAddress, leaderAddress, clientRpcs, sharedBinaryRpcs);
         }
+        commandScheduler = new LeaderTimeScheduler(softwareSync);
 
         if (isLeader) {
             context.runOnUiThread(
@@ -295,6 +374,134 @@ public class SoftwareSyncController implements Closeable {
         }
     }
 
+    /**
+     * Runs the action on the UI thread at the given leader time, ahead of other pending UI work,
+     * and logs how far from the target time it actually started on this device.
+     */
+    private void runOnUiThreadAt(long leaderTimeNs, String command, Runnable action) {
+        LeaderTimeScheduler scheduler = commandScheduler;
+        if (scheduler == null) {
+            Log.w(TAG, command + " received before SoftwareSync was ready, skipping.");
+            return;
+        }
+        scheduler.schedule(
+                leaderTimeNs,
+                () ->
+                        mainHandler.postAtFrontOfQueue(
+                                () -> {
+                                    long skewNs = softwareSync.getLeaderTimeNs() - leaderTimeNs;
+                                    Log.i(
+                                            TAG,
+                                            String.format(
+                                                    "%s on %s: skew %,d us from leader time %,d",
+                                                    command, softwareSync.getName(), skewNs / 1_000, leaderTimeNs));
+                                    action.run();
+                                }));
+    }
+
+    /**
+     * Leader only: asks all clients to align their phase to the latest frame of the leader and
+     * clears the previous alignment reports.
+     *
+     * @return false if the leader has no frame to align to yet.
+     */
+    public boolean broadcastPhaseAlign() {
+        SoftwareSyncLeader leader = (SoftwareSyncLeader) softwareSync;
+        long referenceTimestampNs = phaseAlignController.getLatestTimestampNs();
+        if (referenceTimestampNs == 0) {
+            Log.w(TAG, "No leader frame to align to yet.");
+            return false;
+        }
+        phaseAlignReports.clear();
+        updateClientsUI();
+        leader.broadcastRpc(
+                leader.obtainRpcFrame(METHOD_DO_PHASE_ALIGN)
+                        .putLong(referenceTimestampNs)
+                        .putLong(phaseAlignController.getPeriodNs()));
+        return true;
+    }
+
+    /**
+     * Leader only: asks all devices, including this one, to save count frames intervalNs apart,
+     * starting shortly in the future so the command reaches every client in time.
+     *
+     * @param intervalNs time between frames, or 0 for every frame at the current frame period.
+     */
+    public CompletableFuture<RpcDelivery> broadcastBurst(long intervalNs, int count) {
+        SoftwareSyncLeader leader = (SoftwareSyncLeader) softwareSync;
+        if (intervalNs <= 0) {
+            intervalNs = phaseAlignController.getPeriodNs();
+        }
+        long startTimeNs = leader.getLeaderTimeNs() + Constants.RECORDING_COMMAND_DELAY_NS;
+        return leader.broadcastRpc(
+                leader.obtainRpcFrame(METHOD_CAPTURE_BURST)
+                        .putLong(startTimeNs)
+                        .putLong(intervalNs)
+                        .putInt(count));
+    }
+
+    /** Client side: reports the result of an alignment to the leader. */
+    private void sendPhaseAlignReport(boolean aligned, long residualNs, int steps) {
+        SoftwareSyncBase sync = softwareSync;
+        if (sync == null) {
+            return;
+        }
+        sync.sendReliableRpc(
+                sync.obtainRpcFrame(METHOD_PHASE_ALIGN_REPORT)
+                        .putString(sync.getName())
+                        .putInt(aligned ? 1 : 0)
+                        .putLong(residualNs)
+                        .putInt(steps),
+                sync.getLeaderAddress());
+    }
+
+    /** Leader side: records a client's alignment result and logs the rig-wide state. */
+    private void onPhaseAlignReport(ByteBuffer payload) {
+        String clientName = RpcFrame.getString(payload);
+        boolean aligned = RpcFrame.getInt(payload) != 0;
+        long residualNs = RpcFrame.getLong(payload);
+        int steps = RpcFrame.getInt(payload);
+        PhaseAlignReport report = new PhaseAlignReport(aligned, residualNs, steps);
+        phaseAlignReports.put(clientName, report);
+
+        int alignedCount = 0;
+        long worstResidualNs = 0;
+        for (PhaseAlignReport r : phaseAlignReports.values()) {
+            if (r.aligned) {
+                alignedCount++;
+            }
+            worstResidualNs = Math.max(worstResidualNs, Math.abs(r.residualNs));
+        }
+        Log.i(
+                TAG,
+                String.format(
+                        "Phase align report from %s: %s, residual %,d us after %d steps. Rig: %d"
+                                + " of %d reports aligned, worst residual %,d us.",
+                        clientName,
+                        report.aligned ? "aligned" : "not aligned",
+                        report.residualNs / 1_000,
+                        report.steps,
+                        alignedCount,
+                        phaseAlignReports.size(),
+                        worstResidualNs / 1_000));
+        updateClientsUI();
+    }
+
+    /** Switches the leader to subnet broadcast RPCs if the local interface has a broadcast address. */
+    private static void enableBroadcastRpc(SoftwareSyncLeader leader, InetAddress localAddress) {
+        try {
+            InetAddress broadcastAddress = NetworkHelpers.getBroadcastAddress(localAddress);
+            if (broadcastAddress == null) {
+                Log.w(TAG, "No broadcast address for " + localAddress + ", using unicast RPCs.");
+                return;
+            }
+            Log.d(TAG, "Broadcasting RPCs to " + broadcastAddress);
+            leader.enableBroadcastRpc(broadcastAddress);
+        } catch (SocketException e) {
+            Log.w(TAG, "Unable to find broadcast address, using unicast RPCs: " + e);
+        }
+    }
+
     /**
      * Show the number of connected clients on the leader status UI.
      *
@@ -302,21 +509,31 @@ public class SoftwareSyncController implements Closeable {
      */
     private void updateClientsUI() {
         SoftwareSyncLeader leader = ((SoftwareSyncLeader) softwareSync);
-        final int clientCount = leader.getClients().size();
+        // Use one snapshot so the count and the listed clients agree.
+        final Map<InetAddress, ClientInfo> clients = leader.getClients();
         context.runOnUiThread(
                 () -> {
                     StringBuilder msg = new StringBuilder();
                     msg.append(
-                            String.format("Leader %s: %d clients.\n", softwareSync.getName(), clientCount));
-                    for (Entry<InetAddress, ClientInfo> entry : leader.getClients().entrySet()) {
+                            String.format("Leader %s: %d clients.\n", softwareSync.getName(), clients.size()));
+                    for (Entry<InetAddress, ClientInfo> entry : clients.entrySet()) {
                         ClientInfo client = entry.getValue();
                         if (client.syncAccuracy() == 0) {
-                            msg.append(String.format("-Client %s: syncing...\n", client.name()));
+                            msg.append(String.format("-Client %s: syncing...", client.name()));
                         } else {
                             msg.append(
                                     String.format(
-                                            "-Client %s: %.2f ms sync\n", client.name(), client.syncAccuracy() / 1e6));
+                                            "-Client %s: %.2f ms sync", client.name(), client.syncAccuracy() / 1e6));
                         }
+                        PhaseAlignReport report = phaseAlignReports.get(client.name());
+                        if (report != null) {
+                            msg.append(
+                                    String.format(
+                                            ", phase %+.3f ms%s",
+                                            report.residualNs / 1e6,
+                                            report.aligned ? "" : " (not aligned)"));
+                        }
+                        msg.append('\n');
                     }
                     statusView.setText(msg.toString());
                 });
@@ -325,6 +542,12 @@ public class SoftwareSyncController implements Closeable {
     @Override
     public void close() {
         Log.w(TAG, "close SoftwareSyncController");
+        LeaderTimeScheduler scheduler = commandScheduler;
+        if (scheduler != null) {
+            // Unpublish first, commands arriving while the scheduler closes are then skipped.
+            commandScheduler = null;
+            scheduler.close();
+        }
         if (softwareSync != null) {
             try {
                 softwareSync.close();
@@ -347,4 +570,17 @@ public class SoftwareSyncController implements Closeable {
     public boolean isLeader() {
         return isLeader;
     }
+
+    /** Result of a client's phase alignment. */
+    private static final class PhaseAlignReport {
+        final boolean aligned;
+        final long residualNs;
+        final int steps;
+
+        PhaseAlignReport(boolean aligned, long residualNs, int steps) {
+            this.aligned = aligned;
+            this.residualNs = residualNs;
+            this.steps = steps;
+        }
+    }
 }
@@ -0,0 +1,276 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes the files of a still from a dedicated I/O thread.
+ *
+ * <p>A still goes through three stages:
+ *
+ * <ol>
+ *   <li>copy: on the processing thread, the image planes are copied once into buffers from {@link
+ *       #acquireBuffer}, after which the camera Image can be closed and returned to its reader.
+ *   <li>queue: the still waits for the I/O thread, behind the stills submitted before it.
+ *   <li>write: every file is written with a single gather write of its buffers through a
+ *       FileChannel, and the buffers go back to the pool once no one else reads them, see {@link
+ *       Still#retain()}.
+ * </ol>
+ *
+ * <p>The duration of each stage is logged per still, so a slow storage device shows up as queueing
+ * rather than as a stalled camera stream. At most maxQueuedStills stills are between {@link #begin}
+ * and the release of their buffers, bounding the memory held by copies. {@link #begin} blocks while the
+ * queue is full, pushing back on the processing thread instead of growing without bound.
+ */
+final class StillWriter {
+  private static final String TAG = "StillWriter";
+
+  /** Called on the I/O thread once every file of a still was written, or failed to. */
+  interface Listener {
+    void onStillWritten(Still still, boolean success);
+  }
+
+  private final DirectBufferPool bufferPool;
+  private final Listener listener;
+  private final ExecutorService ioExecutor =
+      Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, TAG));
+  private final int maxQueuedStills;
+  private final Semaphore queueSlots;
+
+  // Back-pressure metrics since the last resetStats().
+  private volatile int maxQueuedStillsSeen;
+  private final AtomicInteger blockedCount = new AtomicInteger();
+  private final AtomicLong blockedNs = new AtomicLong();
+  private final AtomicInteger writtenCount = new AtomicInteger();
+  private final AtomicInteger failedCount = new AtomicInteger();
+
+  /**
+   * @param maxQueuedStills stills that may be copied and waiting to be written at once.
+   * @param maxPooledBuffers number of plane copies kept for reuse between stills.
+   */
+  StillWriter(int maxQueuedStills, int maxPooledBuffers, Listener listener) {
+    this.maxQueuedStills = maxQueuedStills;
+    this.queueSlots = new Semaphore(maxQueuedStills);
+    this.bufferPool = new DirectBufferPool(maxPooledBuffers);
+    this.listener = listener;
+  }
+
+  /**
+   * Starts a still, waiting for a free slot in the write queue first. Every still begun must be
+   * submitted or aborted.
+   *
+   * @param name name of the still in the latency log.
+   */
+  Still begin(String name) throws InterruptedException {
+    if (!queueSlots.tryAcquire()) {
+      final long t0 = System.nanoTime();
+      queueSlots.acquire();
+      blockedCount.incrementAndGet();
+      blockedNs.addAndGet(System.nanoTime() - t0);
+    }
+    int queued = maxQueuedStills - queueSlots.availablePermits();
+    if (queued > maxQueuedStillsSeen) {
+      maxQueuedStillsSeen = queued;
+    }
+    return new Still(name, System.nanoTime());
+  }
+
+  /** Returns a cleared direct buffer of capacity bytes to copy a plane into. */
+  ByteBuffer acquireBuffer(int capacity) {
+    return bufferPool.acquire(capacity);
+  }
+
+  /**
+   * Drops a still that failed before it could be submitted, counting it as failed and releasing
+   * its buffers and its slot in the queue.
+   */
+  void abort(Still still) {
+    failedCount.incrementAndGet();
+    release(still);
+  }
+
+  /** Queues the files of still for writing, its buffers must not be touched afterwards. */
+  void submit(Still still) {
+    still.submittedNs = System.nanoTime();
+    ioExecutor.execute(() -> write(still));
+  }
+
+  private void write(Still still) {
+    final long writeStartNs = System.nanoTime();
+    boolean success = true;
+    for (int i = 0; i < still.files.size(); i++) {
+      File file = still.files.get(i);
+      ByteBuffer[] contents = still.contents.get(i);
+      try {
+        writeFile(file, contents);
+      } catch (IOException e) {
+        // TODO(jiawen,samansari): Toast.
+        Log.w(TAG, "Error saving " + file.getAbsolutePath() + ": " + e);
+        success = false;
+      }
+    }
+    final long writeEndNs = System.nanoTime();
+
+    Log.i(
+        TAG,
+        String.format(
+            "Still %s: copy %.3f ms, queued %.3f ms, write %.3f ms, total %.3f ms.",
+            still.name,
+            (still.copiedNs - still.startNs) * 1e-6f,
+            (writeStartNs - still.submittedNs) * 1e-6f,
+            (writeEndNs - writeStartNs) * 1e-6f,
+            (writeEndNs - still.startNs) * 1e-6f));
+    (success ? writtenCount : failedCount).incrementAndGet();
+    release(still);
+    listener.onStillWritten(still, success);
+  }
+
+  /**
+   * Drops a reference to the buffers of still taken by {@link Still#retain()}. The last one returns
+   * them to the pool and frees the still's slot in the queue.
+   */
+  void release(Still still) {
+    if (still.references.decrementAndGet() > 0) {
+      return;
+    }
+    for (ByteBuffer[] contents : still.contents) {
+      for (ByteBuffer buffer : contents) {
+        bufferPool.release(buffer);
+      }
+    }
+    queueSlots.release();
+  }
+
+  private static void writeFile(File file, ByteBuffer[] contents) throws IOException {
+    try (FileChannel channel =
+        FileChannel.open(
+            file.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      long remaining = 0;
+      for (ByteBuffer buffer : contents) {
+        remaining += buffer.remaining();
+      }
+      while (remaining > 0) {
+        remaining -= channel.write(contents);
+      }
+    }
+  }
+
+  /** Number of stills begun and not yet written. */
+  int queuedStills() {
+    return maxQueuedStills - queueSlots.availablePermits();
+  }
+
+  /** Largest {@link #queuedStills} since the last {@link #resetStats}. */
+  int maxQueuedStills() {
+    return maxQueuedStillsSeen;
+  }
+
+  /** Number of times {@link #begin} had to wait for the queue. */
+  int blockedCount() {
+    return blockedCount.get();
+  }
+
+  /** Total time spent waiting in {@link #begin}. */
+  long blockedNs() {
+    return blockedNs.get();
+  }
+
+  int writtenCount() {
+    return writtenCount.get();
+  }
+
+  int failedCount() {
+    return failedCount.get();
+  }
+
+  void resetStats() {
+    maxQueuedStillsSeen = queuedStills();
+    blockedCount.set(0);
+    blockedNs.set(0);
+    writtenCount.set(0);
+    failedCount.set(0);
+  }
+
+  /** The files of one still and the timing of its stages. */
+  static final class Still {
+    private final String name;
+    private final long startNs;
+    private long copiedNs;
+    private long submittedNs;
+    private final List<File> files = new ArrayList<>();
+    private final List<ByteBuffer[]> contents = new ArrayList<>();
+    /** The writer, plus any other reader of the buffers. */
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private Still(String name, long startNs) {
+      this.name = name;
+      this.startNs = startNs;
+      this.copiedNs = startNs;
+    }
+
+    /**
+     * Adds a file holding the remaining bytes of contents, in order. Buffers from {@link
+     * StillWriter#acquireBuffer} are returned to the pool once written.
+     */
+    Still addFile(File file, ByteBuffer... contents) {
+      files.add(file);
+      this.contents.add(contents);
+      return this;
+    }
+
+    /** Adds a small text file. */
+    Still addTextFile(File file, String text) {
+      return addFile(file, ByteBuffer.wrap(text.getBytes(UTF_8)));
+    }
+
+    /**
+     * Keeps the buffers of the still out of the pool after they are written, for another reader
+     * that must call {@link StillWriter#release} once done. Call before {@link
+     * StillWriter#submit}.
+     */
+    void retain() {
+      references.incrementAndGet();
+    }
+
+    /** Marks the end of the copy stage, once the source image is no longer needed. */
+    void setCopied() {
+      copiedNs = System.nanoTime();
+    }
+
+    String name() {
+      return name;
+    }
+  }
+}
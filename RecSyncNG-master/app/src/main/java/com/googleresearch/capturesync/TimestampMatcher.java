@@ -0,0 +1,253 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync;
+
+import java.lang.reflect.Array;
+
+/**
+ * The matching core of {@link ImageMetadataSynchronizer}, independent of the camera2 types so it
+ * can be driven with synthetic timestamps.
+ *
+ * <p>Keeps a queue of pending results and one queue of pending images per reader in primitive
+ * ring buffers, and sweeps them with the rules described in {@link ImageMetadataSynchronizer}.
+ * Timestamps are stored next to the items so they are read once on arrival. Once the queues have
+ * grown to their working size, adding items and matching them does not allocate.
+ *
+ * <p>Not thread safe, the caller must serialize all calls.
+ *
+ * @param <R> result type, e.g. TotalCaptureResult.
+ * @param <I> image type, e.g. Image.
+ */
+final class TimestampMatcher<R, I> {
+
+  /** Receives the outcome of sweeps. Arrays passed in are only valid for the duration of a call. */
+  interface Listener<R, I> {
+    /** An image whose result never arrived was taken off its queue, the listener now owns it. */
+    void onImageDropped(int readerIndex, I image);
+
+    /**
+     * A result was matched with the heads of its target image queues.
+     *
+     * @param result the matched result.
+     * @param images images by reader index. For targets in droppedReaderIndices the image was
+     *     dropped by the HAL and the entry is null, other non-target entries are null as well.
+     * @param droppedReaderIndices the first droppedCount entries are the target readers that had
+     *     no image for this result.
+     * @param droppedCount number of valid entries in droppedReaderIndices.
+     */
+    void onMatched(R result, I[] images, int[] droppedReaderIndices, int droppedCount);
+  }
+
+  private static final int INITIAL_RESULT_CAPACITY = 8;
+
+  private final Listener<R, I> listener;
+
+  // Pending results, a ring buffer growing when full.
+  private Object[] results = new Object[INITIAL_RESULT_CAPACITY];
+  private long[] resultTimestampsNs = new long[INITIAL_RESULT_CAPACITY];
+  private int[][] resultTargets = new int[INITIAL_RESULT_CAPACITY][];
+  private int resultHead;
+  private int resultCount;
+
+  // Pending images, one ring buffer per reader.
+  private final Object[][] images;
+  private final long[][] imageTimestampsNs;
+  private final int[] imageHeads;
+  private final int[] imageCounts;
+
+  // Scratch storage handed to onMatched.
+  private final I[] matchedImages;
+  private final int[] droppedReaderIndices;
+
+  /**
+   * @param imageClass class of the images, used to create the array handed to onMatched.
+   * @param imageCapacities initial queue capacity per reader, e.g. ImageReader.getMaxImages().
+   * @param listener receives matches and dropped images.
+   */
+  @SuppressWarnings("unchecked")
+  TimestampMatcher(Class<I> imageClass, int[] imageCapacities, Listener<R, I> listener) {
+    this.listener = listener;
+    int nReaders = imageCapacities.length;
+    images = new Object[nReaders][];
+    imageTimestampsNs = new long[nReaders][];
+    for (int i = 0; i < nReaders; ++i) {
+      int capacity = Math.max(1, imageCapacities[i]);
+      images[i] = new Object[capacity];
+      imageTimestampsNs[i] = new long[capacity];
+    }
+    imageHeads = new int[nReaders];
+    imageCounts = new int[nReaders];
+    matchedImages = (I[]) Array.newInstance(imageClass, nReaders);
+    droppedReaderIndices = new int[nReaders];
+  }
+
+  /** Adds a result expecting images from the target readers, then sweeps. */
+  void addResult(R result, long timestampNs, int[] targets) {
+    if (resultCount == results.length) {
+      growResults();
+    }
+    int tail = (resultHead + resultCount) % results.length;
+    results[tail] = result;
+    resultTimestampsNs[tail] = timestampNs;
+    resultTargets[tail] = targets;
+    resultCount++;
+    sweep();
+  }
+
+  /** Adds an image from a reader, then sweeps. */
+  void addImage(int readerIndex, I image, long timestampNs) {
+    if (imageCounts[readerIndex] == images[readerIndex].length) {
+      growImages(readerIndex);
+    }
+    Object[] queue = images[readerIndex];
+    int tail = (imageHeads[readerIndex] + imageCounts[readerIndex]) % queue.length;
+    queue[tail] = image;
+    imageTimestampsNs[readerIndex][tail] = timestampNs;
+    imageCounts[readerIndex]++;
+    sweep();
+  }
+
+  /** Number of results waiting for their images. */
+  int pendingResultCount() {
+    return resultCount;
+  }
+
+  /** Number of images of a reader waiting for their result. */
+  int pendingImageCount(int readerIndex) {
+    return imageCounts[readerIndex];
+  }
+
+  /**
+   * Removes all pending items, handing every pending image to onImageDropped and returning the
+   * number of results discarded.
+   */
+  int clear() {
+    for (int readerIndex = 0; readerIndex < images.length; ++readerIndex) {
+      while (imageCounts[readerIndex] > 0) {
+        listener.onImageDropped(readerIndex, pollImage(readerIndex));
+      }
+    }
+    int discarded = resultCount;
+    while (resultCount > 0) {
+      pollResult();
+    }
+    return discarded;
+  }
+
+  /**
+   * Sweeps with the result queue as the master until there is no match: drops images older than
+   * the head result, which means their result was skipped, and matches the head result with its
+   * images once every target queue has an image at or after its timestamp.
+   */
+  private void sweep() {
+    while (resultCount > 0) {
+      final long resultTimestampNs = resultTimestampsNs[resultHead];
+      final int[] targets = resultTargets[resultHead];
+
+      boolean captureResultSkipped;
+      do {
+        for (int readerIndex : targets) {
+          if (imageCounts[readerIndex] == 0) {
+            return; // Still waiting for an image.
+          }
+        }
+        captureResultSkipped = false;
+        for (int readerIndex : targets) {
+          if (resultTimestampNs > headImageTimestampNs(readerIndex)) {
+            // Drop the image corresponding to the skipped result.
+            captureResultSkipped = true;
+            listener.onImageDropped(readerIndex, pollImage(readerIndex));
+          }
+        }
+      } while (captureResultSkipped);
+
+      // All heads are at or after the result timestamp: equal is a match, later means the HAL
+      // dropped the image for this result, which then stays on its queue.
+      int droppedCount = 0;
+      for (int readerIndex : targets) {
+        if (resultTimestampNs < headImageTimestampNs(readerIndex)) {
+          droppedReaderIndices[droppedCount++] = readerIndex;
+        } else {
+          matchedImages[readerIndex] = pollImage(readerIndex);
+        }
+      }
+      R result = pollResult();
+      listener.onMatched(result, matchedImages, droppedReaderIndices, droppedCount);
+      for (int readerIndex : targets) {
+        matchedImages[readerIndex] = null;
+      }
+    }
+  }
+
+  private long headImageTimestampNs(int readerIndex) {
+    return imageTimestampsNs[readerIndex][imageHeads[readerIndex]];
+  }
+
+  @SuppressWarnings("unchecked")
+  private I pollImage(int readerIndex) {
+    Object[] queue = images[readerIndex];
+    int head = imageHeads[readerIndex];
+    I image = (I) queue[head];
+    queue[head] = null;
+    imageHeads[readerIndex] = (head + 1) % queue.length;
+    imageCounts[readerIndex]--;
+    return image;
+  }
+
+  @SuppressWarnings("unchecked")
+  private R pollResult() {
+    R result = (R) results[resultHead];
+    results[resultHead] = null;
+    resultTargets[resultHead] = null;
+    resultHead = (resultHead + 1) % results.length;
+    resultCount--;
+    return result;
+  }
+
+  private void growResults() {
+    int capacity = results.length * 2;
+    Object[] newResults = new Object[capacity];
+    long[] newTimestamps = new long[capacity];
+    int[][] newTargets = new int[capacity][];
+    for (int i = 0; i < resultCount; ++i) {
+      int index = (resultHead + i) % results.length;
+      newResults[i] = results[index];
+      newTimestamps[i] = resultTimestampsNs[index];
+      newTargets[i] = resultTargets[index];
+    }
+    results = newResults;
+    resultTimestampsNs = newTimestamps;
+    resultTargets = newTargets;
+    resultHead = 0;
+  }
+
+  private void growImages(int readerIndex) {
+    Object[] queue = images[readerIndex];
+    long[] timestamps = imageTimestampsNs[readerIndex];
+    int head = imageHeads[readerIndex];
+    int count = imageCounts[readerIndex];
+    Object[] newQueue = new Object[queue.length * 2];
+    long[] newTimestamps = new long[queue.length * 2];
+    for (int i = 0; i < count; ++i) {
+      newQueue[i] = queue[(head + i) % queue.length];
+      newTimestamps[i] = timestamps[(head + i) % queue.length];
+    }
+    images[readerIndex] = newQueue;
+    imageTimestampsNs[readerIndex] = newTimestamps;
+    imageHeads[readerIndex] = 0;
+  }
+}
@@ -0,0 +1,474 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo.CodecCapabilities;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+import com.googleresearch.capturesync.softwaresync.FrameTimestampLog;
+import com.googleresearch.capturesync.softwaresync.TimeDomainConverter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Records the frames the camera sends to a persistent input surface to an H.264 MP4, through
+ * MediaCodec and MediaMuxer.
+ *
+ * <p>Each frame the encoder outputs carries the sensor timestamp of its camera frame. It is
+ * written to the MP4 with that timestamp converted to leader time, and only then logged to the
+ * frame log, together with the capture metadata reported by {@link #onFrameCaptured}. The log
+ * therefore holds exactly the frames of the MP4, in the same order, with the leader time of its
+ * presentation timestamps in microseconds. A frame captured and never encoded is counted as
+ * dropped instead of being logged.
+ *
+ * <p>In the rare case that leader time goes backwards, after a large sync correction, the
+ * presentation timestamp is moved just after the previous one since the muxer requires increasing
+ * timestamps. The frame is then logged with that time and {@link
+ * FrameTimestampLog#FLAG_PTS_ADJUSTED}, so the log still matches the MP4.
+ *
+ * <p>Encoder callbacks run on a dedicated thread, which also drains and finishes a recording after
+ * {@link #stop}. Frames captured but not yet encoded make up the queue depth, which grows when the
+ * encoder cannot keep up with the camera.
+ */
+final class VideoEncoder {
+  private static final String TAG = "VideoEncoder";
+
+  /** Longest wait after {@link #stop} for the encoder to drain the frames already captured. */
+  private static final long DRAIN_TIMEOUT_MS = 2000;
+
+  private static final int I_FRAME_INTERVAL_S = 1;
+
+  private final Surface inputSurface;
+  private final MediaFormat format;
+  private final Handler handler;
+  private final MediaCodec.BufferInfo muxerInfo = new MediaCodec.BufferInfo();
+
+  // Recording state, guarded by this.
+  private MediaCodec codec;
+  private MediaMuxer muxer;
+  private int track = -1;
+  private FrameTimestampLog frameLog;
+  private TimeDomainConverter timeDomainConverter;
+  /** Whether {@link #stop} was called and the encoder is draining. */
+  private boolean stopping;
+  /** Whether {@link #close} was called, the thread quits once the recording finished. */
+  private boolean closeRequested;
+  private long lastPtsUs;
+  /** Frames reported by {@link #onFrameCaptured} and not yet encoded, oldest first. */
+  private final ArrayDeque<CapturedFrame> capturedFrames = new ArrayDeque<>();
+  /** Frames written to the MP4 whose capture was not reported yet, oldest first. */
+  private final ArrayDeque<EncodedFrame> encodedFrames = new ArrayDeque<>();
+
+  // Metrics of the current or last recording.
+  private int encodedCount;
+  private int droppedCount;
+  private int unmatchedCount;
+  private int maxQueueDepth;
+
+  /**
+   * @param inputSurface persistent input surface, from {@link
+   *     MediaCodec#createPersistentInputSurface()}, that the camera renders the frames to.
+   */
+  VideoEncoder(Surface inputSurface, int width, int height, int bitRate, int frameRate) {
+    this.inputSurface = inputSurface;
+    format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, width, height);
+    format.setInteger(MediaFormat.KEY_COLOR_FORMAT, CodecCapabilities.COLOR_FormatSurface);
+    format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+    format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+    format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL_S);
+
+    HandlerThread thread = new HandlerThread(TAG);
+    thread.start();
+    handler = new Handler(thread.getLooper());
+  }
+
+  /**
+   * Binds the input surface to an encoder once, which sizes its buffers, so that a capture session
+   * can be configured with the surface before the first recording.
+   */
+  void prepareSurface() throws IOException {
+    MediaCodec prepared = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+    try {
+      prepared.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+      prepared.setInputSurface(inputSurface);
+    } finally {
+      prepared.release();
+    }
+  }
+
+  /**
+   * Starts encoding the frames rendered to the input surface into a new MP4. Call before the
+   * camera starts sending frames to the surface.
+   *
+   * @param frameLog log of the encoded frames, closed by {@link #stop}.
+   * @param timeDomainConverter to convert the sensor timestamps of the frames to leader time.
+   */
+  synchronized void start(
+      String mp4Path, FrameTimestampLog frameLog, TimeDomainConverter timeDomainConverter)
+      throws IOException {
+    if (codec != null) {
+      if (!stopping) {
+        throw new IllegalStateException("Already recording.");
+      }
+      Log.w(TAG, "Previous video still draining, finishing it without its last frames.");
+      finish();
+    }
+    MediaMuxer newMuxer = new MediaMuxer(mp4Path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    MediaCodec newCodec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+    try {
+      newCodec.setCallback(new EncoderCallback(), handler);
+      newCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+      newCodec.setInputSurface(inputSurface);
+      newCodec.start();
+    } catch (RuntimeException e) {
+      newCodec.release();
+      newMuxer.release();
+      throw new IOException("Unable to start the video encoder: " + e);
+    }
+    codec = newCodec;
+    muxer = newMuxer;
+    track = -1;
+    this.frameLog = frameLog;
+    this.timeDomainConverter = timeDomainConverter;
+    stopping = false;
+    lastPtsUs = Long.MIN_VALUE;
+    capturedFrames.clear();
+    encodedFrames.clear();
+    encodedCount = 0;
+    droppedCount = 0;
+    unmatchedCount = 0;
+    maxQueueDepth = 0;
+  }
+
+  /** Stops the recording if any and the encoder thread, once the recording finished. */
+  void close() {
+    stop();
+    synchronized (this) {
+      closeRequested = true;
+      if (codec != null) {
+        return; // Quit by finish().
+      }
+    }
+    handler.getLooper().quitSafely();
+  }
+
+  synchronized boolean isRecording() {
+    return codec != null && !stopping;
+  }
+
+  /**
+   * Reports the capture result of a frame sent to the input surface, in frame order. Ignored when
+   * not recording.
+   *
+   * @param flags bitwise or of the FrameTimestampLog.FLAG_* constants that apply to the frame.
+   */
+  synchronized void onFrameCaptured(
+      long localTimestampNs,
+      long frameNumber,
+      long exposureTimeNs,
+      long frameDurationNs,
+      long flags) {
+    if (codec == null) {
+      return;
+    }
+    capturedFrames.addLast(
+        new CapturedFrame(
+            localTimestampNs, frameNumber, exposureTimeNs, frameDurationNs, flags));
+    if (capturedFrames.size() > maxQueueDepth) {
+      maxQueueDepth = capturedFrames.size();
+    }
+    matchFrames();
+  }
+
+  /**
+   * Encodes the frames already rendered to the input surface, then finishes the MP4 and closes the
+   * frame log. Returns right away, the encoder thread finishes once the encoder drained or after
+   * {@link #DRAIN_TIMEOUT_MS}, whichever comes first.
+   */
+  synchronized void stop() {
+    if (codec == null || stopping) {
+      return;
+    }
+    stopping = true;
+    final MediaCodec stoppingCodec = codec;
+    try {
+      codec.signalEndOfInputStream();
+    } catch (IllegalStateException e) {
+      Log.e(TAG, "Unable to signal the end of the video: " + e);
+      handler.post(() -> finishIfCurrent(stoppingCodec));
+      return;
+    }
+    handler.postDelayed(
+        () -> {
+          synchronized (this) {
+            if (codec == stoppingCodec) {
+              Log.w(TAG, "Video encoder did not drain in time, the last frames may be missing.");
+              finish();
+            }
+          }
+        },
+        DRAIN_TIMEOUT_MS);
+  }
+
+  /** Finishes the recording of stoppedCodec, unless it finished already. */
+  private synchronized void finishIfCurrent(MediaCodec stoppedCodec) {
+    if (codec == stoppedCodec) {
+      finish();
+    }
+  }
+
+  /** Frames captured and not yet encoded. */
+  synchronized int queueDepth() {
+    return capturedFrames.size();
+  }
+
+  /** Largest {@link #queueDepth} of the current or last recording. */
+  synchronized int maxQueueDepth() {
+    return maxQueueDepth;
+  }
+
+  /** Frames written to the MP4 in the current or last recording. */
+  synchronized int encodedCount() {
+    return encodedCount;
+  }
+
+  /** Frames captured to the input surface that the encoder never output. */
+  synchronized int droppedCount() {
+    return droppedCount;
+  }
+
+  /** Frames written to the MP4 without a capture result, logged with frame number -1. */
+  synchronized int unmatchedCount() {
+    return unmatchedCount;
+  }
+
+  private void onFrameEncoded(ByteBuffer data, MediaCodec.BufferInfo info) {
+    long localTimestampUs = info.presentationTimeUs;
+    // The same conversion gives the presentation timestamp and the logged time of the frame.
+    long leaderTimestampNs = timeDomainConverter.leaderTimeForLocalTimeNs(localTimestampUs * 1000);
+    long ptsUs = leaderTimestampNs / 1000;
+    long flags = 0;
+    if (ptsUs <= lastPtsUs) {
+      // Only after a large sync correction, the muxer requires increasing timestamps. Log the
+      // time actually written so the log matches the MP4.
+      Log.w(
+          TAG,
+          String.format(
+              "Non-increasing leader time %d us after %d us, written as %d us.",
+              ptsUs, lastPtsUs, lastPtsUs + 1));
+      ptsUs = lastPtsUs + 1;
+      leaderTimestampNs = ptsUs * 1000;
+      flags = FrameTimestampLog.FLAG_PTS_ADJUSTED;
+    }
+    lastPtsUs = ptsUs;
+    muxerInfo.set(info.offset, info.size, ptsUs, info.flags);
+    muxer.writeSampleData(track, data, muxerInfo);
+    encodedCount++;
+
+    encodedFrames.addLast(new EncodedFrame(localTimestampUs, leaderTimestampNs, flags));
+    matchFrames();
+  }
+
+  /**
+   * Logs the encoded frames whose capture was reported. A captured frame older than the oldest
+   * encoded one was dropped by the encoder, an encoded frame older than the oldest captured one
+   * has no capture result.
+   */
+  private void matchFrames() {
+    while (!capturedFrames.isEmpty() && !encodedFrames.isEmpty()) {
+      CapturedFrame captured = capturedFrames.peekFirst();
+      EncodedFrame encoded = encodedFrames.peekFirst();
+      // The encoder only keeps microseconds of the sensor timestamp.
+      long capturedUs = captured.localTimestampNs / 1000;
+      if (capturedUs < encoded.localTimestampUs) {
+        capturedFrames.removeFirst();
+        droppedCount++;
+      } else if (capturedUs > encoded.localTimestampUs) {
+        encodedFrames.removeFirst();
+        logUnmatched(encoded);
+      } else {
+        capturedFrames.removeFirst();
+        encodedFrames.removeFirst();
+        // Restore the nanoseconds dropped by the encoder, unless the time was adjusted.
+        long leaderTimestampNs = encoded.leaderTimestampNs;
+        if ((encoded.flags & FrameTimestampLog.FLAG_PTS_ADJUSTED) == 0) {
+          leaderTimestampNs += captured.localTimestampNs - capturedUs * 1000;
+        }
+        logFrame(
+            leaderTimestampNs,
+            captured.localTimestampNs,
+            captured.frameNumber,
+            captured.exposureTimeNs,
+            captured.frameDurationNs,
+            captured.flags | encoded.flags);
+      }
+    }
+  }
+
+  private void logUnmatched(EncodedFrame encoded) {
+    unmatchedCount++;
+    logFrame(
+        encoded.leaderTimestampNs, encoded.localTimestampUs * 1000, -1, 0, 0, encoded.flags);
+  }
+
+  private void logFrame(
+      long leaderTimestampNs,
+      long localTimestampNs,
+      long frameNumber,
+      long exposureTimeNs,
+      long frameDurationNs,
+      long flags) {
+    try {
+      frameLog.logFrame(
+          leaderTimestampNs, localTimestampNs, frameNumber, exposureTimeNs, frameDurationNs, flags);
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to log frame: " + e);
+    }
+  }
+
+  /**
+   * Releases the encoder and the muxer, then logs the frames still waiting for a match. Quits the
+   * encoder thread if {@link #close} was called meanwhile.
+   */
+  private void finish() {
+    try {
+      codec.stop();
+    } catch (IllegalStateException e) {
+      Log.e(TAG, "Unable to stop the video encoder: " + e);
+    }
+    codec.release();
+    codec = null;
+    if (track >= 0) {
+      try {
+        muxer.stop();
+      } catch (IllegalStateException e) {
+        Log.e(TAG, "Unable to finish the video: " + e);
+      }
+    }
+    muxer.release();
+    muxer = null;
+
+    while (!encodedFrames.isEmpty()) {
+      logUnmatched(encodedFrames.removeFirst());
+    }
+    // Captured after the last encoded frame, these reached the surface after the end of stream.
+    capturedFrames.clear();
+    frameLog.close();
+    frameLog = null;
+
+    Log.i(
+        TAG,
+        String.format(
+            "Video finished: %d frames encoded, %d dropped, %d without capture result. Encoder"
+                + " queue max %d frames.",
+            encodedCount, droppedCount, unmatchedCount, maxQueueDepth));
+    if (closeRequested) {
+      handler.getLooper().quitSafely();
+    }
+  }
+
+  private final class EncoderCallback extends MediaCodec.Callback {
+    @Override
+    public void onInputBufferAvailable(MediaCodec mediaCodec, int index) {
+      // Input comes from the surface.
+    }
+
+    @Override
+    public void onOutputBufferAvailable(
+        MediaCodec mediaCodec, int index, MediaCodec.BufferInfo info) {
+      synchronized (VideoEncoder.this) {
+        if (mediaCodec != codec) {
+          return; // Finished already, after a drain timeout.
+        }
+        ByteBuffer data = mediaCodec.getOutputBuffer(index);
+        // The codec config is part of the track format, the muxer must not get it as a sample.
+        if (data != null
+            && info.size > 0
+            && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0
+            && track >= 0) {
+          onFrameEncoded(data, info);
+        }
+        mediaCodec.releaseOutputBuffer(index, false);
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+          // Drained, finish once the callback returned rather than stopping the codec inside it.
+          handler.post(() -> finishIfCurrent(mediaCodec));
+        }
+      }
+    }
+
+    @Override
+    public void onError(MediaCodec mediaCodec, MediaCodec.CodecException e) {
+      Log.e(TAG, "Video encoder error: " + e);
+      synchronized (VideoEncoder.this) {
+        if (mediaCodec == codec && stopping) {
+          // Nothing more will come out of the encoder.
+          handler.post(() -> finishIfCurrent(mediaCodec));
+        }
+      }
+    }
+
+    @Override
+    public void onOutputFormatChanged(MediaCodec mediaCodec, MediaFormat format) {
+      synchronized (VideoEncoder.this) {
+        if (mediaCodec != codec || track >= 0) {
+          return;
+        }
+        track = muxer.addTrack(format);
+        muxer.start();
+      }
+    }
+  }
+
+  private static final class CapturedFrame {
+    final long localTimestampNs;
+    final long frameNumber;
+    final long exposureTimeNs;
+    final long frameDurationNs;
+    final long flags;
+
+    CapturedFrame(
+        long localTimestampNs,
+        long frameNumber,
+        long exposureTimeNs,
+        long frameDurationNs,
+        long flags) {
+      this.localTimestampNs = localTimestampNs;
+      this.frameNumber = frameNumber;
+      this.exposureTimeNs = exposureTimeNs;
+      this.frameDurationNs = frameDurationNs;
+      this.flags = flags;
+    }
+  }
+
+  private static final class EncodedFrame {
+    final long localTimestampUs;
+    final long leaderTimestampNs;
+    final long flags;
+
+    EncodedFrame(long localTimestampUs, long leaderTimestampNs, long flags) {
+      this.localTimestampUs = localTimestampUs;
+      this.leaderTimestampNs = leaderTimestampNs;
+      this.flags = flags;
+    }
+  }
+}
@@ -0,0 +1,34 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary variant of {@link RpcCallback}, called with the typed fields of an {@link RpcFrame}
+ * instead of a decoded String, so handling the RPC does not allocate.
+ */
+public interface BinaryRpcCallback {
+
+  /**
+   * The callback method called when an RPC is received.
+   *
+   * @param payload The typed fields of the RPC, read with the {@code RpcFrame.get*} methods. Only
+   *     valid for the duration of the call.
+   */
+  void call(ByteBuffer payload);
+}
@@ -16,8 +16,6 @@
 
 package com.googleresearch.capturesync.softwaresync;
 
-import android.provider.Settings;
-
 import java.net.InetAddress;
 
 /**
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import android.util.Log;
+
+/**
+ * Tracks the leader_from_local offset of a client over time and fits it with a windowed, weighted
+ * least squares line, so both the offset and the relative clock skew between the devices are
+ * known.
+ *
+ * <p>Each sample is the SNTP offset measured by the leader together with the client local time it
+ * was taken at, and is weighted by the inverse square of its round trip latency. The most recent
+ * {@link SyncConstants#DRIFT_WINDOW_SIZE} samples are kept. Skew is only fitted once the samples
+ * span {@link SyncConstants#DRIFT_MIN_SPAN_NS}, before that the model is the latest offset.
+ *
+ * <p>Not thread safe, samples are expected to be added from the rpc thread. The fitted {@link
+ * Model} is immutable and can be shared freely.
+ */
+final class ClockDriftEstimator {
+  private static final String TAG = "ClockDriftEstimator";
+
+  private final long[] localTimesNs = new long[SyncConstants.DRIFT_WINDOW_SIZE];
+  private final long[] offsetsNs = new long[SyncConstants.DRIFT_WINDOW_SIZE];
+  private final double[] weights = new double[SyncConstants.DRIFT_WINDOW_SIZE];
+  private int size;
+  private int next;
+  private Model model;
+
+  /**
+   * Adds an offset sample and refits the model.
+   *
+   * @param localTimeNs client local time the offset was measured at.
+   * @param leaderFromLocalNs measured offset, leader_time = local_time - leaderFromLocalNs.
+   * @param syncAccuracyNs round trip latency of the measurement.
+   * @return the updated model.
+   */
+  Model addSample(long localTimeNs, long leaderFromLocalNs, long syncAccuracyNs) {
+    if (model != null) {
+      long residualNs = leaderFromLocalNs - model.leaderFromLocalNs(localTimeNs);
+      if (Math.abs(residualNs) > SyncConstants.DRIFT_RESET_THRESHOLD_NS) {
+        // The leader clock domain changed, ex. the leader restarted, older samples are meaningless.
+        Log.w(
+            TAG,
+            String.format("Offset jumped by %,d ns, restarting drift estimation.", residualNs));
+        reset();
+      }
+    }
+
+    long accuracyNs = Math.max(syncAccuracyNs, SyncConstants.MIN_ROUND_TRIP_LATENCY_NS);
+    localTimesNs[next] = localTimeNs;
+    offsetsNs[next] = leaderFromLocalNs;
+    weights[next] = 1.0 / ((double) accuracyNs * accuracyNs);
+    next = (next + 1) % localTimesNs.length;
+    size = Math.min(size + 1, localTimesNs.length);
+
+    model = fit(localTimeNs, leaderFromLocalNs);
+    return model;
+  }
+
+  /** Drops all samples, used when the offset to the leader is no longer continuous. */
+  void reset() {
+    size = 0;
+    next = 0;
+    model = null;
+  }
+
+  /**
+   * Weighted least squares fit of the windowed samples. Values are taken relative to the latest
+   * sample so the sums stay well within double precision.
+   */
+  private Model fit(long latestLocalTimeNs, long latestOffsetNs) {
+    long oldestLocalTimeNs = latestLocalTimeNs;
+    double sumW = 0;
+    double sumX = 0;
+    double sumY = 0;
+    for (int i = 0; i < size; i++) {
+      oldestLocalTimeNs = Math.min(oldestLocalTimeNs, localTimesNs[i]);
+      sumW += weights[i];
+      sumX += weights[i] * (localTimesNs[i] - latestLocalTimeNs);
+      sumY += weights[i] * (offsetsNs[i] - latestOffsetNs);
+    }
+    if (latestLocalTimeNs - oldestLocalTimeNs < SyncConstants.DRIFT_MIN_SPAN_NS) {
+      // Too short a baseline to tell skew apart from measurement noise.
+      return new Model(latestLocalTimeNs, latestOffsetNs, 0);
+    }
+
+    final double meanX = sumX / sumW;
+    final double meanY = sumY / sumW;
+    double sxx = 0;
+    double sxy = 0;
+    for (int i = 0; i < size; i++) {
+      double dx = (localTimesNs[i] - latestLocalTimeNs) - meanX;
+      double dy = (offsetsNs[i] - latestOffsetNs) - meanY;
+      sxx += weights[i] * dx * dx;
+      sxy += weights[i] * dx * dy;
+    }
+    double skew = sxy / sxx;
+    if (Math.abs(skew) > SyncConstants.DRIFT_MAX_SKEW) {
+      Log.w(TAG, String.format("Implausible clock skew %.1f ppm, ignoring skew.", skew * 1e6));
+      return new Model(latestLocalTimeNs, latestOffsetNs, 0);
+    }
+    Log.v(
+        TAG,
+        String.format("Fitted clock skew %.3f ppm over %d samples.", skew * 1e6, size));
+    return new Model(
+        latestLocalTimeNs + Math.round(meanX), latestOffsetNs + Math.round(meanY), skew);
+  }
+
+  /**
+   * Linear model of the leader_from_local offset: offset(t) = offsetAtRefNs + skew * (t - refNs),
+   * with t in the local clock domain.
+   */
+  static final class Model {
+    private final long refLocalTimeNs;
+    private final long leaderFromLocalAtRefNs;
+    private final double skew;
+
+    /** A model with a fixed offset and no skew. */
+    static Model constant(long leaderFromLocalNs) {
+      return new Model(0, leaderFromLocalNs, 0);
+    }
+
+    private Model(long refLocalTimeNs, long leaderFromLocalAtRefNs, double skew) {
+      this.refLocalTimeNs = refLocalTimeNs;
+      this.leaderFromLocalAtRefNs = leaderFromLocalAtRefNs;
+      this.skew = skew;
+    }
+
+    /** Returns the offset to subtract from the given local time to get leader time. */
+    long leaderFromLocalNs(long localTimeNs) {
+      return leaderFromLocalAtRefNs + Math.round(skew * (localTimeNs - refLocalTimeNs));
+    }
+
+    /** Rate of change of the offset, in nanoseconds per local nanosecond. */
+    double skew() {
+      return skew;
+    }
+  }
+}
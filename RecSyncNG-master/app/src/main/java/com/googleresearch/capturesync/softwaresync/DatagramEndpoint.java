@@ -0,0 +1,51 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+
+/**
+ * A bound datagram endpoint, the unit of transport SoftwareSync sends RPCs and SNTP probes over.
+ * On devices it is a UDP socket, see {@link UdpSyncTransport}, but it can be replaced to run the
+ * protocol over a simulated network.
+ *
+ * <p>Sends and receives may happen concurrently on different threads. Implementations follow the
+ * {@link java.net.DatagramSocket} conventions for the packets passed in.
+ */
+public interface DatagramEndpoint extends Closeable {
+
+  /**
+   * Receives one datagram into packet, waiting at most timeoutMs. The payload is truncated to the
+   * packet buffer, and the length, address and port of the packet are set to the received ones.
+   *
+   * @return false if nothing arrived in time.
+   */
+  boolean receive(DatagramPacket packet, int timeoutMs) throws IOException;
+
+  /** Sends the data of packet to its address and port. */
+  void send(DatagramPacket packet) throws IOException;
+
+  /** Allows sending to broadcast addresses. */
+  void setBroadcast(boolean broadcast) throws IOException;
+
+  boolean isClosed();
+
+  @Override
+  void close();
+}
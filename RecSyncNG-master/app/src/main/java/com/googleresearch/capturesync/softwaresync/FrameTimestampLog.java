@@ -0,0 +1,199 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import android.os.Environment;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only binary log of the frames of a recording, one fixed-width record per frame.
+ *
+ * <p>File layout, all values little-endian:
+ *
+ * <pre>
+ *   Header, {@link #HEADER_SIZE} bytes:
+ *     int magic "RSFL", int version, int record size, int reserved.
+ *   Records, {@link #RECORD_SIZE} bytes each:
+ *     long leader timestamp ns, long local sensor timestamp ns, long frame number,
+ *     long exposure time ns, long frame duration ns, long flags.
+ *   Footer, {@link #FOOTER_SIZE} bytes, written by close():
+ *     int magic "RSFE", long record count, int CRC32 of all record bytes.
+ * </pre>
+ *
+ * <p>Records are staged in a preallocated direct buffer and written through a {@link FileChannel}
+ * every {@link #RECORDS_PER_WRITE} frames, so logging a frame does not allocate and rarely
+ * touches the file. If the app dies before close(), the file simply has no footer and readers
+ * keep every complete record, losing at most the frames still staged in the buffer. After a
+ * failed write the log stops: the staged records are dropped, later frames are ignored and no
+ * footer is written.
+ * PythonTools/FrameLogToCSV.py converts a log to the frame timestamp CSV.
+ *
+ * <p>Version 1 records had no flags field.
+ */
+public final class FrameTimestampLog implements AutoCloseable {
+  private static final String TAG = "FrameTimestampLog";
+
+  /** Extension of log files, replacing the ".csv" of the text log. */
+  public static final String FILE_EXTENSION = ".frames";
+
+  static final int HEADER_MAGIC = 0x4C465352; // "RSFL" in little-endian byte order.
+  static final int FOOTER_MAGIC = 0x45465352; // "RSFE" in little-endian byte order.
+  static final int VERSION = 2;
+  static final int HEADER_SIZE = 16;
+  static final int RECORD_SIZE = 6 * Long.BYTES;
+  static final int FOOTER_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+  /**
+   * Flag of the first frame after a phase correction. Frames injected by the correction are not
+   * part of the recording, so the interval before this frame is longer than the period.
+   */
+  public static final long FLAG_AFTER_PHASE_CORRECTION = 1;
+
+  /**
+   * Flag of a frame whose leader time went backwards, after a large sync correction. The MP4 needs
+   * increasing timestamps, so the frame was written and logged 1 us after the previous one.
+   */
+  public static final long FLAG_PTS_ADJUSTED = 2;
+
+  /** Number of records staged before they are written, about a second of frames at 60 fps. */
+  private static final int RECORDS_PER_WRITE = 64;
+
+  private final FileChannel channel;
+  private final ByteBuffer buffer =
+      ByteBuffer.allocateDirect(RECORDS_PER_WRITE * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+  private final CRC32 crc = new CRC32();
+  private long recordCount;
+  private volatile boolean isClosed;
+  /** Set once a write failed, the file then ends at the last complete write. */
+  private boolean failed;
+
+  /**
+   * Creates the log file, truncating any previous one.
+   *
+   * @param dirName directory relative to the external storage root, created if needed.
+   * @param filename name of the log file, conventionally ending with {@link #FILE_EXTENSION}.
+   */
+  public FrameTimestampLog(String dirName, String filename) throws IOException {
+    File sdcard = Environment.getExternalStorageDirectory();
+    Path dir = Files.createDirectories(Paths.get(sdcard.getAbsolutePath(), dirName));
+    channel =
+        FileChannel.open(
+            dir.resolve(filename),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(HEADER_MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(0);
+    header.flip();
+    writeFully(header);
+  }
+
+  public boolean isClosed() {
+    return isClosed;
+  }
+
+  /**
+   * Appends the record of a frame. Does nothing once closed, so a frame delivered after the
+   * recording stopped is dropped rather than failing, nor after a write failed.
+   *
+   * @throws IOException if writing the staged records failed, only reported for the first failure.
+   *
+   * @param flags bitwise or of the FLAG_* constants that apply to the frame.
+   */
+  public synchronized void logFrame(
+      long leaderTimestampNs,
+      long localTimestampNs,
+      long frameNumber,
+      long exposureTimeNs,
+      long frameDurationNs,
+      long flags)
+      throws IOException {
+    if (isClosed || failed) {
+      return;
+    }
+    buffer
+        .putLong(leaderTimestampNs)
+        .putLong(localTimestampNs)
+        .putLong(frameNumber)
+        .putLong(exposureTimeNs)
+        .putLong(frameDurationNs)
+        .putLong(flags);
+    recordCount++;
+    if (!buffer.hasRemaining()) {
+      flushBuffer();
+    }
+  }
+
+  /** Writes the staged records and the footer, then closes the file. */
+  @Override
+  public synchronized void close() {
+    if (isClosed) {
+      return;
+    }
+    isClosed = true;
+    try {
+      if (failed) {
+        return;
+      }
+      flushBuffer();
+      buffer.putInt(FOOTER_MAGIC).putLong(recordCount).putInt((int) crc.getValue());
+      buffer.flip();
+      writeFully(buffer);
+      channel.force(false);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to finish frame log, it will be read without footer: " + e);
+    } finally {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to close frame log: " + e);
+      }
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    buffer.flip();
+    // Checksum the records about to be written, then rewind to write the same bytes.
+    crc.update(buffer);
+    buffer.rewind();
+    try {
+      writeFully(buffer);
+    } catch (IOException e) {
+      failed = true;
+      throw e;
+    } finally {
+      buffer.clear();
+    }
+  }
+
+  private void writeFully(ByteBuffer source) throws IOException {
+    while (source.hasRemaining()) {
+      channel.write(source);
+    }
+  }
+}
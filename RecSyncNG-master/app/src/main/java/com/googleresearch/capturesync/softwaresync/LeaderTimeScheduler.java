@@ -0,0 +1,120 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import android.os.Process;
+import android.util.Log;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs tasks at a given time in the leader clock domain, so commands sent ahead of time by the
+ * leader execute at the same instant on every device regardless of network latency.
+ *
+ * <p>Tasks run one after another on a single high priority thread. The thread sleeps until shortly
+ * before the target time and then busy waits on {@link SoftwareSyncBase#getLeaderTimeNs()} for the
+ * last {@link #SPIN_WINDOW_NS}, avoiding the wake-up jitter of a plain sleep. A task whose target
+ * time already passed runs immediately, tasks still waiting when the scheduler is closed are
+ * skipped.
+ */
+public final class LeaderTimeScheduler implements AutoCloseable {
+  private static final String TAG = "LeaderTimeScheduler";
+
+  /** Time before the target at which the thread stops sleeping and starts busy waiting. */
+  private static final long SPIN_WINDOW_NS = TimeUtils.millisToNanos(2);
+
+  private final SoftwareSyncBase softwareSync;
+  private final ExecutorService executor =
+      Executors.newSingleThreadExecutor(
+          runnable ->
+              new Thread(
+                  () -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY);
+                    runnable.run();
+                  },
+                  TAG));
+
+  public LeaderTimeScheduler(SoftwareSyncBase softwareSync) {
+    this.softwareSync = softwareSync;
+  }
+
+  /**
+   * Runs the task on the scheduler thread once the leader time reaches leaderTimeNs.
+   *
+   * @param leaderTimeNs target time in the leader clock domain, see {@link
+   *     SoftwareSyncBase#getLeaderTimeNs()}.
+   * @param task task to run, it should hand off long running work to keep later tasks on time.
+   *     Skipped if the scheduler is closed.
+   */
+  @SuppressWarnings("FutureReturnValueIgnored")
+  public void schedule(long leaderTimeNs, Runnable task) {
+    try {
+      executor.submit(
+          () -> {
+            if (waitUntil(leaderTimeNs)) {
+              task.run();
+            } else {
+              Log.w(TAG, "Scheduler closed before the scheduled time, skipping task.");
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      Log.w(TAG, "Scheduler closed, skipping task.");
+    }
+  }
+
+  /**
+   * Blocks until the leader time reaches leaderTimeNs.
+   *
+   * @return false if the thread was interrupted before, ex. by {@link #close()}.
+   */
+  private boolean waitUntil(long leaderTimeNs) {
+    long remainingNs = leaderTimeNs - softwareSync.getLeaderTimeNs();
+    if (remainingNs < 0) {
+      Log.w(
+          TAG,
+          String.format("Scheduled time passed %,d us ago, running now.", -remainingNs / 1_000));
+      return !Thread.currentThread().isInterrupted();
+    }
+    while (remainingNs > SPIN_WINDOW_NS) {
+      LockSupport.parkNanos(remainingNs - SPIN_WINDOW_NS);
+      if (Thread.currentThread().isInterrupted()) {
+        return false;
+      }
+      remainingNs = leaderTimeNs - softwareSync.getLeaderTimeNs();
+    }
+    while (softwareSync.getLeaderTimeNs() < leaderTimeNs) {
+      // Busy wait for the last stretch.
+      if (Thread.currentThread().isInterrupted()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+    try {
+      executor.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt(); // Restore the interrupted status.
+    }
+  }
+}
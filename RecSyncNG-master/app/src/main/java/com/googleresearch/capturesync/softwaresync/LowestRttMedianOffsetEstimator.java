@@ -0,0 +1,127 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import java.util.Arrays;
+
+/**
+ * Median of the offsets of the k samples with the lowest round trip latency. Less sensitive than
+ * the min filter to a single sample whose two legs happened to be asymmetric.
+ *
+ * <p>The confidence interval is the 95% interval of the median from the median absolute deviation
+ * of the k offsets. Converges once k samples were collected and the interval is within {@link
+ * SyncConstants#OFFSET_CONFIDENCE_TARGET_NS}.
+ */
+public final class LowestRttMedianOffsetEstimator implements OffsetEstimator {
+  public static final Factory FACTORY = LowestRttMedianOffsetEstimator::new;
+
+  /** Scales the median absolute deviation to a standard deviation for normal errors. */
+  private static final double MAD_TO_SIGMA = 1.4826;
+
+  private final int k;
+  // The k lowest latency samples, unordered.
+  private final long[] offsetsNs;
+  private final long[] latenciesNs;
+  private final long[] clientTimesNs;
+  private int size;
+  /** Scratch space for the medians. */
+  private final long[] sorted;
+
+  public LowestRttMedianOffsetEstimator(int maxSamples, long minRoundTripLatencyNs) {
+    k = SyncConstants.OFFSET_LOWEST_RTT_K;
+    offsetsNs = new long[k];
+    latenciesNs = new long[k];
+    clientTimesNs = new long[k];
+    sorted = new long[k];
+  }
+
+  @Override
+  public void addSample(long offsetNs, long roundTripLatencyNs, long clientTimeNs) {
+    int slot;
+    if (size < k) {
+      slot = size++;
+    } else {
+      // Replace the highest latency sample kept, if the new one is better.
+      slot = 0;
+      for (int i = 1; i < k; i++) {
+        if (latenciesNs[i] > latenciesNs[slot]) {
+          slot = i;
+        }
+      }
+      if (roundTripLatencyNs >= latenciesNs[slot]) {
+        return;
+      }
+    }
+    offsetsNs[slot] = offsetNs;
+    latenciesNs[slot] = roundTripLatencyNs;
+    clientTimesNs[slot] = clientTimeNs;
+  }
+
+  @Override
+  public long currentOffsetNs() {
+    return size == 0 ? 0 : medianOffsetNs();
+  }
+
+  @Override
+  public boolean isConverged() {
+    return size == k
+        && confidenceIntervalNs(medianOffsetNs()) <= SyncConstants.OFFSET_CONFIDENCE_TARGET_NS;
+  }
+
+  @Override
+  public SntpOffsetResponse estimate() {
+    if (size == 0) {
+      return SntpOffsetResponse.create(/*offset=*/ 0, /*syncAccuracy=*/ 0, false);
+    }
+    long medianOffsetNs = medianOffsetNs();
+    // Report the latency and time of the sample closest to the median.
+    int nearest = 0;
+    for (int i = 1; i < size; i++) {
+      long distanceNs = Math.abs(offsetsNs[i] - medianOffsetNs);
+      if (distanceNs < Math.abs(offsetsNs[nearest] - medianOffsetNs)) {
+        nearest = i;
+      }
+    }
+    long confidenceIntervalNs = confidenceIntervalNs(medianOffsetNs);
+    long syncAccuracyNs = Math.min(latenciesNs[nearest], 2 * confidenceIntervalNs);
+    return SntpOffsetResponse.create(
+        medianOffsetNs, syncAccuracyNs, clientTimesNs[nearest], confidenceIntervalNs, true);
+  }
+
+  private long medianOffsetNs() {
+    System.arraycopy(offsetsNs, 0, sorted, 0, size);
+    return median(size);
+  }
+
+  /** 95% confidence half-width of the median, or the best half latency with a single sample. */
+  private long confidenceIntervalNs(long medianOffsetNs) {
+    if (size < 2) {
+      return latenciesNs[0] / 2;
+    }
+    for (int i = 0; i < size; i++) {
+      sorted[i] = Math.abs(offsetsNs[i] - medianOffsetNs);
+    }
+    double sigmaNs = MAD_TO_SIGMA * median(size);
+    return (long) (1.96 * sigmaNs / Math.sqrt(size));
+  }
+
+  /** Median of the first n entries of sorted, which it sorts. */
+  private long median(int n) {
+    Arrays.sort(sorted, 0, n);
+    return n % 2 == 1 ? sorted[n / 2] : (sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+  }
+}
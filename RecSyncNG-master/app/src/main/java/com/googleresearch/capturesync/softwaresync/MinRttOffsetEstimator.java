@@ -0,0 +1,63 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+/**
+ * Min filter: uses the single sample with the lowest round trip latency, whose offset error is
+ * bounded by half of that latency. Converges as soon as one sample is under the precise latency.
+ */
+public final class MinRttOffsetEstimator implements OffsetEstimator {
+  public static final Factory FACTORY = MinRttOffsetEstimator::new;
+
+  private final long minRoundTripLatencyNs;
+  private long bestLatency = Long.MAX_VALUE; // Start with initial high round trip
+  private long bestOffset;
+  private long bestClientTime;
+
+  public MinRttOffsetEstimator(int maxSamples, long minRoundTripLatencyNs) {
+    this.minRoundTripLatencyNs = minRoundTripLatencyNs;
+  }
+
+  @Override
+  public void addSample(long offsetNs, long roundTripLatencyNs, long clientTimeNs) {
+    if (roundTripLatencyNs < bestLatency) {
+      bestOffset = offsetNs;
+      bestLatency = roundTripLatencyNs;
+      bestClientTime = clientTimeNs;
+    }
+  }
+
+  @Override
+  public long currentOffsetNs() {
+    return bestOffset;
+  }
+
+  @Override
+  public boolean isConverged() {
+    // If round trip latency is under minimum round trip latency desired, stop here.
+    return bestLatency < minRoundTripLatencyNs;
+  }
+
+  @Override
+  public SntpOffsetResponse estimate() {
+    if (bestLatency == Long.MAX_VALUE) {
+      return SntpOffsetResponse.create(/*offset=*/ 0, /*syncAccuracy=*/ 0, false);
+    }
+    return SntpOffsetResponse.create(
+        bestOffset, bestLatency, bestClientTime, /*confidenceInterval=*/ bestLatency / 2, true);
+  }
+}
@@ -19,6 +19,7 @@ package com.googleresearch.capturesync.softwaresync;
 import android.net.wifi.WifiManager;
 import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
@@ -81,4 +82,23 @@ public final class NetworkHelpers {
     }
     throw new SocketException("No viable IP Network addresses found.");
   }
+
+  /**
+   * Finds the subnet broadcast address of the network interface with the given local address.
+   *
+   * @return the broadcast address, or null if the interface has none.
+   * @throws SocketException on failure to query the network interfaces.
+   */
+  public static InetAddress getBroadcastAddress(InetAddress localAddress) throws SocketException {
+    NetworkInterface intf = NetworkInterface.getByInetAddress(localAddress);
+    if (intf == null) {
+      return null;
+    }
+    for (InterfaceAddress interfaceAddress : intf.getInterfaceAddresses()) {
+      if (localAddress.equals(interfaceAddress.getAddress())) {
+        return interfaceAddress.getBroadcast();
+      }
+    }
+    return null;
+  }
 }
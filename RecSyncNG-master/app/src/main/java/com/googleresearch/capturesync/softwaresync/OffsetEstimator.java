@@ -0,0 +1,56 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+/**
+ * Estimates the clock offset of a client from the SNTP samples of one synchronization session.
+ *
+ * <p>Each sample carries the offset and round trip latency computed from one probe as described in
+ * {@link SimpleNetworkTimeProtocol}. An offset is only exact if the two network legs took equally
+ * long, its error is bounded by half the round trip latency, so estimators favor low latency
+ * samples. An instance is used for a single session and is not thread safe.
+ */
+public interface OffsetEstimator {
+
+  /** Creates the estimator for a session. */
+  interface Factory {
+    /**
+     * @param maxSamples upper bound on the number of samples the session will add.
+     * @param minRoundTripLatencyNs round trip latency below which a sample is considered precise,
+     *     see {@link SntpSocket#minRoundTripLatencyNs()}.
+     */
+    OffsetEstimator create(int maxSamples, long minRoundTripLatencyNs);
+  }
+
+  /**
+   * Adds the sample of one probe.
+   *
+   * @param offsetNs clock offset (leader - client) measured by the probe.
+   * @param roundTripLatencyNs round trip latency of the probe.
+   * @param clientTimeNs client local time the probe was measured at.
+   */
+  void addSample(long offsetNs, long roundTripLatencyNs, long clientTimeNs);
+
+  /** Returns the current offset estimate, 0 if there are no samples yet. */
+  long currentOffsetNs();
+
+  /** Returns true once the estimate is good enough that probing can stop early. */
+  boolean isConverged();
+
+  /** Returns the estimate from the samples so far, or a failed response if there are none. */
+  SntpOffsetResponse estimate();
+}
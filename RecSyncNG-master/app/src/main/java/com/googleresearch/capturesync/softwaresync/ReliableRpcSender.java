@@ -0,0 +1,202 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import android.util.Log;
+import java.net.InetAddress;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers RPC frames reliably on top of the unreliable rpc socket.
+ *
+ * <p>Frames are sent with {@link RpcFrame#FLAG_ACK_REQUESTED} and receivers answer with a {@link
+ * SyncConstants#METHOD_RPC_ACK} carrying the frame sequence number. Recipients that have not
+ * acknowledged a frame get it again via unicast, first after {@link
+ * SyncConstants#RPC_ACK_TIMEOUT_NS} and then with the timeout doubling, up to {@link
+ * SyncConstants#RPC_MAX_RETRANSMITS} times. The returned future completes with which recipients
+ * acknowledged once all did or the retransmits ran out. Receivers drop the duplicates this
+ * creates with a {@link RpcDedupWindow}.
+ */
+final class ReliableRpcSender implements AutoCloseable {
+  private static final String TAG = "ReliableRpcSender";
+
+  /** Sends a frame to an address without releasing it. */
+  interface Transport {
+    void send(RpcFrame frame, InetAddress address);
+  }
+
+  private final Transport transport;
+
+  /** Frames waiting for acknowledgements, by sequence number. */
+  private final Map<Integer, PendingRpc> pendingRpcs = new ConcurrentHashMap<>();
+
+  /** Sends frames and retransmits them to recipients that did not acknowledge in time. */
+  private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+
+  ReliableRpcSender(Transport transport) {
+    this.transport = transport;
+  }
+
+  /**
+   * Sends the frame to every recipient and tracks their acknowledgements. Takes over the caller's
+   * reference to the frame, which is released once the delivery completes.
+   *
+   * @param frame frame to deliver.
+   * @param recipients addresses expected to acknowledge the frame.
+   * @param broadcastAddress if not null the frame is first sent once to this address instead of to
+   *     each recipient, retransmits are always unicast.
+   */
+  @SuppressWarnings("FutureReturnValueIgnored")
+  CompletableFuture<RpcDelivery> send(
+      RpcFrame frame, Collection<InetAddress> recipients, InetAddress broadcastAddress) {
+    byte flags = RpcFrame.FLAG_ACK_REQUESTED;
+    if (broadcastAddress != null) {
+      flags |= RpcFrame.FLAG_BROADCAST;
+    }
+    frame.setFlags(flags);
+    final PendingRpc pending = new PendingRpc(frame, recipients);
+    if (pending.unacked.isEmpty()) {
+      finish(pending);
+      return pending.future;
+    }
+    pendingRpcs.put(frame.sequence(), pending);
+    scheduler.submit(
+        () -> {
+          synchronized (pending) {
+            if (pending.done) {
+              return;
+            }
+            if (broadcastAddress != null) {
+              sendFrame(frame, broadcastAddress);
+            } else {
+              for (InetAddress address : pending.unacked) {
+                sendFrame(frame, address);
+              }
+            }
+          }
+          scheduleRetransmit(pending);
+        });
+    return pending.future;
+  }
+
+  /** Records an acknowledgement, completing the delivery once every recipient acknowledged. */
+  void onAck(InetAddress sender, int sequence) {
+    PendingRpc pending = pendingRpcs.get(sequence);
+    if (pending == null) {
+      return; // Late or duplicate ack.
+    }
+    synchronized (pending) {
+      if (!pending.done && pending.unacked.remove(sender)) {
+        pending.acked.add(sender);
+        if (pending.unacked.isEmpty()) {
+          finish(pending);
+        }
+      }
+    }
+  }
+
+  @SuppressWarnings("FutureReturnValueIgnored")
+  private void scheduleRetransmit(PendingRpc pending) {
+    // Exponential backoff, so a busy or briefly unreachable recipient is not flooded.
+    long timeoutNs = SyncConstants.RPC_ACK_TIMEOUT_NS << pending.retransmits;
+    try {
+      scheduler.schedule(() -> retransmit(pending), timeoutNs, TimeUnit.NANOSECONDS);
+    } catch (RejectedExecutionException e) {
+      // Shutting down, close() completes any pending deliveries.
+    }
+  }
+
+  /** Unicasts the frame again to the recipients that have not acknowledged it yet. */
+  private void retransmit(PendingRpc pending) {
+    synchronized (pending) {
+      if (pending.done) {
+        return;
+      }
+      if (pending.retransmits >= SyncConstants.RPC_MAX_RETRANSMITS) {
+        Log.w(
+            TAG,
+            String.format(
+                "RPC %d not acknowledged by %s, giving up.",
+                pending.frame.method(), pending.unacked));
+        finish(pending);
+        return;
+      }
+      pending.retransmits++;
+      for (InetAddress address : pending.unacked) {
+        sendFrame(pending.frame, address);
+      }
+    }
+    scheduleRetransmit(pending);
+  }
+
+  /** Sends a frame, a failed send is treated like a lost datagram and left to the retransmits. */
+  private void sendFrame(RpcFrame frame, InetAddress address) {
+    try {
+      transport.send(frame, address);
+    } catch (IllegalStateException e) {
+      Log.w(TAG, "Failed to send RPC to " + address + ": " + e);
+    }
+  }
+
+  /** Completes the delivery and releases the frame. Must hold the lock of {@code pending}. */
+  private void finish(PendingRpc pending) {
+    if (pending.done) {
+      return;
+    }
+    pending.done = true;
+    pendingRpcs.remove(pending.frame.sequence());
+    RpcDelivery delivery =
+        RpcDelivery.create(pending.frame.method(), pending.acked, pending.unacked);
+    pending.frame.release();
+    pending.future.complete(delivery);
+  }
+
+  /** Stops retransmitting and completes all pending deliveries with their current state. */
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+    for (PendingRpc pending : pendingRpcs.values()) {
+      synchronized (pending) {
+        finish(pending);
+      }
+    }
+  }
+
+  /** A frame being delivered and the recipients that have and have not acknowledged it. */
+  private static final class PendingRpc {
+    final RpcFrame frame;
+    final Set<InetAddress> unacked;
+    final Set<InetAddress> acked = new HashSet<>();
+    final CompletableFuture<RpcDelivery> future = new CompletableFuture<>();
+    int retransmits;
+    boolean done;
+
+    PendingRpc(RpcFrame frame, Collection<InetAddress> recipients) {
+      this.frame = frame;
+      unacked = new HashSet<>(recipients);
+    }
+  }
+}
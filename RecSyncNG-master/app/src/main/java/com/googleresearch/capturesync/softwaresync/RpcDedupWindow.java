@@ -0,0 +1,87 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the sequence numbers of recently received acknowledged RPCs per sender, so an RPC that
+ * arrives twice, ex. via broadcast and again via a unicast retransmit, is only dispatched once.
+ *
+ * <p>Each sender has a sliding window of the last {@link #WINDOW_SIZE} sequence numbers below the
+ * highest one seen. A sequence number below the window is a stale copy and dropped. A restarted
+ * sender is recognized by its new RPC session id, which starts a fresh window.
+ */
+final class RpcDedupWindow {
+  static final int WINDOW_SIZE = Long.SIZE;
+
+  private final Map<InetAddress, Window> windows = new HashMap<>();
+
+  /**
+   * Records a received sequence number.
+   *
+   * @return true if this is the first time the sequence number was seen from this sender.
+   */
+  synchronized boolean markReceived(InetAddress sender, short session, int sequence) {
+    Window window = windows.get(sender);
+    if (window == null || window.session != session) {
+      windows.put(sender, new Window(session, sequence));
+      return true;
+    }
+    return window.mark(sequence);
+  }
+
+  /** Forgets a sender, ex. once it is no longer connected. */
+  synchronized void remove(InetAddress sender) {
+    windows.remove(sender);
+  }
+
+  private static final class Window {
+    private final short session;
+    private int highest;
+    /** Bit i is set if sequence number (highest - i) was received. */
+    private long received;
+
+    Window(short session, int sequence) {
+      this.session = session;
+      highest = sequence;
+      received = 1L;
+    }
+
+    boolean mark(int sequence) {
+      // Int subtraction keeps this correct when the sequence numbers wrap around.
+      int delta = sequence - highest;
+      if (delta > 0) {
+        received = delta < WINDOW_SIZE ? (received << delta) | 1L : 1L;
+        highest = sequence;
+        return true;
+      }
+      if (delta <= -WINDOW_SIZE) {
+        // Too old to tell whether it was seen, it can only be a late copy.
+        return false;
+      }
+      long bit = 1L << -delta;
+      if ((received & bit) != 0) {
+        return false;
+      }
+      received |= bit;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/** AutoValue class for the outcome of a reliable RPC: which recipients confirmed receiving it. */
+public final class RpcDelivery {
+  private final int method;
+  private final Set<InetAddress> acknowledged;
+  private final Set<InetAddress> unacknowledged;
+
+  static RpcDelivery create(
+      int method, Set<InetAddress> acknowledged, Set<InetAddress> unacknowledged) {
+    return new RpcDelivery(
+        method,
+        Collections.unmodifiableSet(new HashSet<>(acknowledged)),
+        Collections.unmodifiableSet(new HashSet<>(unacknowledged)));
+  }
+
+  private RpcDelivery(
+      int method, Set<InetAddress> acknowledged, Set<InetAddress> unacknowledged) {
+    this.method = method;
+    this.acknowledged = acknowledged;
+    this.unacknowledged = unacknowledged;
+  }
+
+  /** The RPC method id that was sent. */
+  public int method() {
+    return method;
+  }
+
+  /** Recipients that acknowledged the RPC. */
+  public Set<InetAddress> acknowledged() {
+    return acknowledged;
+  }
+
+  /**
+   * Recipients that never acknowledged the RPC, even after all retransmits. They may or may not
+   * have received it.
+   */
+  public Set<InetAddress> unacknowledged() {
+    return unacknowledged;
+  }
+
+  /** Returns true if every recipient acknowledged the RPC. */
+  public boolean allAcknowledged() {
+    return unacknowledged.isEmpty();
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "RPC %d: acknowledged by %s, unacknowledged by %s", method, acknowledged, unacknowledged);
+  }
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reusable binary RPC frame, backed by a fixed {@link SyncConstants#RPC_BUFFER_SIZE} byte array and
+ * a single {@link DatagramPacket}. Frames are owned by a {@link RpcFramePool} and recycled, so
+ * sending and receiving RPCs does not allocate once the pool is warm.
+ *
+ * <p>Wire format (big endian):
+ *
+ * <pre>
+ *   [0]      version   (byte, {@link SyncConstants#RPC_PROTOCOL_VERSION})
+ *   [1]      flags     (byte, {@code FLAG_*})
+ *   [2..3]   session   (short, random per sender process)
+ *   [4..7]   method id (int)
+ *   [8..11]  sequence  (int)
+ *   [12..]   typed fields
+ * </pre>
+ *
+ * <p>Each field is a one byte type tag followed by its value: {@code TYPE_INT} (4 bytes), {@code
+ * TYPE_LONG} (8 bytes) or {@code TYPE_STRING} (unsigned short length followed by UTF-8 bytes).
+ * Fields are written with the {@code put*} methods and read back from the payload buffer passed to
+ * a {@link BinaryRpcCallback} with the static {@code get*} methods, in the same order.
+ */
+public final class RpcFrame {
+  public static final int HEADER_SIZE = 12;
+
+  private static final int SESSION_OFFSET = 2;
+  private static final int METHOD_OFFSET = 4;
+  private static final int SEQUENCE_OFFSET = 8;
+
+  /** The receiver must answer with a {@link SyncConstants#METHOD_RPC_ACK} for the sequence. */
+  static final byte FLAG_ACK_REQUESTED = 0x01;
+  /** The frame was sent to the subnet broadcast address rather than to a single device. */
+  static final byte FLAG_BROADCAST = 0x02;
+
+  private static final int FLAGS_OFFSET = 1;
+
+  static final byte TYPE_INT = 1;
+  static final byte TYPE_LONG = 2;
+  static final byte TYPE_STRING = 3;
+
+  private final byte[] data = new byte[SyncConstants.RPC_BUFFER_SIZE];
+  /** Write cursor used while encoding a frame. */
+  private final ByteBuffer writeBuffer = ByteBuffer.wrap(data);
+  /** Independent read cursor handed to callbacks, so reads never disturb an in-flight send. */
+  private final ByteBuffer readBuffer = ByteBuffer.wrap(data);
+
+  final DatagramPacket packet = new DatagramPacket(data, data.length);
+
+  /** Number of owners still using this frame, it is returned to its pool when this reaches 0. */
+  private final AtomicInteger refCount = new AtomicInteger();
+
+  private final RpcFramePool pool;
+  private int length;
+
+  /** Task dispatching this frame to the rpc callbacks, created once per frame by the owner. */
+  Runnable dispatchTask;
+
+  RpcFrame(RpcFramePool pool) {
+    this.pool = pool;
+  }
+
+  /** Resets the frame and writes the header for a new outgoing message. */
+  void begin(int method, short session, int sequence) {
+    writeBuffer.clear();
+    writeBuffer
+        .put(SyncConstants.RPC_PROTOCOL_VERSION)
+        .put((byte) 0)
+        .putShort(session)
+        .putInt(method)
+        .putInt(sequence);
+    length = HEADER_SIZE;
+  }
+
+  /** Sets the header flags, a combination of the {@code FLAG_*} values. */
+  void setFlags(byte flags) {
+    data[FLAGS_OFFSET] = flags;
+  }
+
+  boolean hasFlag(byte flag) {
+    return (data[FLAGS_OFFSET] & flag) != 0;
+  }
+
+  /** Appends an int field. */
+  public RpcFrame putInt(int value) {
+    ensureRemaining(1 + Integer.BYTES);
+    writeBuffer.put(TYPE_INT).putInt(value);
+    length = writeBuffer.position();
+    return this;
+  }
+
+  /** Appends a long field. */
+  public RpcFrame putLong(long value) {
+    ensureRemaining(1 + Long.BYTES);
+    writeBuffer.put(TYPE_LONG).putLong(value);
+    length = writeBuffer.position();
+    return this;
+  }
+
+  /** Appends a UTF-8 string field. */
+  public RpcFrame putString(String value) {
+    byte[] bytes = value.getBytes(UTF_8);
+    ensureRemaining(1 + Short.BYTES + bytes.length);
+    writeBuffer.put(TYPE_STRING).putShort((short) bytes.length).put(bytes);
+    length = writeBuffer.position();
+    return this;
+  }
+
+  private void ensureRemaining(int bytes) {
+    if (writeBuffer.remaining() < bytes) {
+      throw new IllegalArgumentException(
+          String.format(
+              "RPC arguments too big %d v %d",
+              writeBuffer.position() + bytes, SyncConstants.RPC_BUFFER_SIZE));
+    }
+  }
+
+  /** Points the packet at the encoded bytes and the given destination. */
+  DatagramPacket packetFor(InetAddress address, int port) {
+    packet.setData(data, 0, length);
+    packet.setAddress(address);
+    packet.setPort(port);
+    return packet;
+  }
+
+  /** Resets the packet so the whole buffer is available to the next socket receive. */
+  DatagramPacket packetForReceive() {
+    packet.setData(data, 0, data.length);
+    return packet;
+  }
+
+  /**
+   * Validates the header of a received packet and records its length.
+   *
+   * @return false if the packet is too short or from an unknown protocol version.
+   */
+  boolean parseReceived() {
+    length = packet.getLength();
+    return length >= HEADER_SIZE && data[0] == SyncConstants.RPC_PROTOCOL_VERSION;
+  }
+
+  /** The address a received frame was sent from. */
+  InetAddress sender() {
+    return packet.getAddress();
+  }
+
+  /** The method id in the frame header. */
+  public int method() {
+    return readBuffer.getInt(METHOD_OFFSET);
+  }
+
+  /** The session of the sender in the frame header, it changes when the sender restarts. */
+  short session() {
+    return readBuffer.getShort(SESSION_OFFSET);
+  }
+
+  /** The sender assigned sequence number in the frame header. */
+  public int sequence() {
+    return readBuffer.getInt(SEQUENCE_OFFSET);
+  }
+
+  /**
+   * Returns the typed fields of this frame, positioned at the first field. The buffer is only valid
+   * for the duration of the callback it is passed to and must not be retained.
+   */
+  ByteBuffer payload() {
+    readBuffer.limit(length);
+    readBuffer.position(HEADER_SIZE);
+    return readBuffer;
+  }
+
+  /** Adds an owner, which must later call {@link #release()}. */
+  void retain() {
+    refCount.incrementAndGet();
+  }
+
+  /** Drops an owner, recycling the frame once it has none left. */
+  void release() {
+    if (refCount.decrementAndGet() == 0) {
+      pool.recycle(this);
+    }
+  }
+
+  /** Called by the pool when handing the frame to a new owner. */
+  void acquired() {
+    refCount.set(1);
+  }
+
+  /** Reads an int field from a payload buffer. */
+  public static int getInt(ByteBuffer payload) {
+    expectType(payload, TYPE_INT);
+    return payload.getInt();
+  }
+
+  /** Reads a long field from a payload buffer. */
+  public static long getLong(ByteBuffer payload) {
+    expectType(payload, TYPE_LONG);
+    return payload.getLong();
+  }
+
+  /** Reads a string field from a payload buffer. */
+  public static String getString(ByteBuffer payload) {
+    expectType(payload, TYPE_STRING);
+    int size = payload.getShort() & 0xffff;
+    String value = new String(payload.array(), payload.position(), size, UTF_8);
+    payload.position(payload.position() + size);
+    return value;
+  }
+
+  /** Returns true if the payload has no further fields. */
+  public static boolean isEmpty(ByteBuffer payload) {
+    return !payload.hasRemaining();
+  }
+
+  private static void expectType(ByteBuffer payload, byte type) {
+    if (!payload.hasRemaining()) {
+      throw new IllegalArgumentException("RPC payload has no field left, expected type " + type);
+    }
+    byte actual = payload.get();
+    if (actual != type) {
+      throw new IllegalArgumentException(
+          String.format("RPC payload field has type %d, expected %d", actual, type));
+    }
+  }
+}
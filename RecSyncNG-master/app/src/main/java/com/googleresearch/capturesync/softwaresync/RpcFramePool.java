@@ -0,0 +1,49 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Bounded pool of {@link RpcFrame} instances shared by the send and receive paths. When the pool
+ * runs dry a new frame is created rather than blocking, and surplus frames are dropped on recycle,
+ * so the pool never holds more than its capacity.
+ */
+final class RpcFramePool {
+  private final ArrayBlockingQueue<RpcFrame> frames;
+
+  RpcFramePool(int capacity) {
+    frames = new ArrayBlockingQueue<>(capacity);
+    for (int i = 0; i < capacity; i++) {
+      frames.offer(new RpcFrame(this));
+    }
+  }
+
+  /** Returns a frame owned by the caller, who must call {@link RpcFrame#release()} when done. */
+  RpcFrame acquire() {
+    RpcFrame frame = frames.poll();
+    if (frame == null) {
+      frame = new RpcFrame(this);
+    }
+    frame.acquired();
+    return frame;
+  }
+
+  void recycle(RpcFrame frame) {
+    frames.offer(frame);
+  }
+}
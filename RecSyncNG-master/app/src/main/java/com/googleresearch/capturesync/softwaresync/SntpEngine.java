@@ -0,0 +1,377 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import android.util.Log;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Leader side SNTP engine that synchronizes many clients concurrently over one shared socket.
+ *
+ * <p>A single engine thread keeps at most one probe outstanding per client. As soon as a reply
+ * arrives the next probe to that client is sent, or after a short pause if the link looks
+ * congested, so probes to different clients interleave on the wire and a rig of N clients
+ * converges in roughly the time a single client takes. Probe timeouts, spacing and early exit adapt
+ * to each client's link, see {@link SntpProbeSchedule}. Replies are
+ * matched to their session by source address and the echoed t0, and anything that does not match
+ * the outstanding probe of a session is a late or duplicate reply and is dropped.
+ *
+ * <p>Each probe follows the naive PTP exchange described in {@link SimpleNetworkTimeProtocol}. The
+ * send and receive buffers are preallocated, so steady state probing does not allocate. Receive
+ * times come from the {@link SntpSocket}, which reads the clock as close to arrival as it can, and
+ * the samples of each session are combined by an {@link OffsetEstimator}.
+ *
+ * <p>A socket error fails only the session it concerns, or none for a failed receive whose probes
+ * then time out, and the engine keeps serving the other clients. Sessions still running when the
+ * engine stops are finished as failed, so every request gets its {@link Listener} call.
+ */
+final class SntpEngine implements AutoCloseable {
+  private static final String TAG = "SntpEngine";
+  private static final int LONG_SIZE = Long.SIZE / Byte.SIZE;
+
+  /** Called on the engine thread once synchronization with a client finished or failed. */
+  interface Listener {
+    void onSyncFinished(InetAddress clientAddress, SntpOffsetResponse response);
+  }
+
+  private final Ticker localClock;
+  private final SntpSocket nptpSocket;
+  private final int nptpPort;
+  private final OffsetEstimator.Factory estimatorFactory;
+  private final Listener listener;
+
+  /** Clients waiting to be picked up by the engine thread. */
+  private final LinkedBlockingQueue<SyncRequest> newRequests = new LinkedBlockingQueue<>();
+
+  /** Active sessions, only accessed from the engine thread. */
+  private final Map<InetAddress, ClientSession> sessionsByAddress = new HashMap<>();
+
+  private final List<ClientSession> sessions = new ArrayList<>();
+
+  private final ByteBuffer probeBuffer = ByteBuffer.allocate(LONG_SIZE);
+  private final ByteBuffer replyBuffer = ByteBuffer.allocate(SyncConstants.SNTP_BUFFER_SIZE);
+
+  private final Thread engineThread;
+  private volatile boolean running;
+
+  SntpEngine(
+      Ticker localClock,
+      SntpSocket nptpSocket,
+      int nptpPort,
+      OffsetEstimator.Factory estimatorFactory,
+      Listener listener) {
+    this.localClock = localClock;
+    this.nptpSocket = nptpSocket;
+    this.nptpPort = nptpPort;
+    this.estimatorFactory = estimatorFactory;
+    this.listener = listener;
+    running = true;
+    engineThread = new Thread(this::run, TAG);
+    engineThread.start();
+  }
+
+  /**
+   * Starts synchronizing with a client. Callers are expected to avoid duplicate requests.
+   *
+   * @param clientAddress client to synchronize with.
+   * @param maxCycles upper bound on the number of probes, ex. {@link
+   *     SyncConstants#NUM_SNTP_CYCLES} for a full sync or fewer for a drift sample.
+   */
+  void startSync(InetAddress clientAddress, int maxCycles) {
+    newRequests.add(new SyncRequest(clientAddress, maxCycles));
+  }
+
+  private void run() {
+    try {
+      loop();
+    } finally {
+      failRemainingSessions();
+    }
+  }
+
+  private void loop() {
+    while (running && !nptpSocket.isClosed()) {
+      try {
+        if (sessions.isEmpty()) {
+          // Idle, block until there is a client to synchronize with.
+          SyncRequest request =
+              newRequests.poll(SyncConstants.SOCKET_WAIT_TIME_MS, TimeUnit.MILLISECONDS);
+          if (request != null) {
+            addSession(request);
+          }
+          continue;
+        }
+        SyncRequest request;
+        while ((request = newRequests.poll()) != null) {
+          addSession(request);
+        }
+
+        long nextDeadlineNs = serviceSessions();
+        receiveReply(nextDeadlineNs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (IOException e) {
+        if (nptpSocket.isClosed() || !running) {
+          return;
+        }
+        // Not tied to one client, the probes awaiting a reply time out as usual.
+        Log.w(TAG, "SNTP engine receive error, continuing: " + e);
+      }
+    }
+  }
+
+  /** Finishes every session and pending request as failed, once the engine stopped. */
+  private void failRemainingSessions() {
+    for (int i = sessions.size() - 1; i >= 0; i--) {
+      ClientSession session = sessions.remove(i);
+      sessionsByAddress.remove(session.address);
+      listener.onSyncFinished(session.address, failedResponse());
+    }
+    SyncRequest request;
+    while ((request = newRequests.poll()) != null) {
+      listener.onSyncFinished(request.address, failedResponse());
+    }
+  }
+
+  private static SntpOffsetResponse failedResponse() {
+    return SntpOffsetResponse.create(/*offset=*/ 0, /*syncAccuracy=*/ 0, false);
+  }
+
+  private void addSession(SyncRequest request) {
+    if (sessionsByAddress.containsKey(request.address)) {
+      return;
+    }
+    Log.d(TAG, "Starting sync with client " + request.address);
+    ClientSession session =
+        new ClientSession(
+            new InetSocketAddress(request.address, nptpPort),
+            request.maxCycles,
+            estimatorFactory.create(request.maxCycles, nptpSocket.minRoundTripLatencyNs()));
+    sessionsByAddress.put(request.address, session);
+    sessions.add(session);
+  }
+
+  /**
+   * Expires probes that timed out, finishes completed sessions and sends probes that are due.
+   *
+   * @return the earliest local time at which a session needs servicing again.
+   */
+  private long serviceSessions() {
+    final long now = localClock.read();
+    long nextDeadlineNs = Long.MAX_VALUE;
+    for (int i = sessions.size() - 1; i >= 0; i--) {
+      ClientSession session = sessions.get(i);
+      if (session.awaitingReply && now - session.t0 > session.schedule.probeTimeoutNs()) {
+        // If we didn't receive a message in time, then skip this PTP pair and continue.
+        Log.w(TAG, "UDP PTP message missing from " + session.address + ", skipping");
+        session.onMissed(now);
+      }
+      if (session.isFinished()) {
+        finish(i, session);
+        continue;
+      }
+      if (!session.awaitingReply && now >= session.nextProbeTimeNs && !trySendProbe(session)) {
+        fail(i, session);
+        continue;
+      }
+      nextDeadlineNs = Math.min(nextDeadlineNs, session.deadlineNs());
+    }
+    return nextDeadlineNs;
+  }
+
+  private void finish(int index, ClientSession session) {
+    sessions.remove(index);
+    sessionsByAddress.remove(session.address);
+    SntpOffsetResponse response = session.response();
+    if (response.status()) {
+      Log.v(
+          TAG,
+          String.format(
+              "Client %s : SNTP accuracy %,d ns, offsetNs %,d +/- %,d ns after %d cycles",
+              session.address,
+              response.syncAccuracyNs(),
+              response.offsetNs(),
+              response.confidenceIntervalNs(),
+              session.cycles));
+    } else {
+      Log.w(TAG, String.format("No SNTP replies from %s, leaving SNTP", session.address));
+    }
+    listener.onSyncFinished(session.address, response);
+  }
+
+  /** Ends a session whose probe could not be sent. */
+  private void fail(int index, ClientSession session) {
+    sessions.remove(index);
+    sessionsByAddress.remove(session.address);
+    listener.onSyncFinished(session.address, failedResponse());
+  }
+
+  /**
+   * 1 - Send UDP SNTP message to the client with t0 at time t0.
+   *
+   * @return false if the socket failed to send it.
+   */
+  private boolean trySendProbe(ClientSession session) {
+    probeBuffer.clear();
+    final long t0 = localClock.read();
+    probeBuffer.putLong(0, t0);
+    try {
+      nptpSocket.send(probeBuffer, session.socketAddress);
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to send SNTP probe to " + session.address + ", failing its sync: " + e);
+      return false;
+    }
+    session.onProbeSent(t0);
+    return true;
+  }
+
+  /**
+   * 4 - Recv UDP message with t0,t1,t2 at time t3 and match it to its session.
+   *
+   * @param deadlineNs local time at which a session needs servicing, ending the wait early.
+   */
+  private void receiveReply(long deadlineNs) throws IOException {
+    // Poll the socket in short slices so several clients can be serviced by one thread.
+    long untilDeadlineMs = (deadlineNs - localClock.read() + 999_999) / 1_000_000;
+    int timeoutMs =
+        (int) Math.max(1, Math.min(SyncConstants.SNTP_POLL_TIMEOUT_MS, untilDeadlineMs));
+    InetSocketAddress sender = nptpSocket.receive(replyBuffer, timeoutMs);
+    if (sender == null) {
+      // Nothing arrived in this poll slice.
+      return;
+    }
+    final long t3 = nptpSocket.lastReceiveTimeNs();
+
+    if (replyBuffer.limit() != 3 * LONG_SIZE) {
+      Log.w(TAG, "Corrupted UDP message, skipping");
+      return;
+    }
+    ClientSession session = sessionsByAddress.get(sender.getAddress());
+    final long t0Msg = replyBuffer.getLong(0);
+    if (session == null || !session.awaitingReply || t0Msg != session.t0) {
+      // Reply to a probe that already timed out, or from a client no longer being synced.
+      Log.w(TAG, "Out of order PTP message received from " + sender + ", skipping");
+      return;
+    }
+    session.onReply(t0Msg, replyBuffer.getLong(LONG_SIZE), replyBuffer.getLong(2 * LONG_SIZE), t3);
+
+    // Keep the pipeline to this client busy without waiting for the next service pass.
+    if (!session.isFinished() && session.nextProbeTimeNs <= t3 && !trySendProbe(session)) {
+      fail(sessions.indexOf(session), session);
+    }
+  }
+
+  @Override
+  public void close() {
+    running = false;
+    engineThread.interrupt();
+    try {
+      engineThread.join(SyncConstants.SOCKET_WAIT_TIME_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt(); // Restore the interrupted status.
+    }
+  }
+
+  private static final class SyncRequest {
+    final InetAddress address;
+    final int maxCycles;
+
+    SyncRequest(InetAddress address, int maxCycles) {
+      this.address = address;
+      this.maxCycles = maxCycles;
+    }
+  }
+
+  /** SNTP state for a single client, feeding its samples to an {@link OffsetEstimator}. */
+  private static final class ClientSession {
+    /** Consecutive unanswered probes after which the client is considered gone. */
+    private static final int MAX_CONSECUTIVE_MISSES = 10;
+
+    final InetAddress address;
+    final InetSocketAddress socketAddress;
+    final int maxCycles;
+    int cycles;
+    // If several SNTP round trips in a row fail, fail out.
+    int missingMessageCountdown = MAX_CONSECUTIVE_MISSES;
+    boolean awaitingReply;
+    long t0;
+    /** Local time before which no new probe is sent, spacing probes on congested links. */
+    long nextProbeTimeNs;
+    final OffsetEstimator estimator;
+    final SntpProbeSchedule schedule = new SntpProbeSchedule();
+    boolean converged;
+
+    ClientSession(InetSocketAddress socketAddress, int maxCycles, OffsetEstimator estimator) {
+      this.address = socketAddress.getAddress();
+      this.socketAddress = socketAddress;
+      this.maxCycles = maxCycles;
+      this.estimator = estimator;
+    }
+
+    void onProbeSent(long t0) {
+      this.t0 = t0;
+      awaitingReply = true;
+    }
+
+    void onMissed(long now) {
+      awaitingReply = false;
+      missingMessageCountdown--;
+      cycles++;
+      schedule.onMissed();
+      nextProbeTimeNs = now + schedule.probeSpacingNs();
+    }
+
+    void onReply(long t0, long t1, long t2, long t3) {
+      awaitingReply = false;
+      missingMessageCountdown = MAX_CONSECUTIVE_MISSES;
+      cycles++;
+      final long timeOffset = ((t1 - t0) + (t2 - t3)) / 2;
+      final long roundTripLatency = (t3 - t0) - (t2 - t1);
+      estimator.addSample(timeOffset, roundTripLatency, t1 + (t2 - t1) / 2);
+      schedule.onReply(roundTripLatency);
+      nextProbeTimeNs = t3 + schedule.probeSpacingNs();
+      // Stop here once the estimate is good enough.
+      converged = estimator.isConverged();
+    }
+
+    /** Local time of the next probe timeout or, if none is outstanding, of the next probe. */
+    long deadlineNs() {
+      return awaitingReply ? t0 + schedule.probeTimeoutNs() : nextProbeTimeNs;
+    }
+
+    boolean isFinished() {
+      return missingMessageCountdown <= 0
+          || converged
+          || cycles >= maxCycles;
+    }
+
+    /** The estimate from the replies so far, failed only if there were none. */
+    SntpOffsetResponse response() {
+      return estimator.estimate();
+    }
+  }
+}
@@ -18,9 +18,7 @@ package com.googleresearch.capturesync.softwaresync;
 
 import android.util.Log;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 
 /**
@@ -31,12 +29,16 @@ import java.nio.ByteBuffer;
 public class SntpListener extends Thread {
 
   private static final String TAG = "SntpListener";
-  private boolean running;
-  private final DatagramSocket nptpSocket;
+  private static final int LONG_SIZE = Long.SIZE / Byte.SIZE;
+  private volatile boolean running;
+  private final SntpSocket nptpSocket;
   private final int nptpPort;
   private final Ticker localClock;
+  private final ByteBuffer responseBuffer = ByteBuffer.allocate(3 * LONG_SIZE);
+  /** Address replies go to, kept while the same leader keeps probing. */
+  private InetSocketAddress replyAddress;
 
-  public SntpListener(Ticker localClock, DatagramSocket nptpSocket, int nptpPort) {
+  SntpListener(Ticker localClock, SntpSocket nptpSocket, int nptpPort) {
     this.localClock = localClock;
     this.nptpSocket = nptpSocket;
     this.nptpPort = nptpPort;
@@ -52,41 +54,19 @@ public class SntpListener extends Thread {
 
     Log.w(TAG, "Starting SNTP Listener thread.");
 
-    byte[] buf = new byte[SyncConstants.SNTP_BUFFER_SIZE];
+    ByteBuffer probeBuffer = ByteBuffer.allocate(SyncConstants.SNTP_BUFFER_SIZE);
     while (running && !nptpSocket.isClosed()) {
-      DatagramPacket packet = new DatagramPacket(buf, buf.length);
       try {
         // Listen for PTP messages.
-        nptpSocket.receive(packet);
-
-        // 2 (B) - Recv UDP message with t0 at time t0'.
-        long t0r = localClock.read();
-
-        final int longSize = Long.SIZE / Byte.SIZE;
-
-        if (packet.getLength() != longSize) {
-          Log.e(
-              TAG,
-              "Received UDP message with incorrect packet length "
-                  + packet.getLength()
-                  + ", skipping.");
+        InetSocketAddress sender =
+            nptpSocket.receive(probeBuffer, SyncConstants.SOCKET_WAIT_TIME_MS);
+        if (sender == null) {
+          // It is normal to time out most of the time, continue.
           continue;
         }
 
-        // 3 (B) - Send UDP message with t0,t0',t1 at time t1.
-        long t1 = localClock.read();
-        ByteBuffer buffer = ByteBuffer.allocate(3 * longSize);
-        buffer.put(packet.getData(), 0, longSize);
-        buffer.putLong(longSize, t0r);
-        buffer.putLong(2 * longSize, t1);
-        byte[] bufferArray = buffer.array();
-
-        // Send SNTP response back.
-        DatagramPacket response =
-            new DatagramPacket(bufferArray, bufferArray.length, packet.getAddress(), nptpPort);
-        nptpSocket.send(response);
-      } catch (SocketTimeoutException e) {
-        // It is normal to time out most of the time, continue.
+        // 2 (B) - Recv UDP message with t0 at time t0'.
+        answerProbe(probeBuffer, nptpSocket.lastReceiveTimeNs(), sender);
       } catch (IOException e) {
         if (nptpSocket.isClosed()) {
           // Stop here if socket is closed.
@@ -97,4 +77,32 @@ public class SntpListener extends Thread {
     }
     Log.w(TAG, "SNTP Listener thread finished.");
   }
+
+  /**
+   * Answers a probe received from sender at local time t0r. Does not allocate while the same leader
+   * keeps probing.
+   *
+   * @return false if the probe had the wrong length and was skipped.
+   */
+  boolean answerProbe(ByteBuffer probe, long t0r, InetSocketAddress sender) throws IOException {
+    if (probe.limit() != LONG_SIZE) {
+      Log.e(
+          TAG, "Received UDP message with incorrect packet length " + probe.limit() + ", skipping.");
+      return false;
+    }
+
+    // 3 (B) - Send UDP message with t0,t0',t1 at time t1, reading t1 right before the send.
+    if (replyAddress == null || !replyAddress.getAddress().equals(sender.getAddress())) {
+      replyAddress = new InetSocketAddress(sender.getAddress(), nptpPort);
+    }
+    responseBuffer.clear();
+    responseBuffer.putLong(0, probe.getLong(0));
+    responseBuffer.putLong(LONG_SIZE, t0r);
+    long t1 = localClock.read();
+    responseBuffer.putLong(2 * LONG_SIZE, t1);
+
+    // Send SNTP response back.
+    nptpSocket.send(responseBuffer, replyAddress);
+    return true;
+  }
 }
@@ -20,15 +20,30 @@ package com.googleresearch.capturesync.softwaresync;
 public final class SntpOffsetResponse {
   private final long offsetNs;
   private final long syncAccuracyNs;
+  private final long clientTimeNs;
+  private final long confidenceIntervalNs;
   private final boolean status;
 
   static SntpOffsetResponse create(long offset, long syncAccuracy, boolean status) {
-    return new SntpOffsetResponse(offset, syncAccuracy, status);
+    return new SntpOffsetResponse(
+        offset, syncAccuracy, /*clientTime=*/ 0, /*confidenceInterval=*/ syncAccuracy / 2, status);
   }
 
-  private SntpOffsetResponse(long offsetNs, long syncAccuracyNs, boolean status) {
+  static SntpOffsetResponse create(
+      long offset, long syncAccuracy, long clientTime, long confidenceInterval, boolean status) {
+    return new SntpOffsetResponse(offset, syncAccuracy, clientTime, confidenceInterval, status);
+  }
+
+  private SntpOffsetResponse(
+      long offsetNs,
+      long syncAccuracyNs,
+      long clientTimeNs,
+      long confidenceIntervalNs,
+      boolean status) {
     this.offsetNs = offsetNs;
     this.syncAccuracyNs = syncAccuracyNs;
+    this.clientTimeNs = clientTimeNs;
+    this.confidenceIntervalNs = confidenceIntervalNs;
     this.status = status;
   }
 
@@ -50,6 +65,22 @@ public final class SntpOffsetResponse {
     return syncAccuracyNs;
   }
 
+  /**
+   * The client local time in nanoseconds at which the offsetNs was measured, the midpoint of the
+   * client receive and send times of the samples the estimate is based on.
+   */
+  public long clientTimeNs() {
+    return clientTimeNs;
+  }
+
+  /**
+   * Half-width in nanoseconds of the 95% confidence interval of offsetNs, as reported by the
+   * {@link OffsetEstimator}. For the min filter this is half the best round trip latency.
+   */
+  public long confidenceIntervalNs() {
+    return confidenceIntervalNs;
+  }
+
   /** The success status of this response. */
   public boolean status() {
     return status;
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+/**
+ * Adapts the probing of one SNTP session to the link, in the spirit of TCP's retransmission timer
+ * (RFC 6298).
+ *
+ * <ul>
+ *   <li>Timeout: a probe is declared missing after srtt + 4 * rttvar of the observed round trips,
+ *       clamped to [{@link SyncConstants#SNTP_MIN_PROBE_TIMEOUT_NS}, {@link
+ *       SyncConstants#SOCKET_WAIT_TIME_MS}] and doubled after every miss, instead of always
+ *       waiting the full socket timeout.
+ *   <li>Spacing: probes are sent back to back while round trips stay near the lowest one seen.
+ *       When they grow, i.e. the link is congested and queueing, the next probe waits the excess
+ *       latency (at most {@link SyncConstants#SNTP_MAX_PROBE_SPACING_NS}) so probing does not add
+ *       to the queue it is measuring.
+ * </ul>
+ *
+ * <p>When to stop probing is left to the {@link OffsetEstimator} of the session.
+ */
+final class SntpProbeSchedule {
+  private static final long MAX_PROBE_TIMEOUT_NS =
+      TimeUtils.millisToNanos(SyncConstants.SOCKET_WAIT_TIME_MS);
+
+  private long smoothedRttNs = -1;
+  private long rttVarianceNs;
+  private long minRttNs = Long.MAX_VALUE;
+  private long lastRttNs;
+  private int consecutiveMisses;
+
+  /** Records the round trip latency of an answered probe. */
+  void onReply(long roundTripLatencyNs) {
+    consecutiveMisses = 0;
+    lastRttNs = roundTripLatencyNs;
+    minRttNs = Math.min(minRttNs, roundTripLatencyNs);
+    if (smoothedRttNs < 0) {
+      smoothedRttNs = roundTripLatencyNs;
+      rttVarianceNs = roundTripLatencyNs / 2;
+    } else {
+      // rttvar = 3/4 rttvar + 1/4 |srtt - rtt|, srtt = 7/8 srtt + 1/8 rtt.
+      rttVarianceNs += (Math.abs(smoothedRttNs - roundTripLatencyNs) - rttVarianceNs) / 4;
+      smoothedRttNs += (roundTripLatencyNs - smoothedRttNs) / 8;
+    }
+  }
+
+  /** Records a probe that was never answered, backing off the timeout. */
+  void onMissed() {
+    consecutiveMisses++;
+  }
+
+  /** Time to wait for the reply to a probe before declaring it missing. */
+  long probeTimeoutNs() {
+    long timeoutNs =
+        smoothedRttNs < 0
+            ? SyncConstants.SNTP_INITIAL_PROBE_TIMEOUT_NS
+            : Math.max(SyncConstants.SNTP_MIN_PROBE_TIMEOUT_NS, smoothedRttNs + 4 * rttVarianceNs);
+    return Math.min(MAX_PROBE_TIMEOUT_NS, timeoutNs << Math.min(consecutiveMisses, 6));
+  }
+
+  /** Time to wait after a reply or a miss before sending the next probe. */
+  long probeSpacingNs() {
+    if (consecutiveMisses > 0) {
+      // A lost probe hints at a full queue, give it a round trip to drain.
+      return Math.min(SyncConstants.SNTP_MAX_PROBE_SPACING_NS, Math.max(smoothedRttNs, 0));
+    }
+    if (smoothedRttNs < 0) {
+      return 0;
+    }
+    return Math.min(SyncConstants.SNTP_MAX_PROBE_SPACING_NS, lastRttNs - minRttNs);
+  }
+}
@@ -0,0 +1,258 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import android.util.Log;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Socket carrying the SNTP probes, stamping every received datagram with the local clock.
+ *
+ * <p>The receive time of a probe ends up directly in the offset estimate, so any delay between the
+ * datagram arriving and the clock being read is an error. Two implementations exist:
+ *
+ * <ul>
+ *   <li>{@link #openBlocking}: a DatagramSocket blocked in receive(). The clock is read after the
+ *       thread wakes up, which folds the wake-up and scheduling latency into every sample. {@link
+ *       #over} does the same for any other {@link DatagramEndpoint}.
+ *   <li>{@link #openSpinning}: a non-blocking DatagramChannel. While probes are flowing, that is
+ *       within {@link SyncConstants#SNTP_SPIN_WINDOW_NS} of the last datagram sent or received,
+ *       the channel is polled in a busy loop so the thread is already running when a datagram
+ *       lands and the clock is read right after the receive call returns. Outside that window it
+ *       waits on a Selector, so an idle listener does not burn a core.
+ * </ul>
+ *
+ * <p>Java does not expose the kernel receive timestamps (SO_TIMESTAMPNS), the spinning socket is the
+ * closest the platform allows without native code.
+ */
+abstract class SntpSocket implements AutoCloseable {
+  private static final String TAG = "SntpSocket";
+
+  final Ticker localClock;
+  private long lastReceiveTimeNs;
+
+  private SntpSocket(Ticker localClock) {
+    this.localClock = localClock;
+  }
+
+  /**
+   * Opens the SNTP socket on port, spinning if requested and supported, falling back to the
+   * blocking socket otherwise. Spinning needs a spare core, on a single core it would starve the
+   * threads it is waiting for.
+   */
+  static SntpSocket open(Ticker localClock, int port, boolean spinReceive) throws IOException {
+    if (spinReceive && Runtime.getRuntime().availableProcessors() > 1) {
+      try {
+        return openSpinning(localClock, port);
+      } catch (IOException | UnsupportedOperationException e) {
+        Log.w(TAG, "Spinning SNTP receive unavailable, using blocking receive: " + e);
+      }
+    }
+    return openBlocking(localClock, port);
+  }
+
+  static SntpSocket openBlocking(Ticker localClock, int port) throws IOException {
+    return over(localClock, UdpSyncTransport.bind(port));
+  }
+
+  /** Stamps the datagrams of a blocking receive on endpoint, which it takes ownership of. */
+  static SntpSocket over(Ticker localClock, DatagramEndpoint endpoint) {
+    return new Blocking(localClock, endpoint);
+  }
+
+  static SntpSocket openSpinning(Ticker localClock, int port) throws IOException {
+    return openSpinning(localClock, new InetSocketAddress(port));
+  }
+
+  /** Opens a spinning socket bound to a local address, ex. one loopback address per device. */
+  static SntpSocket openSpinning(Ticker localClock, InetSocketAddress address) throws IOException {
+    DatagramChannel channel = DatagramChannel.open();
+    try {
+      channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+      channel.bind(address);
+      channel.configureBlocking(false);
+      Selector selector = Selector.open();
+      channel.register(selector, SelectionKey.OP_READ);
+      return new Spinning(localClock, channel, selector);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Receives one datagram into buffer, waiting at most timeoutMs. On success the payload is between
+   * position 0 and the limit of buffer and {@link #lastReceiveTimeNs()} is its local receive time.
+   *
+   * @return the sender, or null if nothing arrived in time.
+   */
+  abstract InetSocketAddress receive(ByteBuffer buffer, int timeoutMs) throws IOException;
+
+  /** Sends the remaining bytes of buffer, the local clock should be read just before. */
+  abstract void send(ByteBuffer buffer, InetSocketAddress target) throws IOException;
+
+  abstract boolean isClosed();
+
+  @Override
+  public abstract void close();
+
+  /** Local time the last datagram returned by {@link #receive} was received at. */
+  long lastReceiveTimeNs() {
+    return lastReceiveTimeNs;
+  }
+
+  void setLastReceiveTimeNs(long receiveTimeNs) {
+    lastReceiveTimeNs = receiveTimeNs;
+  }
+
+  /**
+   * Round trip latency below which a sample is good enough to stop probing, lower when receive
+   * times are precise enough to make such samples attainable.
+   */
+  abstract long minRoundTripLatencyNs();
+
+  /** Today's path: blocking receive with a timeout. */
+  private static final class Blocking extends SntpSocket {
+    private final DatagramEndpoint endpoint;
+    private final DatagramPacket receivePacket = new DatagramPacket(new byte[0], 0);
+    private final DatagramPacket sendPacket = new DatagramPacket(new byte[0], 0);
+
+    Blocking(Ticker localClock, DatagramEndpoint endpoint) {
+      super(localClock);
+      this.endpoint = endpoint;
+    }
+
+    @Override
+    InetSocketAddress receive(ByteBuffer buffer, int timeoutMs) throws IOException {
+      receivePacket.setData(buffer.array(), 0, buffer.capacity());
+      if (!endpoint.receive(receivePacket, timeoutMs)) {
+        return null;
+      }
+      setLastReceiveTimeNs(localClock.read());
+      buffer.clear();
+      buffer.limit(receivePacket.getLength());
+      return (InetSocketAddress) receivePacket.getSocketAddress();
+    }
+
+    @Override
+    void send(ByteBuffer buffer, InetSocketAddress target) throws IOException {
+      sendPacket.setData(buffer.array(), buffer.position(), buffer.remaining());
+      sendPacket.setSocketAddress(target);
+      endpoint.send(sendPacket);
+    }
+
+    @Override
+    boolean isClosed() {
+      return endpoint.isClosed();
+    }
+
+    @Override
+    public void close() {
+      endpoint.close();
+    }
+
+    @Override
+    long minRoundTripLatencyNs() {
+      return SyncConstants.MIN_ROUND_TRIP_LATENCY_NS;
+    }
+  }
+
+  /** Busy polls a non-blocking channel while probes are flowing. */
+  private static final class Spinning extends SntpSocket {
+    private final DatagramChannel channel;
+    private final Selector selector;
+    /** Local time of the last datagram sent or received, spinning continues for a while after. */
+    private long lastActivityNs = Long.MIN_VALUE / 2;
+
+    Spinning(Ticker localClock, DatagramChannel channel, Selector selector) {
+      super(localClock);
+      this.channel = channel;
+      this.selector = selector;
+    }
+
+    @Override
+    InetSocketAddress receive(ByteBuffer buffer, int timeoutMs) throws IOException {
+      final long deadlineNs = localClock.read() + TimeUtils.millisToNanos(timeoutMs);
+      while (true) {
+        buffer.clear();
+        InetSocketAddress sender = (InetSocketAddress) channel.receive(buffer);
+        final long nowNs = localClock.read();
+        if (sender != null) {
+          setLastReceiveTimeNs(nowNs);
+          lastActivityNs = nowNs;
+          buffer.flip();
+          return sender;
+        }
+        if (nowNs >= deadlineNs) {
+          return null;
+        }
+        if (nowNs - lastActivityNs > SyncConstants.SNTP_SPIN_WINDOW_NS) {
+          // Idle, sleep until a datagram arrives and then spin again for the probes that follow.
+          long waitMs = Math.max(1, (deadlineNs - nowNs) / 1_000_000);
+          int ready;
+          try {
+            ready = selector.select(waitMs);
+            selector.selectedKeys().clear();
+          } catch (ClosedSelectorException e) {
+            throw new IOException("SNTP channel closed", e);
+          }
+          if (!channel.isOpen()) {
+            throw new IOException("SNTP channel closed");
+          }
+          if (ready > 0) {
+            lastActivityNs = localClock.read();
+          }
+        }
+      }
+    }
+
+    @Override
+    void send(ByteBuffer buffer, InetSocketAddress target) throws IOException {
+      channel.send(buffer, target);
+      lastActivityNs = localClock.read();
+    }
+
+    @Override
+    boolean isClosed() {
+      return !channel.isOpen();
+    }
+
+    @Override
+    public void close() {
+      try {
+        // Channel first, so a receiver failing on the closed selector sees the socket closed.
+        channel.close();
+        selector.close();
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to close SNTP channel: " + e);
+      }
+    }
+
+    @Override
+    long minRoundTripLatencyNs() {
+      return SyncConstants.SPIN_MIN_ROUND_TRIP_LATENCY_NS;
+    }
+  }
+}
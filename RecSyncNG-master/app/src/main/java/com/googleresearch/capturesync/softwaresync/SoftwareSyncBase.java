@@ -16,29 +16,31 @@
 
 package com.googleresearch.capturesync.softwaresync;
 
-import android.content.ContentResolver;
 import android.os.HandlerThread;
-import android.provider.Settings;
 import android.util.Log;
+import android.util.SparseArray;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.BindException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import android.provider.Settings.Secure;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * SoftwareSyncBase is the abstract base class to SoftwareSyncLeader and SoftwareSyncClient, holding
- * shared objects such as UDP ports and sockets, local client information and methods for starting
- * and stopping shared threads such as the rpc socket thread.
+ * shared objects such as the rpc and SNTP endpoints opened by its {@link SyncTransport}, local
+ * client information and methods for starting and stopping shared threads such as the rpc socket
+ * thread.
  *
  * <p>When the user is finished they should call the idempotent method close().
  */
@@ -49,26 +51,59 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
   final Ticker localClock;
 
   /**
-   * Offset to convert local time to leader time. leader_time = local_elapsed_time -
-   * leader_from_local.
+   * Model of the offset to convert local time to leader time. leader_time = local_elapsed_time -
+   * leader_from_local(local_elapsed_time). Replaced as a whole so readers never see a torn update.
    */
-  private long leaderFromLocalNs = 0;
+  private volatile ClockDriftEstimator.Model leaderFromLocalModel =
+      ClockDriftEstimator.Model.constant(0);
 
   /* SNTP Setup */
   final int sntpPort;
-  final DatagramSocket sntpSocket;
+  final SntpSocket sntpSocket;
 
   /* RPC Setup. */
   private final int rpcPort;
-  private final DatagramSocket rpcSocket;
+  private final DatagramEndpoint rpcEndpoint;
   private final RpcThread rpcListenerThread;
   final Map<Integer, RpcCallback> rpcMap = new HashMap<>();
-  /** Handle onRPC events on a separate thread. */
-  private final ExecutorService rpcExecutor = Executors.newSingleThreadExecutor();
-
-  SoftwareSyncBase(String name, Ticker localClock, InetAddress address, InetAddress leaderAddress) {
-    this.rpcPort = SyncConstants.RPC_PORT;
-    this.sntpPort = SyncConstants.SNTP_PORT;
+  /** Binary callbacks, looked up before {@link #rpcMap} without boxing the method id. */
+  final SparseArray<BinaryRpcCallback> binaryRpcMap = new SparseArray<>();
+  /** Recycled frames used for every RPC sent or received on the rpc socket. */
+  private final RpcFramePool rpcFramePool = new RpcFramePool(SyncConstants.RPC_FRAME_POOL_SIZE);
+  /** Random per instance so receivers can tell a restarted sender from a duplicate. */
+  private final short rpcSession = (short) new Random().nextInt();
+  private final AtomicInteger nextRpcSequence = new AtomicInteger();
+  /** Drops acknowledged RPCs that were received more than once. */
+  private final RpcDedupWindow rpcDedupWindow = new RpcDedupWindow();
+  /** Retransmits RPCs sent with an ack requested until they are acknowledged. */
+  private final ReliableRpcSender reliableRpcSender = new ReliableRpcSender(this::sendRpcFrame);
+  /** Set once this device sends subnet broadcasts, which it then receives itself as well. */
+  private volatile boolean rpcBroadcastSender;
+  /**
+   * Handle onRPC events on a separate thread, one at a time and in order of arrival. The bounded
+   * array queue avoids allocating a node per message. When it is full the received frame is
+   * dropped and counted, callbacks never run on the listener thread. A dropped RPC that asked for
+   * an ack is not acknowledged, so its sender retransmits it.
+   */
+  private final ThreadPoolExecutor rpcExecutor =
+      new ThreadPoolExecutor(
+          1,
+          1,
+          0L,
+          TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<>(SyncConstants.RPC_FRAME_POOL_SIZE),
+          new ThreadPoolExecutor.AbortPolicy());
+  /** Received RPCs dropped because the callback thread was too far behind. */
+  private final AtomicInteger droppedRpcCount = new AtomicInteger();
+
+  SoftwareSyncBase(
+      String name,
+      Ticker localClock,
+      InetAddress address,
+      InetAddress leaderAddress,
+      SyncTransport transport) {
+    this.rpcPort = transport.rpcPort();
+    this.sntpPort = transport.sntpPort();
     this.localClock = localClock;
 
     // Set up local ClientInfo from the provided address.
@@ -79,19 +114,12 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
 
     // Open sockets and start communication threads between leader and client devices.
     try {
-      rpcSocket = new DatagramSocket(null);
-      rpcSocket.setReuseAddress(true);
-      rpcSocket.setSoTimeout(SyncConstants.SOCKET_WAIT_TIME_MS);
-      rpcSocket.bind(new InetSocketAddress(SyncConstants.RPC_PORT));
-
-      sntpSocket = new DatagramSocket(null);
-      sntpSocket.setReuseAddress(true);
-      sntpSocket.setSoTimeout(SyncConstants.SOCKET_WAIT_TIME_MS);
-      sntpSocket.bind(new InetSocketAddress(SyncConstants.SNTP_PORT));
+      rpcEndpoint = transport.openRpcEndpoint();
+      sntpSocket = transport.openSntpSocket(localClock);
 
     } catch (BindException e) {
       throw new IllegalArgumentException("Socket already in use, close app and restart: " + e);
-    } catch (SocketException e) {
+    } catch (IOException e) {
       throw new IllegalArgumentException("Unable to open Sockets: " + e);
     }
 
@@ -113,14 +141,15 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
    * Calculates the leader time associated with the given local time in nanoseconds. The local time
    * must be in the SystemClock.elapsedRealTimeNanos() localClock domain, nanosecond units. This
    * includes timestamps such as the sensor timestamp from the camera. leader_time =
-   * local_elapsed_time_ns + leader_from_local_ns.
+   * local_elapsed_time_ns - leader_from_local_ns, where leader_from_local_ns is corrected for the
+   * clock drift measured between this device and the leader.
    *
    * @param localTimeNs given local time (local clock SystemClock.elapsedRealtimeNanos() domain).
    * @return leader synchronized time in nanoseconds.
    */
   @Override
   public long leaderTimeForLocalTimeNs(long localTimeNs) {
-    return localTimeNs - leaderFromLocalNs;
+    return localTimeNs - leaderFromLocalModel.leaderFromLocalNs(localTimeNs);
   }
 
   public String getName() {
@@ -136,16 +165,29 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
   }
 
   /**
-   * Returns get the localClock offsetNs between this devices local elapsed time and the leader in
-   * nanoseconds.
+   * Returns get the current localClock offsetNs between this devices local elapsed time and the
+   * leader in nanoseconds.
    */
   public long getLeaderFromLocalNs() {
-    return leaderFromLocalNs;
+    return leaderFromLocalModel.leaderFromLocalNs(localClock.read());
+  }
+
+  /**
+   * Returns the measured skew of the leader clock relative to the local clock in parts per million,
+   * 0 until enough offset samples have been collected.
+   */
+  public double getClockSkewPpm() {
+    return leaderFromLocalModel.skew() * 1e6;
   }
 
   /** Set the offsetNs between this device's local elapsed time and the leader synchronized time. */
   void setLeaderFromLocalNs(long value) {
-    leaderFromLocalNs = value;
+    leaderFromLocalModel = ClockDriftEstimator.Model.constant(value);
+  }
+
+  /** Set the drift corrected model of the offsetNs between this device and the leader. */
+  void setLeaderFromLocalModel(ClockDriftEstimator.Model model) {
+    leaderFromLocalModel = model;
   }
 
   void addPublicRpcCallbacks(Map<Integer, RpcCallback> callbacks) {
@@ -160,27 +202,101 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
     rpcMap.putAll(callbacks);
   }
 
+  void addPublicBinaryRpcCallbacks(Map<Integer, BinaryRpcCallback> callbacks) {
+    for (Map.Entry<Integer, BinaryRpcCallback> entry : callbacks.entrySet()) {
+      if (entry.getKey() < SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS) {
+        throw new IllegalArgumentException(
+            String.format(
+                "Given method id %s, User method ids must" + " be >= %s",
+                entry.getKey(), SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS));
+      }
+      binaryRpcMap.put(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Returns a pooled frame with the header for {@code method} already written. Append fields with
+   * the {@code RpcFrame.put*} methods and hand it to a send method, which releases it.
+   */
+  public RpcFrame obtainRpcFrame(int method) {
+    RpcFrame frame = rpcFramePool.acquire();
+    frame.begin(method, rpcSession, nextRpcSequence.incrementAndGet());
+    return frame;
+  }
+
   /** Sends a message with arguments to the specified address over the rpc socket. */
   void sendRpc(int method, String arguments, InetAddress address) {
-    byte[] messagePayload = arguments.getBytes();
-    if (messagePayload.length + 4 > SyncConstants.RPC_BUFFER_SIZE) {
-      throw new IllegalArgumentException(
-          String.format(
-              "RPC arguments too big %d v %d",
-              messagePayload.length + 4, SyncConstants.RPC_BUFFER_SIZE));
+    RpcFrame frame = obtainRpcFrame(method);
+    try {
+      if (arguments != null) {
+        frame.putString(arguments);
+      }
+    } catch (IllegalArgumentException e) {
+      frame.release();
+      throw e;
     }
+    sendRpc(frame, address);
+  }
 
-    byte[] fullPayload =
-        ByteBuffer.allocate(messagePayload.length + 4).putInt(method).put(messagePayload).array();
+  /** Sends an encoded frame to the specified address over the rpc socket and releases it. */
+  void sendRpc(RpcFrame frame, InetAddress address) {
+    try {
+      sendRpcFrame(frame, address);
+    } finally {
+      frame.release();
+    }
+  }
 
-    DatagramPacket packet = new DatagramPacket(fullPayload, fullPayload.length, address, rpcPort);
+  /**
+   * Sends an encoded frame without releasing it, so the same frame can be sent to several
+   * addresses. The caller must not modify the frame until the call returns.
+   */
+  void sendRpcFrame(RpcFrame frame, InetAddress address) {
     try {
-      rpcSocket.send(packet);
+      rpcEndpoint.send(frame.packetFor(address, rpcPort));
     } catch (IOException e) {
       throw new IllegalStateException("Error sending RPC packet.");
     }
   }
 
+  /**
+   * Sends an encoded frame reliably: the receiver acknowledges it and it is retransmitted with
+   * backoff until it does or {@link SyncConstants#RPC_MAX_RETRANSMITS} is reached. Receivers
+   * dispatch the frame only once. Takes ownership of the frame.
+   *
+   * @return future completing with whether the receiver acknowledged the frame.
+   */
+  public CompletableFuture<RpcDelivery> sendReliableRpc(RpcFrame frame, InetAddress address) {
+    return reliableRpcSender.send(frame, Collections.singleton(address), null);
+  }
+
+  /**
+   * Sends an encoded frame reliably to several recipients, see {@link #sendReliableRpc(RpcFrame,
+   * InetAddress)}. If broadcastAddress is not null the first send is a single datagram to it.
+   */
+  CompletableFuture<RpcDelivery> sendReliableRpc(
+      RpcFrame frame, Collection<InetAddress> recipients, InetAddress broadcastAddress) {
+    return reliableRpcSender.send(frame, recipients, broadcastAddress);
+  }
+
+  /**
+   * Allows sending frames to the subnet broadcast address. Broadcast frames received back by this
+   * device are ignored from then on.
+   */
+  void enableRpcBroadcast() {
+    try {
+      rpcEndpoint.setBroadcast(true);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to enable broadcast on the rpc socket: " + e);
+    }
+    rpcBroadcastSender = true;
+  }
+
+  /** Forgets the received sequence numbers of a sender that is no longer connected. */
+  void forgetRpcSender(InetAddress sender) {
+    rpcDedupWindow.remove(sender);
+  }
+
   /**
    * RPC thread loop that listens for packets on the rpc socket, processes and calls onRpc with the
    * processed method and payload.
@@ -197,39 +313,108 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
     }
 
     @Override
-    @SuppressWarnings("FutureReturnValueIgnored")
     public void run() {
       running = true;
 
-      byte[] buf = new byte[SyncConstants.RPC_BUFFER_SIZE];
-      while (running && !rpcSocket.isClosed()) {
-        DatagramPacket packet = new DatagramPacket(buf, buf.length);
-
+      RpcFrame frame = acquireReceiveFrame();
+      while (running && !rpcEndpoint.isClosed()) {
         try {
-          // Wait for a client message.
-          rpcSocket.receive(packet);
+          // Wait for a client message, it is normal to time out most of the time.
+          if (!rpcEndpoint.receive(frame.packetForReceive(), SyncConstants.SOCKET_WAIT_TIME_MS)) {
+            continue;
+          }
 
-          // Separate packet string into int method and string payload
-          // First 4 bytes is the integer method.
-          ByteBuffer packetByteBuffer = ByteBuffer.wrap(packet.getData());
-          int method = packetByteBuffer.getInt(); // From first 4 bytes.
-          // Rest of the bytes are the payload.
-          String payload = new String(packet.getData(), 4, packet.getLength() - 4);
+          if (!frame.parseReceived()) {
+            Log.w(TAG, "Received malformed or unknown version RPC packet, skipping.");
+            continue;
+          }
 
-          // Call onRpc with the method and payload in a separate thread.
-          rpcExecutor.submit(() -> onRpc(method, payload));
+          // Call onRpc with the method and payload in a separate thread. The frame is handed over
+          // to the dispatch task, which releases it after the callback returns.
+          try {
+            rpcExecutor.execute(frame.dispatchTask);
+          } catch (RejectedExecutionException e) {
+            // The callback queue is full. Keep the frame for the next receive.
+            int dropped = droppedRpcCount.incrementAndGet();
+            Log.w(TAG, "RPC queue full, dropped method " + frame.method() + ", total " + dropped);
+            continue;
+          }
+          frame = acquireReceiveFrame();
 
-        } catch (SocketTimeoutException e) {
-          // Do nothing since this is a normal timeout of the receive.
         } catch (IOException e) {
-          if (running || rpcSocket.isClosed()) {
+          if (running || rpcEndpoint.isClosed()) {
             Log.w(TAG, "Shutdown arrived in middle of a socket receive, ignoring error.");
           } else {
             throw new IllegalStateException("Socket Receive/Send error: " + e);
           }
         }
       }
+      frame.release();
+    }
+  }
+
+  /** Returns a pooled frame for the receive loop, creating its dispatch task on first use. */
+  private RpcFrame acquireReceiveFrame() {
+    RpcFrame frame = rpcFramePool.acquire();
+    if (frame.dispatchTask == null) {
+      final RpcFrame received = frame;
+      frame.dispatchTask =
+          () -> {
+            try {
+              dispatchReceived(received);
+            } finally {
+              received.release();
+            }
+          };
     }
+    return frame;
+  }
+
+  /**
+   * Handles the acknowledgement part of the protocol for a received frame before dispatching it to
+   * the callbacks: acks are routed to {@link #onRpcAck}, frames asking for an ack are answered
+   * (also when they are duplicates, in case the previous ack was lost) and dispatched only once.
+   */
+  private void dispatchReceived(RpcFrame frame) {
+    final int method = frame.method();
+    final InetAddress sender = frame.sender();
+    if (method == SyncConstants.METHOD_RPC_ACK) {
+      reliableRpcSender.onAck(sender, RpcFrame.getInt(frame.payload()));
+      return;
+    }
+    if (rpcBroadcastSender && frame.hasFlag(RpcFrame.FLAG_BROADCAST)) {
+      // Our own broadcast looped back, it was already handled locally when sent.
+      return;
+    }
+    if (frame.hasFlag(RpcFrame.FLAG_ACK_REQUESTED)) {
+      sendRpc(obtainRpcFrame(SyncConstants.METHOD_RPC_ACK).putInt(frame.sequence()), sender);
+      if (!rpcDedupWindow.markReceived(sender, frame.session(), frame.sequence())) {
+        Log.v(TAG, "Duplicate RPC " + method + " from " + sender + ", skipping.");
+        return;
+      }
+    }
+    onBinaryRpc(method, frame.payload());
+  }
+
+  /**
+   * Handle a received RPC, preferring a binary callback. String callbacks are adapted by decoding
+   * the single string field they were sent with, or null if the payload is empty.
+   */
+  void onBinaryRpc(int method, ByteBuffer payload) {
+    BinaryRpcCallback binaryCallback = binaryRpcMap.get(method);
+    if (binaryCallback != null) {
+      binaryCallback.call(payload);
+      return;
+    }
+    RpcCallback callback = rpcMap.get(method);
+    if (callback != null) {
+      callback.call(RpcFrame.isEmpty(payload) ? null : RpcFrame.getString(payload));
+    }
+  }
+
+  /** Returns the number of received RPCs dropped because the callback queue was full. */
+  public int getDroppedRpcCount() {
+    return droppedRpcCount.get();
   }
 
   /** Handle RPCs using the existing RPC map. */
@@ -246,8 +431,9 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
    */
   @Override
   public void close() throws IOException {
+    reliableRpcSender.close();
     rpcListenerThread.stopRunning();
-    rpcSocket.close();
+    rpcEndpoint.close();
     sntpSocket.close();
   }
 }
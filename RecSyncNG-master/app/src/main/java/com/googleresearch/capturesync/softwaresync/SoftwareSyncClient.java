@@ -19,6 +19,7 @@ package com.googleresearch.capturesync.softwaresync;
 import android.util.Log;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -40,7 +41,8 @@ import java.util.concurrent.TimeUnit;
  * synchronizing it's clock with leader to the precision requested.
  *
  * <p>Finally, once the leader responds with an time correction offsetNs, it enters the synced
- * state.
+ * state. The leader keeps sending offset samples while synced, which are fitted to correct for
+ * the drift between the two clocks.
  *
  * <p>>User should handle thrown IOExceptions for networking. The most common cause for a thrown
  * exception is when the user closes the client down, but there is still a socket receive or a
@@ -62,27 +64,56 @@ public class SoftwareSyncClient extends SoftwareSyncBase {
 
   private long lastLeaderOffsetResponseTimeNs;
 
+  /** Fits offset and skew to the leader from the offset samples, used on the rpc thread only. */
+  private final ClockDriftEstimator driftEstimator = new ClockDriftEstimator();
+
   private SntpListener sntpThread;
 
+  /** Local address sent with every heartbeat, resolved once. */
+  private final String localAddressString;
+
   public SoftwareSyncClient(
       String name,
       InetAddress address,
       InetAddress leaderAddress,
       Map<Integer, RpcCallback> rpcCallbacks) {
-    this(name, new SystemTicker(), address, leaderAddress, rpcCallbacks);
+    this(name, address, leaderAddress, rpcCallbacks, Collections.emptyMap());
+  }
+
+  public SoftwareSyncClient(
+      String name,
+      InetAddress address,
+      InetAddress leaderAddress,
+      Map<Integer, RpcCallback> rpcCallbacks,
+      Map<Integer, BinaryRpcCallback> binaryRpcCallbacks) {
+    this(
+        name,
+        new SystemTicker(),
+        address,
+        leaderAddress,
+        rpcCallbacks,
+        binaryRpcCallbacks,
+        UdpSyncTransport.createDefault());
   }
 
+  /**
+   * Creates a client reading time from localClock and communicating over transport, which lets
+   * tests and simulations replace the device clock and the UDP sockets.
+   */
   @SuppressWarnings("FutureReturnValueIgnored")
-  private SoftwareSyncClient(
+  public SoftwareSyncClient(
       String name,
       Ticker localClock,
       InetAddress address,
       InetAddress leaderAddress,
-      Map<Integer, RpcCallback> rpcCallbacks) {
-    super(name, localClock, address, leaderAddress);
+      Map<Integer, RpcCallback> rpcCallbacks,
+      Map<Integer, BinaryRpcCallback> binaryRpcCallbacks,
+      SyncTransport transport) {
+    super(name, localClock, address, leaderAddress, transport);
+    localAddressString = address.getHostAddress();
 
     // Add client-specific RPC callbacks.
-    rpcMap.put(
+    binaryRpcMap.put(
         SyncConstants.METHOD_HEARTBEAT_ACK,
         payload -> {
           // Leader responded to heartbeat. update last response and change sync status as needed.
@@ -90,20 +121,31 @@ public class SoftwareSyncClient extends SoftwareSyncBase {
           Log.v(TAG, "Heartbeat acknowledge received from leader.");
           updateState();
         });
-    rpcMap.put(
+    binaryRpcMap.put(
         SyncConstants.METHOD_OFFSET_UPDATE,
         payload -> {
           lastLeaderOffsetResponseTimeNs = localClock.read();
 
-          Log.d(TAG, "Received offsetNs update: (" + payload + "), stopping sntp sync request.");
-          // Set the time offsetNs to the offsetNs passed in by the leader and update state.
-          setLeaderFromLocalNs(Long.parseLong(payload));
+          long offsetNs = RpcFrame.getLong(payload);
+          Log.d(TAG, "Received offsetNs update: (" + offsetNs + "), stopping sntp sync request.");
+          if (RpcFrame.isEmpty(payload)) {
+            // Set the time offsetNs to the offsetNs passed in by the leader.
+            driftEstimator.reset();
+            setLeaderFromLocalNs(offsetNs);
+          } else {
+            // Refit the drift model with the new sample taken at the given local time.
+            long sampleTimeNs = RpcFrame.getLong(payload);
+            long syncAccuracyNs = RpcFrame.getLong(payload);
+            setLeaderFromLocalModel(
+                driftEstimator.addSample(sampleTimeNs, offsetNs, syncAccuracyNs));
+          }
           updateState();
           onRpc(SyncConstants.METHOD_MSG_OFFSET_UPDATED, Long.toString(getLeaderFromLocalNs()));
         });
 
     // Add callbacks passed by user.
     addPublicRpcCallbacks(rpcCallbacks);
+    addPublicBinaryRpcCallbacks(binaryRpcCallbacks);
 
     // Initial state is waiting to register with leader.
     reset();
@@ -131,21 +173,16 @@ public class SoftwareSyncClient extends SoftwareSyncBase {
     // First update current client state based on time since last response.
     updateState();
 
-    // Generate heartbeat message containing the client address and the
-    // string value of the synchronization state.
-    final String heartbeatMsg;
+    // Generate heartbeat message containing the client name, address and the
+    // synchronization state.
+    RpcFrame heartbeat = obtainRpcFrame(SyncConstants.METHOD_HEARTBEAT);
+    heartbeat.putString(getLocalClientInfo().name()).putString(localAddressString);
     synchronized (syncLock) {
-      // Note: Send messages using strings for simplicity.
-      heartbeatMsg =
-          String.format(
-              "%s,%s,%s",
-              getLocalClientInfo().name(),
-              getLocalClientInfo().address().getHostAddress(),
-              Boolean.toString(synced));
+      heartbeat.putInt(synced ? 1 : 0);
     }
 
     // Send heartbeat RPC to leader, expecting a METHOD_HEARTBEAT_ACK rpc back from leader.
-    sendRpc(SyncConstants.METHOD_HEARTBEAT, heartbeatMsg, getLeaderAddress());
+    sendRpc(heartbeat, getLeaderAddress());
   }
 
   /**
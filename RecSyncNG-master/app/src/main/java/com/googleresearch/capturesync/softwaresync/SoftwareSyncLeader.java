@@ -20,14 +20,12 @@ import android.util.Log;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -42,37 +40,61 @@ import java.util.concurrent.TimeUnit;
  * <p>The leader listens for client registrations and keeps track of connected clients. It also
  * listens for SNTP synchronization requests and processes them in a queue. Once it has determined
  * the offsetNs it sends an rpc message to the client, thereby synchronizing the client's clock with
- * the leader's to the precision requested.
+ * the leader's to the precision requested. Synced clients keep being resampled periodically so
+ * they can correct for clock drift.
  */
 public class SoftwareSyncLeader extends SoftwareSyncBase {
-  /** List of connected clients. */
-  private final Map<InetAddress, ClientInfo> clients = new HashMap<>();
-
-  private final Object clientsLock = new Object();
+  /**
+   * Connected clients. Entries are immutable ClientInfo values that are replaced atomically, so
+   * heartbeats, offset updates, stale checks and broadcasts never block each other.
+   */
+  private final ConcurrentHashMap<InetAddress, ClientInfo> clients = new ConcurrentHashMap<>();
 
   /** Keeps track of how long since each client heartbeat was received, removing when stale. */
   private final ScheduledExecutorService staleClientChecker = Executors.newScheduledThreadPool(1);
 
-  /** Send RPC messages on a separate thread, avoiding Network on Main Thread exceptions. */
-  private final ExecutorService rpcMessageExecutor = Executors.newSingleThreadExecutor();
+  /** Subnet broadcast address broadcast RPCs are sent to, or null to send to each client. */
+  private volatile InetAddress rpcBroadcastAddress;
 
   /** Manages SNTP synchronization of clients. */
   private final SimpleNetworkTimeProtocol sntp;
 
   public SoftwareSyncLeader(
       String name, long initialTime, InetAddress address, Map<Integer, RpcCallback> rpcCallbacks) {
-    this(name, new SystemTicker(), initialTime, address, rpcCallbacks);
+    this(name, initialTime, address, rpcCallbacks, Collections.emptyMap());
+  }
+
+  public SoftwareSyncLeader(
+      String name,
+      long initialTime,
+      InetAddress address,
+      Map<Integer, RpcCallback> rpcCallbacks,
+      Map<Integer, BinaryRpcCallback> binaryRpcCallbacks) {
+    this(
+        name,
+        new SystemTicker(),
+        initialTime,
+        address,
+        rpcCallbacks,
+        binaryRpcCallbacks,
+        UdpSyncTransport.createDefault());
   }
 
+  /**
+   * Creates a leader reading time from localClock and communicating over transport, which lets
+   * tests and simulations replace the device clock and the UDP sockets.
+   */
   @SuppressWarnings("FutureReturnValueIgnored")
-  private SoftwareSyncLeader(
+  public SoftwareSyncLeader(
       String name,
       Ticker localClock,
       long initialTime,
       InetAddress address,
-      Map<Integer, RpcCallback> rpcCallbacks) {
+      Map<Integer, RpcCallback> rpcCallbacks,
+      Map<Integer, BinaryRpcCallback> binaryRpcCallbacks,
+      SyncTransport transport) {
     // Note: Leader address is required to be the same as local address.
-    super(name, localClock, address, address);
+    super(name, localClock, address, address, transport);
 
     // Set up the offsetNs so that the leader synchronized time (via getLeaderTimeNs()) on all
     // devices
@@ -84,34 +106,54 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
     setLeaderFromLocalNs(localClock.read() - initialTime);
 
     // Add client-specific RPC callbacks.
-    rpcMap.put(
+    binaryRpcMap.put(
         SyncConstants.METHOD_HEARTBEAT,
         payload -> {
           // Received heartbeat from client, send back an acknowledge and then
           // check the client state and add to sntp queue if needed.
-          Log.v(TAG, "Heartbeat received from client: " + payload);
           try {
             processHeartbeatRpc(payload);
-          } catch (UnknownHostException e) {
-            Log.e(TAG, "Processed heartbeat with corrupt host address: " + payload);
+          } catch (UnknownHostException | IllegalArgumentException e) {
+            Log.e(TAG, "Processed heartbeat with corrupt payload: " + e);
           }
         });
 
     // Add callbacks passed by user.
     addPublicRpcCallbacks(rpcCallbacks);
+    addPublicBinaryRpcCallbacks(binaryRpcCallbacks);
 
     // Set up SNTP instance for synchronizing with clients.
-    sntp = new SimpleNetworkTimeProtocol(localClock, sntpSocket, SyncConstants.SNTP_PORT, this);
+    sntp = new SimpleNetworkTimeProtocol(localClock, sntpSocket, sntpPort, this);
 
     // Start periodically checking for stale clients and removing as needed.
     staleClientChecker.scheduleAtFixedRate(
         this::removeStaleClients, 0, SyncConstants.STALE_TIME_NS, TimeUnit.NANOSECONDS);
   }
 
+  /**
+   * Returns an immutable snapshot of the connected clients, safe to iterate while clients are
+   * added, updated or removed concurrently.
+   */
   public Map<InetAddress, ClientInfo> getClients() {
-    synchronized (clientsLock) {
-      return Collections.unmodifiableMap(clients);
-    }
+    return Collections.unmodifiableMap(new HashMap<>(clients));
+  }
+
+  /**
+   * Sends broadcast RPCs as a single datagram to the given subnet broadcast address instead of one
+   * datagram per client, so all clients receive a command at the same time. Clients that don't
+   * acknowledge a broadcast are sent it again via unicast.
+   *
+   * @param broadcastAddress the broadcast address of the network clients are connected to, see
+   *     {@link NetworkHelpers#getBroadcastAddress(InetAddress)}.
+   */
+  public void enableBroadcastRpc(InetAddress broadcastAddress) {
+    enableRpcBroadcast();
+    rpcBroadcastAddress = broadcastAddress;
+  }
+
+  /** Returns true if the client is currently connected, without taking a snapshot. */
+  boolean hasClient(InetAddress address) {
+    return clients.containsKey(address);
   }
 
   /**
@@ -120,23 +162,24 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
    * list.
    */
   private void addOrUpdateClient(String name, InetAddress address) {
-    // Check if it's a new client, so we don't add again.
-    synchronized (clientsLock) {
-      boolean clientExists = clients.containsKey(address);
-      // Add or replace entry with an updated ClientInfo.
-      long offsetNs = 0;
-      long syncAccuracyNs = 0;
-      if (clientExists) {
-        offsetNs = clients.get(address).offset();
-        syncAccuracyNs = clients.get(address).syncAccuracy();
-      }
-      ClientInfo updatedClient =
-          ClientInfo.create(name, address, offsetNs, syncAccuracyNs, localClock.read());
-      clients.put(address, updatedClient);
-
-      if (!clientExists) {
-        // Notify via message on interface if client is new.
-        onRpc(SyncConstants.METHOD_MSG_ADDED_CLIENT, updatedClient.name());
+    final long heartbeatNs = localClock.read();
+    while (true) {
+      ClientInfo client = clients.get(address);
+      if (client == null) {
+        ClientInfo newClient = ClientInfo.create(name, address, 0, 0, heartbeatNs);
+        if (clients.putIfAbsent(address, newClient) == null) {
+          // Notify via message on interface if client is new.
+          onRpc(SyncConstants.METHOD_MSG_ADDED_CLIENT, newClient.name());
+          return;
+        }
+      } else {
+        // Replace entry with an updated ClientInfo, keeping the offset and accuracy unless an
+        // offset update raced with us, in which case retry with the new value.
+        ClientInfo updatedClient =
+            ClientInfo.create(name, address, client.offset(), client.syncAccuracy(), heartbeatNs);
+        if (clients.replace(address, client, updatedClient)) {
+          return;
+        }
       }
     }
   }
@@ -144,45 +187,38 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
   /** Removes clients whose last heartbeat was longer than STALE_TIME_NS ago. */
   private void removeStaleClients() {
     long t = localClock.read();
-    synchronized (clientsLock) {
-      // Use iterator to avoid concurrent modification exception.
-      Iterator<Entry<InetAddress, ClientInfo>> clientIterator = clients.entrySet().iterator();
-      while (clientIterator.hasNext()) {
-        ClientInfo client = clientIterator.next().getValue();
-        long timeSince = t - client.lastHeartbeat();
-        if (timeSince > SyncConstants.STALE_TIME_NS) {
-          Log.w(
-              TAG,
-              String.format(
-                  "Stale client %s : time since %,d seconds",
-                  client.name(), TimeUtils.nanosToSeconds(timeSince)));
+    for (ClientInfo client : clients.values()) {
+      long timeSince = t - client.lastHeartbeat();
+      // Only remove the exact entry that went stale, a concurrent heartbeat keeps the client.
+      if (timeSince > SyncConstants.STALE_TIME_NS && clients.remove(client.address(), client)) {
+        Log.w(
+            TAG,
+            String.format(
+                "Stale client %s : time since %,d seconds",
+                client.name(), TimeUtils.nanosToSeconds(timeSince)));
 
-          // Remove entry from the client list first.
-          clientIterator.remove();
-          // Client hasn't responded in a while, remove from list.
-          onRpc(SyncConstants.METHOD_MSG_REMOVED_CLIENT, client.name());
-        }
+        // Client hasn't responded in a while, notify it was removed from the list.
+        forgetRpcSender(client.address());
+        onRpc(SyncConstants.METHOD_MSG_REMOVED_CLIENT, client.name());
       }
     }
   }
 
   /** Finds and updates client sync accuracy within list. */
   void updateClientWithOffsetResponse(InetAddress clientAddress, SntpOffsetResponse response) {
-    // Update client sync accuracy locally.
-    synchronized (clientsLock) {
-      if (!clients.containsKey(clientAddress)) {
-        Log.w(TAG, "Tried to update a client info that is no longer in the list, Skipping.");
-        return;
-      }
-      final ClientInfo client = clients.get(clientAddress);
-      ClientInfo updatedClient =
-          ClientInfo.create(
-              client.name(),
-              client.address(),
-              response.offsetNs(),
-              response.syncAccuracyNs(),
-              client.lastHeartbeat());
-      clients.put(client.address(), updatedClient);
+    // Update client sync accuracy locally, atomically with respect to heartbeat updates.
+    ClientInfo updatedClient =
+        clients.computeIfPresent(
+            clientAddress,
+            (address, client) ->
+                ClientInfo.create(
+                    client.name(),
+                    client.address(),
+                    response.offsetNs(),
+                    response.syncAccuracyNs(),
+                    client.lastHeartbeat()));
+    if (updatedClient == null) {
+      Log.w(TAG, "Tried to update a client info that is no longer in the list, Skipping.");
     }
   }
 
@@ -192,17 +228,30 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
    * @param method int type of RPC (in {@link SyncConstants}).
    * @param payload String payload.
    */
-  @SuppressWarnings("FutureReturnValueIgnored")
-  private void internalBroadcastRpc(int method, String payload) {
-    // Send RPC message to all clients and call onRPC of self as well.
-    synchronized (clientsLock) {
-      for (InetAddress address : clients.keySet()) {
-        rpcMessageExecutor.submit(() -> sendRpc(method, payload, address));
+  private CompletableFuture<RpcDelivery> internalBroadcastRpc(int method, String payload) {
+    // Encode once and send the same frame to all clients, then call onRPC of self as well.
+    RpcFrame frame = obtainRpcFrame(method);
+    if (payload != null) {
+      try {
+        frame.putString(payload);
+      } catch (IllegalArgumentException e) {
+        frame.release();
+        throw e;
       }
     }
+    CompletableFuture<RpcDelivery> delivery = sendToAllClients(frame);
 
     // Also call onRpc for self (leader).
     onRpc(method, payload);
+    return delivery;
+  }
+
+  /**
+   * Sends the frame reliably to every current client, as a single subnet broadcast if enabled,
+   * taking over the caller's reference to the frame.
+   */
+  private CompletableFuture<RpcDelivery> sendToAllClients(RpcFrame frame) {
+    return sendReliableRpc(frame, clients.keySet(), rpcBroadcastAddress);
   }
 
   /**
@@ -211,15 +260,44 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
    * @param method int type of RPC, must be greater than {@link
    *     SyncConstants#START_NON_SOFTWARESYNC_METHOD_IDS}.
    * @param payload String payload.
+   * @return future completing with which clients confirmed receiving the RPC, once all did or the
+   *     retransmits ran out.
    */
-  public void broadcastRpc(int method, String payload) {
+  public CompletableFuture<RpcDelivery> broadcastRpc(int method, String payload) {
     if (method < SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS) {
       throw new IllegalArgumentException(
           String.format(
               "Given method id %s, User method ids must" + " be >= %s",
               method, SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS));
     }
-    internalBroadcastRpc(method, payload);
+    return internalBroadcastRpc(method, payload);
+  }
+
+  /**
+   * Public-facing broadcast of a binary RPC frame from {@link #obtainRpcFrame(int)} to all current
+   * clients and to the leader itself, for non-softwaresync RPC methods only. Takes ownership of the
+   * frame.
+   *
+   * @return future completing with which clients confirmed receiving the RPC.
+   */
+  public CompletableFuture<RpcDelivery> broadcastRpc(RpcFrame frame) {
+    int method = frame.method();
+    if (method < SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS) {
+      frame.release();
+      throw new IllegalArgumentException(
+          String.format(
+              "Given method id %s, User method ids must" + " be >= %s",
+              method, SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS));
+    }
+    // Keep a reference for the local call while the send task owns the other.
+    frame.retain();
+    CompletableFuture<RpcDelivery> delivery = sendToAllClients(frame);
+    try {
+      onBinaryRpc(method, frame.payload());
+    } finally {
+      frame.release();
+    }
+    return delivery;
   }
 
   @Override
@@ -241,31 +319,26 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
    * or updating the client in the tracked clients list, and submitting a new SNTP sync request if
    * the client state is not yet synchronized.
    *
-   * @param payload format of "ClientName,ClientAddress,ClientState"
+   * @param payload fields of (String ClientName, String ClientAddress, int ClientState)
    */
-  private void processHeartbeatRpc(String payload) throws UnknownHostException {
-    List<String> parts = Arrays.asList(payload.split(","));
-    if (parts.size() != 3) {
-      Log.e(
-          TAG,
-          "Heartbeat message has the wrong format, expected 3 comma-delimitted parts: "
-              + payload
-              + ". Skipping.");
-      return;
-    }
-    String clientName = parts.get(0);
-    InetAddress clientAddress = InetAddress.getByName(parts.get(1));
-    boolean clientSyncState = Boolean.parseBoolean(parts.get(2));
+  private void processHeartbeatRpc(ByteBuffer payload) throws UnknownHostException {
+    String clientName = RpcFrame.getString(payload);
+    InetAddress clientAddress = InetAddress.getByName(RpcFrame.getString(payload));
+    boolean clientSyncState = RpcFrame.getInt(payload) != 0;
+    Log.v(TAG, "Heartbeat received from client: " + clientName);
 
-    // Send heartbeat acknowledge RPC back to client first, containing the same payload.
-    sendRpc(SyncConstants.METHOD_HEARTBEAT_ACK, payload, clientAddress);
+    // Send heartbeat acknowledge RPC back to client first.
+    sendRpc(obtainRpcFrame(SyncConstants.METHOD_HEARTBEAT_ACK), clientAddress);
 
     // Add or update client in clients.
     addOrUpdateClient(clientName, clientAddress);
 
-    // If the client state is not yet synchronized, add it to the SNTP queue.
+    // If the client state is not yet synchronized, add it to the SNTP queue. Otherwise keep
+    // sampling its offset in the background so the client can track clock drift.
     if (!clientSyncState) {
       sntp.submitNewSyncRequest(clientAddress);
+    } else {
+      sntp.maybeSubmitDriftSampleRequest(clientAddress);
     }
   }
 }
@@ -36,6 +36,19 @@ public class SyncConstants {
   public static final int RPC_PORT = 8244;
   public static final int RPC_BUFFER_SIZE = 1024;
 
+  /** Version byte leading every {@link RpcFrame}, frames with another version are dropped. */
+  public static final byte RPC_PROTOCOL_VERSION = 1;
+
+  /** Number of preallocated RPC frames shared by sends and receives. */
+  public static final int RPC_FRAME_POOL_SIZE = 32;
+
+  /**
+   * Reliable RPCs. Recipients that did not acknowledge an RPC within RPC_ACK_TIMEOUT_NS get it
+   * again via unicast, with the timeout doubling each time, up to RPC_MAX_RETRANSMITS times.
+   */
+  public static final long RPC_ACK_TIMEOUT_NS = TimeUtils.millisToNanos(20);
+  public static final int RPC_MAX_RETRANSMITS = 5;
+
   /** RPC Method ids.
    * [0 - 9,999] Reserved for SoftwareSync.
    *  - [0   -  99] Synchronization-related.
@@ -45,6 +58,8 @@ public class SyncConstants {
   public static final int METHOD_HEARTBEAT = 1;
   public static final int METHOD_HEARTBEAT_ACK = 2;
   public static final int METHOD_OFFSET_UPDATE = 3;
+  /** Acknowledges an RPC sent with an ack requested, carrying its sequence number. */
+  public static final int METHOD_RPC_ACK = 4;
 
   /* Define user RPC method ids using values greater or equal to this. */
   public static final int START_NON_SOFTWARESYNC_METHOD_IDS = 1_000;
@@ -62,5 +77,58 @@ public class SyncConstants {
   public static final int NUM_SNTP_CYCLES = 300;
   public static final long MIN_ROUND_TRIP_LATENCY_NS = TimeUtils.millisToNanos(1);
 
+  /**
+   * SNTP offset estimation, see {@link OffsetEstimator}. Estimators stop probing early once the 95%
+   * confidence interval of the offset is within OFFSET_CONFIDENCE_TARGET_NS.
+   */
+  public static final long OFFSET_CONFIDENCE_TARGET_NS = 100_000;
+  /** Minimum number of samples before the weighted estimator may stop early. */
+  public static final int OFFSET_MIN_SAMPLES = 16;
+  /** Latency excess added to every sample in the weighted estimator, limiting the top weight. */
+  public static final long OFFSET_WEIGHT_FLOOR_NS = 20_000;
+  /** Number of lowest latency samples the median estimator keeps. */
+  public static final int OFFSET_LOWEST_RTT_K = 10;
+
+  /**
+   * SNTP probe timing, see {@link SntpProbeSchedule}. Missed replies are detected after a timeout
+   * scaled to the observed round trips, starting from SNTP_INITIAL_PROBE_TIMEOUT_NS.
+   */
+  public static final long SNTP_INITIAL_PROBE_TIMEOUT_NS = TimeUtils.millisToNanos(100);
+  public static final long SNTP_MIN_PROBE_TIMEOUT_NS = TimeUtils.millisToNanos(2);
+  /** Longest pause between probes of a session when the link is congested. */
+  public static final long SNTP_MAX_PROBE_SPACING_NS = TimeUtils.millisToNanos(20);
+
+  /**
+   * Receive SNTP probes by spinning on a non-blocking channel, see {@link SntpSocket}. Falls back
+   * to the blocking socket if false or unavailable. Off by default, spinning burns a core for a
+   * few milliseconds around every probe and is only worth it on devices with cores to spare.
+   */
+  public static final boolean SNTP_SPIN_RECEIVE = false;
+  /** How long the SNTP socket keeps spinning after the last datagram sent or received. */
+  public static final long SNTP_SPIN_WINDOW_NS = TimeUtils.millisToNanos(5);
+  /**
+   * Round trip latency good enough to stop probing with spinning receive, bounding the offset
+   * error to half of it.
+   */
+  public static final long SPIN_MIN_ROUND_TRIP_LATENCY_NS = 150_000;
+
+  /**
+   * Clock drift tracking. Synced clients are resampled with a short SNTP run every
+   * DRIFT_SAMPLE_PERIOD_NS and the offsets are fitted with a line over the last DRIFT_WINDOW_SIZE
+   * samples.
+   */
+  public static final long DRIFT_SAMPLE_PERIOD_NS = TimeUtils.secondsToNanos(30);
+  public static final int DRIFT_SNTP_CYCLES = 30;
+  public static final int DRIFT_WINDOW_SIZE = 20;
+  /** Minimum time spanned by the samples before a skew is fitted. */
+  public static final long DRIFT_MIN_SPAN_NS = TimeUtils.secondsToNanos(60);
+  /** Fitted skews above this (500 ppm) are treated as measurement errors. */
+  public static final double DRIFT_MAX_SKEW = 500e-6;
+  /** Offset residual above which the drift history is discarded and estimation restarts. */
+  public static final long DRIFT_RESET_THRESHOLD_NS = TimeUtils.millisToNanos(5);
+
+  /** Receive timeout slice of the leader SNTP engine, which services all clients on one thread. */
+  public static final int SNTP_POLL_TIMEOUT_MS = 5;
+
   private SyncConstants() {}
 }
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import java.io.IOException;
+
+/**
+ * Opens the endpoints a {@link SoftwareSyncBase} communicates over, one for RPCs and one for SNTP
+ * probes, and names the ports of the peers' endpoints. Devices use {@link UdpSyncTransport}, tests
+ * and simulations may pass any other implementation to the leader and client constructors.
+ */
+public abstract class SyncTransport {
+
+  /** Port RPCs are sent to on the other devices. */
+  public abstract int rpcPort();
+
+  /** Port SNTP probes and replies are sent to on the other devices. */
+  public abstract int sntpPort();
+
+  /** Opens the endpoint RPCs are sent and received on. */
+  public abstract DatagramEndpoint openRpcEndpoint() throws IOException;
+
+  /** Opens the endpoint SNTP probes and replies are sent and received on. */
+  public abstract DatagramEndpoint openSntpEndpoint() throws IOException;
+
+  /**
+   * Opens the SNTP socket, which stamps received probes with the local clock. Transports that can
+   * read the clock closer to arrival than after a blocking receive override this.
+   */
+  SntpSocket openSntpSocket(Ticker localClock) throws IOException {
+    return SntpSocket.over(localClock, openSntpEndpoint());
+  }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+
+/** Transport over UDP sockets bound to the wildcard address, used on devices. */
+public final class UdpSyncTransport extends SyncTransport {
+  private final int rpcPort;
+  private final int sntpPort;
+  private final boolean spinReceive;
+
+  /**
+   * @param rpcPort port RPC sockets are bound to on every device.
+   * @param sntpPort port SNTP sockets are bound to on every device.
+   * @param spinReceive whether SNTP receives busy poll, see {@link
+   *     SyncConstants#SNTP_SPIN_RECEIVE}.
+   */
+  public UdpSyncTransport(int rpcPort, int sntpPort, boolean spinReceive) {
+    this.rpcPort = rpcPort;
+    this.sntpPort = sntpPort;
+    this.spinReceive = spinReceive;
+  }
+
+  /** Transport on the {@link SyncConstants#RPC_PORT} and {@link SyncConstants#SNTP_PORT}. */
+  public static UdpSyncTransport createDefault() {
+    return new UdpSyncTransport(
+        SyncConstants.RPC_PORT, SyncConstants.SNTP_PORT, SyncConstants.SNTP_SPIN_RECEIVE);
+  }
+
+  @Override
+  public int rpcPort() {
+    return rpcPort;
+  }
+
+  @Override
+  public int sntpPort() {
+    return sntpPort;
+  }
+
+  @Override
+  public DatagramEndpoint openRpcEndpoint() throws IOException {
+    return bind(rpcPort);
+  }
+
+  @Override
+  public DatagramEndpoint openSntpEndpoint() throws IOException {
+    return bind(sntpPort);
+  }
+
+  @Override
+  SntpSocket openSntpSocket(Ticker localClock) throws IOException {
+    return SntpSocket.open(localClock, sntpPort, spinReceive);
+  }
+
+  /** Opens a UDP socket bound to port on all interfaces. */
+  static DatagramEndpoint bind(int port) throws IOException {
+    return bind(new InetSocketAddress(port));
+  }
+
+  /** Opens a UDP socket bound to a local address, ex. one loopback address per simulated device. */
+  static DatagramEndpoint bind(InetSocketAddress address) throws IOException {
+    DatagramSocket socket = new DatagramSocket(null);
+    try {
+      socket.setReuseAddress(true);
+      socket.bind(address);
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+    return new SocketEndpoint(socket);
+  }
+
+  /** Endpoint backed by a DatagramSocket, receive timeouts map to the socket timeout. */
+  private static final class SocketEndpoint implements DatagramEndpoint {
+    private final DatagramSocket socket;
+    /** Timeout the socket is set to, only changed by the receiving thread. */
+    private int currentTimeoutMs = -1;
+
+    SocketEndpoint(DatagramSocket socket) {
+      this.socket = socket;
+    }
+
+    @Override
+    public boolean receive(DatagramPacket packet, int timeoutMs) throws IOException {
+      if (timeoutMs != currentTimeoutMs) {
+        socket.setSoTimeout(timeoutMs);
+        currentTimeoutMs = timeoutMs;
+      }
+      try {
+        socket.receive(packet);
+        return true;
+      } catch (SocketTimeoutException e) {
+        return false; // A normal timeout of the receive.
+      }
+    }
+
+    @Override
+    public void send(DatagramPacket packet) throws IOException {
+      socket.send(packet);
+    }
+
+    @Override
+    public void setBroadcast(boolean broadcast) throws IOException {
+      socket.setBroadcast(broadcast);
+    }
+
+    @Override
+    public boolean isClosed() {
+      return socket.isClosed();
+    }
+
+    @Override
+    public void close() {
+      socket.close();
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+/**
+ * Weighted mean of the offsets of all samples, weighting each by how close its round trip latency
+ * is to the lowest one seen. Samples delayed by congestion carry little weight, while the many
+ * samples near the latency floor average out their leg asymmetries, which the min filter keeps.
+ *
+ * <p>Sample i gets the weight 1 / (latency_i - minLatency + {@link
+ * SyncConstants#OFFSET_WEIGHT_FLOOR_NS})^2. The confidence interval is the 95% interval of the
+ * weighted mean using the effective number of samples, but never wider than half the lowest
+ * latency, the hard bound of the best single sample. Converges once at least {@link
+ * SyncConstants#OFFSET_MIN_SAMPLES} samples were added and the interval is within {@link
+ * SyncConstants#OFFSET_CONFIDENCE_TARGET_NS}.
+ */
+public final class WeightedOffsetEstimator implements OffsetEstimator {
+  public static final Factory FACTORY = WeightedOffsetEstimator::new;
+
+  private final long[] offsetsNs;
+  private final long[] latenciesNs;
+  private final long[] clientTimesNs;
+  private int size;
+  private long minLatencyNs = Long.MAX_VALUE;
+
+  // Result of the last update(), valid while size == updatedSize.
+  private int updatedSize = -1;
+  private long meanOffsetNs;
+  private long meanClientTimeNs;
+  private long confidenceIntervalNs;
+
+  public WeightedOffsetEstimator(int maxSamples, long minRoundTripLatencyNs) {
+    offsetsNs = new long[maxSamples];
+    latenciesNs = new long[maxSamples];
+    clientTimesNs = new long[maxSamples];
+  }
+
+  @Override
+  public void addSample(long offsetNs, long roundTripLatencyNs, long clientTimeNs) {
+    if (size == offsetsNs.length) {
+      return; // More samples than announced, keep the first ones.
+    }
+    offsetsNs[size] = offsetNs;
+    latenciesNs[size] = roundTripLatencyNs;
+    clientTimesNs[size] = clientTimeNs;
+    size++;
+    minLatencyNs = Math.min(minLatencyNs, roundTripLatencyNs);
+  }
+
+  @Override
+  public long currentOffsetNs() {
+    if (size == 0) {
+      return 0;
+    }
+    update();
+    return meanOffsetNs;
+  }
+
+  @Override
+  public boolean isConverged() {
+    if (size < SyncConstants.OFFSET_MIN_SAMPLES) {
+      return false;
+    }
+    update();
+    return confidenceIntervalNs <= SyncConstants.OFFSET_CONFIDENCE_TARGET_NS;
+  }
+
+  @Override
+  public SntpOffsetResponse estimate() {
+    if (size == 0) {
+      return SntpOffsetResponse.create(/*offset=*/ 0, /*syncAccuracy=*/ 0, false);
+    }
+    update();
+    long syncAccuracyNs = Math.min(minLatencyNs, 2 * confidenceIntervalNs);
+    return SntpOffsetResponse.create(
+        meanOffsetNs, syncAccuracyNs, meanClientTimeNs, confidenceIntervalNs, true);
+  }
+
+  private void update() {
+    if (updatedSize == size) {
+      return;
+    }
+    updatedSize = size;
+
+    // Accumulate relative to the first sample to keep the doubles precise.
+    final long offsetRefNs = offsetsNs[0];
+    final long clientTimeRefNs = clientTimesNs[0];
+    double sumW = 0;
+    double sumW2 = 0;
+    double sumWOffset = 0;
+    double sumWClientTime = 0;
+    for (int i = 0; i < size; i++) {
+      double w = weight(latenciesNs[i]);
+      sumW += w;
+      sumW2 += w * w;
+      sumWOffset += w * (offsetsNs[i] - offsetRefNs);
+      sumWClientTime += w * (clientTimesNs[i] - clientTimeRefNs);
+    }
+    double mean = sumWOffset / sumW;
+    double sumWResidual2 = 0;
+    for (int i = 0; i < size; i++) {
+      double residual = (offsetsNs[i] - offsetRefNs) - mean;
+      sumWResidual2 += weight(latenciesNs[i]) * residual * residual;
+    }
+    meanOffsetNs = offsetRefNs + Math.round(mean);
+    meanClientTimeNs = clientTimeRefNs + Math.round(sumWClientTime / sumW);
+
+    long boundNs = minLatencyNs / 2;
+    double effectiveSamples = sumW * sumW / sumW2;
+    if (effectiveSamples < 2) {
+      confidenceIntervalNs = boundNs;
+      return;
+    }
+    double varianceNs2 = sumWResidual2 / sumW * effectiveSamples / (effectiveSamples - 1);
+    double intervalNs = 1.96 * Math.sqrt(varianceNs2 / effectiveSamples);
+    confidenceIntervalNs = Math.min(boundNs, Math.round(intervalNs));
+  }
+
+  private double weight(long latencyNs) {
+    double excessNs = (latencyNs - minLatencyNs) + SyncConstants.OFFSET_WEIGHT_FLOOR_NS;
+    return 1 / (excessNs * excessNs);
+  }
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync.phasealign;
+
+/**
+ * Streaming estimate of the frame period of an image sequence and of its jitter, updated in O(1)
+ * on every frame timestamp without allocating or blocking.
+ *
+ * <p>The interval to the previous timestamp is divided by the nearest whole number of periods, so
+ * intervals spanning dropped frames still yield a period sample. Samples update an exponentially
+ * weighted mean and variance. The weight starts at 1/n, a plain running mean that converges in a
+ * few frames, and settles at {@link #ALPHA} so the estimate keeps following slow changes. Samples
+ * more than {@link #OUTLIER_SIGMAS} standard deviations off, such as the intervals around an
+ * injected phase alignment frame, are ignored. {@link #RESET_OUTLIER_COUNT} outliers in a row mean
+ * the frame rate changed, and the estimate starts over.
+ *
+ * <p>The estimate is published to the listener once its confidence reaches {@link
+ * #PUBLISH_CONFIDENCE}, and again whenever it moved by more than {@link #PUBLISH_CHANGE_NS} since.
+ *
+ * <p>{@link #onFrameTimestamp} must always be called from the same thread, which the listener is
+ * called on as well. The getters and {@link #requestReset} may be called from any thread.
+ */
+public final class FramePeriodEstimator {
+
+  /** Receives the estimate when it becomes confident and whenever it changes noticeably. */
+  public interface Listener {
+    void onPeriodEstimate(long periodNs, long jitterNs, double confidence);
+  }
+
+  /** Weight of a new sample once the running mean phase is over, about 17 s of frames at 30 fps. */
+  private static final double ALPHA = 1.0 / 512;
+  /** Intervals whose minimum seeds the estimate, dropped frames only make intervals longer. */
+  private static final int SEED_INTERVALS = 4;
+  /** Samples needed before outliers are rejected. */
+  private static final int MIN_SAMPLES_FOR_OUTLIERS = 8;
+  private static final double OUTLIER_SIGMAS = 4;
+  /** Lower bound on the outlier threshold relative to the period, for very regular sensors. */
+  private static final double MIN_OUTLIER_FRACTION = 0.002;
+  private static final int RESET_OUTLIER_COUNT = 8;
+  /** Longer gaps, e.g. a paused stream, only restart the interval. */
+  private static final long MAX_INTERVAL_PERIODS = 8;
+  /** Standard error of the mean at which the confidence is 0.5. */
+  private static final double TARGET_STANDARD_ERROR_NS = 1_000;
+  static final double PUBLISH_CONFIDENCE = 0.5;
+  static final long PUBLISH_CHANGE_NS = 1_000;
+
+  private final Listener listener;
+
+  // Estimator state, only accessed from the frame thread.
+  private long lastTimestampNs = Long.MIN_VALUE;
+  private long seedMinIntervalNs = Long.MAX_VALUE;
+  private int seedCount;
+  private double meanNs;
+  private double varianceNs2;
+  private long sampleCount;
+  private int consecutiveOutliers;
+  private long publishedPeriodNs;
+
+  // Set from any thread, the frame thread resets before the next timestamp.
+  private volatile boolean resetRequested;
+
+  // Latest estimate, for readers on other threads.
+  private volatile long periodNs;
+  private volatile long jitterNs;
+  private volatile double confidence;
+
+  /** @param listener receives published estimates, or null to only poll the getters. */
+  public FramePeriodEstimator(Listener listener) {
+    this.listener = listener;
+  }
+
+  /** Adds the timestamp of the next frame of the sequence, in any clock domain. */
+  public void onFrameTimestamp(long timestampNs) {
+    if (resetRequested) {
+      resetRequested = false;
+      reset();
+    }
+    final long previousNs = lastTimestampNs;
+    if (previousNs != Long.MIN_VALUE && timestampNs <= previousNs) {
+      return; // Duplicate or out of order, keep the latest timestamp.
+    }
+    lastTimestampNs = timestampNs;
+    if (previousNs == Long.MIN_VALUE) {
+      return;
+    }
+    final long intervalNs = timestampNs - previousNs;
+
+    if (seedCount < SEED_INTERVALS) {
+      seedMinIntervalNs = Math.min(seedMinIntervalNs, intervalNs);
+      if (++seedCount == SEED_INTERVALS) {
+        meanNs = seedMinIntervalNs;
+      }
+      return;
+    }
+
+    final long periods = Math.max(1, Math.round(intervalNs / meanNs));
+    if (periods > MAX_INTERVAL_PERIODS) {
+      return;
+    }
+    final double sampleNs = (double) intervalNs / periods;
+    final double diffNs = sampleNs - meanNs;
+    if (sampleCount >= MIN_SAMPLES_FOR_OUTLIERS) {
+      double thresholdNs =
+          Math.max(OUTLIER_SIGMAS * Math.sqrt(varianceNs2), MIN_OUTLIER_FRACTION * meanNs);
+      if (Math.abs(diffNs) > thresholdNs) {
+        if (++consecutiveOutliers >= RESET_OUTLIER_COUNT) {
+          reset();
+          lastTimestampNs = timestampNs;
+        }
+        return;
+      }
+    }
+    consecutiveOutliers = 0;
+
+    sampleCount++;
+    final double alpha = Math.max(ALPHA, 1.0 / sampleCount);
+    final double incrementNs = alpha * diffNs;
+    meanNs += incrementNs;
+    varianceNs2 = (1 - alpha) * (varianceNs2 + diffNs * incrementNs);
+    update();
+  }
+
+  private void update() {
+    final double jitter = Math.sqrt(varianceNs2);
+    final double effectiveSamples = Math.min(sampleCount, 2 / ALPHA - 1);
+    final double standardErrorNs = jitter / Math.sqrt(effectiveSamples);
+    final double ratio = standardErrorNs / TARGET_STANDARD_ERROR_NS;
+    final long period = Math.round(meanNs);
+    final long jitterRoundedNs = Math.round(jitter);
+    final double newConfidence =
+        sampleCount < MIN_SAMPLES_FOR_OUTLIERS ? 0 : 1 / (1 + ratio * ratio);
+    periodNs = period;
+    jitterNs = jitterRoundedNs;
+    confidence = newConfidence;
+
+    if (newConfidence >= PUBLISH_CONFIDENCE
+        && Math.abs(period - publishedPeriodNs) > PUBLISH_CHANGE_NS) {
+      publishedPeriodNs = period;
+      if (listener != null) {
+        listener.onPeriodEstimate(period, jitterRoundedNs, newConfidence);
+      }
+    }
+  }
+
+  /**
+   * Forgets the estimate, e.g. when the capture session restarts. Must be called from the thread
+   * calling {@link #onFrameTimestamp}.
+   */
+  public void reset() {
+    lastTimestampNs = Long.MIN_VALUE;
+    seedMinIntervalNs = Long.MAX_VALUE;
+    seedCount = 0;
+    meanNs = 0;
+    varianceNs2 = 0;
+    sampleCount = 0;
+    consecutiveOutliers = 0;
+    publishedPeriodNs = 0;
+    periodNs = 0;
+    jitterNs = 0;
+    confidence = 0;
+  }
+
+  /**
+   * Resets the estimate before the next timestamp, e.g. when the capture session is reconfigured
+   * and the frame rate may change. May be called from any thread.
+   */
+  public void requestReset() {
+    resetRequested = true;
+  }
+
+  /** Latest period estimate in nanoseconds, 0 until the first samples arrived. */
+  public long getPeriodNs() {
+    return periodNs;
+  }
+
+  /** Latest estimate of the standard deviation of the period samples in nanoseconds. */
+  public long getJitterNs() {
+    return jitterNs;
+  }
+
+  /**
+   * Confidence in the period estimate between 0 and 1, reaching 0.5 once its standard error is
+   * down to {@link #TARGET_STANDARD_ERROR_NS}.
+   */
+  public double getConfidence() {
+    return confidence;
+  }
+}
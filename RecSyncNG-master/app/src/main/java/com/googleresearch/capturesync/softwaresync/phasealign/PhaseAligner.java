@@ -58,9 +58,9 @@ public final class PhaseAligner {
    *     exposure time and frame duration needed to align.
    */
   public final PhaseResponse passTimestamp(long timestampNs) {
-    long phaseNs = timestampNs % config.periodNs();
-    long diffFromGoalNs = config.goalPhaseNs() - phaseNs;
-    boolean isAligned = Math.abs(diffFromGoalNs) < config.alignThresholdNs();
+    long phaseNs = phaseNs(timestampNs);
+    long diffFromGoalNs = diffFromGoalNs(phaseNs);
+    boolean isAligned = isAligned(diffFromGoalNs);
 
     /* Stop early if already aligned. */
     if (isAligned) {
@@ -106,6 +106,33 @@ public final class PhaseAligner {
         .build();
   }
 
+  /**
+   * Phase of a timestamp. Together with {@link #diffFromGoalNs} and {@link #isAligned} this is the
+   * state part of {@link #passTimestamp}, without allocating a response, for callers tracking phase
+   * on every frame.
+   */
+  public long phaseNs(long timestampNs) {
+    return timestampNs % config.periodNs();
+  }
+
+  /** Difference from the goal phase to a phase, see {@link #phaseDifferenceNs}. */
+  public long diffFromGoalNs(long phaseNs) {
+    return phaseDifferenceNs(config.goalPhaseNs(), phaseNs, config.periodNs());
+  }
+
+  public boolean isAligned(long diffFromGoalNs) {
+    return Math.abs(diffFromGoalNs) < config.alignThresholdNs();
+  }
+
+  /**
+   * Difference goalNs - phaseNs between two phases, wrapped into [-period / 2, period / 2) so
+   * phases on either side of zero, ex. just below the period and just above zero, are close.
+   */
+  public static long phaseDifferenceNs(long goalNs, long phaseNs, long periodNs) {
+    long halfPeriodNs = periodNs / 2;
+    return Math.floorMod(goalNs - phaseNs + halfPeriodNs, periodNs) - halfPeriodNs;
+  }
+
   /** Returns the configuration options used to set up the phase aligner. */
   public final PhaseConfig getConfig() {
     return config;
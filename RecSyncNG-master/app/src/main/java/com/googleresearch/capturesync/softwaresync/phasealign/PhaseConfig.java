@@ -26,23 +26,63 @@ import org.json.JSONObject;
 public final class PhaseConfig {
   private long periodNs;
   private final long goalPhaseNs;
+  // Frame timestamp the goal phase is taken from instead, if hasGoalReference.
+  private long goalReferenceTimestampNs;
+  private boolean hasGoalReference;
   private final long alignThresholdNs;
   private final long overheadNs;
   private final long minExposureNs;
+  // 0 if not configured, see maxExposureNs().
+  private final long maxExposureNs;
 
   private PhaseConfig(
-      long periodNs, long goalPhaseNs, long alignThresholdNs, long overheadNs, long minExposureNs) {
+      long periodNs,
+      long goalPhaseNs,
+      long alignThresholdNs,
+      long overheadNs,
+      long minExposureNs,
+      long maxExposureNs) {
     this.periodNs = periodNs;
     this.goalPhaseNs = goalPhaseNs;
     this.alignThresholdNs = alignThresholdNs;
     this.overheadNs = overheadNs;
     this.minExposureNs = minExposureNs;
+    this.maxExposureNs = maxExposureNs;
   }
 
   public void setPeriodNs(long periodNs) {
     this.periodNs = periodNs;
   }
 
+  /**
+   * Copy of the current configuration. PhaseConfig is not thread safe, so a copy is handed to a
+   * thread that reads it while the original is still being updated.
+   */
+  public PhaseConfig copy() {
+    PhaseConfig copy =
+        new PhaseConfig(
+            periodNs, goalPhaseNs, alignThresholdNs, overheadNs, minExposureNs, maxExposureNs);
+    copy.goalReferenceTimestampNs = goalReferenceTimestampNs;
+    copy.hasGoalReference = hasGoalReference;
+    return copy;
+  }
+
+  /**
+   * Aligns to the phase of a frame of another device, ex. the leader, instead of the configured
+   * goal phase. The timestamp must be in the same clock domain as the aligned timestamps. The goal
+   * is derived with the current period on every use, so it stays consistent with the phase of the
+   * aligned timestamps when the period estimate is refined.
+   */
+  public void setGoalReferenceTimestampNs(long referenceTimestampNs) {
+    this.goalReferenceTimestampNs = referenceTimestampNs;
+    this.hasGoalReference = true;
+  }
+
+  /** Goes back to the configured goal phase. */
+  public void clearGoalReference() {
+    this.hasGoalReference = false;
+  }
+
   /** Parse from a given JSON. */
   public static PhaseConfig parseFromJSON(JSONObject json) throws JSONException {
     if (!json.has("periodNs")) {
@@ -65,7 +105,8 @@ public final class PhaseConfig {
         json.getLong("goalPhaseNs"),
         json.getLong("alignThresholdNs"),
         json.getLong("overheadNs"),
-        json.getLong("minExposureNs"));
+        json.getLong("minExposureNs"),
+        json.optLong("maxExposureNs", 0));
   }
 
   /**
@@ -78,8 +119,14 @@ public final class PhaseConfig {
     return periodNs;
   }
 
-  /* The target phase to align to, usually chosen as half the period. */
+  /*
+   * The target phase to align to, usually chosen as half the period, or the phase of the reference
+   * timestamp if one is set.
+   */
   public long goalPhaseNs() {
+    if (hasGoalReference) {
+      return Math.floorMod(goalReferenceTimestampNs, periodNs);
+    }
     return goalPhaseNs;
   }
 
@@ -104,13 +151,25 @@ public final class PhaseConfig {
     return minExposureNs;
   }
 
+  /**
+   * Upper bound sensor exposure time of an injected frame. Optional, defaults to the exposure the
+   * fixed model of {@link PhaseAligner} injects for a shift of a whole period, so injected frames
+   * are no longer than before. Longer shifts are split across several frames.
+   */
+  public long maxExposureNs() {
+    if (maxExposureNs > 0) {
+      return maxExposureNs;
+    }
+    return periodNs + periodNs / 2 - overheadNs;
+  }
+
   public String toString() {
     return "PhaseConfig{"
         + "periodNs="
         + periodNs
         + ", "
         + "goalPhaseNs="
-        + goalPhaseNs
+        + goalPhaseNs()
         + ", "
         + "alignThresholdNs="
         + alignThresholdNs
@@ -120,6 +179,9 @@ public final class PhaseConfig {
         + ", "
         + "minExposureNs="
         + minExposureNs
+        + ", "
+        + "maxExposureNs="
+        + maxExposureNs()
         + "}";
   }
 }
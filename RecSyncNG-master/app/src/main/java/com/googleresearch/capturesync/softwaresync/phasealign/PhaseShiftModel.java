@@ -0,0 +1,240 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync.phasealign;
+
+/**
+ * Online model of how far an injected frame shifts the phase of the image stream, and planner of
+ * the injections needed to reach a desired shift.
+ *
+ * <p>An injected frame with an exposure longer than the period stretches its frame duration and
+ * delays every following frame. The model is linear in the excess of the exposure over the period:
+ *
+ * <pre>
+ *   shift per frame = gain * (exposure - period + overhead)
+ * </pre>
+ *
+ * <p>{@link PhaseAligner} uses this with a fixed gain of 2 and the configured {@link
+ * PhaseConfig#overheadNs()}, the overhead varying from device to device being the main source of
+ * error. Here both are estimated by recursive least squares from the shifts actually observed,
+ * starting from those values as the prior, so the estimate converges to the device at hand after a
+ * couple of injections. Older observations are slowly forgotten to follow drift.
+ *
+ * <p>Not thread safe, the caller must serialize all calls.
+ */
+public final class PhaseShiftModel {
+  /** Gain of the fixed model in {@link PhaseAligner}, used as the prior. */
+  private static final double PRIOR_GAIN = 2.0;
+
+  /** Prior standard deviation of the gain and of gain * overhead in ms. */
+  private static final double PRIOR_GAIN_SIGMA = 1.0;
+
+  private static final double PRIOR_OFFSET_SIGMA_MS = 1.0;
+
+  /** Variance of an observed shift in ms^2, from about 20 us of timestamp jitter. */
+  private static final double MEASUREMENT_VARIANCE_MS2 = 4e-4;
+
+  /** Weight of older observations, forgetting them over roughly 20 injections. */
+  private static final double FORGETTING_FACTOR = 0.95;
+
+  /** Bounds keeping the estimated gain sane when observations are poor. */
+  private static final double MIN_GAIN = 0.25;
+
+  private static final double MAX_GAIN = 4.0;
+
+  /** Observations before corrections may shift by more than half a period. */
+  private static final int CALIBRATION_OBSERVATIONS = 2;
+
+  /** Most frames a single correction is split across. */
+  public static final int MAX_FRAMES_PER_CORRECTION = 4;
+
+  private final PhaseConfig config;
+
+  // Parameters of shiftMs = gain * excessMs + offsetMs, with offsetMs = gain * overhead.
+  private double gain;
+  private double offsetMs;
+
+  // Covariance of (gain, offsetMs).
+  private double p00;
+  private double p01;
+  private double p11;
+
+  private int observationCount;
+
+  public PhaseShiftModel(PhaseConfig config) {
+    this.config = config;
+    reset();
+  }
+
+  /** Forgets all observations, returning to the configured prior. */
+  public void reset() {
+    gain = PRIOR_GAIN;
+    offsetMs = PRIOR_GAIN * config.overheadNs() * 1e-6;
+    p00 = PRIOR_GAIN_SIGMA * PRIOR_GAIN_SIGMA;
+    p01 = 0;
+    p11 = PRIOR_OFFSET_SIGMA_MS * PRIOR_OFFSET_SIGMA_MS;
+    observationCount = 0;
+  }
+
+  /** Predicted phase shift of one injected frame with the given exposure. */
+  public long predictShiftNs(long periodNs, long exposureNs) {
+    return Math.round((gain * (exposureNs - periodNs) * 1e-6 + offsetMs) * 1e6);
+  }
+
+  /**
+   * Maps a shift measured modulo the period to the full shift closest to the prediction, since an
+   * injection may shift phase by more than a period.
+   *
+   * @param measuredShiftNs phase after minus phase before the injection, any multiple of the
+   *     period off.
+   */
+  public static long unwrapShiftNs(long periodNs, long measuredShiftNs, long predictedShiftNs) {
+    long wrapped = Math.floorMod(measuredShiftNs - predictedShiftNs, periodNs);
+    if (wrapped > periodNs / 2) {
+      wrapped -= periodNs;
+    }
+    return predictedShiftNs + wrapped;
+  }
+
+  /**
+   * Updates the model with the observed result of a correction.
+   *
+   * @param periodNs period at the time of the injection.
+   * @param exposureNs exposure of each injected frame.
+   * @param frameCount number of frames injected.
+   * @param shiftNs total observed shift, already unwrapped with {@link #unwrapShiftNs}.
+   */
+  public void addObservation(long periodNs, long exposureNs, int frameCount, long shiftNs) {
+    final double x = (exposureNs - periodNs) * 1e-6;
+    final double y = shiftNs * 1e-6 / frameCount;
+
+    // Recursive least squares with regressor (x, 1).
+    final double px0 = p00 * x + p01;
+    final double px1 = p01 * x + p11;
+    final double s = x * px0 + px1 + MEASUREMENT_VARIANCE_MS2 / frameCount;
+    final double k0 = px0 / s;
+    final double k1 = px1 / s;
+    final double innovation = y - (gain * x + offsetMs);
+    gain += k0 * innovation;
+    offsetMs += k1 * innovation;
+    p00 = (p00 - k0 * px0) / FORGETTING_FACTOR;
+    p01 = (p01 - k0 * px1) / FORGETTING_FACTOR;
+    p11 = (p11 - k1 * px1) / FORGETTING_FACTOR;
+    observationCount++;
+
+    if (gain < MIN_GAIN || gain > MAX_GAIN) {
+      // Degenerate observations, keep the overhead but fall back to a bounded gain.
+      double overheadMs = offsetMs / gain;
+      gain = Math.max(MIN_GAIN, Math.min(MAX_GAIN, gain));
+      offsetMs = gain * overheadMs;
+    }
+  }
+
+  /**
+   * Plans the injection shifting phase forward by desiredShiftNs, modulo the period.
+   *
+   * <p>Every injected frame must have an exposure between {@link PhaseConfig#minExposureNs()},
+   * below which it has no effect, and {@link PhaseConfig#maxExposureNs()}. Shifts too small for one
+   * frame are extended by a period, and shifts too large for one frame are split evenly across up
+   * to {@link #MAX_FRAMES_PER_CORRECTION} frames, which the camera takes back to back.
+   *
+   * <p>Until the model has seen {@link #CALIBRATION_OBSERVATIONS} observations a correction shifts
+   * by at most half a period, so the observed shift can be unwrapped unambiguously even if the
+   * prior is off by a factor of two. The remainder is left to the next correction, as is anything
+   * beyond the largest allowed correction.
+   *
+   * @param desiredShiftNs shift in [0, periodNs).
+   */
+  public Correction plan(long periodNs, long desiredShiftNs) {
+    final long minExposureNs = config.minExposureNs();
+    final long maxExposureNs = Math.max(minExposureNs, config.maxExposureNs());
+    final long minShiftNs = Math.max(1, predictShiftNs(periodNs, minExposureNs));
+    final long maxShiftNs = Math.max(minShiftNs, predictShiftNs(periodNs, maxExposureNs));
+    final long limitNs =
+        observationCount < CALIBRATION_OBSERVATIONS ? periodNs / 2 : 2 * periodNs;
+    final long targetShiftNs = Math.min(desiredShiftNs, limitNs);
+    for (int frames = 1; frames <= MAX_FRAMES_PER_CORRECTION; frames++) {
+      for (long totalShiftNs = targetShiftNs;
+          totalShiftNs <= limitNs && totalShiftNs < targetShiftNs + 2 * periodNs;
+          totalShiftNs += periodNs) {
+        long perFrameShiftNs = totalShiftNs / frames;
+        if (perFrameShiftNs >= minShiftNs && perFrameShiftNs <= maxShiftNs) {
+          long exposureNs =
+              exposureForShiftNs(periodNs, perFrameShiftNs, minExposureNs, maxExposureNs);
+          return Correction.create(
+              exposureNs, frames, predictShiftNs(periodNs, exposureNs) * frames);
+        }
+      }
+    }
+    if (targetShiftNs < minShiftNs) {
+      // Overshoot by the smallest possible shift rather than going round a whole period.
+      return Correction.create(minExposureNs, 1, minShiftNs);
+    }
+    int frames = (int) Math.min(MAX_FRAMES_PER_CORRECTION, Math.max(1, limitNs / maxShiftNs));
+    return Correction.create(maxExposureNs, frames, maxShiftNs * frames);
+  }
+
+  private long exposureForShiftNs(
+      long periodNs, long shiftNs, long minExposureNs, long maxExposureNs) {
+    long exposureNs = periodNs + Math.round((shiftNs * 1e-6 - offsetMs) / gain * 1e6);
+    return Math.max(minExposureNs, Math.min(maxExposureNs, exposureNs));
+  }
+
+  /** Current estimate of the phase shift per ns of exposure beyond the period. */
+  public double gain() {
+    return gain;
+  }
+
+  /** Current estimate of the difference between frame duration and exposure. */
+  public long overheadNs() {
+    return Math.round(offsetMs / gain * 1e6);
+  }
+
+  public int observationCount() {
+    return observationCount;
+  }
+
+  /** A planned correction: frameCount frames injected back to back with the same exposure. */
+  public static final class Correction {
+    private final long exposureNs;
+    private final int frameCount;
+    private final long predictedShiftNs;
+
+    private Correction(long exposureNs, int frameCount, long predictedShiftNs) {
+      this.exposureNs = exposureNs;
+      this.frameCount = frameCount;
+      this.predictedShiftNs = predictedShiftNs;
+    }
+
+    static Correction create(long exposureNs, int frameCount, long predictedShiftNs) {
+      return new Correction(exposureNs, frameCount, predictedShiftNs);
+    }
+
+    /** Exposure of each injected frame. */
+    public long exposureNs() {
+      return exposureNs;
+    }
+
+    public int frameCount() {
+      return frameCount;
+    }
+
+    /** Total shift the model expects from the correction, possibly beyond a period. */
+    public long predictedShiftNs() {
+      return predictedShiftNs;
+    }
+  }
+}
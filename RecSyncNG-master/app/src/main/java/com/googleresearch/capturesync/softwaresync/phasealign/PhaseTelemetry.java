@@ -0,0 +1,114 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync.phasealign;
+
+/**
+ * Latest phase state of the image stream, published by the frame thread and sampled by readers
+ * such as the UI at their own rate.
+ *
+ * <p>Only the latest value is kept, older ones are simply overwritten. It is a single writer
+ * sequence lock: the writer bumps the sequence to odd, writes the fields and bumps it to even
+ * again, and readers retry if the sequence was odd or changed while they copied the fields. The
+ * writer never waits and neither side allocates, locks or posts to another thread, so publishing
+ * for every frame costs a handful of volatile writes.
+ *
+ * <p>{@link #publish} must only be called from one thread at a time.
+ */
+public final class PhaseTelemetry {
+  private volatile int sequence;
+  private volatile long timestampNs;
+  private volatile long phaseNs;
+  private volatile long diffFromGoalNs;
+  private volatile boolean aligned;
+
+  /** Publishes the phase state of a frame. */
+  public void publish(long timestampNs, long phaseNs, long diffFromGoalNs, boolean aligned) {
+    final int start = sequence;
+    sequence = start + 1;
+    this.timestampNs = timestampNs;
+    this.phaseNs = phaseNs;
+    this.diffFromGoalNs = diffFromGoalNs;
+    this.aligned = aligned;
+    sequence = start + 2;
+  }
+
+  /**
+   * Copies the latest published state into sample.
+   *
+   * @return false if nothing was published yet, sample is left untouched then.
+   */
+  public boolean read(Sample sample) {
+    while (true) {
+      final int start = sequence;
+      if (start == 0) {
+        return false;
+      }
+      if ((start & 1) != 0) {
+        // Publish in progress, let the writer finish in case it was preempted.
+        Thread.yield();
+        continue;
+      }
+      long sampleTimestampNs = timestampNs;
+      long samplePhaseNs = phaseNs;
+      long sampleDiffFromGoalNs = diffFromGoalNs;
+      boolean sampleAligned = aligned;
+      if (sequence == start) {
+        sample.publishCount = start / 2;
+        sample.timestampNs = sampleTimestampNs;
+        sample.phaseNs = samplePhaseNs;
+        sample.diffFromGoalNs = sampleDiffFromGoalNs;
+        sample.aligned = sampleAligned;
+        return true;
+      }
+    }
+  }
+
+  /** Timestamp of the latest published frame, 0 before any. */
+  public long timestampNs() {
+    return timestampNs;
+  }
+
+  /** A copy of the published state, reusable across reads. */
+  public static final class Sample {
+    private long publishCount;
+    private long timestampNs;
+    private long phaseNs;
+    private long diffFromGoalNs;
+    private boolean aligned;
+
+    /** Number of frames published up to this sample, a reader can skip unchanged samples. */
+    public long publishCount() {
+      return publishCount;
+    }
+
+    public long timestampNs() {
+      return timestampNs;
+    }
+
+    public long phaseNs() {
+      return phaseNs;
+    }
+
+    public long diffFromGoalNs() {
+      return diffFromGoalNs;
+    }
+
+    public boolean isAligned() {
+      return aligned;
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class DirectBufferPoolTest {
+  private final DirectBufferPool pool = new DirectBufferPool(/*maxPooledBuffers=*/ 2);
+
+  @Test
+  public void allocatesDirectBufferOfExactLimit() {
+    ByteBuffer buffer = pool.acquire(100);
+
+    assertTrue(buffer.isDirect());
+    assertEquals(0, buffer.position());
+    assertEquals(100, buffer.limit());
+    assertEquals(100, pool.allocatedBytes());
+  }
+
+  @Test
+  public void reusesReleasedBufferCleared() {
+    ByteBuffer buffer = pool.acquire(100);
+    buffer.put(new byte[60]);
+    pool.release(buffer);
+
+    ByteBuffer reused = pool.acquire(80);
+
+    assertSame(buffer, reused);
+    assertEquals(0, reused.position());
+    assertEquals(80, reused.limit());
+    assertEquals(100, pool.allocatedBytes());
+  }
+
+  @Test
+  public void acquiresSmallestBufferThatFits() {
+    ByteBuffer large = pool.acquire(1000);
+    ByteBuffer small = pool.acquire(100);
+    pool.release(large);
+    pool.release(small);
+
+    // The small plane takes the small buffer, leaving the large one for the large plane.
+    assertSame(small, pool.acquire(50));
+    assertSame(large, pool.acquire(500));
+    assertEquals(1100, pool.allocatedBytes());
+  }
+
+  @Test
+  public void allocatesWhenNoBufferFits() {
+    ByteBuffer small = pool.acquire(100);
+    pool.release(small);
+
+    ByteBuffer large = pool.acquire(200);
+
+    assertNotSame(small, large);
+    assertEquals(300, pool.allocatedBytes());
+    // The small buffer is still pooled.
+    assertSame(small, pool.acquire(100));
+  }
+
+  @Test
+  public void dropsBuffersBeyondCap() {
+    ByteBuffer first = pool.acquire(100);
+    ByteBuffer second = pool.acquire(100);
+    ByteBuffer third = pool.acquire(100);
+    pool.release(first);
+    pool.release(second);
+    pool.release(third);
+
+    ByteBuffer a = pool.acquire(100);
+    ByteBuffer b = pool.acquire(100);
+    assertTrue((a == first || a == second) && (b == first || b == second) && a != b);
+    assertEquals(300, pool.allocatedBytes());
+    // The third was dropped, so the next acquire allocates.
+    assertNotSame(third, pool.acquire(100));
+    assertEquals(400, pool.allocatedBytes());
+  }
+
+  @Test
+  public void ignoresHeapBuffers() {
+    pool.release(ByteBuffer.allocate(100));
+
+    ByteBuffer buffer = pool.acquire(100);
+
+    assertTrue(buffer.isDirect());
+    assertEquals(100, pool.allocatedBytes());
+  }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class TimestampMatcherTest {
+  private static final int[] BOTH_READERS = {0, 1};
+
+  /** Records what the matcher reported, copying the arrays that are only valid during a call. */
+  private static final class RecordingListener
+      implements TimestampMatcher.Listener<String, String> {
+    final List<String> matchedResults = new ArrayList<>();
+    final List<String[]> matchedImages = new ArrayList<>();
+    final List<int[]> droppedReaders = new ArrayList<>();
+    final List<String> droppedImages = new ArrayList<>();
+
+    @Override
+    public void onImageDropped(int readerIndex, String image) {
+      droppedImages.add(image);
+    }
+
+    @Override
+    public void onMatched(
+        String result, String[] images, int[] droppedReaderIndices, int droppedCount) {
+      matchedResults.add(result);
+      matchedImages.add(images.clone());
+      droppedReaders.add(Arrays.copyOf(droppedReaderIndices, droppedCount));
+    }
+  }
+
+  private final RecordingListener listener = new RecordingListener();
+  private final TimestampMatcher<String, String> matcher =
+      new TimestampMatcher<>(String.class, new int[] {2, 2}, listener);
+
+  @Test
+  public void matchesResultWithImagesOfSameTimestamp() {
+    matcher.addImage(0, "yuv100", 100);
+    matcher.addResult("result100", 100, BOTH_READERS);
+    assertTrue(listener.matchedResults.isEmpty());
+
+    matcher.addImage(1, "raw100", 100);
+
+    assertEquals(Arrays.asList("result100"), listener.matchedResults);
+    assertArrayEquals(new String[] {"yuv100", "raw100"}, listener.matchedImages.get(0));
+    assertArrayEquals(new int[0], listener.droppedReaders.get(0));
+    assertTrue(listener.droppedImages.isEmpty());
+    assertEquals(0, matcher.pendingResultCount());
+    assertEquals(0, matcher.pendingImageCount(0));
+    assertEquals(0, matcher.pendingImageCount(1));
+  }
+
+  @Test
+  public void halDroppedImageMatchesWithoutIt() {
+    matcher.addResult("result100", 100, BOTH_READERS);
+    matcher.addImage(0, "yuv100", 100);
+    // The HAL never produced the reader 1 image of frame 100, its next image is of frame 200.
+    matcher.addImage(1, "raw200", 200);
+
+    assertEquals(Arrays.asList("result100"), listener.matchedResults);
+    assertArrayEquals(new String[] {"yuv100", null}, listener.matchedImages.get(0));
+    assertArrayEquals(new int[] {1}, listener.droppedReaders.get(0));
+    // The later image stays queued for its own result.
+    assertEquals(1, matcher.pendingImageCount(1));
+
+    matcher.addResult("result200", 200, new int[] {1});
+
+    assertEquals(Arrays.asList("result100", "result200"), listener.matchedResults);
+    assertArrayEquals(new String[] {null, "raw200"}, listener.matchedImages.get(1));
+    assertTrue(listener.droppedImages.isEmpty());
+  }
+
+  @Test
+  public void imageOfDroppedResultIsDropped() {
+    // The result of frame 100 never arrives.
+    matcher.addImage(0, "yuv100", 100);
+    matcher.addImage(1, "raw100", 100);
+    matcher.addImage(0, "yuv200", 200);
+    matcher.addImage(1, "raw200", 200);
+    matcher.addResult("result200", 200, BOTH_READERS);
+
+    assertEquals(Arrays.asList("yuv100", "raw100"), listener.droppedImages);
+    assertEquals(Arrays.asList("result200"), listener.matchedResults);
+    assertArrayEquals(new String[] {"yuv200", "raw200"}, listener.matchedImages.get(0));
+    assertArrayEquals(new int[0], listener.droppedReaders.get(0));
+  }
+
+  @Test
+  public void queuesGrowPastInitialCapacity() {
+    for (int i = 1; i <= 20; ++i) {
+      matcher.addResult("result" + i, i, new int[] {0});
+    }
+    for (int i = 1; i <= 20; ++i) {
+      matcher.addImage(1, "raw" + i, i);
+    }
+    assertEquals(20, matcher.pendingResultCount());
+    assertEquals(20, matcher.pendingImageCount(1));
+
+    for (int i = 1; i <= 20; ++i) {
+      matcher.addImage(0, "yuv" + i, i);
+    }
+
+    assertEquals(20, listener.matchedResults.size());
+    for (int i = 0; i < 20; ++i) {
+      assertEquals("result" + (i + 1), listener.matchedResults.get(i));
+      assertEquals("yuv" + (i + 1), listener.matchedImages.get(i)[0]);
+    }
+    assertEquals(0, matcher.pendingResultCount());
+  }
+
+  @Test
+  public void clearDropsPendingImagesAndDiscardsResults() {
+    matcher.addResult("result100", 100, BOTH_READERS);
+    matcher.addImage(1, "raw100", 100);
+    matcher.addImage(1, "raw200", 200);
+
+    assertEquals(1, matcher.clear());
+
+    assertEquals(Arrays.asList("raw100", "raw200"), listener.droppedImages);
+    assertTrue(listener.matchedResults.isEmpty());
+    assertEquals(0, matcher.pendingResultCount());
+    assertEquals(0, matcher.pendingImageCount(1));
+  }
+}
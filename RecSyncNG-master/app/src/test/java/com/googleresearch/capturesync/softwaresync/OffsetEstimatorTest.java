@@ -0,0 +1,152 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class OffsetEstimatorTest {
+  private static final int MAX_SAMPLES = SyncConstants.NUM_SNTP_CYCLES;
+  private static final long MIN_RTT_NS = SyncConstants.MIN_ROUND_TRIP_LATENCY_NS;
+  private static final long TRUE_OFFSET_NS = 123_456_789;
+
+  private static final OffsetEstimator.Factory[] FACTORIES = {
+    MinRttOffsetEstimator.FACTORY,
+    WeightedOffsetEstimator.FACTORY,
+    LowestRttMedianOffsetEstimator.FACTORY,
+  };
+
+  /**
+   * Adds a sample of a probe whose legs took forwardNs and backNs, the offset error being half
+   * their difference.
+   */
+  private static void addProbe(
+      OffsetEstimator estimator, long forwardNs, long backNs, long clientTimeNs) {
+    estimator.addSample(
+        TRUE_OFFSET_NS + (forwardNs - backNs) / 2, forwardNs + backNs, clientTimeNs);
+  }
+
+  @Test
+  public void noSamplesFails() {
+    for (OffsetEstimator.Factory factory : FACTORIES) {
+      OffsetEstimator estimator = factory.create(MAX_SAMPLES, MIN_RTT_NS);
+      assertFalse(estimator.estimate().status());
+      assertFalse(estimator.isConverged());
+      assertEquals(0, estimator.currentOffsetNs());
+    }
+  }
+
+  @Test
+  public void allEstimatorsFindOffsetOfNoisyLink() {
+    for (OffsetEstimator.Factory factory : FACTORIES) {
+      OffsetEstimator estimator = factory.create(MAX_SAMPLES, MIN_RTT_NS);
+      Random random = new Random(0);
+      for (int i = 0; i < 100; i++) {
+        // 0.7 ms per leg plus an exponential jitter of mean 0.3 ms on each.
+        long forwardNs = 700_000 + (long) (-300_000 * Math.log(1 - random.nextDouble()));
+        long backNs = 700_000 + (long) (-300_000 * Math.log(1 - random.nextDouble()));
+        addProbe(estimator, forwardNs, backNs, 1_000_000L * i);
+      }
+
+      SntpOffsetResponse response = estimator.estimate();
+      assertTrue(response.status());
+      assertEquals(factory.toString(), TRUE_OFFSET_NS, response.offsetNs(), 100_000);
+      assertEquals(response.offsetNs(), estimator.currentOffsetNs());
+    }
+  }
+
+  @Test
+  public void minRttUsesLowestLatencySample() {
+    OffsetEstimator estimator = MinRttOffsetEstimator.FACTORY.create(MAX_SAMPLES, MIN_RTT_NS);
+    addProbe(estimator, 2_000_000, 600_000, 1_000);
+    addProbe(estimator, 700_000, 500_000, 2_000);
+    addProbe(estimator, 900_000, 1_500_000, 3_000);
+
+    SntpOffsetResponse response = estimator.estimate();
+    assertEquals(TRUE_OFFSET_NS + 100_000, response.offsetNs());
+    assertEquals(1_200_000, response.syncAccuracyNs());
+    assertEquals(600_000, response.confidenceIntervalNs());
+    assertEquals(2_000, response.clientTimeNs());
+    assertFalse(estimator.isConverged());
+
+    addProbe(estimator, 450_000, 450_000, 4_000);
+
+    assertTrue(estimator.isConverged());
+    assertEquals(TRUE_OFFSET_NS, estimator.currentOffsetNs());
+  }
+
+  @Test
+  public void weightedIgnoresCongestedSamples() {
+    OffsetEstimator estimator = WeightedOffsetEstimator.FACTORY.create(MAX_SAMPLES, MIN_RTT_NS);
+    for (int i = 0; i < SyncConstants.OFFSET_MIN_SAMPLES; i++) {
+      // Symmetric samples near the floor, alternating a few us of asymmetry.
+      long asymmetryNs = i % 2 == 0 ? 10_000 : -10_000;
+      addProbe(estimator, 500_000 + asymmetryNs, 500_000 - asymmetryNs, i);
+      // A congested forward leg, 20 ms late.
+      addProbe(estimator, 20_500_000, 500_000, i);
+    }
+
+    assertEquals(TRUE_OFFSET_NS, estimator.currentOffsetNs(), 1_000);
+    assertTrue(estimator.isConverged());
+  }
+
+  @Test
+  public void weightedWaitsForMinimumSamples() {
+    OffsetEstimator estimator = WeightedOffsetEstimator.FACTORY.create(MAX_SAMPLES, MIN_RTT_NS);
+    for (int i = 0; i < SyncConstants.OFFSET_MIN_SAMPLES - 1; i++) {
+      addProbe(estimator, 500_000, 500_000, i);
+      assertFalse(estimator.isConverged());
+    }
+    addProbe(estimator, 500_000, 500_000, SyncConstants.OFFSET_MIN_SAMPLES);
+    assertTrue(estimator.isConverged());
+  }
+
+  @Test
+  public void medianIgnoresSingleAsymmetricSample() {
+    OffsetEstimator estimator =
+        LowestRttMedianOffsetEstimator.FACTORY.create(MAX_SAMPLES, MIN_RTT_NS);
+    // The lowest latency sample is the most asymmetric, the min filter would pick it.
+    addProbe(estimator, 100_000, 500_000, 0);
+    for (int i = 1; i < SyncConstants.OFFSET_LOWEST_RTT_K; i++) {
+      addProbe(estimator, 400_000 + i, 400_000, i);
+    }
+    assertTrue(estimator.isConverged());
+    assertEquals(TRUE_OFFSET_NS, estimator.estimate().offsetNs(), 10);
+  }
+
+  @Test
+  public void medianKeepsLowestLatencySamples() {
+    OffsetEstimator estimator =
+        LowestRttMedianOffsetEstimator.FACTORY.create(MAX_SAMPLES, MIN_RTT_NS);
+    for (int i = 0; i < SyncConstants.OFFSET_LOWEST_RTT_K; i++) {
+      // Slow samples off by 1 ms.
+      addProbe(estimator, 5_000_000, 3_000_000, i);
+    }
+    for (int i = 0; i < SyncConstants.OFFSET_LOWEST_RTT_K; i++) {
+      addProbe(estimator, 400_000, 400_000, 100 + i);
+    }
+    assertEquals(TRUE_OFFSET_NS, estimator.currentOffsetNs());
+    assertTrue(estimator.estimate().clientTimeNs() >= 100);
+  }
+}
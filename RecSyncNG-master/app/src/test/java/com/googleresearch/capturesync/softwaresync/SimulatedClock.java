@@ -0,0 +1,57 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+/**
+ * Virtual device clock derived from a shared reference clock, with its own offset and a constant
+ * skew. All the clocks of a simulation read the same reference, so the true offset between any two
+ * of them is known at every instant and sync errors can be measured exactly.
+ */
+final class SimulatedClock implements Ticker {
+  private final Ticker reference;
+  private final long epochNs;
+  private final long offsetNs;
+  private final double skew;
+
+  /**
+   * @param reference shared clock all simulated devices derive their time from.
+   * @param offsetNs offset of this clock from the reference when it is created.
+   * @param skewPpm rate error of this clock relative to the reference, in parts per million.
+   */
+  SimulatedClock(Ticker reference, long offsetNs, double skewPpm) {
+    this.reference = reference;
+    this.epochNs = reference.read();
+    this.offsetNs = offsetNs;
+    this.skew = skewPpm * 1e-6;
+  }
+
+  @Override
+  public long read() {
+    return localTimeAt(reference.read());
+  }
+
+  /** The time this clock shows when the reference clock shows referenceNs. */
+  long localTimeAt(long referenceNs) {
+    long elapsedNs = referenceNs - epochNs;
+    return epochNs + offsetNs + elapsedNs + (long) (elapsedNs * skew);
+  }
+
+  /** The time the reference clock shows when this clock shows localNs. */
+  long referenceTimeAt(long localNs) {
+    return epochNs + Math.round((localNs - epochNs - offsetNs) / (1 + skew));
+  }
+}
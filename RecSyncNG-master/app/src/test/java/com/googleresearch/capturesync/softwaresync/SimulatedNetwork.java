@@ -0,0 +1,366 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * In-process datagram network in virtual time, connecting simulated devices through the {@link
+ * DatagramEndpoint}s returned by {@link #bind}.
+ *
+ * <p>Every datagram is copied when sent and delivered to the endpoint bound to its destination
+ * after a one way delay of latencyNs plus an exponentially distributed jitter with mean jitterNs,
+ * or lost with probability lossProbability. Jitter reorders datagrams like a real link does.
+ *
+ * <p>The devices run on their own threads, but time is a {@link VirtualClock} that {@link
+ * #runUntil} only moves forward once every bound endpoint has a thread blocked receiving on it.
+ * It then jumps to the next delivery or receive timeout and wakes the receivers concerned. Each
+ * thread therefore sees the same datagrams at the same virtual times whatever the real scheduling,
+ * and delays and losses are drawn from one Random per link, seeded from the given seed, in the
+ * order of that link's datagrams. A run is fully determined by its seed.
+ */
+final class SimulatedNetwork {
+  /** Real time the devices get to block receiving before the simulation is considered stuck. */
+  private static final long QUIESCENCE_TIMEOUT_MS = 10_000;
+
+  private final VirtualClock clock;
+  private final long seed;
+  private final long latencyNs;
+  private final long jitterNs;
+  private final double lossProbability;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  /** Signaled whenever a receiver starts waiting or an endpoint is closed. */
+  private final Condition receiverWaiting = lock.newCondition();
+  private final Map<InetSocketAddress, Endpoint> endpoints = new HashMap<>();
+  private final Map<Long, Link> links = new HashMap<>();
+  private int waitingCount;
+  private long deliveredCount;
+  private long lostCount;
+
+  /**
+   * @param clock time of the network, advanced by {@link #runUntil}.
+   * @param seed seed of the delays and losses.
+   * @param latencyNs fixed one way delay of every datagram, positive so a datagram never arrives
+   *     at the instant it was sent.
+   * @param jitterNs mean of the random delay added to latencyNs, 0 for none.
+   * @param lossProbability probability that a datagram is dropped, in [0, 1].
+   */
+  SimulatedNetwork(
+      VirtualClock clock, long seed, long latencyNs, long jitterNs, double lossProbability) {
+    if (latencyNs <= 0 || jitterNs < 0 || lossProbability < 0 || lossProbability > 1) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Invalid link: latency %d ns, jitter %d ns, loss %f",
+              latencyNs, jitterNs, lossProbability));
+    }
+    this.clock = clock;
+    this.seed = seed;
+    this.latencyNs = latencyNs;
+    this.jitterNs = jitterNs;
+    this.lossProbability = lossProbability;
+  }
+
+  /** Binds an endpoint to address, every device needs its own address. */
+  DatagramEndpoint bind(InetSocketAddress address) throws BindException {
+    lock.lock();
+    try {
+      if (endpoints.containsKey(address)) {
+        throw new BindException(address + " already in use");
+      }
+      Endpoint endpoint = new Endpoint(address);
+      endpoints.put(address, endpoint);
+      return endpoint;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Number of datagrams delivered to an endpoint so far. */
+  long deliveredCount() {
+    lock.lock();
+    try {
+      return deliveredCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Number of datagrams lost so far, including those sent to an address nobody is bound to. */
+  long lostCount() {
+    lock.lock();
+    try {
+      return lostCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Advances time event by event until done returns true. Every receiver is first woken once at
+   * the current time, like a receive timing out, so work handed to the device threads before the
+   * run is picked up at its start.
+   *
+   * @throws IllegalStateException if a device thread does not get back to receiving, or nothing is
+   *     left to happen before done.
+   */
+  void runUntil(BooleanSupplier done) throws InterruptedException {
+    lock.lock();
+    try {
+      awaitReceivers(done);
+      for (Endpoint endpoint : endpoints.values()) {
+        endpoint.wake();
+      }
+      while (awaitReceivers(done)) {
+        long nextEventNs = Long.MAX_VALUE;
+        for (Endpoint endpoint : endpoints.values()) {
+          nextEventNs = Math.min(nextEventNs, endpoint.nextEventNs());
+        }
+        if (nextEventNs == Long.MAX_VALUE) {
+          throw new IllegalStateException("Simulation stalled, no datagram or timeout pending");
+        }
+        clock.advanceTo(nextEventNs);
+        for (Endpoint endpoint : endpoints.values()) {
+          if (endpoint.nextEventNs() <= nextEventNs) {
+            endpoint.wake();
+          }
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Waits until every endpoint has a thread waiting in receive, called with the lock held.
+   *
+   * @return false if done instead.
+   */
+  private boolean awaitReceivers(BooleanSupplier done) throws InterruptedException {
+    long giveUpNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(QUIESCENCE_TIMEOUT_MS);
+    while (!done.getAsBoolean()) {
+      if (waitingCount == endpoints.size()) {
+        return true;
+      }
+      // A device may also finish without receiving again, so done is polled as well.
+      receiverWaiting.await(1, TimeUnit.MILLISECONDS);
+      if (System.nanoTime() > giveUpNs) {
+        throw new IllegalStateException(
+            String.format(
+                "Only %d of %d endpoints waiting after %d ms",
+                waitingCount, endpoints.size(), QUIESCENCE_TIMEOUT_MS));
+      }
+    }
+    return false;
+  }
+
+  private void send(InetSocketAddress source, DatagramPacket packet) {
+    byte[] data = new byte[packet.getLength()];
+    System.arraycopy(packet.getData(), packet.getOffset(), data, 0, data.length);
+    InetSocketAddress destination = (InetSocketAddress) packet.getSocketAddress();
+    lock.lock();
+    try {
+      long linkId = ((long) source.hashCode() << 32) ^ destination.hashCode();
+      Link link = links.get(linkId);
+      if (link == null) {
+        link = new Link(new Random(seed * 0x9E3779B97F4A7C15L + linkId));
+        links.put(linkId, link);
+      }
+      long sequence = link.sentCount++;
+      Endpoint endpoint = endpoints.get(destination);
+      if (link.random.nextDouble() < lossProbability || endpoint == null) {
+        lostCount++;
+        return;
+      }
+      long delayNs = latencyNs;
+      if (jitterNs > 0) {
+        delayNs += (long) (-jitterNs * Math.log(1 - link.random.nextDouble()));
+      }
+      endpoint.queue.add(new Datagram(clock.read() + delayNs, source, sequence, data));
+      deliveredCount++;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Delays and losses of the datagrams from one address to another. */
+  private static final class Link {
+    final Random random;
+    long sentCount;
+
+    Link(Random random) {
+      this.random = random;
+    }
+  }
+
+  /** A datagram on its way, ordered by delivery time and then by sender and send order. */
+  private static final class Datagram implements Comparable<Datagram> {
+    final long deliveryTimeNs;
+    final InetSocketAddress source;
+    final long sequence;
+    final byte[] data;
+
+    Datagram(long deliveryTimeNs, InetSocketAddress source, long sequence, byte[] data) {
+      this.deliveryTimeNs = deliveryTimeNs;
+      this.source = source;
+      this.sequence = sequence;
+      this.data = data;
+    }
+
+    @Override
+    public int compareTo(Datagram other) {
+      if (deliveryTimeNs != other.deliveryTimeNs) {
+        return Long.compare(deliveryTimeNs, other.deliveryTimeNs);
+      }
+      if (source.hashCode() != other.source.hashCode()) {
+        return Integer.compare(source.hashCode(), other.source.hashCode());
+      }
+      return Long.compare(sequence, other.sequence);
+    }
+  }
+
+  /** An endpoint and its incoming datagrams, all state is guarded by the network lock. */
+  private final class Endpoint implements DatagramEndpoint {
+    final InetSocketAddress localAddress;
+    final PriorityQueue<Datagram> queue = new PriorityQueue<>();
+    private final Condition woken = lock.newCondition();
+    private boolean waiting;
+    private long deadlineNs;
+    private boolean closed;
+
+    Endpoint(InetSocketAddress localAddress) {
+      this.localAddress = localAddress;
+    }
+
+    @Override
+    public boolean receive(DatagramPacket packet, int timeoutMs) throws IOException {
+      Datagram datagram;
+      lock.lock();
+      try {
+        if (!closed && !hasArrived()) {
+          deadlineNs =
+              timeoutMs == 0
+                  ? Long.MAX_VALUE
+                  : clock.read() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+          waiting = true;
+          waitingCount++;
+          receiverWaiting.signalAll();
+          try {
+            while (waiting) {
+              woken.await();
+            }
+          } catch (InterruptedException e) {
+            wake();
+            Thread.currentThread().interrupt();
+            throw new SocketException("Interrupted while receiving");
+          }
+        }
+        if (closed) {
+          throw new SocketException("Endpoint closed");
+        }
+        if (!hasArrived()) {
+          return false;
+        }
+        datagram = queue.poll();
+      } finally {
+        lock.unlock();
+      }
+      int length = Math.min(datagram.data.length, packet.getData().length - packet.getOffset());
+      System.arraycopy(datagram.data, 0, packet.getData(), packet.getOffset(), length);
+      packet.setLength(length);
+      packet.setSocketAddress(datagram.source);
+      return true;
+    }
+
+    private boolean hasArrived() {
+      Datagram next = queue.peek();
+      return next != null && next.deliveryTimeNs <= clock.read();
+    }
+
+    /** Time at which the waiting receiver has to be woken, never if it is not waiting. */
+    long nextEventNs() {
+      if (!waiting) {
+        return Long.MAX_VALUE;
+      }
+      Datagram next = queue.peek();
+      return next == null ? deadlineNs : Math.min(deadlineNs, next.deliveryTimeNs);
+    }
+
+    /** Ends the wait of the receiver, if any. */
+    void wake() {
+      if (waiting) {
+        waiting = false;
+        waitingCount--;
+        woken.signal();
+      }
+    }
+
+    @Override
+    public void send(DatagramPacket packet) throws IOException {
+      lock.lock();
+      try {
+        if (closed) {
+          throw new SocketException("Endpoint closed");
+        }
+      } finally {
+        lock.unlock();
+      }
+      SimulatedNetwork.this.send(localAddress, packet);
+    }
+
+    @Override
+    public void setBroadcast(boolean broadcast) {}
+
+    @Override
+    public boolean isClosed() {
+      lock.lock();
+      try {
+        return closed;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public void close() {
+      lock.lock();
+      try {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        endpoints.remove(localAddress);
+        wake();
+        receiverWaiting.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+}
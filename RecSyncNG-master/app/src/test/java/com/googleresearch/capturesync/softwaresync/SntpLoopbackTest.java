@@ -0,0 +1,153 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Syncs an {@link SntpEngine} with {@link SntpListener}s over real UDP sockets on loopback, with
+ * both the blocking and the spinning sockets. The engine is bound to 127.0.0.1 and client i to
+ * 127.0.0.(i + 2). Every client clock is the system clock plus a known offset, so the estimated
+ * offsets can be checked against the true ones.
+ */
+@RunWith(JUnit4.class)
+public final class SntpLoopbackTest {
+  private static final int PORT = 42_003;
+  private static final int CLIENTS = 4;
+  private static final long OFFSET_STEP_NS = 1_234_567_891L;
+
+  private final Ticker leaderClock = System::nanoTime;
+  private final List<InetAddress> clientAddresses = new ArrayList<>();
+  private final List<SntpSocket> sockets = new ArrayList<>();
+  private final List<SntpListener> listeners = new ArrayList<>();
+  private final ConcurrentHashMap<InetAddress, SntpOffsetResponse> responses =
+      new ConcurrentHashMap<>();
+  private final CountDownLatch finished = new CountDownLatch(CLIENTS);
+  private SntpEngine engine;
+
+  /** Socket type under test. */
+  private interface SocketFactory {
+    SntpSocket open(Ticker clock, InetSocketAddress address) throws IOException;
+  }
+
+  private static final SocketFactory BLOCKING =
+      (clock, address) -> SntpSocket.over(clock, UdpSyncTransport.bind(address));
+  private static final SocketFactory SPINNING = SntpSocket::openSpinning;
+
+  private static InetAddress loopback(int host) throws IOException {
+    return InetAddress.getByAddress(new byte[] {127, 0, 0, (byte) host});
+  }
+
+  private static long offsetOf(int client) {
+    // Offsets of either sign, client times stay positive.
+    return (client - CLIENTS / 2) * OFFSET_STEP_NS;
+  }
+
+  private void start(SocketFactory factory) throws IOException {
+    for (int i = 0; i < CLIENTS; i++) {
+      final long offsetNs = offsetOf(i);
+      Ticker clock = () -> System.nanoTime() + offsetNs;
+      InetAddress address = loopback(i + 2);
+      SntpSocket socket = factory.open(clock, new InetSocketAddress(address, PORT));
+      sockets.add(socket);
+      SntpListener listener = new SntpListener(clock, socket, PORT);
+      listener.start();
+      listeners.add(listener);
+      clientAddresses.add(address);
+    }
+    SntpSocket engineSocket = factory.open(leaderClock, new InetSocketAddress(loopback(1), PORT));
+    sockets.add(engineSocket);
+    engine =
+        new SntpEngine(
+            leaderClock,
+            engineSocket,
+            PORT,
+            MinRttOffsetEstimator.FACTORY,
+            (clientAddress, response) -> {
+              if (responses.putIfAbsent(clientAddress, response) == null) {
+                finished.countDown();
+              }
+            });
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    if (engine != null) {
+      engine.close();
+    }
+    for (SntpListener listener : listeners) {
+      listener.stopRunning();
+    }
+    for (SntpSocket socket : sockets) {
+      socket.close();
+    }
+    for (SntpListener listener : listeners) {
+      listener.join();
+    }
+  }
+
+  /** Syncs every client once and checks each estimate against the true offset. */
+  private void syncAndCheck() throws InterruptedException {
+    for (InetAddress address : clientAddresses) {
+      engine.startSync(address, SyncConstants.NUM_SNTP_CYCLES);
+    }
+    assertTrue("Sync timed out", finished.await(10, TimeUnit.SECONDS));
+
+    for (int i = 0; i < CLIENTS; i++) {
+      SntpOffsetResponse response = responses.get(clientAddresses.get(i));
+      assertTrue(response.status());
+      // Both clocks are the same system clock, so the error only comes from the asymmetry of the
+      // round trip and is at most half of it, the confidence interval.
+      long errorNs = Math.abs(response.offsetNs() - offsetOf(i));
+      assertTrue(
+          String.format(
+              "Client %d off by %,d ns, confidence interval %,d ns",
+              i, errorNs, response.confidenceIntervalNs()),
+          errorNs <= response.confidenceIntervalNs() + 1);
+      assertEquals(offsetOf(i), response.offsetNs(), TimeUtils.millisToNanos(5));
+    }
+  }
+
+  @Test
+  public void blockingSocketsSync() throws Exception {
+    start(BLOCKING);
+    syncAndCheck();
+  }
+
+  @Test
+  public void spinningSocketsSync() throws Exception {
+    // Like SntpSocket.open, on a single core the spinning threads would starve each other.
+    assumeTrue(Runtime.getRuntime().availableProcessors() > 1);
+    start(SPINNING);
+    syncAndCheck();
+  }
+}
@@ -0,0 +1,285 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Synchronizes a leader with N clients in this process, to measure how fast and how accurately
+ * the SNTP exchange converges. The leader runs the real {@link SntpEngine} and every client a
+ * {@link SntpListener}, each reading its own {@link SimulatedClock} and connected by a {@link
+ * SimulatedNetwork} in virtual time, so a run takes only the real time of the packet handling and
+ * gives the same result every time for the same seed.
+ *
+ * <p>Client clocks get a random offset and skew drawn from the seeded Random. Since all clocks
+ * derive from one reference, the true offset of every client is known and {@link #run()} reports
+ * the actual sync error rather than the error the protocol estimates for itself.
+ */
+final class SyncSimulation implements AutoCloseable {
+  /** Virtual time the simulation starts at, clients with a negative offset stay positive. */
+  private static final long START_NS = 10_000_000_000L;
+
+  private final VirtualClock reference = new VirtualClock(START_NS);
+  private final SimulatedNetwork network;
+  private final SimulatedClock leaderClock;
+  private final SntpSocket leaderSocket;
+  private final SntpEngine engine;
+  private final List<InetAddress> clientAddresses = new ArrayList<>();
+  private final List<SimulatedClock> clientClocks = new ArrayList<>();
+  private final List<SntpSocket> clientSockets = new ArrayList<>();
+  private final List<SntpListener> listeners = new ArrayList<>();
+  private final Map<InetAddress, Integer> clientIndices = new HashMap<>();
+
+  /** Result of every client, written by the engine thread before finishedCount is incremented. */
+  private final SntpOffsetResponse[] responses;
+  /** Reference time each client finished syncing at. */
+  private final long[] finishedAtNs;
+  private final AtomicInteger finishedCount = new AtomicInteger();
+
+  private SyncSimulation(Builder builder) throws IOException {
+    Random random = new Random(builder.seed);
+    network =
+        new SimulatedNetwork(
+            reference,
+            random.nextLong(),
+            builder.latencyNs,
+            builder.jitterNs,
+            builder.lossProbability);
+    responses = new SntpOffsetResponse[builder.clientCount];
+    finishedAtNs = new long[builder.clientCount];
+
+    leaderClock = new SimulatedClock(reference, /*offsetNs=*/ 0, /*skewPpm=*/ 0);
+    leaderSocket = SntpSocket.over(leaderClock, bind(addressOf(0)));
+    for (int i = 0; i < builder.clientCount; i++) {
+      long offsetNs = (long) ((2 * random.nextDouble() - 1) * builder.maxOffsetNs);
+      double skewPpm = (2 * random.nextDouble() - 1) * builder.maxSkewPpm;
+      SimulatedClock clock = new SimulatedClock(reference, offsetNs, skewPpm);
+      InetAddress address = addressOf(i + 1);
+      SntpSocket socket = SntpSocket.over(clock, bind(address));
+      SntpListener listener = new SntpListener(clock, socket, SyncConstants.SNTP_PORT);
+      listener.start();
+      clientIndices.put(address, i);
+      clientAddresses.add(address);
+      clientClocks.add(clock);
+      clientSockets.add(socket);
+      listeners.add(listener);
+    }
+    engine =
+        new SntpEngine(
+            leaderClock,
+            leaderSocket,
+            SyncConstants.SNTP_PORT,
+            builder.estimatorFactory,
+            this::onSyncFinished);
+  }
+
+  private DatagramEndpoint bind(InetAddress address) throws IOException {
+    return network.bind(new InetSocketAddress(address, SyncConstants.SNTP_PORT));
+  }
+
+  /** Device n of the simulated subnet 10.0.0.0/16, the leader is device 0. */
+  private static InetAddress addressOf(int n) throws UnknownHostException {
+    // Skip host bytes 0 and 255, which are reserved for the network and broadcast addresses.
+    int host = n + 1;
+    return InetAddress.getByAddress(
+        new byte[] {10, 0, (byte) (host / 254), (byte) (host % 254 + 1)});
+  }
+
+  private void onSyncFinished(InetAddress clientAddress, SntpOffsetResponse response) {
+    int index = clientIndices.get(clientAddress);
+    if (responses[index] != null) {
+      // Sessions failed while closing the engine.
+      return;
+    }
+    responses[index] = response;
+    finishedAtNs[index] = reference.read();
+    finishedCount.incrementAndGet();
+  }
+
+  /** Syncs every client once and measures the sync error and convergence time of each. */
+  Report run() throws InterruptedException {
+    for (InetAddress address : clientAddresses) {
+      engine.startSync(address, SyncConstants.NUM_SNTP_CYCLES);
+    }
+    final int n = clientAddresses.size();
+    network.runUntil(() -> finishedCount.get() == n);
+
+    long[] errorsNs = new long[n];
+    long[] convergenceNs = new long[n];
+    int synced = 0;
+    for (int i = 0; i < n; i++) {
+      SntpOffsetResponse response = responses[i];
+      if (!response.status()) {
+        continue;
+      }
+      // The offset (leader_time = local_time - offset) at the client time of the sample the
+      // estimate is based on.
+      long clientTimeNs = response.clientTimeNs();
+      long referenceNs = clientClocks.get(i).referenceTimeAt(clientTimeNs);
+      long trueOffsetNs = clientTimeNs - leaderClock.localTimeAt(referenceNs);
+      errorsNs[synced] = Math.abs(response.offsetNs() - trueOffsetNs);
+      convergenceNs[synced] = finishedAtNs[i] - START_NS;
+      synced++;
+    }
+    return new Report(
+        n,
+        Arrays.copyOf(errorsNs, synced),
+        Arrays.copyOf(convergenceNs, synced),
+        network.deliveredCount(),
+        network.lostCount());
+  }
+
+  @Override
+  public void close() {
+    engine.close();
+    leaderSocket.close();
+    for (SntpListener listener : listeners) {
+      listener.stopRunning();
+    }
+    for (SntpSocket socket : clientSockets) {
+      socket.close();
+    }
+    try {
+      for (SntpListener listener : listeners) {
+        listener.join();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt(); // Restore the interrupted status.
+    }
+  }
+
+  /** Sync error and convergence time distributions over the synced clients. */
+  static final class Report {
+    final int clientCount;
+    final int syncedCount;
+    /** Sorted absolute errors of the offset estimates of synced clients. */
+    final long[] errorsNs;
+    /** Sorted times from the start of the simulation until clients finished syncing. */
+    final long[] convergenceTimesNs;
+    final long deliveredDatagrams;
+    final long lostDatagrams;
+
+    private Report(
+        int clientCount,
+        long[] errorsNs,
+        long[] convergenceTimesNs,
+        long deliveredDatagrams,
+        long lostDatagrams) {
+      Arrays.sort(errorsNs);
+      Arrays.sort(convergenceTimesNs);
+      this.clientCount = clientCount;
+      this.syncedCount = errorsNs.length;
+      this.errorsNs = errorsNs;
+      this.convergenceTimesNs = convergenceTimesNs;
+      this.deliveredDatagrams = deliveredDatagrams;
+      this.lostDatagrams = lostDatagrams;
+    }
+
+    /** The q quantile of sorted values, 0 if there are none. */
+    static long quantile(long[] sorted, double q) {
+      if (sorted.length == 0) {
+        return 0;
+      }
+      return sorted[(int) Math.min(sorted.length - 1, Math.round(q * (sorted.length - 1)))];
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%d/%d clients synced. Error p50 %,d ns, p95 %,d ns, max %,d ns. "
+              + "Convergence p50 %,d us, p95 %,d us, max %,d us. "
+              + "Datagrams %,d delivered, %,d lost.",
+          syncedCount,
+          clientCount,
+          quantile(errorsNs, 0.5),
+          quantile(errorsNs, 0.95),
+          quantile(errorsNs, 1),
+          quantile(convergenceTimesNs, 0.5) / 1_000,
+          quantile(convergenceTimesNs, 0.95) / 1_000,
+          quantile(convergenceTimesNs, 1) / 1_000,
+          deliveredDatagrams,
+          lostDatagrams);
+    }
+  }
+
+  static Builder builder() {
+    return new Builder();
+  }
+
+  /** Simulation parameters, defaulting to a 100 device rig on a busy wifi hotspot. */
+  static final class Builder {
+    private int clientCount = 100;
+    private long seed = 0;
+    private long latencyNs = 400_000;
+    private long jitterNs = 300_000;
+    private double lossProbability = 0.01;
+    private long maxOffsetNs = 1_000_000_000L;
+    private double maxSkewPpm = 50;
+    private OffsetEstimator.Factory estimatorFactory = MinRttOffsetEstimator.FACTORY;
+
+    private Builder() {}
+
+    Builder setClientCount(int clientCount) {
+      this.clientCount = clientCount;
+      return this;
+    }
+
+    Builder setSeed(long seed) {
+      this.seed = seed;
+      return this;
+    }
+
+    /** Sets the one way delay, a fixed latency plus an exponential jitter of the given mean. */
+    Builder setLatency(long latencyNs, long jitterNs) {
+      this.latencyNs = latencyNs;
+      this.jitterNs = jitterNs;
+      return this;
+    }
+
+    Builder setLossProbability(double lossProbability) {
+      this.lossProbability = lossProbability;
+      return this;
+    }
+
+    /** Client clocks start up to maxOffsetNs away from the leader and run up to maxSkewPpm off. */
+    Builder setClockError(long maxOffsetNs, double maxSkewPpm) {
+      this.maxOffsetNs = maxOffsetNs;
+      this.maxSkewPpm = maxSkewPpm;
+      return this;
+    }
+
+    Builder setEstimatorFactory(OffsetEstimator.Factory estimatorFactory) {
+      this.estimatorFactory = estimatorFactory;
+      return this;
+    }
+
+    /** Creates the devices, which wait for {@link SyncSimulation#run()}. */
+    SyncSimulation build() throws IOException {
+      return new SyncSimulation(this);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class SyncSimulationTest {
+  private static final int CLIENTS = 128;
+
+  private static SyncSimulation.Report simulate(SyncSimulation.Builder builder) throws Exception {
+    try (SyncSimulation simulation = builder.build()) {
+      return simulation.run();
+    }
+  }
+
+  @Test
+  public void manyClientsSyncWithinBounds() throws Exception {
+    SyncSimulation.Report report =
+        simulate(SyncSimulation.builder().setClientCount(CLIENTS).setSeed(1));
+
+    assertEquals(report.toString(), CLIENTS, report.syncedCount);
+    // Samples under the 1 ms precise round trip are within 0.5 ms, most far better.
+    assertTrue(report.toString(), SyncSimulation.Report.quantile(report.errorsNs, 0.95) < 150_000);
+    assertTrue(report.toString(), SyncSimulation.Report.quantile(report.errorsNs, 1) < 500_000);
+    // All clients are probed at once, so a session mostly waits for the others' replies.
+    assertTrue(
+        report.toString(),
+        SyncSimulation.Report.quantile(report.convergenceTimesNs, 1) < 100_000_000L);
+  }
+
+  @Test
+  public void lossySlowLinkStillSyncs() throws Exception {
+    SyncSimulation.Report report =
+        simulate(
+            SyncSimulation.builder()
+                .setClientCount(CLIENTS)
+                .setSeed(2)
+                .setLatency(/*latencyNs=*/ 1_000_000, /*jitterNs=*/ 500_000)
+                .setLossProbability(0.1));
+
+    // The round trip never gets under 1 ms, so every session runs all its cycles.
+    assertEquals(report.toString(), CLIENTS, report.syncedCount);
+    assertTrue(report.toString(), report.lostDatagrams > 0);
+    assertTrue(report.toString(), SyncSimulation.Report.quantile(report.errorsNs, 1) < 500_000);
+    assertTrue(
+        report.toString(),
+        SyncSimulation.Report.quantile(report.convergenceTimesNs, 1) < 3_000_000_000L);
+  }
+
+  @Test
+  public void sameSeedGivesSameResult() throws Exception {
+    SyncSimulation.Report first =
+        simulate(SyncSimulation.builder().setClientCount(CLIENTS).setSeed(3));
+    SyncSimulation.Report second =
+        simulate(SyncSimulation.builder().setClientCount(CLIENTS).setSeed(3));
+
+    assertArrayEquals(first.errorsNs, second.errorsNs);
+    assertArrayEquals(first.convergenceTimesNs, second.convergenceTimesNs);
+    assertEquals(first.deliveredDatagrams, second.deliveredDatagrams);
+    assertEquals(first.lostDatagrams, second.lostDatagrams);
+  }
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+/**
+ * Simulated reference time. It stands still while the simulated devices run and is only moved
+ * forward by the {@link SimulatedNetwork}, once every device waits for a datagram or a timeout.
+ */
+final class VirtualClock implements Ticker {
+  private volatile long nowNs;
+
+  VirtualClock(long startNs) {
+    nowNs = startNs;
+  }
+
+  @Override
+  public long read() {
+    return nowNs;
+  }
+
+  /** Moves the time forward to timeNs, never backwards. */
+  void advanceTo(long timeNs) {
+    if (timeNs > nowNs) {
+      nowNs = timeNs;
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync.phasealign;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class FramePeriodEstimatorTest {
+  private static final long PERIOD_NS = 33_333_333;
+
+  private final List<Long> publishedPeriodsNs = new ArrayList<>();
+  private final FramePeriodEstimator estimator =
+      new FramePeriodEstimator(
+          (periodNs, jitterNs, confidence) -> {
+            assertTrue(confidence >= FramePeriodEstimator.PUBLISH_CONFIDENCE);
+            publishedPeriodsNs.add(periodNs);
+          });
+  private final Random random = new Random(0);
+  private long timestampNs = 1_000_000_000L;
+
+  /** Feeds frames of the given period, each timestamp off by a gaussian jitter. */
+  private void feed(int frames, long periodNs, double jitterNs) {
+    for (int i = 0; i < frames; i++) {
+      timestampNs += periodNs;
+      estimator.onFrameTimestamp(timestampNs + (long) (random.nextGaussian() * jitterNs));
+    }
+  }
+
+  @Test
+  public void convergesAndPublishesOnce() {
+    // Intervals between two timestamps of 10 us jitter each vary by about 14 us.
+    feed(300, PERIOD_NS, 10_000);
+
+    assertEquals(PERIOD_NS, estimator.getPeriodNs(), 2_000);
+    assertEquals(14_000, estimator.getJitterNs(), 3_000);
+    assertTrue(estimator.getConfidence() >= FramePeriodEstimator.PUBLISH_CONFIDENCE);
+    assertEquals(1, publishedPeriodsNs.size());
+    assertEquals(PERIOD_NS, publishedPeriodsNs.get(0), 2_000);
+  }
+
+  @Test
+  public void droppedFramesStillYieldPeriod() {
+    for (int i = 0; i < 200; i++) {
+      // Every third frame is dropped.
+      timestampNs += PERIOD_NS;
+      if (i % 3 != 2) {
+        estimator.onFrameTimestamp(timestampNs);
+      }
+    }
+
+    assertEquals(PERIOD_NS, estimator.getPeriodNs(), 1);
+  }
+
+  @Test
+  public void injectedFrameIsIgnored() {
+    feed(100, PERIOD_NS, 5_000);
+    long periodNs = estimator.getPeriodNs();
+
+    // A longer injected frame shifts the phase by a third of a period.
+    timestampNs += PERIOD_NS / 3;
+    feed(100, PERIOD_NS, 5_000);
+
+    assertEquals(periodNs, estimator.getPeriodNs(), 1_000);
+    assertEquals(1, publishedPeriodsNs.size());
+  }
+
+  @Test
+  public void frameRateChangeRestartsEstimate() {
+    feed(200, PERIOD_NS, 5_000);
+    long newPeriodNs = 40_000_000;
+
+    feed(200, newPeriodNs, 5_000);
+
+    assertEquals(newPeriodNs, estimator.getPeriodNs(), 2_000);
+    assertEquals(2, publishedPeriodsNs.size());
+    assertEquals(newPeriodNs, publishedPeriodsNs.get(1), 2_000);
+  }
+
+  @Test
+  public void requestResetForgetsEstimateAtNextFrame() {
+    feed(200, PERIOD_NS, 5_000);
+
+    estimator.requestReset();
+    assertEquals(PERIOD_NS, estimator.getPeriodNs(), 2_000);
+
+    feed(1, PERIOD_NS, 0);
+    assertEquals(0, estimator.getPeriodNs());
+    assertEquals(0, estimator.getConfidence(), 0);
+
+    // The same period is published again once confident.
+    feed(200, PERIOD_NS, 5_000);
+    assertEquals(2, publishedPeriodsNs.size());
+  }
+}
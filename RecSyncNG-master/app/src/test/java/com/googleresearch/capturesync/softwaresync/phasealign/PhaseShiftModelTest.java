@@ -0,0 +1,160 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync.phasealign;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class PhaseShiftModelTest {
+  /** The default configuration in app/src/main/res/raw/default_phaseconfig.json. */
+  private static final String CONFIG_JSON =
+      "{\"periodNs\": 33327307, \"goalPhaseNs\": 15000000, \"alignThresholdNs\": 100000,"
+          + " \"overheadNs\": 200000, \"minExposureNs\": 33370000}";
+
+  /** The simulated device, off from the prior gain of 2 and overhead of 0.2 ms. */
+  private static final double TRUE_GAIN = 1.5;
+  private static final long TRUE_OVERHEAD_NS = 600_000;
+  /** Standard deviation of a measured phase shift, about the timestamp jitter. */
+  private static final double SHIFT_NOISE_NS = 20_000;
+
+  private PhaseConfig config;
+  private long periodNs;
+  private PhaseShiftModel model;
+  private final Random random = new Random(0);
+
+  @Before
+  public void setUp() throws Exception {
+    config = PhaseConfig.parseFromJSON(new JSONObject(CONFIG_JSON));
+    periodNs = config.periodNs();
+    model = new PhaseShiftModel(config);
+  }
+
+  /** Shift of one frame injected on the simulated device. */
+  private static long trueShiftNs(long periodNs, long exposureNs) {
+    return Math.round(TRUE_GAIN * (exposureNs - periodNs + TRUE_OVERHEAD_NS));
+  }
+
+  /** Injects correction on the simulated device and returns the measured shift. */
+  private long inject(PhaseShiftModel.Correction correction) {
+    long shiftNs = correction.frameCount() * trueShiftNs(periodNs, correction.exposureNs());
+    return shiftNs + Math.round(random.nextGaussian() * SHIFT_NOISE_NS);
+  }
+
+  /** Plans a correction for desiredShiftNs, injects it and teaches the model the outcome. */
+  private long correct(long desiredShiftNs) {
+    PhaseShiftModel.Correction correction = model.plan(periodNs, desiredShiftNs);
+    // Like PhaseAlignController, only the shift modulo the period is measured.
+    long measuredNs = Math.floorMod(inject(correction), periodNs);
+    long shiftNs =
+        PhaseShiftModel.unwrapShiftNs(periodNs, measuredNs, correction.predictedShiftNs());
+    model.addObservation(periodNs, correction.exposureNs(), correction.frameCount(), shiftNs);
+    return shiftNs;
+  }
+
+  @Test
+  public void startsFromPrior() {
+    assertEquals(2.0, model.gain(), 0);
+    assertEquals(config.overheadNs(), model.overheadNs());
+    assertEquals(0, model.observationCount());
+    long exposureNs = periodNs + 1_000_000;
+    assertEquals(2 * (1_000_000 + config.overheadNs()), model.predictShiftNs(periodNs, exposureNs));
+  }
+
+  @Test
+  public void converges() {
+    for (int i = 0; i < 10; i++) {
+      correct((long) (random.nextDouble() * periodNs));
+    }
+
+    assertEquals(10, model.observationCount());
+    assertEquals(TRUE_GAIN, model.gain(), 0.02);
+    assertEquals(TRUE_OVERHEAD_NS, model.overheadNs(), 50_000);
+    // The plans are now accurate to about the measurement noise.
+    for (int i = 0; i < 20; i++) {
+      long desiredShiftNs = (long) (random.nextDouble() * periodNs);
+      PhaseShiftModel.Correction correction = model.plan(periodNs, desiredShiftNs);
+      long errorNs = Math.floorMod(inject(correction) - desiredShiftNs, periodNs);
+      errorNs = Math.min(errorNs, periodNs - errorNs);
+      assertTrue("Missed by " + errorNs + " ns", errorNs < 5 * SHIFT_NOISE_NS);
+    }
+  }
+
+  @Test
+  public void calibrationLimitsShifts() {
+    long desiredShiftNs = periodNs - 1_000_000;
+    for (int i = 0; i < 2; i++) {
+      PhaseShiftModel.Correction correction = model.plan(periodNs, desiredShiftNs);
+      // Up to the rounding of the exposure to whole nanoseconds.
+      assertTrue(correction.predictedShiftNs() <= periodNs / 2 + 10);
+      // Even the prior being off does not make the shift ambiguous.
+      long shiftNs = correct(desiredShiftNs);
+      assertEquals(
+          correction.frameCount() * trueShiftNs(periodNs, correction.exposureNs()),
+          shiftNs,
+          5 * SHIFT_NOISE_NS);
+    }
+
+    PhaseShiftModel.Correction correction = model.plan(periodNs, desiredShiftNs);
+    assertTrue(correction.predictedShiftNs() > periodNs / 2);
+  }
+
+  @Test
+  public void plansStayWithinExposureBounds() {
+    for (int i = 0; i < 50; i++) {
+      PhaseShiftModel.Correction correction =
+          model.plan(periodNs, (long) (random.nextDouble() * periodNs));
+      assertTrue(correction.exposureNs() >= config.minExposureNs());
+      assertTrue(correction.exposureNs() <= config.maxExposureNs());
+      assertTrue(correction.frameCount() >= 1);
+      assertTrue(correction.frameCount() <= PhaseShiftModel.MAX_FRAMES_PER_CORRECTION);
+      model.addObservation(
+          periodNs,
+          correction.exposureNs(),
+          correction.frameCount(),
+          correction.frameCount() * trueShiftNs(periodNs, correction.exposureNs()));
+    }
+  }
+
+  @Test
+  public void unwrapPicksShiftClosestToPrediction() {
+    long predictedNs = periodNs + 2_000_000;
+    assertEquals(
+        predictedNs + 500_000, PhaseShiftModel.unwrapShiftNs(periodNs, 2_500_000, predictedNs));
+    assertEquals(
+        predictedNs - 500_000, PhaseShiftModel.unwrapShiftNs(periodNs, 1_500_000, predictedNs));
+    assertEquals(-1_000, PhaseShiftModel.unwrapShiftNs(periodNs, periodNs - 1_000, 0));
+  }
+
+  @Test
+  public void resetReturnsToPrior() {
+    for (int i = 0; i < 5; i++) {
+      correct((long) (random.nextDouble() * periodNs));
+    }
+    model.reset();
+    assertEquals(2.0, model.gain(), 0);
+    assertEquals(config.overheadNs(), model.overheadNs());
+    assertEquals(0, model.observationCount());
+  }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync.phasealign;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class PhaseTelemetryTest {
+  private final PhaseTelemetry telemetry = new PhaseTelemetry();
+  private final PhaseTelemetry.Sample sample = new PhaseTelemetry.Sample();
+
+  /** Publishes frame i, all of whose fields are derived from i so a reader can check them. */
+  private void publish(long i) {
+    telemetry.publish(i, 2 * i, -3 * i, i % 2 == 0);
+  }
+
+  private static void assertConsistent(PhaseTelemetry.Sample sample) {
+    long i = sample.timestampNs();
+    assertEquals(i, sample.publishCount());
+    assertEquals(2 * i, sample.phaseNs());
+    assertEquals(-3 * i, sample.diffFromGoalNs());
+    assertEquals(i % 2 == 0, sample.isAligned());
+  }
+
+  @Test
+  public void readBeforePublishFails() {
+    assertFalse(telemetry.read(sample));
+    assertEquals(0, sample.publishCount());
+    assertEquals(0, telemetry.timestampNs());
+  }
+
+  @Test
+  public void readReturnsLatest() {
+    publish(1);
+    publish(2);
+
+    assertTrue(telemetry.read(sample));
+    assertEquals(2, sample.publishCount());
+    assertConsistent(sample);
+    assertEquals(2, telemetry.timestampNs());
+  }
+
+  @Test
+  public void readsAreConsistentUnderConcurrentWriter() throws Exception {
+    final AtomicBoolean stop = new AtomicBoolean();
+    final AtomicLong lastPublished = new AtomicLong();
+    Thread writer =
+        new Thread(
+            () -> {
+              long i = 0;
+              while (!stop.get()) {
+                publish(++i);
+              }
+              lastPublished.set(i);
+            });
+    writer.start();
+
+    long lastCount = 0;
+    for (int reads = 0; reads < 5_000_000; ) {
+      if (telemetry.read(sample)) {
+        // A torn read would mix fields of different frames.
+        assertConsistent(sample);
+        assertTrue(sample.publishCount() >= lastCount);
+        lastCount = sample.publishCount();
+        reads++;
+      }
+    }
+    stop.set(true);
+    writer.join();
+
+    assertTrue(telemetry.read(sample));
+    assertEquals(lastPublished.get(), sample.publishCount());
+    assertConsistent(sample);
+  }
+}
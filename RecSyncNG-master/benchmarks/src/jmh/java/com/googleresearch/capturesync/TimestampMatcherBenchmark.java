@@ -0,0 +1,99 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Matching of capture results with the images of one or more readers, the per-frame work of
+ * {@link ImageMetadataSynchronizer}. Results and images arrive in alternating order, and the HAL
+ * drops an image of the first reader every {@link #DROP_PERIOD} frames. Steady state matching is
+ * expected not to allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TimestampMatcherBenchmark {
+  private static final int FRAMES_PER_INVOCATION = 256;
+  private static final int DROP_PERIOD = 64;
+  private static final long FRAME_DURATION_NS = 33_333_333;
+
+  @Param({"1", "2"})
+  public int readerCount;
+
+  private final Object result = new Object();
+  private final Object image = new Object();
+  private TimestampMatcher<Object, Object> matcher;
+  private int[] targets;
+  private long timestampNs;
+  private long matchedCount;
+
+  @Setup
+  public void setUp() {
+    int[] capacities = new int[readerCount];
+    targets = new int[readerCount];
+    for (int i = 0; i < readerCount; i++) {
+      capacities[i] = 4;
+      targets[i] = i;
+    }
+    matcher =
+        new TimestampMatcher<>(
+            Object.class,
+            capacities,
+            new TimestampMatcher.Listener<Object, Object>() {
+              @Override
+              public void onImageDropped(int readerIndex, Object image) {}
+
+              @Override
+              public void onMatched(
+                  Object result, Object[] images, int[] droppedReaderIndices, int droppedCount) {
+                matchedCount++;
+              }
+            });
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(FRAMES_PER_INVOCATION)
+  public long matchFrames() {
+    for (int frame = 0; frame < FRAMES_PER_INVOCATION; frame++) {
+      timestampNs += FRAME_DURATION_NS;
+      boolean resultFirst = (frame & 1) == 0;
+      if (resultFirst) {
+        matcher.addResult(result, timestampNs, targets);
+      }
+      for (int readerIndex = 0; readerIndex < readerCount; readerIndex++) {
+        if (readerIndex == 0 && frame % DROP_PERIOD == DROP_PERIOD - 1) {
+          continue; // Dropped by the HAL, the result is matched without this image.
+        }
+        matcher.addImage(readerIndex, image, timestampNs);
+      }
+      if (!resultFirst) {
+        matcher.addResult(result, timestampNs, targets);
+      }
+    }
+    return matchedCount;
+  }
+}
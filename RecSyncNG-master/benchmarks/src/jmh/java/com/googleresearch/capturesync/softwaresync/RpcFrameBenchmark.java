@@ -0,0 +1,124 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Encoding and decoding of RPC frames, the work {@link SoftwareSyncBase} does for every RPC sent or
+ * received besides the socket call. The pooled binary paths are expected not to allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RpcFrameBenchmark {
+  private static final short SESSION = 1;
+
+  private final RpcFramePool pool = new RpcFramePool(SyncConstants.RPC_FRAME_POOL_SIZE);
+  private InetAddress destination;
+  private byte[] receivedOffsetUpdate;
+  private byte[] receivedStringRpc;
+  private int sequence;
+
+  @Setup
+  public void setUp() throws UnknownHostException {
+    destination = InetAddress.getByAddress(new byte[] {10, 0, 0, 2});
+    receivedOffsetUpdate = encodedBytes(encodeOffsetUpdate());
+    receivedStringRpc = encodedBytes(encodeStringRpc());
+  }
+
+  private byte[] encodedBytes(RpcFrame frame) {
+    DatagramPacket packet = frame.packetFor(destination, SyncConstants.RPC_PORT);
+    byte[] bytes = Arrays.copyOf(packet.getData(), packet.getLength());
+    frame.release();
+    return bytes;
+  }
+
+  /** An offset update with a drift sample, as sent by the leader after every SNTP sync. */
+  private RpcFrame encodeOffsetUpdate() {
+    RpcFrame frame = pool.acquire();
+    frame.begin(SyncConstants.METHOD_OFFSET_UPDATE, SESSION, sequence++);
+    return frame.putLong(123_456_789L).putLong(987_654_321_000L).putLong(25_000L);
+  }
+
+  /** A user command with a string argument, the legacy RpcCallback path. */
+  private RpcFrame encodeStringRpc() {
+    RpcFrame frame = pool.acquire();
+    frame.begin(SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS + 1, SESSION, sequence++);
+    return frame.putString("1024,768,NV21");
+  }
+
+  /** Receives bytes into a pooled frame the way the rpc thread does. */
+  private RpcFrame receive(byte[] bytes) {
+    RpcFrame frame = pool.acquire();
+    DatagramPacket packet = frame.packetForReceive();
+    System.arraycopy(bytes, 0, packet.getData(), 0, bytes.length);
+    packet.setLength(bytes.length);
+    return frame;
+  }
+
+  @Benchmark
+  public DatagramPacket encodeOffsetUpdateFrame() {
+    RpcFrame frame = encodeOffsetUpdate();
+    DatagramPacket packet = frame.packetFor(destination, SyncConstants.RPC_PORT);
+    frame.release();
+    return packet;
+  }
+
+  @Benchmark
+  public DatagramPacket encodeStringFrame() {
+    RpcFrame frame = encodeStringRpc();
+    DatagramPacket packet = frame.packetFor(destination, SyncConstants.RPC_PORT);
+    frame.release();
+    return packet;
+  }
+
+  @Benchmark
+  public long decodeOffsetUpdateFrame() {
+    RpcFrame frame = receive(receivedOffsetUpdate);
+    long sum = 0;
+    if (frame.parseReceived()) {
+      ByteBuffer payload = frame.payload();
+      sum = frame.method() + RpcFrame.getLong(payload);
+      while (!RpcFrame.isEmpty(payload)) {
+        sum += RpcFrame.getLong(payload);
+      }
+    }
+    frame.release();
+    return sum;
+  }
+
+  @Benchmark
+  public String decodeStringFrame() {
+    RpcFrame frame = receive(receivedStringRpc);
+    String value = frame.parseReceived() ? RpcFrame.getString(frame.payload()) : null;
+    frame.release();
+    return value;
+  }
+}
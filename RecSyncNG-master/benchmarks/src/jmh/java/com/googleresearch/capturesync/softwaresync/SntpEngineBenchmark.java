@@ -0,0 +1,122 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A full round of SNTP synchronization of the leader with many clients over loopback: one {@link
+ * SntpEngine} probes every client at once and each client is a {@link SntpListener} with its own
+ * socket. The engine is bound to 127.0.0.1 and client i to 127.0.0.(i + 2), all on the same port,
+ * so the clients are told apart by address just like devices on a network.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SntpEngineBenchmark {
+  private static final int PORT = 42_002;
+
+  @Param({"1", "8", "32"})
+  public int clients;
+
+  private final Ticker clock = System::nanoTime;
+  private final AtomicInteger failedSyncs = new AtomicInteger();
+  private final List<InetAddress> clientAddresses = new ArrayList<>();
+  private final List<SntpSocket> clientSockets = new ArrayList<>();
+  private final List<SntpListener> listeners = new ArrayList<>();
+  private SntpSocket engineSocket;
+  private SntpEngine engine;
+  private volatile CountDownLatch remainingSyncs;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    engineSocket =
+        SntpSocket.over(clock, UdpSyncTransport.bind(new InetSocketAddress(loopback(1), PORT)));
+    for (int i = 0; i < clients; i++) {
+      InetAddress address = loopback(i + 2);
+      SntpSocket socket =
+          SntpSocket.over(clock, UdpSyncTransport.bind(new InetSocketAddress(address, PORT)));
+      SntpListener listener = new SntpListener(clock, socket, PORT);
+      listener.start();
+      clientAddresses.add(address);
+      clientSockets.add(socket);
+      listeners.add(listener);
+    }
+    engine =
+        new SntpEngine(
+            clock,
+            engineSocket,
+            PORT,
+            MinRttOffsetEstimator.FACTORY,
+            (clientAddress, response) -> {
+              if (!response.status()) {
+                failedSyncs.incrementAndGet();
+              }
+              remainingSyncs.countDown();
+            });
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws InterruptedException {
+    engine.close();
+    engineSocket.close();
+    for (SntpListener listener : listeners) {
+      listener.stopRunning();
+    }
+    for (SntpSocket socket : clientSockets) {
+      socket.close();
+    }
+    for (SntpListener listener : listeners) {
+      listener.join();
+    }
+    if (failedSyncs.get() > 0) {
+      throw new IllegalStateException(failedSyncs.get() + " loopback syncs failed");
+    }
+  }
+
+  /** Synchronizes with every client and waits until the last one finished. */
+  @Benchmark
+  public long syncAllClients() throws InterruptedException {
+    remainingSyncs = new CountDownLatch(clients);
+    for (InetAddress address : clientAddresses) {
+      engine.startSync(address, SyncConstants.NUM_SNTP_CYCLES);
+    }
+    remainingSyncs.await();
+    return remainingSyncs.getCount();
+  }
+
+  private static InetAddress loopback(int host) throws IOException {
+    return InetAddress.getByAddress(new byte[] {127, 0, 0, (byte) host});
+  }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * SNTP probe handling on the client: receiving a probe through the {@link SntpSocket}, stamping it
+ * and sending the reply, over an endpoint that always has a probe ready so only the packet handling
+ * of {@link SntpListener} is timed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SntpListenerBenchmark {
+  private final Ticker clock = System::nanoTime;
+  private final ByteBuffer probeBuffer = ByteBuffer.allocate(SyncConstants.SNTP_BUFFER_SIZE);
+  private InetSocketAddress leader;
+  private SntpSocket socket;
+  private SntpListener listener;
+
+  @Setup
+  public void setUp() throws IOException {
+    leader =
+        new InetSocketAddress(
+            InetAddress.getByAddress(new byte[] {10, 0, 0, 2}), SyncConstants.SNTP_PORT);
+    socket = SntpSocket.over(clock, new ProbeEndpoint(leader));
+    listener = new SntpListener(clock, socket, SyncConstants.SNTP_PORT);
+  }
+
+  /** Answers a probe that was already received. */
+  @Benchmark
+  public boolean answerProbe() throws IOException {
+    probeBuffer.clear();
+    probeBuffer.putLong(0, clock.read()).limit(Long.BYTES);
+    return listener.answerProbe(probeBuffer, clock.read(), leader);
+  }
+
+  /** Receives a probe from the socket and answers it, one iteration of the listener loop. */
+  @Benchmark
+  public boolean receiveAndAnswerProbe() throws IOException {
+    InetSocketAddress sender = socket.receive(probeBuffer, SyncConstants.SOCKET_WAIT_TIME_MS);
+    return listener.answerProbe(probeBuffer, socket.lastReceiveTimeNs(), sender);
+  }
+
+  /** Returns the same 8 byte probe on every receive and drops what is sent. */
+  private static final class ProbeEndpoint implements DatagramEndpoint {
+    private final byte[] probe = new byte[Long.BYTES];
+    private final InetSocketAddress leader;
+
+    ProbeEndpoint(InetSocketAddress leader) {
+      this.leader = leader;
+    }
+
+    @Override
+    public boolean receive(DatagramPacket packet, int timeoutMs) {
+      System.arraycopy(probe, 0, packet.getData(), packet.getOffset(), probe.length);
+      packet.setLength(probe.length);
+      packet.setAddress(leader.getAddress());
+      packet.setPort(leader.getPort());
+      return true;
+    }
+
+    @Override
+    public void send(DatagramPacket packet) {}
+
+    @Override
+    public void setBroadcast(boolean broadcast) {}
+
+    @Override
+    public boolean isClosed() {
+      return false;
+    }
+
+    @Override
+    public void close() {}
+  }
+}
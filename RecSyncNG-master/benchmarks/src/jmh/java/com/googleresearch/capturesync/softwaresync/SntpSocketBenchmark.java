@@ -0,0 +1,96 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * SNTP round trips over loopback UDP between a probing {@link SntpSocket} and an {@link
+ * SntpListener}, comparing the blocking and the spinning receive. The sampled times are the round
+ * trip latencies the offset estimate sees, lower and tighter when the receive times are precise.
+ * Spinning needs a spare core, on a single core machine only the blocking numbers are meaningful.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SntpSocketBenchmark {
+  private static final int PROBE_PORT = 42_000;
+  private static final int LISTENER_PORT = 42_001;
+
+  @Param({"blocking", "spinning"})
+  public String receive;
+
+  private final Ticker clock = System::nanoTime;
+  private final ByteBuffer probeBuffer = ByteBuffer.allocate(Long.BYTES);
+  private final ByteBuffer replyBuffer = ByteBuffer.allocate(SyncConstants.SNTP_BUFFER_SIZE);
+  private InetSocketAddress listenerAddress;
+  private SntpSocket probeSocket;
+  private SntpSocket listenerSocket;
+  private SntpListener listener;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    listenerAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), LISTENER_PORT);
+    boolean spin = receive.equals("spinning");
+    probeSocket =
+        spin
+            ? SntpSocket.openSpinning(clock, PROBE_PORT)
+            : SntpSocket.openBlocking(clock, PROBE_PORT);
+    listenerSocket =
+        spin
+            ? SntpSocket.openSpinning(clock, LISTENER_PORT)
+            : SntpSocket.openBlocking(clock, LISTENER_PORT);
+    listener = new SntpListener(clock, listenerSocket, PROBE_PORT);
+    listener.start();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws InterruptedException {
+    listener.stopRunning();
+    listenerSocket.close();
+    probeSocket.close();
+    listener.join();
+  }
+
+  /** One probe and its reply, returning the round trip latency without the listener's turnaround. */
+  @Benchmark
+  public long roundTrip() throws IOException {
+    probeBuffer.clear();
+    final long t0 = clock.read();
+    probeBuffer.putLong(0, t0);
+    probeSocket.send(probeBuffer, listenerAddress);
+    if (probeSocket.receive(replyBuffer, SyncConstants.SOCKET_WAIT_TIME_MS) == null) {
+      throw new IllegalStateException("SNTP reply lost on loopback");
+    }
+    final long t3 = probeSocket.lastReceiveTimeNs();
+    return (t3 - t0) - (replyBuffer.getLong(2 * Long.BYTES) - replyBuffer.getLong(Long.BYTES));
+  }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync.phasealign;
+
+import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Per frame phase tracking: {@link PhaseAligner#passTimestamp}, allocating a response, against the
+ * allocation free path publishing to {@link PhaseTelemetry} that PhaseAlignController runs for
+ * every frame. Timestamps step by the period plus a drifting offset so the aligned and the not
+ * aligned paths both run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PhaseAlignerBenchmark {
+  /** The default configuration in app/src/main/res/raw/default_phaseconfig.json. */
+  private static final String CONFIG_JSON =
+      "{\"periodNs\": 33327307, \"goalPhaseNs\": 15000000, \"alignThresholdNs\": 100000,"
+          + " \"overheadNs\": 200000, \"minExposureNs\": 33370000}";
+
+  private PhaseAligner aligner;
+  private final PhaseTelemetry telemetry = new PhaseTelemetry();
+  private long timestampNs;
+  private long periodNs;
+
+  @Setup
+  public void setUp() throws JSONException {
+    PhaseConfig config = PhaseConfig.parseFromJSON(new JSONObject(CONFIG_JSON));
+    aligner = new PhaseAligner(config);
+    periodNs = config.periodNs();
+  }
+
+  @Benchmark
+  public PhaseResponse passTimestamp() {
+    // Drift by 37 us a frame, so the phase sweeps through the aligned window every few seconds.
+    timestampNs += periodNs + 37_000;
+    return aligner.passTimestamp(timestampNs);
+  }
+
+  @Benchmark
+  public long publishTelemetry() {
+    timestampNs += periodNs + 37_000;
+    long phaseNs = aligner.phaseNs(timestampNs);
+    long diffFromGoalNs = aligner.diffFromGoalNs(phaseNs);
+    telemetry.publish(timestampNs, phaseNs, diffFromGoalNs, aligner.isAligned(diffFromGoalNs));
+    return phaseNs;
+  }
+}
@@ -0,0 +1,28 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/** JVM stand-in for the Android HandlerThread, the sync code only uses it as a plain thread. */
+public class HandlerThread extends Thread {
+  public HandlerThread(String name) {
+    super(name);
+  }
+
+  public HandlerThread(String name, int priority) {
+    super(name);
+  }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright 2019 The Google Research Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import java.util.Arrays;
+
+/**
+ * JVM stand-in for the Android SparseArray with the same layout, sorted int keys next to their
+ * values, so lookups do not box or allocate here either.
+ */
+public class SparseArray<E> {
+  private int[] keys = new int[10];
+  private Object[] values = new Object[10];
+  private int size;
+
+  @SuppressWarnings("unchecked")
+  public E get(int key) {
+    int index = Arrays.binarySearch(keys, 0, size, key);
+    return index < 0 ? null : (E) values[index];
+  }
+
+  public void put(int key, E value) {
+    int index = Arrays.binarySearch(keys, 0, size, key);
+    if (index >= 0) {
+      values[index] = value;
+      return;
+    }
+    index = ~index;
+    if (size == keys.length) {
+      keys = Arrays.copyOf(keys, size * 2);
+      values = Arrays.copyOf(values, size * 2);
+    }
+    System.arraycopy(keys, index, keys, index + 1, size - index);
+    System.arraycopy(values, index, values, index + 1, size - index);
+    keys[index] = key;
+    values[index] = value;
+    size++;
+  }
+
+  public void remove(int key) {
+    int index = Arrays.binarySearch(keys, 0, size, key);
+    if (index >= 0) {
+      System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+      System.arraycopy(values, index + 1, values, index, size - index - 1);
+      values[--size] = null;
+    }
+  }
+
+  public void delete(int key) {
+    remove(key);
+  }
+
+  public int size() {
+    return size;
+  }
+}